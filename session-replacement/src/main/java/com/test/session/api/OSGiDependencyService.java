@@ -14,5 +14,7 @@ public interface OSGiDependencyService {
 
     SessionTracking getSessionTrackingMethod();
 
+    SerializerDeserializerService getSerializer();
+
     RedisConnector getRedisConnector();
 }
@@ -23,6 +23,26 @@ public interface RedisConfigurationService extends RedisConstants {
 
     String getStrategy();
 
+    boolean isFetchAndTouch();
+
+    boolean isNearCache();
+
+    int getNearCacheSize();
+
+    long getNearCacheStaleness();
+
+    boolean isAsyncConnector();
+
+    int getAsyncConnections();
+
+    String getConnectionLease();
+
+    int getExpirationBuckets();
+
+    boolean isSweepLeases();
+
+    long getSweepLeasePeriod();
+
     Set<String> sentinels();
 
     JedisPoolConfig configuredPool();
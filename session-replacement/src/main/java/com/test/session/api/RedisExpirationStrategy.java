@@ -1,5 +1,6 @@
 package com.test.session.api;
 
+import com.test.session.connection.api.RedisConnector.PipelineFacade;
 import com.test.session.models.SessionData;
 import com.test.session.repository.RedisSessionRepository;
 
@@ -27,10 +28,64 @@ public interface RedisExpirationStrategy {
      */
     void sessionTouched(SessionData sessionData);
 
+    /**
+     * Called when session is being committed. Implementation should queue
+     * commands that store or update expiration management data into provided
+     * pipeline, so they are sent to redis together with session data.
+     *
+     * @param sessionData
+     * @param pipeline
+     *            the pipeline used to commit session
+     */
+    void sessionTouched(SessionData sessionData, PipelineFacade pipeline);
+
     /**
      * Called to notify expiry mechanism that session id has changed.
      *
      * @param sessionData
      */
     void sessionIdChange(SessionData sessionData);
+
+    /**
+     * Returns key of the index where expiry instant of the session is stored,
+     * if strategy uses such index. When index key is provided, repository may
+     * update the index in the same server side script that retrieves and
+     * touches the session.
+     *
+     * @param sessionId
+     *            id of the session
+     * @return key of expiry index or <code>null</code> if strategy doesn't use
+     *         such index
+     */
+    default byte[] getExpiryIndexKey(String sessionId) {
+        return null;
+    }
+
+    /**
+     * Returns member of the expiry index that represents the session.
+     *
+     * @param sessionId
+     *            id of the session
+     * @return member of the expiry index or <code>null</code> if strategy
+     *         doesn't use such index
+     */
+    default byte[] getExpiryIndexMember(String sessionId) {
+        return null;
+    }
+
+    /**
+     * Called when session has been retrieved and touched in single round trip.
+     * Session key expiry has already been updated by the repository, and if
+     * <code>indexUpdated</code> is <code>true</code>, so was the expiry index.
+     * By default, this method delegates to
+     * {@link #sessionTouched(SessionData)}.
+     *
+     * @param sessionData
+     * @param indexUpdated
+     *            <code>true</code> if expiry index was updated by the
+     *            repository
+     */
+    default void sessionFetchedAndTouched(SessionData sessionData, boolean indexUpdated) {
+        sessionTouched(sessionData);
+    }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package com.test.session.api;
 
+import java.util.function.LongConsumer;
+
 /**
  * Implementations of this interface provide serialization/deserialization logic
  * for objects in session.
@@ -22,4 +24,30 @@ public interface SerializerDeserializerService {
      * @return deserialized object
      */
     Object deserialize(byte[] data);
+
+    /**
+     * Serializes object into a byte array and reports hash of its content. The
+     * hash doesn't depend on encryption, so two serialized forms of equal
+     * object have the same hash.
+     *
+     * @param value
+     *            the object to serialize
+     * @param contentHash
+     *            receives hash of the content, may be <code>null</code>
+     * @return byte array containing serialized object
+     */
+    byte[] serialize(Object value, LongConsumer contentHash);
+
+    /**
+     * Deserializes object from byte array and reports hash of its content, the
+     * same one that was reported when the object was serialized.
+     *
+     * @param data
+     *            serialized form of the object
+     * @param contentHash
+     *            receives hash of the content if data is not
+     *            <code>null</code>, may be <code>null</code>
+     * @return deserialized object
+     */
+    Object deserialize(byte[] data, LongConsumer contentHash);
 }
@@ -27,12 +27,30 @@ public interface SessionConfigurationService extends SessionConstants {
 
     boolean isReplicationTrigger();
 
+    boolean isDeltaCommit();
+
+    String getSerializer();
+
     String getSessionIdProvider();
 
     boolean isUsingEncryption();
 
     String getEncryptionKey();
 
+    String getEncryptionMode();
+
+    int getCompressionThreshold();
+
+    String getPersistenceDirectory();
+
+    int getPersistenceCompactionInterval();
+
+    int getInMemoryMaxSessions();
+
+    long getInMemoryMaxWeight();
+
+    String getInMemorySpillDirectory();
+
     String getCookieContextPath();
 
     boolean isSecureCookie();
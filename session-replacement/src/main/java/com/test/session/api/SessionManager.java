@@ -82,6 +82,19 @@ public interface SessionManager {
      */
     void delete(SessionData session, boolean expired);
 
+    /**
+     * Invalidates session whose data was already retrieved from repository,
+     * without retrieving it again. Used when sessions are retrieved in
+     * batches.
+     *
+     * @param session
+     *            session data as retrieved from repository
+     * @param expired
+     *            <code>true</code> if session is invalidated because it has
+     *            expired
+     */
+    void invalidate(SessionData session, boolean expired);
+
     /**
      * Deletes list of sessions. The deletion might be run in separate thread.
      *
@@ -1,7 +1,9 @@
 package com.test.session.api;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import com.test.session.models.SessionData;
@@ -24,6 +26,56 @@ public interface SessionRepository {
      */
     SessionData getSessionData(String id);
 
+    /**
+     * Retrieves global session data of several sessions. Sessions that were
+     * not found in repository are not part of the result. Repositories that
+     * can retrieve several sessions in single round trip should override this
+     * method.
+     *
+     * @param ids
+     *            the session ids
+     * @return global session data of sessions found in repository
+     */
+    default List<SessionData> getSessionData(Collection<String> ids) {
+        List<SessionData> sessions = new ArrayList<>(ids.size());
+
+        for (String id : ids) {
+            SessionData sessionData = getSessionData(id);
+
+            if (sessionData != null) {
+                sessions.add(sessionData);
+            }
+        }
+
+        return sessions;
+    }
+
+    /**
+     * Retrieves global session data from repository and marks the session as
+     * accessed at the given instant. If the session has already expired, it is
+     * returned as found in repository and it is not touched. Repositories that
+     * can retrieve and update session in single operation should override this
+     * method.
+     *
+     * @param id
+     *            the session id
+     * @param lastAccessedTime
+     *            the new last accessed time of the session
+     * @return global session data or <code>null</code> if data wasn't found in
+     *         repository.
+     */
+    default SessionData fetchAndTouch(String id, long lastAccessedTime) {
+        SessionData sessionData = getSessionData(id);
+
+        if (sessionData != null && !sessionData.isExpired(lastAccessedTime)) {
+            sessionData.setNew(false);
+            sessionData.setLastAccessedTime(lastAccessedTime);
+            storeSessionData(sessionData);
+        }
+
+        return sessionData;
+    }
+
     /**
      * Stores global session data into repository
      *
@@ -151,6 +203,16 @@ public interface SessionRepository {
          */
         void changeAttribute(String key, Object value);
 
+        /**
+         * Returns number of changed attributes that were not written to
+         * repository as their content was same as the one already stored.
+         *
+         * @return number of skipped attribute writes
+         */
+        default int getSkippedWrites() {
+            return 0;
+        }
+
         /**
          * Executes all {@link #addAttribute(String, Object)} and
          * {@link #removeAttribute(String)} requests and performs all necessary
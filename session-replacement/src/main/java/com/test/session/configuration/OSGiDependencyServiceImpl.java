@@ -14,6 +14,7 @@ import org.apache.felix.scr.annotations.Service;
 
 import com.test.session.api.OSGiDependencyService;
 import com.test.session.api.RedisConfigurationService;
+import com.test.session.api.SerializerDeserializerService;
 import com.test.session.api.SessionConfigurationService;
 import com.test.session.api.SessionTracking;
 import com.test.session.connection.api.RedisConnector;
@@ -23,7 +24,8 @@ import com.test.session.models.RedisConstants;
 @Service
 @References({
     @Reference(referenceInterface = SessionTracking.class, policy = DYNAMIC, cardinality = MANDATORY_MULTIPLE),
-    @Reference(referenceInterface = RedisConnector.class, policy = DYNAMIC, cardinality = MANDATORY_MULTIPLE)
+    @Reference(referenceInterface = RedisConnector.class, policy = DYNAMIC, cardinality = MANDATORY_MULTIPLE),
+    @Reference(referenceInterface = SerializerDeserializerService.class, policy = DYNAMIC, cardinality = MANDATORY_MULTIPLE)
 })
 public class OSGiDependencyServiceImpl implements OSGiDependencyService {
 
@@ -35,6 +37,7 @@ public class OSGiDependencyServiceImpl implements OSGiDependencyService {
 
     private Map<String, SessionTracking> sessionTrackings = new HashMap<>();
     private Map<String, RedisConnector> redisConnectors = new HashMap<>();
+    private Map<String, SerializerDeserializerService> serializers = new HashMap<>();
 
     protected final void bindSessionTracking(final SessionTracking service, final Map<Object, Object> props) {
         sessionTrackings.put(OSGiDependencyService.getProperty(props), service);
@@ -52,12 +55,26 @@ public class OSGiDependencyServiceImpl implements OSGiDependencyService {
         redisConnectors.remove(OSGiDependencyService.getProperty(props));
     }
 
+    protected final void bindSerializerDeserializerService(final SerializerDeserializerService service, final Map<Object, Object> props) {
+        serializers.put(OSGiDependencyService.getProperty(props), service);
+    }
+
+    protected final void unbindSerializerDeserializerService(final SerializerDeserializerService service, final Map<Object, Object> props) {
+        serializers.remove(OSGiDependencyService.getProperty(props));
+    }
+
     @Override
     public SessionTracking getSessionTrackingMethod() {
         return Optional.ofNullable(sessionTrackings.get(configurationService.getSessionTracking()))
                 .orElseThrow(() -> new IllegalArgumentException("No Session Tracking method with name " + configurationService.getSessionTracking() + " is configured."));
     }
 
+    @Override
+    public SerializerDeserializerService getSerializer() {
+        return Optional.ofNullable(serializers.get(configurationService.getSerializer()))
+                .orElseThrow(() -> new IllegalArgumentException("No Serializer with name " + configurationService.getSerializer() + " is configured."));
+    }
+
     @Override
     public RedisConnector getRedisConnector() {
         if (!redisConfigurationService.isRedisEnabled()) {
@@ -68,6 +85,10 @@ public class OSGiDependencyServiceImpl implements OSGiDependencyService {
 
         switch (clusterMode) {
             case RedisConstants.REDIS_MODE_SINGLE:
+                if (redisConfigurationService.isAsyncConnector()) {
+                    return redisConnectors.get(RedisConstants.NIO_CONNECTOR_PID);
+                }
+                return redisConnectors.get(RedisConstants.JEDIS_POOL_CONNECTOR_PID);
             case RedisConstants.REDIS_MODE_SENTINEL:
                 return redisConnectors.get(RedisConstants.JEDIS_POOL_CONNECTOR_PID);
             case RedisConstants.REDIS_MODE_CLUSTER:
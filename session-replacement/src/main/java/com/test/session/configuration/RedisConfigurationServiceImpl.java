@@ -73,6 +73,50 @@ public class RedisConfigurationServiceImpl implements RedisConfigurationService
             @PropertyOption(name = NOTIFICATION_STRATEGY_VALUE, value = NOTIFICATION_STRATEGY_VALUE) }, value = NOTIFICATION_STRATEGY_VALUE)
     private static final String REDIS_EXPIRATION_STRATEGY = "redis.expiration";
 
+    @Property(label = "Fetch and touch", description = "Configuration property that if checked will retrieve session and update its "
+            + "last accessed time and expiration in single server-side script call.", boolValue = false)
+    private static final String REDIS_FETCH_AND_TOUCH = "redis.fetch-and-touch";
+
+    @Property(label = "Near cache", description = "Configuration property that if checked will keep sessions owned by this node "
+            + "in local cache validated by session version stored in redis. Used only with sticky sessions.", boolValue = false)
+    private static final String REDIS_NEAR_CACHE = "redis.near-cache";
+
+    @Property(label = "Near cache size", description = "Configuration property that specifies maximum number of sessions in near cache.", intValue = DEFAULT_NEAR_CACHE_SIZE)
+    private static final String REDIS_NEAR_CACHE_SIZE = "redis.near-cache.size";
+
+    @Property(label = "Near cache staleness (in ms)", description = "Configuration property that specifies for how long a session "
+            + "from near cache is used without checking its version in redis.", longValue = 0)
+    private static final String REDIS_NEAR_CACHE_STALENESS = "redis.near-cache.staleness";
+
+    @Property(label = "Asynchronous connector", description = "Configuration property that if checked will use non-blocking connector "
+            + "that multiplexes commands over few connections. Used only in single server mode.", boolValue = false)
+    private static final String REDIS_ASYNC_CONNECTOR = "redis.async-connector";
+
+    @Property(label = "Asynchronous connections", description = "Configuration property that specifies number of connections used by "
+            + "asynchronous connector.", intValue = DEFAULT_REDIS_ASYNC_CONNECTIONS)
+    private static final String REDIS_ASYNC_CONNECTIONS = "redis.async-connections";
+
+    @Property(label = "Connection lease", description = "Configuration property that specifies for how long a pooled connection is "
+            + "held. Per request keeps the connection until the request finishes, per command returns it after each command or "
+            + "pipeline.", options = {
+            @PropertyOption(name = LEASE_PER_REQUEST_VALUE, value = LEASE_PER_REQUEST_NAME),
+            @PropertyOption(name = LEASE_PER_COMMAND_VALUE, value = LEASE_PER_COMMAND_NAME) }, value = LEASE_PER_REQUEST_VALUE)
+    private static final String REDIS_CONNECTION_LEASE = "redis.connection-lease";
+
+    @Property(label = "Expiration buckets", description = "Configuration property that specifies number of sets among which sessions "
+            + "are distributed by expiration strategy: minute sets for notification strategy, and sorted sets for sorted set strategy. "
+            + "Each set has its own hash tag, so sets are spread over cluster nodes. The number may be changed on a running cluster: "
+            + "minute sets expire on their own, and sorted sets of previous numbers are swept until they are empty.", intValue = DEFAULT_EXPIRATION_BUCKETS)
+    private static final String REDIS_EXPIRATION_BUCKETS = "redis.expiration-buckets";
+
+    @Property(label = "Sweep leases", description = "Configuration property that if checked will let only one node at a time sweep "
+            + "each expiration bucket. The node holds a lease in redis, and other nodes skip the bucket while the lease is held.", boolValue = false)
+    private static final String REDIS_SWEEP_LEASES = "redis.sweep-leases";
+
+    @Property(label = "Sweep lease period", description = "Configuration property that specifies in milliseconds for how long a sweep "
+            + "lease is held without renewal. Sweep of a stopped node is taken over by another node within this period.", longValue = DEFAULT_SWEEP_LEASE_PERIOD)
+    private static final String REDIS_SWEEP_LEASE_PERIOD = "redis.sweep-lease-period";
+
     private boolean enableRedis;
     private boolean supportIpV6;
     private boolean supportIpV4 = !supportIpV6;
@@ -83,6 +127,16 @@ public class RedisConfigurationServiceImpl implements RedisConfigurationService
     private int timeout;
     private int poolSize;
     private String strategy;
+    private boolean fetchAndTouch;
+    private boolean nearCache;
+    private int nearCacheSize;
+    private long nearCacheStaleness;
+    private boolean asyncConnector;
+    private int asyncConnections;
+    private String connectionLease;
+    private int expirationBuckets;
+    private boolean sweepLeases;
+    private long sweepLeasePeriod;
 
     @Activate
     protected void onActivate(Map<String, ?> properties) {
@@ -95,6 +149,16 @@ public class RedisConfigurationServiceImpl implements RedisConfigurationService
         timeout = PropertiesUtil.toInteger(properties.get(REDIS_TIMEOUT), DEFAULT_REDIS_TIMEOUT);
         poolSize = PropertiesUtil.toInteger(properties.get(REDIS_POOL_SIZE), DEFAULT_REDIS_POOL_SIZE);
         strategy = PropertiesUtil.toString(properties.get(REDIS_EXPIRATION_STRATEGY), NOTIFICATION_STRATEGY_VALUE);
+        fetchAndTouch = PropertiesUtil.toBoolean(properties.get(REDIS_FETCH_AND_TOUCH), false);
+        nearCache = PropertiesUtil.toBoolean(properties.get(REDIS_NEAR_CACHE), false);
+        nearCacheSize = PropertiesUtil.toInteger(properties.get(REDIS_NEAR_CACHE_SIZE), DEFAULT_NEAR_CACHE_SIZE);
+        nearCacheStaleness = PropertiesUtil.toLong(properties.get(REDIS_NEAR_CACHE_STALENESS), 0);
+        asyncConnector = PropertiesUtil.toBoolean(properties.get(REDIS_ASYNC_CONNECTOR), false);
+        asyncConnections = PropertiesUtil.toInteger(properties.get(REDIS_ASYNC_CONNECTIONS), DEFAULT_REDIS_ASYNC_CONNECTIONS);
+        connectionLease = PropertiesUtil.toString(properties.get(REDIS_CONNECTION_LEASE), LEASE_PER_REQUEST_VALUE);
+        expirationBuckets = Math.max(1, PropertiesUtil.toInteger(properties.get(REDIS_EXPIRATION_BUCKETS), DEFAULT_EXPIRATION_BUCKETS));
+        sweepLeases = PropertiesUtil.toBoolean(properties.get(REDIS_SWEEP_LEASES), false);
+        sweepLeasePeriod = PropertiesUtil.toLong(properties.get(REDIS_SWEEP_LEASE_PERIOD), DEFAULT_SWEEP_LEASE_PERIOD);
 
         LOGGER.debug("Redis configuration details: {}", toString());
     }
@@ -134,6 +198,56 @@ public class RedisConfigurationServiceImpl implements RedisConfigurationService
         return strategy;
     }
 
+    @Override
+    public boolean isFetchAndTouch() {
+        return fetchAndTouch;
+    }
+
+    @Override
+    public boolean isNearCache() {
+        return nearCache;
+    }
+
+    @Override
+    public int getNearCacheSize() {
+        return nearCacheSize;
+    }
+
+    @Override
+    public long getNearCacheStaleness() {
+        return nearCacheStaleness;
+    }
+
+    @Override
+    public boolean isAsyncConnector() {
+        return asyncConnector;
+    }
+
+    @Override
+    public int getAsyncConnections() {
+        return asyncConnections;
+    }
+
+    @Override
+    public String getConnectionLease() {
+        return connectionLease;
+    }
+
+    @Override
+    public int getExpirationBuckets() {
+        return expirationBuckets;
+    }
+
+    @Override
+    public boolean isSweepLeases() {
+        return sweepLeases;
+    }
+
+    @Override
+    public long getSweepLeasePeriod() {
+        return sweepLeasePeriod;
+    }
+
     @Override
     public int getTimeOut() {
         return timeout;
@@ -261,8 +375,8 @@ public class RedisConfigurationServiceImpl implements RedisConfigurationService
     @Override
     public String toString() {
         return String.format(
-                "RedisConfigurationServiceImpl [supportIpV6=%s, supportIpV4=%s, clusterMode=%s, masterName=%s, servers=%s, port=%s, timeout=%s, poolSize=%s, strategy=%s]",
+                "RedisConfigurationServiceImpl [supportIpV6=%s, supportIpV4=%s, clusterMode=%s, masterName=%s, servers=%s, port=%s, timeout=%s, poolSize=%s, strategy=%s, fetchAndTouch=%s, nearCache=%s, nearCacheSize=%s, nearCacheStaleness=%s, asyncConnector=%s, asyncConnections=%s, connectionLease=%s, expirationBuckets=%s, sweepLeases=%s, sweepLeasePeriod=%s]",
                 supportIpV6, supportIpV4, clusterMode, masterName, Arrays.toString(servers), port, timeout, poolSize,
-                strategy);
+                strategy, fetchAndTouch, nearCache, nearCacheSize, nearCacheStaleness, asyncConnector, asyncConnections, connectionLease, expirationBuckets, sweepLeases, sweepLeasePeriod);
     }
 }
\ No newline at end of file
@@ -64,6 +64,7 @@ public class SessionConfiguration implements SessionConfigurationService {
 
     @Property(label = "Repository factory name", description = "The name of SessionRepository implementation class.", options = {
             @PropertyOption(name = IN_MEMORY_REPOSITORY_VALUE, value = IN_MEMORY_REPOSITORY_VALUE),
+            @PropertyOption(name = OFF_HEAP_REPOSITORY_VALUE, value = OFF_HEAP_REPOSITORY_VALUE),
             @PropertyOption(name = REDIS_REPOSITORY_VALUE, value = REDIS_REPOSITORY_VALUE)}, value = REDIS_REPOSITORY_VALUE)
     private static final String REPOSITORY_FACTORY_NAME = "session.repository.factory";
 
@@ -77,6 +78,16 @@ public class SessionConfiguration implements SessionConfigurationService {
             @PropertyOption(name = SET, value = "false")}, value = "true")
     private static final String SESSION_REPLICATION_TRIGGER = "session.replication-trigger";
 
+    @Property(label = "Delta commit", description = "When checked, attributes marked as changed are stored in repository only if "
+            + "their serialized content differs from the one loaded from repository.", boolValue = false)
+    private static final String SESSION_DELTA_COMMIT = "session.delta-commit";
+
+    @Property(label = "Serializer", description = "Format used to serialize session attributes. Both formats can be read "
+            + "regardless of the selected one.", options = {
+            @PropertyOption(name = JDK_SERIALIZER_VALUE, value = JDK_SERIALIZER_VALUE),
+            @PropertyOption(name = BINARY_SERIALIZER_VALUE, value = BINARY_SERIALIZER_VALUE)}, value = JDK_SERIALIZER_VALUE)
+    private static final String SESSION_SERIALIZER = "session.serializer";
+
     @Property(label = "Session ID provider", description = "Strategy for for generating session ID.", options = {
             @PropertyOption(name = RANDOM_ID_PROVIDER_VALUE, value = RANDOM_ID_PROVIDER_VALUE),
             @PropertyOption(name = UUID_PROVIDER_VALUE, value = UUID_PROVIDER_VALUE)}, value = UUID_PROVIDER_VALUE)
@@ -98,6 +109,36 @@ public class SessionConfiguration implements SessionConfigurationService {
             + "If key specifies a URL, key will be loaded from specified address. Otherwise it is treated literally.", value = StringUtils.EMPTY)
     private static final String SESSION_ENCRYPTION_KEY = "session.encryption.key";
 
+    @Property(label = "Encryption mode", description = "Cipher mode used when encryption is active. Data encrypted in either mode can be decrypted "
+            + "regardless of the selected one.", options = {
+            @PropertyOption(name = ENCRYPTION_MODE_CBC, value = ENCRYPTION_MODE_CBC),
+            @PropertyOption(name = ENCRYPTION_MODE_GCM, value = ENCRYPTION_MODE_GCM)}, value = ENCRYPTION_MODE_CBC)
+    private static final String SESSION_ENCRYPTION_MODE = "session.encryption.mode";
+
+    @Property(label = "Compression threshold", description = "Serialized attributes of this size in bytes or larger are compressed "
+            + "before being encrypted and stored. Set to 0 to disable compression.", intValue = 0)
+    private static final String SESSION_COMPRESSION_THRESHOLD = "session.compression.threshold";
+
+    @Property(label = "Persistence directory", description = "Directory where in-memory repository keeps journal and snapshot of sessions, "
+            + "so they survive restart of the node. Leave empty to disable persistence.", value = "")
+    private static final String SESSION_PERSISTENCE_DIRECTORY = "session.persistence.directory";
+
+    @Property(label = "Persistence compaction interval", description = "Interval in seconds between snapshots of persisted in-memory sessions.",
+            intValue = DEFAULT_PERSISTENCE_COMPACTION_INTERVAL)
+    private static final String SESSION_PERSISTENCE_COMPACTION_INTERVAL = "session.persistence.compaction.interval";
+
+    @Property(label = "In-memory maximum sessions", description = "Maximum number of sessions of a namespace kept by in-memory repository. "
+            + "Least recently used sessions are evicted when it is exceeded. Set to 0 for no limit.", intValue = 0)
+    private static final String SESSION_INMEMORY_MAX_SESSIONS = "session.inmemory.max-sessions";
+
+    @Property(label = "In-memory maximum weight", description = "Maximum estimated size in bytes of sessions of a namespace kept by in-memory repository. "
+            + "Least recently used sessions are evicted when it is exceeded. Set to 0 for no limit.", longValue = 0)
+    private static final String SESSION_INMEMORY_MAX_WEIGHT = "session.inmemory.max-weight";
+
+    @Property(label = "In-memory spill directory", description = "Directory where sessions evicted from in-memory repository are stored "
+            + "until they are accessed again. Leave empty to expire evicted sessions.", value = "")
+    private static final String SESSION_INMEMORY_SPILL_DIRECTORY = "session.inmemory.spill-directory";
+
     @Reference
     private RedisConfigurationService redisConfigurationService;
 
@@ -115,12 +156,21 @@ public class SessionConfiguration implements SessionConfigurationService {
     private String repositoryFactory;
     private String sessionTracking;
     private boolean replicationTrigger;
+    private boolean deltaCommit;
+    private String serializer;
     private String sessionIdProvider;
     private String cookieContextPath;
     private boolean secureCookie;
     private boolean httpOnly;
     private boolean usingEncryption;
     private String encryptionKey;
+    private String encryptionMode;
+    private int compressionThreshold;
+    private String persistenceDirectory;
+    private int persistenceCompactionInterval;
+    private int inMemoryMaxSessions;
+    private long inMemoryMaxWeight;
+    private String inMemorySpillDirectory;
 
     @Activate
     protected void onActivation(Map<String, ?> properties) {
@@ -136,18 +186,30 @@ public class SessionConfiguration implements SessionConfigurationService {
         sessionIdLength = PropertiesUtil.toInteger(properties.get(SESSION_ID_LENGTH), DEFAULT_SESSION_ID_LENGTH);
         delegateWriter = PropertiesUtil.toBoolean(properties.get(DELEGATE_WRITER), false);
 
-        repositoryFactory = redisConfigurationService.isRedisEnabled() ? 
-                PropertiesUtil.toString(properties.get(REPOSITORY_FACTORY_NAME), REDIS_REPOSITORY_VALUE) : 
-                    IN_MEMORY_REPOSITORY_VALUE;
+        repositoryFactory = PropertiesUtil.toString(properties.get(REPOSITORY_FACTORY_NAME), REDIS_REPOSITORY_VALUE);
+
+        // Redis repository is replaced by in-memory one when redis is disabled
+        if (!redisConfigurationService.isRedisEnabled() && REDIS_REPOSITORY_VALUE.equals(repositoryFactory)) {
+            repositoryFactory = IN_MEMORY_REPOSITORY_VALUE;
+        }
 
         sessionTracking = PropertiesUtil.toString(properties.get(SESSION_PROPAGATOR_NAME), COOKIE_SESSION_PROPAGATION_TYPE_VALUE);
         replicationTrigger = Boolean.parseBoolean(PropertiesUtil.toString(properties.get(SESSION_REPLICATION_TRIGGER), "true"));
+        deltaCommit = PropertiesUtil.toBoolean(properties.get(SESSION_DELTA_COMMIT), false);
+        serializer = PropertiesUtil.toString(properties.get(SESSION_SERIALIZER), JDK_SERIALIZER_VALUE);
         sessionIdProvider = PropertiesUtil.toString(properties.get(SESSION_ID_PROVIDER), UUID_PROVIDER_VALUE);
         cookieContextPath = PropertiesUtil.toString(properties.get(COOKIE_CONTEXT_PATH_PARAMETER), DEFAULT_CONTEXT_PATH);
         secureCookie = PropertiesUtil.toBoolean(properties.get(SECURE_COOKIE_PARAMETER), true);
         httpOnly = PropertiesUtil.toBoolean(properties.get(COOKIE_HTTP_ONLY_PARAMETER), true);
 
         setEncryptionKey(PropertiesUtil.toString(properties.get(SESSION_ENCRYPTION_KEY), StringUtils.EMPTY));
+        encryptionMode = PropertiesUtil.toString(properties.get(SESSION_ENCRYPTION_MODE), ENCRYPTION_MODE_CBC);
+        compressionThreshold = PropertiesUtil.toInteger(properties.get(SESSION_COMPRESSION_THRESHOLD), 0);
+        persistenceDirectory = PropertiesUtil.toString(properties.get(SESSION_PERSISTENCE_DIRECTORY), StringUtils.EMPTY);
+        persistenceCompactionInterval = PropertiesUtil.toInteger(properties.get(SESSION_PERSISTENCE_COMPACTION_INTERVAL), DEFAULT_PERSISTENCE_COMPACTION_INTERVAL);
+        inMemoryMaxSessions = PropertiesUtil.toInteger(properties.get(SESSION_INMEMORY_MAX_SESSIONS), 0);
+        inMemoryMaxWeight = PropertiesUtil.toLong(properties.get(SESSION_INMEMORY_MAX_WEIGHT), 0);
+        inMemorySpillDirectory = PropertiesUtil.toString(properties.get(SESSION_INMEMORY_SPILL_DIRECTORY), StringUtils.EMPTY);
         LOGGER.debug("Configuration details: {}", toString());
     }
 
@@ -221,6 +283,16 @@ public class SessionConfiguration implements SessionConfigurationService {
         return replicationTrigger;
     }
 
+    @Override
+    public boolean isDeltaCommit() {
+        return deltaCommit;
+    }
+
+    @Override
+    public String getSerializer() {
+        return serializer;
+    }
+
     @Override
     public String getSessionIdProvider() {
         return sessionIdProvider;
@@ -236,6 +308,41 @@ public class SessionConfiguration implements SessionConfigurationService {
         return encryptionKey;
     }
 
+    @Override
+    public String getEncryptionMode() {
+        return encryptionMode;
+    }
+
+    @Override
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @Override
+    public String getPersistenceDirectory() {
+        return persistenceDirectory;
+    }
+
+    @Override
+    public int getPersistenceCompactionInterval() {
+        return persistenceCompactionInterval;
+    }
+
+    @Override
+    public int getInMemoryMaxSessions() {
+        return inMemoryMaxSessions;
+    }
+
+    @Override
+    public long getInMemoryMaxWeight() {
+        return inMemoryMaxWeight;
+    }
+
+    @Override
+    public String getInMemorySpillDirectory() {
+        return inMemorySpillDirectory;
+    }
+
     @Override
     public String getCookieContextPath() {
         return cookieContextPath;
@@ -348,10 +455,12 @@ public class SessionConfiguration implements SessionConfigurationService {
         return String.format(
                 "SessionConfiguration [redisConfigurationService=%s, disableSessionManagement=%s, maxInactiveInterval=%s, sticky=%s, namespace=%s, "
                 + "timestampSufix=%s, node=%s, sessionIdName=%s, sessionIdLength=%s, delegateWriter=%s, repositoryFactory=%s, sessionTracking=%s, "
-                + "replicationTrigger=%s, sessionIdProvider=%s, cookieContextPath=%s, secureCookie=%s, httpOnly=%s, usingEncryption=%s, encryptionKey=%s]",
+                + "replicationTrigger=%s, deltaCommit=%s, serializer=%s, sessionIdProvider=%s, cookieContextPath=%s, secureCookie=%s, httpOnly=%s, usingEncryption=%s, encryptionKey=%s, encryptionMode=%s, compressionThreshold=%s, "
+                + "persistenceDirectory=%s, persistenceCompactionInterval=%s, inMemoryMaxSessions=%s, inMemoryMaxWeight=%s, inMemorySpillDirectory=%s]",
                 redisConfigurationService, disableSessionManagement, maxInactiveInterval, sticky, namespace,
                 timestampSufix, node, sessionIdName, sessionIdLength, delegateWriter, repositoryFactory,
-                sessionTracking, replicationTrigger, sessionIdProvider, cookieContextPath, secureCookie, httpOnly,
-                usingEncryption, encryptionKey);
+                sessionTracking, replicationTrigger, deltaCommit, serializer, sessionIdProvider, cookieContextPath, secureCookie, httpOnly,
+                usingEncryption, encryptionKey, encryptionMode, compressionThreshold, persistenceDirectory,
+                persistenceCompactionInterval, inMemoryMaxSessions, inMemoryMaxWeight, inMemorySpillDirectory);
     }
 }
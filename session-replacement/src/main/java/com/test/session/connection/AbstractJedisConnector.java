@@ -8,9 +8,12 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import com.test.session.connection.api.RedisConnector;
+import com.test.session.connection.api.RedisScript;
 
 import redis.clients.jedis.BinaryJedisPubSub;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.MultiKeyPipelineBase;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
 
 /**
  * Base class for jedis facades. Contains methods that are common for both
@@ -29,11 +32,26 @@ public abstract class AbstractJedisConnector implements RedisConnector {
         listener.getLinked().punsubscribe(pattern);
     }
 
+    @Override
+    public void unsubscribe(final RedisPubSub listener, byte[] channel) {
+        listener.getLinked().unsubscribe(channel);
+    }
+
     @Override
     public void requestFinished() {
         // Do nothing
     }
 
+    @Override
+    public Object eval(RedisScript script, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return evalsha(script.getSha1(), keys, args);
+        } catch (JedisNoScriptException e) { // NOSONAR script cache was flushed or node changed
+            scriptLoad(keys.get(0), script.getScript());
+            return evalsha(script.getSha1(), keys, args);
+        }
+    }
+
     @Override
     public boolean supportsMultiSpop() {
         readVersion();
@@ -53,6 +71,11 @@ public abstract class AbstractJedisConnector implements RedisConnector {
             public void onPMessage(byte[] pattern, byte[] channel, byte[] message) {
                 listener.onPMessage(pattern, channel, message);
             }
+
+            @Override
+            public void onMessage(byte[] channel, byte[] message) {
+                listener.onMessage(channel, message);
+            }
         };
 
         return bps;
@@ -95,7 +118,7 @@ public abstract class AbstractJedisConnector implements RedisConnector {
         return null;
     }
 
-    protected static TransactionFacade wrapJedisTransaction(final Transaction t) {
+    protected static TransactionFacade wrapJedisTransaction(final MultiKeyPipelineBase t) {
         return new TransactionFacade() {
             @Override
             public void hdel(byte[] key, byte[]... fields) {
@@ -107,6 +130,11 @@ public abstract class AbstractJedisConnector implements RedisConnector {
                 t.hmset(key, hash);
             }
 
+            @Override
+            public ResponseFacade<Long> hincrBy(byte[] key, byte[] field, long value) {
+                return t.hincrBy(key, field, value)::get;
+            }
+
             @Override
             public void del(byte[]... keys) {
                 t.del(keys);
@@ -118,4 +146,84 @@ public abstract class AbstractJedisConnector implements RedisConnector {
             }
         };
     }
+
+    protected static PipelineFacade wrapJedisPipeline(final Pipeline p) {
+        final TransactionFacade commands = wrapJedisTransaction(p);
+
+        return new PipelineFacade() {
+            @Override
+            public <T> ResponseFacade<T> transaction(TransactionRunner<T> transaction) {
+                p.multi();
+                ResponseFacade<T> response = transaction.run(commands);
+                p.exec();
+
+                return response;
+            }
+
+            @Override
+            public void hdel(byte[] key, byte[]... fields) {
+                commands.hdel(key, fields);
+            }
+
+            @Override
+            public void hmset(byte[] key, Map<byte[], byte[]> hash) {
+                commands.hmset(key, hash);
+            }
+
+            @Override
+            public ResponseFacade<Long> hincrBy(byte[] key, byte[] field, long value) {
+                return commands.hincrBy(key, field, value);
+            }
+
+            @Override
+            public void del(byte[]... keys) {
+                commands.del(keys);
+            }
+
+            @Override
+            public ResponseFacade<Set<byte[]>> smembers(byte[] key) {
+                return commands.smembers(key);
+            }
+
+            @Override
+            public void sadd(byte[] key, byte[]... members) {
+                p.sadd(key, members);
+            }
+
+            @Override
+            public void srem(byte[] key, byte[]... members) {
+                p.srem(key, members);
+            }
+
+            @Override
+            public void expire(byte[] key, int seconds) {
+                p.expire(key, seconds);
+            }
+
+            @Override
+            public void expireAt(byte[] key, long unixTime) {
+                p.expireAt(key, unixTime);
+            }
+
+            @Override
+            public void setex(byte[] key, int seconds, byte[] value) {
+                p.setex(key, seconds, value);
+            }
+
+            @Override
+            public void persist(byte[] key) {
+                p.persist(key);
+            }
+
+            @Override
+            public void zadd(byte[] key, double score, byte[] member) {
+                p.zadd(key, score, member);
+            }
+
+            @Override
+            public void zrem(byte[] key, byte[]... members) {
+                p.zrem(key, members);
+            }
+        };
+    }
 }
\ No newline at end of file
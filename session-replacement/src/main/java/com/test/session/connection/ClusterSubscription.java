@@ -0,0 +1,157 @@
+package com.test.session.connection;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Subscription to a channel on every master of a cluster. Messages published
+ * by redis itself, like keyspace notifications, are only delivered to clients
+ * of the node that emitted them, so each master needs its own subscriber
+ * connection. The thread calling {@link #run()} periodically checks cluster
+ * topology, subscribes to new masters and drops subscriptions of nodes that
+ * are no longer masters or whose connection was lost.
+ */
+final class ClusterSubscription {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterSubscription.class);
+
+    private final byte[] channel;
+    private final int timeout;
+    private final long refreshInterval;
+    private final Supplier<Set<HostAndPort>> masters;
+    private final Supplier<BinaryJedisPubSub> pubSubFactory;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    // Accessed only by thread running the subscription
+    private final Map<HostAndPort, NodeSubscriber> subscribers = new HashMap<>();
+
+    ClusterSubscription(byte[] channel, int timeout, long refreshInterval, Supplier<Set<HostAndPort>> masters,
+            Supplier<BinaryJedisPubSub> pubSubFactory) {
+        this.channel = channel;
+        this.timeout = timeout;
+        this.refreshInterval = refreshInterval;
+        this.masters = masters;
+        this.pubSubFactory = pubSubFactory;
+    }
+
+    /**
+     * Subscribes to all masters and keeps subscriptions in line with cluster
+     * topology until {@link #close()} is called. This is a blocking
+     * operation.
+     */
+    void run() {
+        try {
+            // First topology read must succeed, otherwise caller retries whole subscription
+            refresh(masters.get());
+
+            while (!closed.await(refreshInterval, TimeUnit.MILLISECONDS)) {
+                try {
+                    refresh(masters.get());
+                } catch (JedisException e) {
+                    LOGGER.warn("Unable to read cluster topology, keeping current subscriptions.", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException(e);
+        } finally {
+            subscribers.values().forEach(NodeSubscriber::stop);
+            subscribers.clear();
+        }
+    }
+
+    void close() {
+        closed.countDown();
+    }
+
+    private void refresh(Set<HostAndPort> current) {
+        for (Iterator<Map.Entry<HostAndPort, NodeSubscriber>> it = subscribers.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<HostAndPort, NodeSubscriber> entry = it.next();
+
+            if (!current.contains(entry.getKey()) || !entry.getValue().isAlive()) {
+                entry.getValue().stop();
+                it.remove();
+            }
+        }
+
+        for (HostAndPort node : current) {
+            if (!subscribers.containsKey(node)) {
+                LOGGER.info("Subscribing to {} on cluster node {}.", SafeEncoder.encode(channel), node);
+                NodeSubscriber subscriber = new NodeSubscriber(node);
+                subscribers.put(node, subscriber);
+                subscriber.start();
+            }
+        }
+    }
+
+    /**
+     * Subscriber connection to a single node, running in its own thread.
+     */
+    private final class NodeSubscriber implements Runnable {
+        private final HostAndPort node;
+        private final Jedis jedis;
+        private final Thread thread;
+        private boolean stopped;
+
+        NodeSubscriber(HostAndPort node) {
+            this.node = node;
+            this.jedis = new Jedis(node.getHost(), node.getPort(), timeout);
+            this.thread = new Thread(this, "redis-subscriber-" + node);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean isAlive() {
+            return thread.isAlive();
+        }
+
+        @Override
+        public void run() {
+            try {
+                synchronized (this) {
+                    if (stopped) {
+                        return;
+                    }
+                    jedis.connect();
+                }
+
+                jedis.subscribe(pubSubFactory.get(), channel);
+            } catch (JedisException e) {
+                if (!isStopped()) {
+                    LOGGER.warn("Lost subscription on cluster node {}.", node, e);
+                }
+            } finally {
+                jedis.close();
+            }
+        }
+
+        /**
+         * Stops subscription by closing the connection, which also unblocks
+         * the subscriber thread.
+         */
+        synchronized void stop() {
+            stopped = true;
+            jedis.disconnect();
+        }
+
+        private synchronized boolean isStopped() {
+            return stopped;
+        }
+    }
+}
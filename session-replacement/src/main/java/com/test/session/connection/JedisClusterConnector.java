@@ -2,10 +2,13 @@ package com.test.session.connection;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
@@ -15,13 +18,18 @@ import org.slf4j.LoggerFactory;
 
 import com.test.session.api.RedisConfigurationService;
 import com.test.session.connection.api.RedisConnector;
+import com.test.session.connection.api.RedisScript;
 import com.test.session.models.RedisConstants;
 
 import redis.clients.jedis.BinaryJedisCommands;
 import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 import redis.clients.jedis.Tuple;
 import redis.clients.jedis.exceptions.JedisClusterException;
+import redis.clients.jedis.exceptions.JedisDataException;
 import redis.clients.util.JedisClusterCRC16;
 import redis.clients.util.SafeEncoder;
 
@@ -36,8 +44,39 @@ import redis.clients.util.SafeEncoder;
 public class JedisClusterConnector extends AbstractJedisConnector {
     private static final Logger LOGGER = LoggerFactory.getLogger(JedisClusterConnector.class);
 
+    private static final Long ONE = Long.valueOf(1L);
+    // Number of times cross-slot rename is retried if source key changes while it is copied
+    private static final int RENAME_ATTEMPTS = 3;
+    // Number of hash fields copied in one step when hash can't be restored from dump
+    private static final int HSCAN_BATCH = 500;
+
+    /**
+     * Returns serialized value of KEYS[1] and its remaining time to live in
+     * milliseconds.
+     */
+    private static final RedisScript DUMP_SCRIPT = new RedisScript(
+            "return {redis.call('DUMP', KEYS[1]), redis.call('PTTL', KEYS[1])}");
+
+    /**
+     * Replaces KEYS[1] with serialized value ARGV[2] that expires in ARGV[1]
+     * milliseconds, or never if ARGV[1] is 0.
+     */
+    private static final RedisScript RESTORE_SCRIPT = new RedisScript(
+            "redis.call('DEL', KEYS[1])\n"
+            + "return redis.call('RESTORE', KEYS[1], ARGV[1], ARGV[2])");
+
+    /**
+     * Deletes KEYS[1] if its serialized value is still ARGV[1].
+     */
+    private static final RedisScript DELETE_IF_UNCHANGED_SCRIPT = new RedisScript(
+            "if redis.call('DUMP', KEYS[1]) == ARGV[1] then\n"
+            + "  return redis.call('DEL', KEYS[1])\n"
+            + "end\n"
+            + "return 0");
+
     private TransactionalJedisCluster jedisCluster;
     private boolean transactionOnKey;
+    private final Map<RedisPubSub, ClusterSubscription> subscriptions = new ConcurrentHashMap<>();
 
     @Reference(bind = "bindRedisConfigurationService")
     private RedisConfigurationService redisConfigurationService;
@@ -65,6 +104,33 @@ public class JedisClusterConnector extends AbstractJedisConnector {
         jedisCluster.psubscribe(bps, SafeEncoder.encode(pattern));
     }
 
+    /**
+     * Subscribes listener on every master of the cluster, and follows
+     * topology changes until listener is unsubscribed.
+     */
+    @Override
+    public void subscribe(final RedisPubSub listener, String channel) {
+        ClusterSubscription subscription = new ClusterSubscription(SafeEncoder.encode(channel), redisConfigurationService.getTimeOut(),
+                RedisConstants.CLUSTER_SUBSCRIPTION_REFRESH, jedisCluster::getMasterNodes, () -> getBinaryJedisPubSub(listener));
+
+        subscriptions.put(listener, subscription);
+
+        try {
+            subscription.run();
+        } finally {
+            subscriptions.remove(listener, subscription);
+        }
+    }
+
+    @Override
+    public void unsubscribe(final RedisPubSub listener, byte[] channel) {
+        ClusterSubscription subscription = subscriptions.get(listener);
+
+        if (subscription != null) {
+            subscription.close();
+        }
+    }
+
     @Override
     public Long hdel(byte[] key, byte[]... fields) {
         return jedisCluster.hdel(key, fields);
@@ -152,6 +218,11 @@ public class JedisClusterConnector extends AbstractJedisConnector {
         return jedisCluster.zadd(key, score, elem);
     }
 
+    @Override
+    public Long zadd(byte[] key, Map<byte[], Double> scoreMembers) {
+        return jedisCluster.zadd(key, scoreMembers);
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -177,6 +248,16 @@ public class JedisClusterConnector extends AbstractJedisConnector {
         return jedisCluster.persist(key);
     }
 
+    @Override
+    public byte[] scriptLoad(byte[] key, byte[] script) {
+        return jedisCluster.scriptLoad(script, key);
+    }
+
+    @Override
+    public Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        return jedisCluster.evalsha(sha1, keys, args);
+    }
+
     @Override
     public String info(String section) {
         return jedisCluster.info(section);
@@ -204,14 +285,61 @@ public class JedisClusterConnector extends AbstractJedisConnector {
 
     /**
      * Implements move of Redis elements where oldkey and newkey don't fall in
-     * same slot. The concrete implementation depends on the type of data at
-     * oldkey.
+     * same slot. The value is moved using DUMP and RESTORE, so it is copied in
+     * its serialized form, and keeps its remaining time to live. Old key is
+     * deleted only if it didn't change since it was dumped, otherwise the copy
+     * is repeated. Readers thus either see the old key, or the new key with
+     * the latest value.
      *
      * @param oldkey
      * @param newkey
-     * @return
+     * @return OK if succeeded, ERR otherwise - e.g. when oldkey doesn't exist
      */
+    @SuppressWarnings("unchecked")
     private String renameToDifferentSlots(byte[] oldkey, byte[] newkey) {
+        for (int attempt = 0; attempt < RENAME_ATTEMPTS; attempt++) {
+            List<Object> dumped = (List<Object>) eval(DUMP_SCRIPT, Collections.singletonList(oldkey), Collections.emptyList());
+            byte[] dump = (byte[]) dumped.get(0);
+
+            if (dump == null) {
+                if (attempt > 0) {
+                    // Old key was removed while it was copied
+                    jedisCluster.del(newkey);
+                }
+                return "ERR";
+            }
+
+            long pttl = (Long) dumped.get(1);
+
+            try {
+                eval(RESTORE_SCRIPT, Collections.singletonList(newkey), Arrays.asList(Protocol.toByteArray(Math.max(pttl, 0)), dump));
+            } catch (JedisClusterException e) {
+                throw e;
+            } catch (JedisDataException e) {
+                // E.g. nodes run different redis versions and payload is not compatible
+                LOGGER.info("Unable to restore key {} on new slot, copying it instead: {}", SafeEncoder.encode(oldkey), e.getMessage());
+                return copyToDifferentSlots(oldkey, newkey, pttl);
+            }
+
+            if (ONE.equals(eval(DELETE_IF_UNCHANGED_SCRIPT, Collections.singletonList(oldkey), Collections.singletonList(dump)))) {
+                return "OK";
+            }
+        }
+
+        throw new JedisClusterException("Key " + SafeEncoder.encode(oldkey) + " was modified during rename.");
+    }
+
+    /**
+     * Copies element to new key, and then removes the old key. The concrete
+     * implementation depends on the type of data at oldkey.
+     *
+     * @param oldkey
+     * @param newkey
+     * @param pttl
+     *            remaining time to live of the old key in milliseconds
+     * @return OK if succeeded, ERR otherwise - e.g. when oldkey doesn't exist
+     */
+    private String copyToDifferentSlots(byte[] oldkey, byte[] newkey, long pttl) {
         String type = jedisCluster.type(oldkey);
         String result;
         switch (type) {
@@ -227,12 +355,17 @@ public class JedisClusterConnector extends AbstractJedisConnector {
             case "list":
                 result = renameList(oldkey, newkey);
                 break;
-            case "zrange":
+            case "zset":
                 result = renameZRange(oldkey, newkey);
                 break;
+            case "none":
+                return "ERR";
             default:
                 throw new JedisClusterException("Unknown element type " + type + " for key " + SafeEncoder.encode(oldkey));
         }
+        if (pttl > 0) {
+            jedisCluster.pexpire(newkey, pttl);
+        }
         return result;
     }
 
@@ -258,7 +391,8 @@ public class JedisClusterConnector extends AbstractJedisConnector {
 
     /**
      * Renames Redis hash. As this operation may span multiple servers, we add
-     * hash elements to new key, and then remove the old key.
+     * hash elements to new key, and then remove the old key. Hash is read in
+     * batches using HSCAN, so large hashes are not loaded at once.
      *
      * @param oldkey
      *            the old hash key
@@ -267,11 +401,30 @@ public class JedisClusterConnector extends AbstractJedisConnector {
      * @return OK if succeeded, ERR otherwise - e.g. when oldkey doesn't exist
      */
     String renameHash(byte[] oldkey, byte[] newkey) {
-        Map<byte[], byte[]> value = jedisCluster.hgetAll(oldkey);
-        if (value == null) {
+        ScanParams params = new ScanParams().count(HSCAN_BATCH);
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        boolean found = false;
+
+        jedisCluster.del(newkey);
+
+        do {
+            ScanResult<Map.Entry<byte[], byte[]>> batch = jedisCluster.hscan(oldkey, cursor, params);
+
+            if (!batch.getResult().isEmpty()) {
+                Map<byte[], byte[]> fields = new HashMap<>(batch.getResult().size() * 2);
+
+                for (Map.Entry<byte[], byte[]> field : batch.getResult()) {
+                    fields.put(field.getKey(), field.getValue());
+                }
+                jedisCluster.hmset(newkey, fields);
+                found = true;
+            }
+            cursor = batch.getCursorAsBytes();
+        } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+
+        if (!found) {
             return "ERR";
         }
-        jedisCluster.hmset(newkey, value);
         jedisCluster.del(oldkey);
         return "OK";
     }
@@ -360,6 +513,11 @@ public class JedisClusterConnector extends AbstractJedisConnector {
         return jedisCluster.transaction(transaction);
     }
 
+    @Override
+    public <T> ResponseFacade<T> pipeline(final byte[] key, final PipelineRunner<T> pipeline) {
+        return jedisCluster.pipeline(transactionOnKey ? key : null, pipeline);
+    }
+
     /**
      * If set to true, cluster transaction will be executed in multi mode on
      * node owns slot for transaction key. If set to false, each transaction
@@ -5,6 +5,11 @@ import static redis.clients.util.SafeEncoder.encode;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.felix.scr.annotations.Component;
@@ -24,6 +29,7 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCluster;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisSentinelPool;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Transaction;
 import redis.clients.util.Pool;
 
@@ -31,6 +37,12 @@ import redis.clients.util.Pool;
  * This class hides difference of APIs between {@link Jedis} and
  * {@link JedisCluster}. The implementation offers subset of
  * {@link BinaryJedisCommands}.
+ * <p>
+ * By default a pooled connection is associated to the request thread on first
+ * use and returned to the pool when request finishes. When connections are
+ * leased per command, each command, transaction or pipeline borrows a
+ * connection and returns it right away, and {@link #pinned(Supplier)} can be
+ * used to run several commands on the same connection.
  */
 @Component(immediate = true, name = RedisConstants.JEDIS_POOL_CONNECTOR_PID)
 @Service(RedisConnector.class)
@@ -39,12 +51,19 @@ public class JedisPoolConnector extends AbstractJedisConnector {
 
     private Pool<Jedis> jedisPool;
     private final ThreadLocal<Jedis> currentJedis = new ThreadLocal<>();
+    private boolean leasePerCommand;
+
+    // Pool wait metrics
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder leaseWaitTime = new LongAdder();
+    private final AtomicLong maxLeaseWaitTime = new AtomicLong();
 
     @Reference(bind = "bindRedisConfigurationService")
     private RedisConfigurationService redisConfigurationService;
 
     protected void bindRedisConfigurationService(final RedisConfigurationService service, Map<String, ?> properties) {
         this.redisConfigurationService = service;
+        this.leasePerCommand = RedisConstants.LEASE_PER_COMMAND_VALUE.equals(service.getConnectionLease());
 
         try {
             switch (redisConfigurationService.getClusterMode()) {
@@ -70,131 +89,219 @@ public class JedisPoolConnector extends AbstractJedisConnector {
         }
     }
 
+    /**
+     * Runs commands on a connection associated to the current thread. When
+     * connections are leased per command, the connection is borrowed for the
+     * duration of commands and returned to the pool afterwards. Nested calls
+     * use the connection of the outermost call.
+     */
+    @Override
+    public <T> T pinned(Supplier<T> commands) {
+        if (!leasePerCommand || currentJedis.get() != null) {
+            return commands.get();
+        }
+
+        Jedis jedis = borrow();
+        currentJedis.set(jedis);
+
+        try {
+            return commands.get();
+        } finally {
+            currentJedis.set(null);
+            jedis.close();
+        }
+    }
+
+    /**
+     * Returns number of connections borrowed from the pool.
+     */
+    public long getLeases() {
+        return leases.sum();
+    }
+
+    /**
+     * Returns total time in milliseconds spent waiting for connections from
+     * the pool.
+     */
+    public long getLeaseWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(leaseWaitTime.sum());
+    }
+
+    /**
+     * Returns longest time in milliseconds spent waiting for a connection from
+     * the pool.
+     */
+    public long getMaxLeaseWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLeaseWaitTime.get());
+    }
+
     @Override
     public void psubscribe(final RedisPubSub listener, String pattern) {
         BinaryJedisPubSub bps = getBinaryJedisPubSub(listener);
 
         listener.link(bps);
-        jedis().psubscribe(bps, encode(pattern));
+        execute(jedis -> {
+            jedis.psubscribe(bps, encode(pattern));
+            return null;
+        });
+    }
+
+    @Override
+    public void subscribe(final RedisPubSub listener, String channel) {
+        BinaryJedisPubSub bps = getBinaryJedisPubSub(listener);
+
+        listener.link(bps);
+        execute(jedis -> {
+            jedis.subscribe(bps, encode(channel));
+            return null;
+        });
     }
 
     @Override
     public Long hdel(byte[] key, byte[]... fields) {
-        return jedis().hdel(key, fields);
+        return execute(jedis -> jedis.hdel(key, fields));
     }
 
     @Override
     public List<byte[]> hmget(byte[] key, byte[]... fields) {
-        return jedis().hmget(key, fields);
+        return execute(jedis -> jedis.hmget(key, fields));
     }
 
     @Override
     public String hmset(byte[] key, Map<byte[], byte[]> hash) {
-        return jedis().hmset(key, hash);
+        return execute(jedis -> jedis.hmset(key, hash));
     }
 
     @Override
     public Long hsetnx(final byte[] key, final byte[] field, final byte[] value) {
-        return jedis().hsetnx(key, field, value);
+        return execute(jedis -> jedis.hsetnx(key, field, value));
     }
 
     @Override
     public Long hset(final byte[] key, final byte[] field, final byte[] value) {
-        return jedis().hset(key, field, value);
+        return execute(jedis -> jedis.hset(key, field, value));
     }
 
     @Override
     public Set<byte[]> hkeys(byte[] key) {
-        return jedis().hkeys(key);
+        return execute(jedis -> jedis.hkeys(key));
     }
 
     @Override
     public String set(byte[] key, byte[] value) {
-        return jedis().set(key, value);
+        return execute(jedis -> jedis.set(key, value));
     }
 
     @Override
     public String setex(byte[] key, int expiry, byte[] value) {
-        return jedis().setex(key, expiry, value);
+        return execute(jedis -> jedis.setex(key, expiry, value));
     }
 
     @Override
     public Long expire(byte[] key, int value) {
-        return jedis().expire(key, value);
+        return execute(jedis -> jedis.expire(key, value));
     }
 
     @Override
     public void srem(byte[] key, byte[]... member) {
-        jedis().srem(key, member);
+        execute(jedis -> jedis.srem(key, member));
     }
 
     @Override
     public Long sadd(byte[] key, byte[]... member) {
-        return jedis().sadd(key, member);
+        return execute(jedis -> jedis.sadd(key, member));
     }
 
     @Override
     public Long del(byte[]... keys) {
-        return jedis().del(keys);
+        return execute(jedis -> jedis.del(keys));
     }
 
     @Override
     public Boolean exists(byte[] key) {
-        return jedis().exists(key);
+        return execute(jedis -> jedis.exists(key));
     }
 
     @Override
     public Set<byte[]> smembers(byte[] key) {
-        return jedis().smembers(key);
+        return execute(jedis -> jedis.smembers(key));
     }
 
     @Override
     public Set<byte[]> spop(byte[] key, long count) {
-        return jedis().spop(key, count);
+        return execute(jedis -> jedis.spop(key, count));
     }
 
     @Override
     public Long expireAt(byte[] key, long unixTime) {
-        return jedis().expireAt(key, unixTime);
+        return execute(jedis -> jedis.expireAt(key, unixTime));
     }
 
     @Override
     public Long zadd(byte[] key, double score, byte[] elem) {
-        return jedis().zadd(key, score, elem);
+        return execute(jedis -> jedis.zadd(key, score, elem));
+    }
+
+    @Override
+    public Long zadd(byte[] key, Map<byte[], Double> scoreMembers) {
+        return execute(jedis -> jedis.zadd(key, scoreMembers));
     }
 
     @Override
     public Long zrem(byte[] key, byte[]... fields) {
-        return jedis().zrem(key, fields);
+        return execute(jedis -> jedis.zrem(key, fields));
     }
 
     @Override
     public Set<byte[]> zrangeByScore(byte[] key, double start, double end) {
-        return jedis().zrangeByScore(key, start, end);
+        return execute(jedis -> jedis.zrangeByScore(key, start, end));
     }
 
     @Override
     public Set<byte[]> zrange(byte[] key, long start, long end) {
-        return jedis().zrange(key, start, end);
+        return execute(jedis -> jedis.zrange(key, start, end));
     }
 
     @Override
     public Long persist(byte[] key) {
-        return jedis().persist(key);
+        return execute(jedis -> jedis.persist(key));
+    }
+
+    @Override
+    public byte[] scriptLoad(byte[] key, byte[] script) {
+        return execute(jedis -> jedis.scriptLoad(script));
+    }
+
+    @Override
+    public Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        return execute(jedis -> jedis.evalsha(sha1, keys, args));
     }
 
     @Override
     public String info(String section) {
-        return jedis().info(section);
+        return execute(jedis -> jedis.info(section));
     }
 
     @Override
     public <T> ResponseFacade<T> transaction(final byte[] key, final TransactionRunner<T> transaction) {
-        final Transaction t = jedis().multi();
-        ResponseFacade<T> response = transaction.run(wrapJedisTransaction(t));
-        t.exec();
+        return execute(jedis -> {
+            final Transaction t = jedis.multi();
+            ResponseFacade<T> response = transaction.run(wrapJedisTransaction(t));
+            t.exec();
 
-        return response;
+            return response;
+        });
+    }
+
+    @Override
+    public <T> ResponseFacade<T> pipeline(final byte[] key, final PipelineRunner<T> pipeline) {
+        return execute(jedis -> {
+            final Pipeline p = jedis.pipelined();
+            ResponseFacade<T> response = pipeline.run(wrapJedisPipeline(p));
+            p.sync();
+
+            return response;
+        });
     }
 
     @Override
@@ -206,17 +313,17 @@ public class JedisPoolConnector extends AbstractJedisConnector {
 
     @Override
     public String rename(byte[] oldkey, byte[] newkey) {
-        return jedis().rename(oldkey, newkey);
+        return execute(jedis -> jedis.rename(oldkey, newkey));
     }
 
     @Override
     public byte[] get(byte[] key) {
-        return jedis().get(key);
+        return execute(jedis -> jedis.get(key));
     }
 
     @Override
     public Long publish(byte[] channel, byte[] message) {
-        return jedis().publish(channel, message);
+        return execute(jedis -> jedis.publish(channel, message));
     }
 
     private void singleInstance() {
@@ -235,14 +342,41 @@ public class JedisPoolConnector extends AbstractJedisConnector {
                 redisConfigurationService.sentinels(), redisConfigurationService.configuredPool(), redisConfigurationService.getTimeOut());
     }
 
+    /**
+     * Runs command on connection of the current thread. If there is none and
+     * connections are leased per command, the command runs on a connection
+     * that is returned to the pool as soon as the command completes.
+     */
+    private <T> T execute(Function<Jedis, T> command) {
+        if (leasePerCommand && currentJedis.get() == null) {
+            try (Jedis jedis = borrow()) {
+                return command.apply(jedis);
+            }
+        }
+
+        return command.apply(jedis());
+    }
+
     private Jedis jedis() {
         Jedis jedis = currentJedis.get();
 
         if (jedis == null && jedisPool != null) {
-            jedis = jedisPool.getResource();
+            jedis = borrow();
             currentJedis.set(jedis);
         }
 
         return jedis;
     }
+
+    private Jedis borrow() {
+        long start = System.nanoTime();
+        Jedis jedis = jedisPool.getResource();
+        long waited = System.nanoTime() - start;
+
+        leases.increment();
+        leaseWaitTime.add(waited);
+        maxLeaseWaitTime.accumulateAndGet(waited, Math::max);
+
+        return jedis;
+    }
 }
@@ -0,0 +1,619 @@
+package com.test.session.connection;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * Non-blocking client for redis protocol (RESP). The client keeps a small
+ * number of connections to a single redis server, and many commands issued by
+ * different threads are in flight on each connection at the same time. As
+ * redis replies to commands in order, each connection keeps a queue of futures
+ * waiting for replies, and completes the oldest one when a reply is read.
+ * <p>
+ * All connections are served by a single I/O thread. Callers write commands
+ * directly to the socket when possible, and leave to I/O thread only what
+ * couldn't be written without blocking. Futures are completed on I/O thread.
+ * <p>
+ * If the oldest command of a connection doesn't get reply within the timeout,
+ * or the connection fails, all commands waiting on that connection fail with
+ * {@link JedisConnectionException}, and connection is re-established when next
+ * command is sent. Error replies are reported as {@link JedisDataException}.
+ */
+final class NioRedisClient implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioRedisClient.class);
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final String NOSCRIPT = "NOSCRIPT";
+
+    // Marks reply that was not yet fully received
+    static final Object INCOMPLETE = new Object();
+
+    private final InetSocketAddress address;
+    private final int timeout;
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final Selector selector;
+    private final Queue<Connection> interestChanges = new ConcurrentLinkedQueue<>();
+    private final Thread ioThread;
+    private volatile boolean closed;
+
+    /**
+     * Creates client and starts its I/O thread. Connections are established
+     * when they are first used.
+     *
+     * @param address
+     *            address of redis server
+     * @param connectionCount
+     *            number of connections to open
+     * @param timeout
+     *            connect and reply timeout in milliseconds
+     */
+    NioRedisClient(InetSocketAddress address, int connectionCount, int timeout) throws IOException {
+        this.address = address;
+        this.timeout = timeout;
+        this.selector = Selector.open();
+        this.connections = new Connection[Math.max(1, connectionCount)];
+
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new Connection();
+        }
+
+        ioThread = new Thread(this::run, "redis-nio-" + address);
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Sends the command.
+     *
+     * @param command
+     *            command name followed by its arguments
+     * @return future completed with the reply
+     */
+    CompletableFuture<Object> send(byte[]... command) {
+        return send(Collections.singletonList(command)).get(0);
+    }
+
+    /**
+     * Sends commands one after another on the same connection, without
+     * commands of other callers in between. This is used for transactions.
+     *
+     * @param commands
+     *            commands to send
+     * @return futures completed with replies, in same order as commands
+     */
+    List<CompletableFuture<Object>> send(List<byte[][]> commands) {
+        Connection connection = connections[(nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length];
+
+        return connection.send(commands);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+
+        try {
+            ioThread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Connection connection : connections) {
+            connection.fail(new JedisConnectionException("Redis client was closed."));
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error while closing selector.", e);
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select(Math.max(1, timeout / 2));
+
+                Connection changed;
+
+                while ((changed = interestChanges.poll()) != null) {
+                    changed.register();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    Connection connection = (Connection) key.attachment();
+
+                    keys.remove();
+                    connection.handle(key);
+                }
+
+                long now = System.currentTimeMillis();
+
+                for (Connection connection : connections) {
+                    connection.checkTimeout(now);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    LOGGER.error("Error in redis I/O thread.", e);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer encode(List<byte[][]> commands) {
+        int size = 0;
+
+        for (byte[][] command : commands) {
+            size += 1 + digits(command.length) + 2;
+
+            for (byte[] argument : command) {
+                size += 1 + digits(argument.length) + 2 + argument.length + 2;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        for (byte[][] command : commands) {
+            buffer.put((byte) '*').put(Integer.toString(command.length).getBytes(UTF_8)).put(CRLF);
+
+            for (byte[] argument : command) {
+                buffer.put((byte) '$').put(Integer.toString(argument.length).getBytes(UTF_8)).put(CRLF);
+                buffer.put(argument).put(CRLF);
+            }
+        }
+
+        buffer.flip();
+
+        return buffer;
+    }
+
+    private static int digits(int value) {
+        return Integer.toString(value).length();
+    }
+
+    /**
+     * Incremental parser of replies. Parts of a reply that were already
+     * received are kept between reads: elements of arrays are parsed once, and
+     * bulk strings are copied to their final array as they arrive, so a large
+     * reply received over many reads is parsed in linear time, and read buffer
+     * only has to hold one line.
+     */
+    static final class ReplyParser {
+        // Marks that array header was read and its elements follow
+        private static final Object NESTED = new Object();
+
+        // Arrays whose elements are being parsed, innermost first
+        private final Deque<ArrayReply> arrays = new ArrayDeque<>();
+        // Bulk string being received and number of its bytes received so far
+        private byte[] bulk;
+        private int bulkReceived;
+
+        /**
+         * Parses next reply from the buffer. If the reply is not complete,
+         * consumes what was received and returns {@link #INCOMPLETE}; the
+         * rest of the reply is parsed by next call.
+         */
+        Object parse(ByteBuffer buffer) {
+            while (true) {
+                Object value = bulk == null ? parseValue(buffer) : readBulk(buffer);
+
+                if (value == INCOMPLETE) {
+                    return INCOMPLETE;
+                }
+
+                while (value != NESTED && !arrays.isEmpty()) {
+                    ArrayReply array = arrays.peek();
+
+                    array.elements.add(value);
+
+                    if (array.elements.size() < array.count) {
+                        value = NESTED;
+                    } else {
+                        arrays.pop();
+                        value = array.elements;
+                    }
+                }
+
+                if (value != NESTED) {
+                    return value;
+                }
+            }
+        }
+
+        /**
+         * Discards partially parsed reply.
+         */
+        void reset() {
+            arrays.clear();
+            bulk = null;
+        }
+
+        private Object parseValue(ByteBuffer buffer) {
+            if (!buffer.hasRemaining()) {
+                return INCOMPLETE;
+            }
+
+            byte type = buffer.get(buffer.position());
+
+            if ("+-:$*".indexOf(type) < 0) {
+                throw new JedisConnectionException("Unknown reply type: " + (char) type);
+            }
+
+            String line = readLine(buffer);
+
+            if (line == null) {
+                return INCOMPLETE;
+            }
+
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    return line.startsWith(NOSCRIPT) ? new JedisNoScriptException(line) : new JedisDataException(line);
+                case ':':
+                    return Long.valueOf(line);
+                case '$': {
+                    int length = Integer.parseInt(line);
+
+                    if (length < 0) {
+                        return null;
+                    }
+
+                    bulk = new byte[length];
+                    bulkReceived = 0;
+
+                    return readBulk(buffer);
+                }
+                default: {
+                    int count = Integer.parseInt(line);
+
+                    if (count < 0) {
+                        return null;
+                    }
+
+                    if (count == 0) {
+                        return new ArrayList<>(0);
+                    }
+
+                    arrays.push(new ArrayReply(count));
+
+                    return NESTED;
+                }
+            }
+        }
+
+        private Object readBulk(ByteBuffer buffer) {
+            int available = Math.min(buffer.remaining(), bulk.length - bulkReceived);
+
+            buffer.get(bulk, bulkReceived, available);
+            bulkReceived += available;
+
+            // Bulk string is followed by CRLF
+            if (bulkReceived < bulk.length || buffer.remaining() < 2) {
+                return INCOMPLETE;
+            }
+
+            buffer.position(buffer.position() + 2);
+
+            byte[] data = bulk;
+
+            bulk = null;
+
+            return data;
+        }
+
+        /**
+         * Reads line without its type byte, or returns <code>null</code>
+         * without consuming anything if the line is not complete.
+         */
+        private static String readLine(ByteBuffer buffer) {
+            for (int i = buffer.position() + 1; i < buffer.limit() - 1; i++) {
+                if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                    byte[] line = new byte[i - buffer.position() - 1];
+
+                    buffer.get();
+                    buffer.get(line);
+                    buffer.position(i + 2);
+
+                    return new String(line, UTF_8);
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Array reply whose elements are being parsed.
+     */
+    private static final class ArrayReply {
+        private final int count;
+        private final List<Object> elements;
+
+        private ArrayReply(int count) {
+            this.count = count;
+            this.elements = new ArrayList<>(count);
+        }
+    }
+
+    /**
+     * Connection with its queue of commands waiting for replies. The queue and
+     * pending writes are guarded by the connection monitor.
+     */
+    private final class Connection {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private final Deque<Pending> pending = new ArrayDeque<>();
+        private final Deque<ByteBuffer> writes = new ArrayDeque<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ReplyParser parser = new ReplyParser();
+
+        synchronized List<CompletableFuture<Object>> send(List<byte[][]> commands) {
+            List<CompletableFuture<Object>> futures = new ArrayList<>(commands.size());
+
+            for (int i = 0; i < commands.size(); i++) {
+                futures.add(new CompletableFuture<>());
+            }
+
+            if (closed) {
+                failAll(futures, new JedisConnectionException("Redis client was closed."));
+                return futures;
+            }
+
+            try {
+                connect();
+
+                long deadline = System.currentTimeMillis() + timeout;
+
+                for (CompletableFuture<Object> future : futures) {
+                    pending.add(new Pending(future, deadline));
+                }
+
+                ByteBuffer buffer = encode(commands);
+
+                if (writes.isEmpty()) {
+                    // Try to write directly, leave the rest to I/O thread
+                    channel.write(buffer);
+                }
+
+                if (buffer.hasRemaining()) {
+                    writes.add(buffer);
+                    interestChanges.add(this);
+                    selector.wakeup();
+                }
+            } catch (IOException e) {
+                JedisConnectionException failure = new JedisConnectionException(e);
+
+                fail(failure);
+                // Commands may have failed before they were queued
+                failAll(futures, failure);
+            }
+
+            return futures;
+        }
+
+        /**
+         * Registers channel in selector or updates its interest. Called on
+         * I/O thread.
+         */
+        synchronized void register() throws IOException {
+            if (channel == null) {
+                return;
+            }
+
+            int interest = SelectionKey.OP_READ | (writes.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+
+            if (key == null) {
+                key = channel.register(selector, interest, this);
+            } else if (key.isValid()) {
+                key.interestOps(interest);
+            }
+        }
+
+        void handle(SelectionKey selected) {
+            try {
+                if (selected.isValid() && selected.isWritable()) {
+                    flush();
+                }
+
+                if (selected.isValid() && selected.isReadable()) {
+                    read();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e instanceof JedisConnectionException ? (JedisConnectionException) e : new JedisConnectionException(e));
+            }
+        }
+
+        synchronized void checkTimeout(long now) {
+            Pending oldest = pending.peek();
+
+            if (oldest != null && oldest.deadline < now) {
+                LOGGER.warn("No reply from redis {} within {} ms, closing connection.", address, timeout);
+                fail(new JedisConnectionException("Timeout waiting for reply from redis " + address));
+            }
+        }
+
+        /**
+         * Closes the connection and fails all commands waiting for replies.
+         */
+        void fail(JedisConnectionException e) {
+            List<CompletableFuture<Object>> failed = new ArrayList<>();
+
+            synchronized (this) {
+                for (Pending waiting : pending) {
+                    failed.add(waiting.future);
+                }
+
+                pending.clear();
+                writes.clear();
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                parser.reset();
+
+                if (key != null) {
+                    key.cancel();
+                    key = null;
+                }
+
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ce) {
+                        LOGGER.debug("Error while closing redis connection.", ce);
+                    }
+
+                    channel = null;
+                }
+            }
+
+            failAll(failed, e);
+        }
+
+        private void connect() throws IOException {
+            if (channel != null) {
+                return;
+            }
+
+            SocketChannel newChannel = SocketChannel.open();
+
+            try {
+                newChannel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                newChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, Boolean.TRUE);
+                newChannel.socket().connect(address, timeout);
+                newChannel.configureBlocking(false);
+            } catch (IOException e) {
+                newChannel.close();
+                throw e;
+            }
+
+            channel = newChannel;
+            interestChanges.add(this);
+            selector.wakeup();
+            LOGGER.debug("Connected to redis {}", address);
+        }
+
+        private synchronized void flush() throws IOException {
+            while (!writes.isEmpty()) {
+                ByteBuffer buffer = writes.peek();
+
+                channel.write(buffer);
+
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+
+                writes.poll();
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            List<Pending> completed = new ArrayList<>();
+            List<Object> replies = new ArrayList<>();
+
+            synchronized (this) {
+                if (!readBuffer.hasRemaining()) {
+                    readBuffer = resize(readBuffer, readBuffer.capacity() * 2);
+                }
+
+                if (channel.read(readBuffer) < 0) {
+                    throw new JedisConnectionException("Redis closed connection " + address);
+                }
+
+                readBuffer.flip();
+
+                while (true) {
+                    Object reply = parser.parse(readBuffer);
+
+                    if (reply == INCOMPLETE) {
+                        break;
+                    }
+
+                    Pending waiting = pending.poll();
+
+                    if (waiting == null) {
+                        throw new JedisConnectionException("Unexpected reply from redis " + address);
+                    }
+
+                    completed.add(waiting);
+                    replies.add(reply);
+                }
+
+                readBuffer.compact();
+
+                // Buffer grown for a long line is released once the line is parsed
+                if (readBuffer.capacity() > READ_BUFFER_SIZE && readBuffer.position() < READ_BUFFER_SIZE) {
+                    readBuffer = resize(readBuffer, READ_BUFFER_SIZE);
+                }
+            }
+
+            for (int i = 0; i < completed.size(); i++) {
+                Object reply = replies.get(i);
+
+                if (reply instanceof JedisDataException) {
+                    completed.get(i).future.completeExceptionally((JedisDataException) reply);
+                } else {
+                    completed.get(i).future.complete(reply);
+                }
+            }
+        }
+
+        private ByteBuffer resize(ByteBuffer buffer, int capacity) {
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+
+            buffer.flip();
+            resized.put(buffer);
+
+            return resized;
+        }
+
+        private void failAll(List<CompletableFuture<Object>> futures, JedisConnectionException e) {
+            for (CompletableFuture<Object> future : futures) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Command waiting for reply.
+     */
+    private static final class Pending {
+        private final CompletableFuture<Object> future;
+        private final long deadline;
+
+        private Pending(CompletableFuture<Object> future, long deadline) {
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+}
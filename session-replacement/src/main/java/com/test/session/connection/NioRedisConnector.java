@@ -0,0 +1,644 @@
+package com.test.session.connection;
+
+import static redis.clients.util.SafeEncoder.encode;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.test.session.api.RedisConfigurationService;
+import com.test.session.connection.api.RedisConnector;
+import com.test.session.connection.api.RedisScript;
+import com.test.session.models.RedisConstants;
+
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Protocol.Command;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * Connector to a single redis server that uses {@link NioRedisClient}. Commands
+ * of all threads are multiplexed over a few connections, so the number of
+ * concurrent requests is not limited by the size of connection pool, and no
+ * connection is associated with request thread. Asynchronous variants of
+ * commands return as soon as the command is sent, while synchronous ones wait
+ * for the reply.
+ * <p>
+ * Transactions and pipelines are sent as a single batch on one connection.
+ * Subscriptions use dedicated blocking jedis connection, as subscribed
+ * connection can't be used for other commands.
+ * <p>
+ * The connector is used in {@link RedisConstants#REDIS_MODE_SINGLE} mode when
+ * asynchronous connector is enabled in configuration.
+ */
+@Component(immediate = true, name = RedisConstants.NIO_CONNECTOR_PID)
+@Service(RedisConnector.class)
+public class NioRedisConnector extends AbstractJedisConnector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioRedisConnector.class);
+
+    private static final Function<Object, Long> LONG = reply -> (Long) reply;
+    private static final Function<Object, String> STATUS = reply -> (String) reply;
+    private static final Function<Object, byte[]> BYTES = reply -> (byte[]) reply;
+    private static final Function<Object, Boolean> BOOLEAN = reply -> reply != null && (Long) reply > 0;
+    private static final Function<Object, Object> RAW = reply -> reply;
+    private static final Function<Object, List<byte[]>> LIST = NioRedisConnector::toList;
+    private static final Function<Object, Set<byte[]>> SET = NioRedisConnector::toSet;
+
+    private volatile NioRedisClient client;
+    private HostAndPort server;
+
+    @Reference(bind = "bindRedisConfigurationService")
+    private RedisConfigurationService redisConfigurationService;
+
+    protected void bindRedisConfigurationService(final RedisConfigurationService service, Map<String, ?> properties) {
+        this.redisConfigurationService = service;
+
+        try {
+            if (RedisConstants.REDIS_MODE_SINGLE.equals(service.getClusterMode()) && service.isAsyncConnector()) {
+                Set<HostAndPort> hostAndPorts = service.jedisHostsAndPorts();
+
+                if (CollectionUtils.isNotEmpty(hostAndPorts)) {
+                    // Even if multiple servers defined, select the first one
+                    server = hostAndPorts.iterator().next();
+                    client = new NioRedisClient(new InetSocketAddress(server.getHost(), server.getPort()), service.getAsyncConnections(),
+                            service.getTimeOut());
+                }
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Error while setting up connector.", ex);
+        }
+    }
+
+    @Override
+    public void psubscribe(final RedisPubSub listener, String pattern) {
+        BinaryJedisPubSub bps = getBinaryJedisPubSub(listener);
+
+        listener.link(bps);
+
+        try (Jedis jedis = new Jedis(server.getHost(), server.getPort(), redisConfigurationService.getTimeOut())) {
+            jedis.psubscribe(bps, encode(pattern));
+        }
+    }
+
+    @Override
+    public void subscribe(final RedisPubSub listener, String channel) {
+        BinaryJedisPubSub bps = getBinaryJedisPubSub(listener);
+
+        listener.link(bps);
+
+        try (Jedis jedis = new Jedis(server.getHost(), server.getPort(), redisConfigurationService.getTimeOut())) {
+            jedis.subscribe(bps, encode(channel));
+        }
+    }
+
+    @Override
+    public Long hdel(byte[] key, byte[]... fields) {
+        return RedisConnector.await(hdelAsync(key, fields));
+    }
+
+    @Override
+    public CompletableFuture<Long> hdelAsync(byte[] key, byte[]... fields) {
+        return send(LONG, args(Command.HDEL, key, fields));
+    }
+
+    @Override
+    public List<byte[]> hmget(byte[] key, byte[]... fields) {
+        return RedisConnector.await(hmgetAsync(key, fields));
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> hmgetAsync(byte[] key, byte[]... fields) {
+        return send(LIST, args(Command.HMGET, key, fields));
+    }
+
+    @Override
+    public String hmset(byte[] key, Map<byte[], byte[]> hash) {
+        return RedisConnector.await(hmsetAsync(key, hash));
+    }
+
+    @Override
+    public CompletableFuture<String> hmsetAsync(byte[] key, Map<byte[], byte[]> hash) {
+        return send(STATUS, hmsetArgs(key, hash));
+    }
+
+    @Override
+    public Long hsetnx(final byte[] key, final byte[] field, final byte[] value) {
+        return RedisConnector.await(send(LONG, args(Command.HSETNX, key, field, value)));
+    }
+
+    @Override
+    public Long hset(final byte[] key, final byte[] field, final byte[] value) {
+        return RedisConnector.await(hsetAsync(key, field, value));
+    }
+
+    @Override
+    public CompletableFuture<Long> hsetAsync(byte[] key, byte[] field, byte[] value) {
+        return send(LONG, args(Command.HSET, key, field, value));
+    }
+
+    @Override
+    public Set<byte[]> hkeys(byte[] key) {
+        return RedisConnector.await(send(SET, args(Command.HKEYS, key)));
+    }
+
+    @Override
+    public String set(byte[] key, byte[] value) {
+        return RedisConnector.await(send(STATUS, args(Command.SET, key, value)));
+    }
+
+    @Override
+    public String setex(byte[] key, int expiry, byte[] value) {
+        return RedisConnector.await(setexAsync(key, expiry, value));
+    }
+
+    @Override
+    public CompletableFuture<String> setexAsync(byte[] key, int expiry, byte[] value) {
+        return send(STATUS, args(Command.SETEX, key, Protocol.toByteArray(expiry), value));
+    }
+
+    @Override
+    public Long expire(byte[] key, int value) {
+        return RedisConnector.await(expireAsync(key, value));
+    }
+
+    @Override
+    public CompletableFuture<Long> expireAsync(byte[] key, int value) {
+        return send(LONG, args(Command.EXPIRE, key, Protocol.toByteArray(value)));
+    }
+
+    @Override
+    public void srem(byte[] key, byte[]... member) {
+        RedisConnector.await(sremAsync(key, member));
+    }
+
+    @Override
+    public CompletableFuture<Void> sremAsync(byte[] key, byte[]... member) {
+        return send(reply -> null, args(Command.SREM, key, member));
+    }
+
+    @Override
+    public Long sadd(byte[] key, byte[]... member) {
+        return RedisConnector.await(saddAsync(key, member));
+    }
+
+    @Override
+    public CompletableFuture<Long> saddAsync(byte[] key, byte[]... member) {
+        return send(LONG, args(Command.SADD, key, member));
+    }
+
+    @Override
+    public Long del(byte[]... keys) {
+        return RedisConnector.await(delAsync(keys));
+    }
+
+    @Override
+    public CompletableFuture<Long> delAsync(byte[]... keys) {
+        return send(LONG, args(Command.DEL, keys));
+    }
+
+    @Override
+    public Boolean exists(byte[] key) {
+        return RedisConnector.await(existsAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsAsync(byte[] key) {
+        return send(BOOLEAN, args(Command.EXISTS, key));
+    }
+
+    @Override
+    public Set<byte[]> smembers(byte[] key) {
+        return RedisConnector.await(send(SET, args(Command.SMEMBERS, key)));
+    }
+
+    @Override
+    public Set<byte[]> spop(byte[] key, long count) {
+        return RedisConnector.await(send(SET, args(Command.SPOP, key, Protocol.toByteArray(count))));
+    }
+
+    @Override
+    public Long expireAt(byte[] key, long unixTime) {
+        return RedisConnector.await(expireAtAsync(key, unixTime));
+    }
+
+    @Override
+    public CompletableFuture<Long> expireAtAsync(byte[] key, long unixTime) {
+        return send(LONG, args(Command.EXPIREAT, key, Protocol.toByteArray(unixTime)));
+    }
+
+    @Override
+    public Long zadd(byte[] key, double score, byte[] elem) {
+        return RedisConnector.await(zaddAsync(key, score, elem));
+    }
+
+    @Override
+    public CompletableFuture<Long> zaddAsync(byte[] key, double score, byte[] elem) {
+        return send(LONG, args(Command.ZADD, key, Protocol.toByteArray(score), elem));
+    }
+
+    @Override
+    public Long zadd(byte[] key, Map<byte[], Double> scoreMembers) {
+        return RedisConnector.await(send(LONG, zaddArgs(key, scoreMembers)));
+    }
+
+    @Override
+    public Long zrem(byte[] key, byte[]... fields) {
+        return RedisConnector.await(zremAsync(key, fields));
+    }
+
+    @Override
+    public CompletableFuture<Long> zremAsync(byte[] key, byte[]... fields) {
+        return send(LONG, args(Command.ZREM, key, fields));
+    }
+
+    @Override
+    public Set<byte[]> zrangeByScore(byte[] key, double start, double end) {
+        return RedisConnector.await(send(SET, args(Command.ZRANGEBYSCORE, key, Protocol.toByteArray(start), Protocol.toByteArray(end))));
+    }
+
+    @Override
+    public Set<byte[]> zrange(byte[] key, long start, long end) {
+        return RedisConnector.await(send(SET, args(Command.ZRANGE, key, Protocol.toByteArray(start), Protocol.toByteArray(end))));
+    }
+
+    @Override
+    public Long persist(byte[] key) {
+        return RedisConnector.await(persistAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Long> persistAsync(byte[] key) {
+        return send(LONG, args(Command.PERSIST, key));
+    }
+
+    @Override
+    public String rename(byte[] oldkey, byte[] newkey) {
+        return RedisConnector.await(send(STATUS, args(Command.RENAME, oldkey, newkey)));
+    }
+
+    @Override
+    public byte[] scriptLoad(byte[] key, byte[] script) {
+        return RedisConnector.await(send(BYTES, args(Command.SCRIPT, Protocol.Keyword.LOAD.raw, script)));
+    }
+
+    @Override
+    public Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        return RedisConnector.await(evalshaAsync(sha1, keys, args));
+    }
+
+    @Override
+    public CompletableFuture<Object> evalAsync(RedisScript script, List<byte[]> keys, List<byte[]> args) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+
+        evalshaAsync(script.getSha1(), keys, args).whenComplete((reply, e) -> {
+            // Reply converter wraps error in CompletionException
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+
+            if (cause instanceof JedisNoScriptException) {
+                // Script cache was flushed, load script and run it again
+                send(BYTES, args(Command.SCRIPT, Protocol.Keyword.LOAD.raw, script.getScript()))
+                        .thenCompose(sha1 -> evalshaAsync(script.getSha1(), keys, args))
+                        .whenComplete((retried, re) -> complete(result, retried, re));
+            } else {
+                complete(result, reply, e);
+            }
+        });
+
+        return result;
+    }
+
+    @Override
+    public String info(String section) {
+        byte[] info = RedisConnector.await(send(BYTES, args(Command.INFO, encode(section))));
+
+        return info == null ? null : encode(info);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return RedisConnector.await(getAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        return send(BYTES, args(Command.GET, key));
+    }
+
+    @Override
+    public Long publish(byte[] channel, byte[] message) {
+        return RedisConnector.await(publishAsync(channel, message));
+    }
+
+    @Override
+    public CompletableFuture<Long> publishAsync(byte[] channel, byte[] message) {
+        return send(LONG, args(Command.PUBLISH, channel, message));
+    }
+
+    @Override
+    public <T> ResponseFacade<T> transaction(final byte[] key, final TransactionRunner<T> transaction) {
+        Batch batch = new Batch();
+        ResponseFacade<T> response = batch.transaction(transaction);
+
+        batch.execute();
+
+        return response;
+    }
+
+    @Override
+    public <T> ResponseFacade<T> pipeline(final byte[] key, final PipelineRunner<T> pipeline) {
+        Batch batch = new Batch();
+        ResponseFacade<T> response = pipeline.run(batch);
+
+        batch.execute();
+
+        return response;
+    }
+
+    @Override
+    public void close() {
+        NioRedisClient current = client;
+        client = null;
+
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private CompletableFuture<Object> evalshaAsync(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        List<byte[]> command = new ArrayList<>(keys.size() + args.size() + 3);
+
+        command.add(Command.EVALSHA.raw);
+        command.add(sha1);
+        command.add(Protocol.toByteArray(keys.size()));
+        command.addAll(keys);
+        command.addAll(args);
+
+        return send(RAW, command.toArray(new byte[command.size()][]));
+    }
+
+    private <T> CompletableFuture<T> send(Function<Object, T> converter, byte[][] command) {
+        NioRedisClient current = client;
+
+        if (current == null) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+
+            failed.completeExceptionally(new JedisConnectionException("Asynchronous redis connector is not configured."));
+            return failed;
+        }
+
+        return current.send(command).thenApply(converter);
+    }
+
+    private static <T> void complete(CompletableFuture<T> future, T value, Throwable e) {
+        if (e == null) {
+            future.complete(value);
+        } else {
+            future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    private static byte[][] args(Command command, byte[]... args) {
+        byte[][] result = new byte[args.length + 1][];
+
+        result[0] = command.raw;
+        System.arraycopy(args, 0, result, 1, args.length);
+
+        return result;
+    }
+
+    private static byte[][] args(Command command, byte[] key, byte[][] rest) {
+        byte[][] result = new byte[rest.length + 2][];
+
+        result[0] = command.raw;
+        result[1] = key;
+        System.arraycopy(rest, 0, result, 2, rest.length);
+
+        return result;
+    }
+
+    private static byte[][] hmsetArgs(byte[] key, Map<byte[], byte[]> hash) {
+        byte[][] result = new byte[hash.size() * 2 + 2][];
+        int i = 0;
+
+        result[i++] = Command.HMSET.raw;
+        result[i++] = key;
+
+        for (Map.Entry<byte[], byte[]> field : hash.entrySet()) {
+            result[i++] = field.getKey();
+            result[i++] = field.getValue();
+        }
+
+        return result;
+    }
+
+    private static byte[][] zaddArgs(byte[] key, Map<byte[], Double> scoreMembers) {
+        byte[][] result = new byte[scoreMembers.size() * 2 + 2][];
+        int i = 0;
+
+        result[i++] = Command.ZADD.raw;
+        result[i++] = key;
+
+        for (Map.Entry<byte[], Double> member : scoreMembers.entrySet()) {
+            result[i++] = Protocol.toByteArray(member.getValue());
+            result[i++] = member.getKey();
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<byte[]> toList(Object reply) {
+        if (reply == null) {
+            return null;
+        }
+
+        List<byte[]> list = new ArrayList<>();
+
+        for (Object element : (List<Object>) reply) {
+            list.add((byte[]) element);
+        }
+
+        return list;
+    }
+
+    private static Set<byte[]> toSet(Object reply) {
+        List<byte[]> list = toList(reply);
+
+        return list == null ? null : new LinkedHashSet<>(list);
+    }
+
+    /**
+     * Collects commands of transaction or pipeline, and sends them as a single
+     * batch. Commands that are part of a transaction get their replies from the
+     * reply of EXEC command.
+     */
+    private final class Batch implements PipelineFacade {
+        private final List<byte[][]> commands = new ArrayList<>();
+        private List<CompletableFuture<Object>> replies;
+        // Index of EXEC command of current transaction, null outside transaction
+        private int[] execIndex;
+        private int queued;
+
+        @Override
+        public <T> ResponseFacade<T> transaction(TransactionRunner<T> transaction) {
+            commands.add(args(Command.MULTI));
+            execIndex = new int[1];
+            queued = 0;
+
+            ResponseFacade<T> response = transaction.run(this);
+
+            commands.add(args(Command.EXEC));
+            execIndex[0] = commands.size() - 1;
+            execIndex = null;
+
+            return response;
+        }
+
+        @Override
+        public void hdel(byte[] key, byte[]... fields) {
+            add(RAW, args(Command.HDEL, key, fields));
+        }
+
+        @Override
+        public void hmset(byte[] key, Map<byte[], byte[]> hash) {
+            add(RAW, hmsetArgs(key, hash));
+        }
+
+        @Override
+        public ResponseFacade<Long> hincrBy(byte[] key, byte[] field, long value) {
+            return add(LONG, args(Command.HINCRBY, key, field, Protocol.toByteArray(value)));
+        }
+
+        @Override
+        public void del(byte[]... keys) {
+            add(RAW, args(Command.DEL, keys));
+        }
+
+        @Override
+        public ResponseFacade<Set<byte[]>> smembers(byte[] key) {
+            return add(SET, args(Command.SMEMBERS, key));
+        }
+
+        @Override
+        public void sadd(byte[] key, byte[]... members) {
+            add(RAW, args(Command.SADD, key, members));
+        }
+
+        @Override
+        public void srem(byte[] key, byte[]... members) {
+            add(RAW, args(Command.SREM, key, members));
+        }
+
+        @Override
+        public void expire(byte[] key, int seconds) {
+            add(RAW, args(Command.EXPIRE, key, Protocol.toByteArray(seconds)));
+        }
+
+        @Override
+        public void expireAt(byte[] key, long unixTime) {
+            add(RAW, args(Command.EXPIREAT, key, Protocol.toByteArray(unixTime)));
+        }
+
+        @Override
+        public void setex(byte[] key, int seconds, byte[] value) {
+            add(RAW, args(Command.SETEX, key, Protocol.toByteArray(seconds), value));
+        }
+
+        @Override
+        public void persist(byte[] key) {
+            add(RAW, args(Command.PERSIST, key));
+        }
+
+        @Override
+        public void zadd(byte[] key, double score, byte[] member) {
+            add(RAW, args(Command.ZADD, key, Protocol.toByteArray(score), member));
+        }
+
+        @Override
+        public void zrem(byte[] key, byte[]... members) {
+            add(RAW, args(Command.ZREM, key, members));
+        }
+
+        private <T> ResponseFacade<T> add(Function<Object, T> converter, byte[][] command) {
+            commands.add(command);
+
+            if (execIndex == null) {
+                int index = commands.size() - 1;
+
+                return () -> converter.apply(reply(index));
+            }
+
+            int[] exec = execIndex;
+            int position = queued++;
+
+            return () -> {
+                List<?> results = (List<?>) reply(exec[0]);
+                Object result = results == null ? null : results.get(position);
+
+                if (result instanceof JedisDataException) {
+                    throw (JedisDataException) result;
+                }
+
+                return converter.apply(result);
+            };
+        }
+
+        private Object reply(int index) {
+            if (replies == null) {
+                throw new IllegalStateException("Reply is not available before pipeline is executed.");
+            }
+
+            return RedisConnector.await(replies.get(index));
+        }
+
+        /**
+         * Sends all commands and waits for their replies. Errors of individual
+         * commands are reported when their responses are read, while
+         * connection errors are thrown immediately.
+         */
+        private void execute() {
+            if (commands.isEmpty()) {
+                replies = new ArrayList<>();
+                return;
+            }
+
+            NioRedisClient current = client;
+
+            if (current == null) {
+                throw new JedisConnectionException("Asynchronous redis connector is not configured.");
+            }
+
+            replies = current.send(commands);
+
+            for (CompletableFuture<Object> reply : replies) {
+                try {
+                    RedisConnector.await(reply);
+                } catch (JedisDataException e) {
+                    LOGGER.debug("Command in batch failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioRedisConnector [server=" + server + "]";
+    }
+}
@@ -1,40 +1,88 @@
 package com.test.session.connection;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
+import com.test.session.connection.api.RedisConnector.PipelineFacade;
+import com.test.session.connection.api.RedisConnector.PipelineRunner;
 import com.test.session.connection.api.RedisConnector.ResponseFacade;
-import com.test.session.connection.api.RedisConnector.TransactionFacade;
 import com.test.session.connection.api.RedisConnector.TransactionRunner;
 
 import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCluster;
 import redis.clients.jedis.JedisClusterCommand;
+import redis.clients.jedis.JedisClusterInfoCache;
 import redis.clients.jedis.JedisPoolConfig;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisClusterException;
+import redis.clients.jedis.exceptions.JedisClusterMaxRedirectionsException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
 
 /**
- * Extension of Redis cluster interface that supports transactions.
+ * Extension of Redis cluster interface that supports transactions and
+ * pipelines. Commands of a transaction or pipeline are grouped by the node
+ * owning their hash slot and sent as one pipeline per node. Pipelines to
+ * different nodes are sent in parallel, using at most one thread per master
+ * node. When all threads are busy, pipelines are sent from the calling
+ * thread.
  */
 public class TransactionalJedisCluster extends JedisCluster {
+    private static final String EXECABORT = "EXECABORT";
+
+    private static final long PIPELINE_THREAD_KEEP_ALIVE = 60L;
+
+    private final ExecutorService executor;
 
     public TransactionalJedisCluster(Set<HostAndPort> hostAndPort, int timeout, JedisPoolConfig config) {
         super(hostAndPort, timeout, config);
+
+        int threads = Math.max(1, masterCount());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, PIPELINE_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "redis-cluster-pipeline");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                // Unlike CallerRunsPolicy, runs the task also after shutdown, so its future completes
+                (task, executorPool) -> task.run());
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
     }
 
     /**
      * Implementation of pseudo-transaction functionality on redis cluster.
-     * Transactions are not executed in atomic way, but rother one command at
-     * the time.
-     * 
+     * Transactions are not executed in atomic way, but rather as a pipeline
+     * where each command is sent to node owning its key.
+     *
      * @param transaction
      *            the sequence of redis commands to run
      * @return result of transaction
      */
     public <T> ResponseFacade<T> transaction(final TransactionRunner<T> transaction) {
-        TransactionAsSequence t = new TransactionAsSequence(this);
+        SlotPipeline t = new SlotPipeline(null);
         ResponseFacade<T> response = transaction.run(t);
         t.exec();
 
@@ -53,17 +101,64 @@ public class TransactionalJedisCluster extends JedisCluster {
      * @return result of transaction
      */
     public <T> ResponseFacade<T> transaction(final byte[] key, final TransactionRunner<T> transaction) {
-        return new JedisClusterCommand<ResponseFacade<T>>(connectionHandler, maxAttempts) {
+        SlotPipeline p = new SlotPipeline(key);
+        ResponseFacade<T> response = p.transaction(transaction);
+        p.exec();
 
-            @Override
-            public ResponseFacade<T> execute(Jedis connection) {
-                Transaction t = connection.multi();
-                ResponseFacade<T> response = transaction.run(AbstractJedisConnector.wrapJedisTransaction(t));
-                t.exec();
+        return response;
+    }
 
-                return response;
-            }
-        }.runBinary(key);
+    /**
+     * Implementation of pipeline functionality on redis cluster. As commands of
+     * the pipeline may belong to different slots, commands are collected and
+     * then sent as one pipeline per node. If transaction key is provided,
+     * transactions within pipeline are executed in multi mode on the node
+     * owning that key.
+     *
+     * @param transactionKey
+     *            key used for transactions within pipeline, or
+     *            <code>null</code> to run them as sequence of commands
+     * @param pipeline
+     *            the sequence of redis commands to run
+     * @return result of pipeline
+     */
+    public <T> ResponseFacade<T> pipeline(final byte[] transactionKey, final PipelineRunner<T> pipeline) {
+        SlotPipeline p = new SlotPipeline(transactionKey);
+        ResponseFacade<T> response = pipeline.run(p);
+        p.exec();
+
+        return response;
+    }
+
+    /**
+     * Deletes keys that may belong to different slots. Keys are grouped by
+     * slot, and each group is deleted with single command.
+     */
+    @Override
+    public Long del(final byte[]... keys) {
+        Map<Integer, List<byte[]>> slots = groupBySlot(keys);
+
+        if (slots.size() <= 1) {
+            return super.del(keys);
+        }
+
+        SlotPipeline p = new SlotPipeline(null);
+        List<SlotCommand<Long>> deletes = new ArrayList<>(slots.size());
+
+        for (List<byte[]> group : slots.values()) {
+            byte[][] slotKeys = group.toArray(new byte[group.size()][]);
+            deletes.add(p.add(slotKeys[0], pipeline -> pipeline.del(slotKeys)));
+        }
+
+        p.exec();
+
+        long deleted = 0;
+
+        for (SlotCommand<Long> delete : deletes) {
+            deleted += delete.get();
+        }
+
+        return deleted;
     }
 
     /**
@@ -82,49 +177,397 @@ public class TransactionalJedisCluster extends JedisCluster {
     }
 
     /**
-     * The simple implementation of transaction which is capable of sending each
-     * command to redis in order. This transaction is not atomic
+     * Returns current master nodes of the cluster, as reported by CLUSTER
+     * SLOTS command of any node.
+     */
+    public Set<HostAndPort> getMasterNodes() {
+        return new JedisClusterCommand<Set<HostAndPort>>(connectionHandler, maxAttempts) {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Set<HostAndPort> execute(Jedis connection) {
+                Set<HostAndPort> masters = new LinkedHashSet<>();
+
+                for (Object slotRange : connection.clusterSlots()) {
+                    // Each range is [start, end, master, replicas...], and node is [host, port, ...]
+                    List<Object> master = (List<Object>) ((List<Object>) slotRange).get(2);
+                    String host = SafeEncoder.encode((byte[]) master.get(0));
+
+                    if (host.isEmpty()) {
+                        // Node reports itself with empty host when it doesn't know its address
+                        host = connection.getClient().getHost();
+                    }
+
+                    masters.add(new HostAndPort(host, ((Long) master.get(1)).intValue()));
+                }
+
+                return masters;
+            }
+        }.runWithAnyNode();
+    }
+
+    private int masterCount() {
+        try {
+            return getMasterNodes().size();
+        } catch (JedisException e) {
+            // Known nodes include replicas, but are enough as upper bound
+            return getClusterNodes().size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        super.close();
+    }
+
+    private static Map<Integer, List<byte[]>> groupBySlot(byte[]... keys) {
+        Map<Integer, List<byte[]>> slots = new LinkedHashMap<>();
+
+        for (byte[] key : keys) {
+            slots.computeIfAbsent(JedisClusterCRC16.getSlot(key), slot -> new ArrayList<>()).add(key);
+        }
+
+        return slots;
+    }
+
+    /**
+     * Command queued in a pipeline. Command keeps its slot and the operation
+     * that adds it to jedis pipeline, so it can be sent again to another node
+     * after redirection.
      */
-    static class TransactionAsSequence implements TransactionFacade {
+    static final class SlotCommand<T> {
+        final int slot;
+        final Function<Pipeline, Response<T>> operation;
+        final boolean transaction;
+        Response<T> response;
+        HostAndPort askNode;
+        JedisConnectionException failure;
+        // ASK redirection replied to a command queued in the transaction
+        JedisAskDataException queuedAsk;
+
+        SlotCommand(int slot, Function<Pipeline, Response<T>> operation, boolean transaction) {
+            this.slot = slot;
+            this.operation = operation;
+            this.transaction = transaction;
+        }
 
-        private final JedisCluster jedis;
-        private final ArrayList<Runnable> operations = new ArrayList<>();
-        private Set<byte[]> smembersResult;
+        T get() {
+            return response.get();
+        }
+    }
+
+    /**
+     * Commands of a pipeline sent to a single node.
+     */
+    private static final class NodeBatch implements Runnable {
+        private final Jedis connection;
+        private final boolean asking;
+        private final List<SlotCommand<?>> commands = new ArrayList<>();
 
-        TransactionAsSequence(JedisCluster jedis) {
-            this.jedis = jedis;
+        NodeBatch(Jedis connection, boolean asking) {
+            this.connection = connection;
+            this.asking = asking;
         }
 
         @Override
-        public void hdel(final byte[] key, final byte[]... fields) {
-            operations.add(() -> jedis.hdel(key, fields));
+        public void run() {
+            try {
+                if (asking) {
+                    connection.asking();
+                }
+
+                SlotCommandPipeline p = new SlotCommandPipeline();
+
+                p.setClient(connection.getClient());
+
+                for (SlotCommand<?> command : commands) {
+                    command.failure = null;
+                    command.queuedAsk = null;
+                    p.run(command);
+                }
+
+                p.sync();
+            } catch (JedisConnectionException e) {
+                commands.forEach(command -> command.failure = e);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Pipeline that knows which command each reply belongs to. A command
+     * queued in MULTI that is redirected with ASK gets the redirection only as
+     * reply to the queued command, and EXEC fails with EXECABORT, so such
+     * redirection is kept in the transaction command.
+     */
+    static final class SlotCommandPipeline extends Pipeline {
+        // Command of each reply, in order of replies
+        private final List<SlotCommand<?>> owners = new ArrayList<>();
+        private int replies;
+
+        <T> void run(SlotCommand<T> command) {
+            int queued = getPipelinedResponseLength();
+
+            command.response = command.operation.apply(this);
+
+            for (int i = queued; i < getPipelinedResponseLength(); i++) {
+                owners.add(command);
+            }
+        }
+
+        @Override
+        protected Response<?> generateResponse(Object data) {
+            SlotCommand<?> owner = replies < owners.size() ? owners.get(replies) : null;
+
+            replies++;
 
+            if (data instanceof JedisAskDataException && owner != null && owner.transaction && owner.queuedAsk == null) {
+                owner.queuedAsk = (JedisAskDataException) data;
+            }
+
+            return super.generateResponse(data);
+        }
+    }
+
+    /**
+     * Implementation of pipeline which collects commands and sends them to
+     * redis as one pipeline per node. Commands that were redirected because
+     * their slot moved (MOVED) or is being migrated (ASK) are sent again to
+     * the new owner, and only them. Transaction that was aborted because one
+     * of its commands was redirected is sent again as a whole.
+     */
+    class SlotPipeline implements PipelineFacade {
+        private final byte[] transactionKey;
+        private final List<SlotCommand<?>> commands = new ArrayList<>();
+
+        SlotPipeline(byte[] transactionKey) {
+            this.transactionKey = transactionKey;
+        }
+
+        <T> SlotCommand<T> add(byte[] key, Function<Pipeline, Response<T>> operation) {
+            SlotCommand<T> command = new SlotCommand<>(JedisClusterCRC16.getSlot(key), operation, false);
+            commands.add(command);
+
+            return command;
+        }
+
+        @Override
+        public <T> ResponseFacade<T> transaction(final TransactionRunner<T> transaction) {
+            if (transactionKey == null) {
+                return transaction.run(this);
+            }
+
+            final AtomicReference<ResponseFacade<T>> result = new AtomicReference<>();
+            commands.add(new SlotCommand<>(JedisClusterCRC16.getSlot(transactionKey), p -> {
+                p.multi();
+                result.set(transaction.run(AbstractJedisConnector.wrapJedisTransaction(p)));
+                return p.exec();
+            }, true));
+
+            return () -> result.get().get();
+        }
+
+        @Override
+        public void hdel(final byte[] key, final byte[]... fields) {
+            add(key, p -> p.hdel(key, fields));
         }
 
         @Override
         public void hmset(final byte[] key, final Map<byte[], byte[]> hash) {
-            operations.add(() -> jedis.hmset(key, hash));
+            add(key, p -> p.hmset(key, hash));
+        }
+
+        @Override
+        public ResponseFacade<Long> hincrBy(final byte[] key, final byte[] field, final long value) {
+            return add(key, p -> p.hincrBy(key, field, value))::get;
         }
 
         @Override
         public void del(final byte[]... keys) {
-            operations.add(() -> jedis.del(keys));
+            for (List<byte[]> group : groupBySlot(keys).values()) {
+                byte[][] slotKeys = group.toArray(new byte[group.size()][]);
+                add(slotKeys[0], p -> p.del(slotKeys));
+            }
         }
 
         @Override
         public ResponseFacade<Set<byte[]>> smembers(final byte[] key) {
-            operations.add(() -> {
-                smembersResult = jedis.smembers(key);
-            });
+            return add(key, p -> p.smembers(key))::get;
+        }
+
+        @Override
+        public void sadd(final byte[] key, final byte[]... members) {
+            add(key, p -> p.sadd(key, members));
+        }
+
+        @Override
+        public void srem(final byte[] key, final byte[]... members) {
+            add(key, p -> p.srem(key, members));
+        }
+
+        @Override
+        public void expire(final byte[] key, final int seconds) {
+            add(key, p -> p.expire(key, seconds));
+        }
+
+        @Override
+        public void expireAt(final byte[] key, final long unixTime) {
+            add(key, p -> p.expireAt(key, unixTime));
+        }
+
+        @Override
+        public void setex(final byte[] key, final int seconds, final byte[] value) {
+            add(key, p -> p.setex(key, seconds, value));
+        }
+
+        @Override
+        public void persist(final byte[] key) {
+            add(key, p -> p.persist(key));
+        }
 
-            return () -> smembersResult;
+        @Override
+        public void zadd(final byte[] key, final double score, final byte[] member) {
+            add(key, p -> p.zadd(key, score, member));
+        }
+
+        @Override
+        public void zrem(final byte[] key, final byte[]... members) {
+            add(key, p -> p.zrem(key, members));
         }
 
         /**
-         * Executes all submitted operations.
+         * Sends all collected commands, retrying redirected ones up to the
+         * maximum number of attempts of the cluster. The first error reply
+         * that is not a redirection is thrown once all commands completed.
          */
-        public void exec() {
-            operations.forEach(r -> r.run());
+        void exec() {
+            List<SlotCommand<?>> pending = commands;
+            JedisDataException error = null;
+
+            for (int attempt = 1; !pending.isEmpty(); attempt++) {
+                send(pending);
+
+                List<SlotCommand<?>> redirected = new ArrayList<>();
+                boolean renew = false;
+
+                for (SlotCommand<?> command : pending) {
+                    command.askNode = null;
+
+                    if (command.failure != null) {
+                        if (attempt >= maxAttempts) {
+                            throw command.failure;
+                        }
+                        redirected.add(command);
+                        renew = true;
+                        continue;
+                    }
+
+                    try {
+                        command.get();
+                    } catch (JedisAskDataException e) {
+                        command.askNode = e.getTargetNode();
+                        redirected.add(command);
+                    } catch (JedisRedirectionException e) {
+                        redirected.add(command);
+                        renew = true;
+                    } catch (JedisDataException e) {
+                        // Transaction is aborted when one of its commands is redirected
+                        if (command.transaction && e.getMessage() != null && e.getMessage().startsWith(EXECABORT)) {
+                            redirected.add(command);
+
+                            if (command.queuedAsk != null) {
+                                // Key is being migrated, whole transaction is sent again with ASKING
+                                command.askNode = command.queuedAsk.getTargetNode();
+                            } else {
+                                renew = true;
+                            }
+                        } else if (error == null) {
+                            error = e;
+                        }
+                    }
+                }
+
+                if (!redirected.isEmpty() && attempt >= maxAttempts) {
+                    throw new JedisClusterMaxRedirectionsException("Too many Cluster redirections?");
+                }
+
+                if (renew) {
+                    connectionHandler.renewSlotCache();
+                }
+
+                pending = redirected;
+            }
+
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void send(List<SlotCommand<?>> pending) {
+            List<NodeBatch> batches = new ArrayList<>();
+            Map<String, NodeBatch> nodes = new HashMap<>();
+            Map<Integer, NodeBatch> slots = new HashMap<>();
+
+            try {
+                for (SlotCommand<?> command : pending) {
+                    NodeBatch batch;
+
+                    if (command.askNode != null) {
+                        // Key is being migrated, command must be preceded by ASKING on target node
+                        batch = new NodeBatch(connectionHandler.getConnectionFromNode(command.askNode), true);
+                        batches.add(batch);
+                    } else {
+                        batch = slots.get(command.slot);
+
+                        if (batch == null) {
+                            Jedis connection = ((JedisSlotBasedConnectionHandler) connectionHandler).getConnectionFromSlot(command.slot);
+                            batch = nodes.get(JedisClusterInfoCache.getNodeKey(connection));
+
+                            if (batch == null) {
+                                batch = new NodeBatch(connection, false);
+                                nodes.put(JedisClusterInfoCache.getNodeKey(connection), batch);
+                                batches.add(batch);
+                            } else {
+                                connection.close();
+                            }
+
+                            slots.put(command.slot, batch);
+                        }
+                    }
+
+                    batch.commands.add(command);
+                }
+            } catch (RuntimeException e) {
+                batches.forEach(batch -> batch.connection.close());
+                throw e;
+            }
+
+            run(batches);
+        }
+
+        private void run(List<NodeBatch> batches) {
+            List<Future<?>> futures = new ArrayList<>(batches.size());
+
+            for (int i = 1; i < batches.size(); i++) {
+                futures.add(executor.submit(batches.get(i)));
+            }
+
+            if (!batches.isEmpty()) {
+                batches.get(0).run();
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new JedisClusterException(e);
+                } catch (ExecutionException e) {
+                    throw new JedisClusterException(e.getCause());
+                }
+            }
         }
     }
 }
@@ -3,6 +3,9 @@ package com.test.session.connection.api;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.exceptions.JedisException;
@@ -10,6 +13,13 @@ import redis.clients.jedis.exceptions.JedisException;
 /**
  * This interface offers subset of redis.clients.jedis.BinaryJedisCommands. The
  * subset offers commands used by redis session repository implementation.
+ * <p>
+ * Commands that are frequently issued independently of each other have
+ * asynchronous variants returning {@link CompletableFuture}. By default they
+ * run the synchronous command and return completed future, while connectors
+ * that multiplex commands over shared connections return future completed when
+ * reply arrives. Dependent stages of such futures may be run by the I/O thread
+ * of the connector, so they must not block.
  */
 public interface RedisConnector {
 
@@ -29,6 +39,25 @@ public interface RedisConnector {
      */
     void punsubscribe(RedisPubSub expirationListener, byte[] pattern);
 
+    /**
+     * See BinaryJedisCommands#subscribe(BinaryJedisPubSub, byte[]...). This
+     * is a blocking operation. In cluster mode, listener is subscribed on
+     * each master, as keyspace notifications are not propagated between
+     * nodes.
+     *
+     * @param listener
+     * @param channel
+     */
+    void subscribe(RedisPubSub listener, String channel);
+
+    /**
+     * See BinaryJedisPubSub#unsubscribe(byte[]...)
+     *
+     * @param listener
+     * @param channel
+     */
+    void unsubscribe(RedisPubSub listener, byte[] channel);
+
     /**
      * See redis.clients.jedis.BinaryJedisCommands#hdel(byte[], byte[]...)
      *
@@ -204,6 +233,17 @@ public interface RedisConnector {
      */
     Long zadd(byte[] key, double score, byte[] elem);
 
+    /**
+     * See redis.clients.jedis.BinaryJedisCommands#zadd(byte[], Map)
+     *
+     * @param key
+     *            key as byte array
+     * @param scoreMembers
+     *            score of each member
+     * @return
+     */
+    Long zadd(byte[] key, Map<byte[], Double> scoreMembers);
+
     /**
      * See redis.clients.jedis.BinaryJedisCommands#zrem(byte[], byte[]...)
      *
@@ -255,6 +295,48 @@ public interface RedisConnector {
      */
     String rename(byte[] oldkey, byte[] newkey);
 
+    /**
+     * See redis.clients.jedis.BinaryScriptingCommands#scriptLoad(byte[]). When
+     * using cluster, script is loaded on the node owning the slot of the key.
+     *
+     * @param key
+     *            key as byte array used to select the node when using cluster
+     * @param script
+     *            source of the script
+     * @return SHA1 digest of the script
+     */
+    byte[] scriptLoad(byte[] key, byte[] script);
+
+    /**
+     * See redis.clients.jedis.BinaryScriptingCommands#evalsha(byte[], List,
+     * List)
+     *
+     * @param sha1
+     *            SHA1 digest of the script
+     * @param keys
+     *            keys used by the script as byte arrays
+     * @param args
+     *            arguments of the script
+     * @return result of the script
+     */
+    Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args);
+
+    /**
+     * Executes script using EVALSHA. If the script is not present in redis
+     * script cache, it is loaded and executed again. When using cluster, all
+     * keys must belong to the same slot and first key is used to select the
+     * node.
+     *
+     * @param script
+     *            the script to execute
+     * @param keys
+     *            keys used by the script as byte arrays
+     * @param args
+     *            arguments of the script
+     * @return result of the script
+     */
+    Object eval(RedisScript script, List<byte[]> keys, List<byte[]> args);
+
     /**
      * Returns information about server
      *
@@ -269,6 +351,20 @@ public interface RedisConnector {
      */
     void requestFinished();
 
+    /**
+     * Runs commands on a single connection. Used when commands must observe
+     * effects of previous ones through the same connection, e.g. when
+     * connections are leased per command. Connectors that don't lease
+     * connections per command run the commands as is.
+     *
+     * @param commands
+     *            the commands to run
+     * @return result of the commands
+     */
+    default <T> T pinned(Supplier<T> commands) {
+        return commands.get();
+    }
+
     /**
      * Closes connections to redis.
      */
@@ -305,6 +401,183 @@ public interface RedisConnector {
      */
     <T> ResponseFacade<T> transaction(byte[] key, TransactionRunner<T> transaction);
 
+    /**
+     * Executes sequence of redis commands as a pipeline. All commands are sent
+     * to redis in a batch and replies are read once all commands have been
+     * sent. When using cluster, key is used to select the node for commands
+     * that belong to its slot.
+     *
+     * @param key
+     *            key as byte array of the main element of the pipeline
+     * @param pipeline
+     *            the sequence of commands to run
+     * @return result of pipeline
+     */
+    <T> ResponseFacade<T> pipeline(byte[] key, PipelineRunner<T> pipeline);
+
+    /**
+     * Asynchronous variant of {@link #hmget(byte[], byte[]...)}.
+     */
+    default CompletableFuture<List<byte[]>> hmgetAsync(byte[] key, byte[]... fields) {
+        return RedisConnector.completed(() -> hmget(key, fields));
+    }
+
+    /**
+     * Asynchronous variant of {@link #hmset(byte[], Map)}.
+     */
+    default CompletableFuture<String> hmsetAsync(byte[] key, Map<byte[], byte[]> hash) {
+        return RedisConnector.completed(() -> hmset(key, hash));
+    }
+
+    /**
+     * Asynchronous variant of {@link #hset(byte[], byte[], byte[])}.
+     */
+    default CompletableFuture<Long> hsetAsync(byte[] key, byte[] field, byte[] value) {
+        return RedisConnector.completed(() -> hset(key, field, value));
+    }
+
+    /**
+     * Asynchronous variant of {@link #hdel(byte[], byte[]...)}.
+     */
+    default CompletableFuture<Long> hdelAsync(byte[] key, byte[]... fields) {
+        return RedisConnector.completed(() -> hdel(key, fields));
+    }
+
+    /**
+     * Asynchronous variant of {@link #get(byte[])}.
+     */
+    default CompletableFuture<byte[]> getAsync(byte[] key) {
+        return RedisConnector.completed(() -> get(key));
+    }
+
+    /**
+     * Asynchronous variant of {@link #setex(byte[], int, byte[])}.
+     */
+    default CompletableFuture<String> setexAsync(byte[] key, int expiry, byte[] value) {
+        return RedisConnector.completed(() -> setex(key, expiry, value));
+    }
+
+    /**
+     * Asynchronous variant of {@link #del(byte[]...)}.
+     */
+    default CompletableFuture<Long> delAsync(byte[]... keys) {
+        return RedisConnector.completed(() -> del(keys));
+    }
+
+    /**
+     * Asynchronous variant of {@link #exists(byte[])}.
+     */
+    default CompletableFuture<Boolean> existsAsync(byte[] key) {
+        return RedisConnector.completed(() -> exists(key));
+    }
+
+    /**
+     * Asynchronous variant of {@link #expire(byte[], int)}.
+     */
+    default CompletableFuture<Long> expireAsync(byte[] key, int value) {
+        return RedisConnector.completed(() -> expire(key, value));
+    }
+
+    /**
+     * Asynchronous variant of {@link #expireAt(byte[], long)}.
+     */
+    default CompletableFuture<Long> expireAtAsync(byte[] key, long unixTime) {
+        return RedisConnector.completed(() -> expireAt(key, unixTime));
+    }
+
+    /**
+     * Asynchronous variant of {@link #persist(byte[])}.
+     */
+    default CompletableFuture<Long> persistAsync(byte[] key) {
+        return RedisConnector.completed(() -> persist(key));
+    }
+
+    /**
+     * Asynchronous variant of {@link #sadd(byte[], byte[]...)}.
+     */
+    default CompletableFuture<Long> saddAsync(byte[] key, byte[]... member) {
+        return RedisConnector.completed(() -> sadd(key, member));
+    }
+
+    /**
+     * Asynchronous variant of {@link #srem(byte[], byte[]...)}.
+     */
+    default CompletableFuture<Void> sremAsync(byte[] key, byte[]... member) {
+        return RedisConnector.completed(() -> {
+            srem(key, member);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #zadd(byte[], double, byte[])}.
+     */
+    default CompletableFuture<Long> zaddAsync(byte[] key, double score, byte[] elem) {
+        return RedisConnector.completed(() -> zadd(key, score, elem));
+    }
+
+    /**
+     * Asynchronous variant of {@link #zrem(byte[], byte[]...)}.
+     */
+    default CompletableFuture<Long> zremAsync(byte[] key, byte[]... fields) {
+        return RedisConnector.completed(() -> zrem(key, fields));
+    }
+
+    /**
+     * Asynchronous variant of {@link #publish(byte[], byte[])}.
+     */
+    default CompletableFuture<Long> publishAsync(byte[] channel, byte[] message) {
+        return RedisConnector.completed(() -> publish(channel, message));
+    }
+
+    /**
+     * Asynchronous variant of {@link #eval(RedisScript, List, List)}.
+     */
+    default CompletableFuture<Object> evalAsync(RedisScript script, List<byte[]> keys, List<byte[]> args) {
+        return RedisConnector.completed(() -> eval(script, keys, args));
+    }
+
+    /**
+     * Runs command on the calling thread and returns future holding its
+     * result or its exception.
+     *
+     * @param command
+     *            the command to run
+     * @return completed future
+     */
+    static <T> CompletableFuture<T> completed(Supplier<T> command) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        try {
+            future.complete(command.get());
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Waits for the future and returns its result. Exception of the command is
+     * thrown as is, and not wrapped in {@link CompletionException}, so callers
+     * can handle it as exception of synchronous command.
+     *
+     * @param future
+     *            future returned by asynchronous command
+     * @return result of the command
+     */
+    static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
     /**
      * Returns true if redis implementation supports SPOP that returns multiple
      * elements (http://redis.io/commands/spop). This is command is supported in
@@ -332,6 +605,10 @@ public interface RedisConnector {
 
         void onPMessage(byte[] pattern, byte[] channelBuf, byte[] message);
 
+        default void onMessage(byte[] channelBuf, byte[] message) {
+            onPMessage(null, channelBuf, message);
+        }
+
         void link(BinaryJedisPubSub actual);
 
         BinaryJedisPubSub getLinked();
@@ -365,6 +642,17 @@ public interface RedisConnector {
          */
         void hmset(byte[] key, Map<byte[], byte[]> hash);
 
+        /**
+         * See redis.clients.jedis.Transaction#hincrBy(byte[], byte[], long)
+         *
+         * @param key
+         *            key as byte array
+         * @param field
+         * @param value
+         * @return value of the field after increment
+         */
+        ResponseFacade<Long> hincrBy(byte[] key, byte[] field, long value);
+
         /**
          * See redis.clients.jedis.Transaction#del(byte[]...)
          *
@@ -383,6 +671,95 @@ public interface RedisConnector {
         ResponseFacade<Set<byte[]>> smembers(byte[] key);
     }
 
+    /**
+     * Used to encapsulate redis library's pipeline processing. Commands are
+     * queued and replies are available only once pipeline has been executed.
+     */
+    static interface PipelineFacade extends TransactionFacade {
+
+        /**
+         * Runs the transaction (MULTI/EXEC) as part of the pipeline.
+         *
+         * @param transaction
+         *            the implementation of transaction
+         * @return result of transaction
+         */
+        <T> ResponseFacade<T> transaction(TransactionRunner<T> transaction);
+
+        /**
+         * See redis.clients.jedis.Pipeline#sadd(byte[], byte[]...)
+         *
+         * @param key
+         *            key as byte array
+         * @param members
+         */
+        void sadd(byte[] key, byte[]... members);
+
+        /**
+         * See redis.clients.jedis.Pipeline#srem(byte[], byte[]...)
+         *
+         * @param key
+         *            key as byte array
+         * @param members
+         */
+        void srem(byte[] key, byte[]... members);
+
+        /**
+         * See redis.clients.jedis.Pipeline#expire(byte[], int)
+         *
+         * @param key
+         *            key as byte array
+         * @param seconds
+         */
+        void expire(byte[] key, int seconds);
+
+        /**
+         * See redis.clients.jedis.Pipeline#expireAt(byte[], long)
+         *
+         * @param key
+         *            key as byte array
+         * @param unixTime
+         */
+        void expireAt(byte[] key, long unixTime);
+
+        /**
+         * See redis.clients.jedis.Pipeline#setex(byte[], int, byte[])
+         *
+         * @param key
+         *            key as byte array
+         * @param seconds
+         * @param value
+         */
+        void setex(byte[] key, int seconds, byte[] value);
+
+        /**
+         * See redis.clients.jedis.Pipeline#persist(byte[])
+         *
+         * @param key
+         *            key as byte array
+         */
+        void persist(byte[] key);
+
+        /**
+         * See redis.clients.jedis.Pipeline#zadd(byte[], double, byte[])
+         *
+         * @param key
+         *            key as byte array
+         * @param score
+         * @param member
+         */
+        void zadd(byte[] key, double score, byte[] member);
+
+        /**
+         * See redis.clients.jedis.Pipeline#zrem(byte[], byte[]...)
+         *
+         * @param key
+         *            key as byte array
+         * @param members
+         */
+        void zrem(byte[] key, byte[]... members);
+    }
+
     /**
      * Used to wrap implementation's response for transactions.
      *
@@ -417,4 +794,24 @@ public interface RedisConnector {
          */
         ResponseFacade<T> run(TransactionFacade transactionImpl);
     }
+
+    /**
+     * Implementation of this interface can be run within a redis pipeline. The
+     * pipeline is sequence of redis commands sent in a single batch.
+     *
+     * @param <T>
+     *            result type of the pipeline
+     */
+    @FunctionalInterface
+    interface PipelineRunner<T> {
+
+        /**
+         * Runs pipeline and returns its result.
+         *
+         * @param pipelineImpl
+         *            underlying redis pipeline to run
+         * @return result of pipeline
+         */
+        ResponseFacade<T> run(PipelineFacade pipelineImpl);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,65 @@
+package com.test.session.connection.api;
+
+import static redis.clients.util.SafeEncoder.encode;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Lua script that is executed on redis server. The script is identified by
+ * SHA1 digest of its source which is computed once, so the script can be
+ * invoked using EVALSHA without sending its body on each call. If the script
+ * is not present in redis script cache (e.g. after restart or fail-over), the
+ * connector will load it and retry. See
+ * {@link RedisConnector#eval(RedisScript, java.util.List, java.util.List)}.
+ */
+public final class RedisScript {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final byte[] script;
+    private final byte[] sha1;
+
+    public RedisScript(String script) {
+        this.script = encode(script);
+        this.sha1 = encode(sha1Hex(this.script));
+    }
+
+    /**
+     * Returns source of the script.
+     *
+     * @return source of the script as byte array
+     */
+    public byte[] getScript() {
+        return script;
+    }
+
+    /**
+     * Returns SHA1 digest of the script as used by EVALSHA command.
+     *
+     * @return hex encoded SHA1 digest as byte array
+     */
+    public byte[] getSha1() {
+        return sha1;
+    }
+
+    private static String sha1Hex(byte[] source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source);
+            char[] hex = new char[digest.length * 2];
+
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+            }
+
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 digest is not supported by JVM.", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RedisScript [sha1=%s]", encode(sha1));
+    }
+}
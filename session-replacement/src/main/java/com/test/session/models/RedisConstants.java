@@ -45,6 +45,7 @@ public interface RedisConstants {
     String REDIS_MODE_CLUSTER = "CLUSTER";
     String JEDIS_POOL_CONNECTOR_PID = "jedisPool";
     String JEDIS_CLUSTER_CONNECTOR_PID = "jedisCluster";
+    String NIO_CONNECTOR_PID = "nioConnector";
 
     String CRLF = "\r\n";
     String REDIS_VERSION_LABEL = "redis_version:";
@@ -58,6 +59,35 @@ public interface RedisConstants {
 
     int SPOP_BULK_SIZE = 1000;
 
+    /**
+     * Default maximum number of sessions kept in near cache.
+     */
+    int DEFAULT_NEAR_CACHE_SIZE = 10000;
+
+    /**
+     * Default number of connections used by asynchronous connector.
+     */
+    int DEFAULT_REDIS_ASYNC_CONNECTIONS = 4;
+
+    /**
+     * Default number of sets among which expiration strategies distribute
+     * sessions. With single set, legacy key names are used.
+     */
+    int DEFAULT_EXPIRATION_BUCKETS = 1;
+
+    /**
+     * Default time in milliseconds for which a node holds the sweep of an
+     * expiration bucket when sweep leases are used. Lease is renewed every
+     * third of the period, and another node takes over the sweep at most one
+     * period after the holder stops.
+     */
+    long DEFAULT_SWEEP_LEASE_PERIOD = 30000;
+
+    String LEASE_PER_REQUEST_NAME = "Per request";
+    String LEASE_PER_REQUEST_VALUE = "REQUEST";
+    String LEASE_PER_COMMAND_NAME = "Per command";
+    String LEASE_PER_COMMAND_VALUE = "COMMAND";
+
     byte[] EMPTY_STRING = encode("");
     String DEFAULT_SESSION_EXPIRE_PREFIX = "com.test.session:expire";
     byte[] DEFAULT_SESSION_EXPIRE_PREFIX_BUF = encode(DEFAULT_SESSION_EXPIRE_PREFIX);
@@ -81,12 +111,67 @@ public interface RedisConstants {
      * 10 second cleanup interval for Sorted Set Expiry
      */
     int REGULAR_CLEANUP_INTERVAL = 10;
+
+    /**
+     * Maximum number of sessions claimed in one step of Sorted Set Expiry
+     * sweep.
+     */
+    int SWEEP_PAGE_SIZE = 500;
+
+    /**
+     * Number of threads expiring claimed pages of Sorted Set Expiry sweep.
+     * When all are busy, the sweep expires the page itself.
+     */
+    int SWEEP_PAGE_WORKERS = 2;
+
+    /**
+     * Part of cleanup interval that a Sorted Set Expiry sweep may use, in
+     * percents. Sessions not claimed in time are left for the next sweep.
+     */
+    int SWEEP_TIME_BUDGET_PERCENT = 50;
     
-    // We subscribe to expired events
-    String EXPIRY_SUBSCRIPTION_PATTERN = "__keyevent@*__:expired";
-    
-    // Suffix for expired notifications
-    byte[] EXPIRED_SUFFIX = encode(":expired");
+    /**
+     * Channel of expired events of the database used by connectors. Sessions
+     * are always stored in default database, which is the only database
+     * available in cluster mode.
+     */
+    String EXPIRY_SUBSCRIPTION_CHANNEL = "__keyevent@0__:expired";
+
+    /**
+     * Interval in milliseconds at which cluster topology is checked to
+     * subscribe to notifications of new masters, and to resubscribe after
+     * lost connections.
+     */
+    long CLUSTER_SUBSCRIPTION_REFRESH = SECONDS.toMillis(10);
+
+    /**
+     * Capacity of the queue between expiration subscriber and workers that
+     * delete expired sessions. Events arriving when queue is full are dropped,
+     * and the sessions are left to the periodic cleanup. Must be power of 2.
+     */
+    int EXPIRY_EVENT_QUEUE_SIZE = 8192;
+
+    /**
+     * Maximum number of expired sessions resolved and deleted together.
+     */
+    int EXPIRY_EVENT_BATCH_SIZE = 256;
+
+    /**
+     * Number of threads deleting sessions whose expiration was notified.
+     */
+    int EXPIRY_EVENT_WORKERS = 2;
+
+    /**
+     * Number of recently processed session ids remembered to skip repeated
+     * expiration events of the same session.
+     */
+    int EXPIRY_EVENT_DEDUPLICATION_SIZE = 4096;
+
+    /**
+     * Time in milliseconds during which repeated expiration events of a
+     * session are ignored.
+     */
+    long EXPIRY_EVENT_DEDUPLICATION_WINDOW = SECONDS.toMillis(60);
 
     /**
      * Meta attribute for timestamp (Unix time) of last access to session.
@@ -109,6 +194,11 @@ public interface RedisConstants {
      * Meta attribute for the node owning the session.
      */
     byte[] OWNER_NODE = encode("#:owner");
+    /**
+     * Meta attribute for the version of the session. It is incremented on each
+     * commit and used to validate sessions in near cache.
+     */
+    byte[] VERSION = encode("#:version");
     /**
      * Representation of true value
      */
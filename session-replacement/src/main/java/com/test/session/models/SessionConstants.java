@@ -51,6 +51,12 @@ public interface SessionConstants {
      */
     int DEFAULT_SESSION_ID_LENGTH = 30;
 
+    /**
+     * Default interval in seconds between compactions of persisted in-memory
+     * sessions.
+     */
+    int DEFAULT_PERSISTENCE_COMPACTION_INTERVAL = 300;
+
     String UNKNOWN_NODE_NAME = "unknown";
 
     /**
@@ -83,6 +89,41 @@ public interface SessionConstants {
 
     String REDIS_REPOSITORY_VALUE = "redisRepository";
 
+    /**
+     * Store serialized session attributes in memory outside of java heap.
+     */
+    String OFF_HEAP_REPOSITORY_NAME = "Off-Heap Repository";
+
+    String OFF_HEAP_REPOSITORY_VALUE = "offheapRepository";
+
+    /**
+     * Serialize session attributes using JDK serialization.
+     */
+    String JDK_SERIALIZER_NAME = "JDK Serializer";
+
+    String JDK_SERIALIZER_VALUE = "jdkSerializer";
+
+    /**
+     * Serialize session attributes using compact binary format. Types which
+     * are not supported by the format are serialized using JDK serialization.
+     */
+    String BINARY_SERIALIZER_NAME = "Binary Serializer";
+
+    String BINARY_SERIALIZER_VALUE = "binarySerializer";
+
+    /**
+     * Encrypt session data using AES in CBC mode. Data doesn't have header and
+     * starts with initialization vector.
+     */
+    String ENCRYPTION_MODE_CBC = "AES-CBC";
+
+    /**
+     * Encrypt session data using AES in GCM mode. Data starts with versioned
+     * header, and is authenticated, so corrupted or tampered data is detected
+     * during decryption.
+     */
+    String ENCRYPTION_MODE_GCM = "AES-GCM";
+
     /**
      * Session data is replicated on set of the attribute and when an attribute
      * retrieved via Attribute contains a non-primitive type. This means that
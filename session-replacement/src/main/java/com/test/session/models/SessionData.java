@@ -2,6 +2,7 @@ package com.test.session.models;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Container for basic session information. It includes the following standard
@@ -18,21 +19,49 @@ import java.util.concurrent.ConcurrentHashMap;
  * <li>last accessed time at moment of the retrieval from repository. This can
  * be used to manage expiration strategy - e.g. as we now have new access time,
  * we can clean timers that are based on this old session accessed time.</li>
+ * <li>node that owned the session before it was retrieved, used in sticky
+ * mode.</li>
  * </ul>
  *
  */
 public class SessionData {
     private final String id;
-    private final long creationTime = System.currentTimeMillis();
+    private final long creationTime;
     private int maxInactiveInterval;
     private long lastAccessedTime;
     private boolean isNew;
+    private String previousOwner;
     private final Map<String, SessionAttribute> sessionAttributes = new ConcurrentHashMap<>();
+    // Content hashes of attributes as loaded from repository, used for delta commits
+    private final Map<String, Long> attributeHashes = new ConcurrentHashMap<>();
 
     public SessionData(String id, long lastAccessedTime, int maxInactiveInterval) {
+        this(id, lastAccessedTime, maxInactiveInterval, System.currentTimeMillis());
+    }
+
+    /**
+     * Creates session data restored from a repository, keeping the original
+     * creation time of the session.
+     *
+     * @param id
+     *            session id
+     * @param lastAccessedTime
+     *            last access timestamp
+     * @param maxInactiveInterval
+     *            max inactive interval in seconds
+     * @param creationTime
+     *            creation timestamp
+     */
+    public SessionData(String id, long lastAccessedTime, int maxInactiveInterval, long creationTime) {
         this.id = id;
         this.maxInactiveInterval = maxInactiveInterval;
         this.lastAccessedTime = lastAccessedTime;
+        this.creationTime = creationTime;
+    }
+
+    public SessionData(String id, long lastAccessedTime, int maxInactiveInterval, long creationTime, String previousOwner) {
+        this(id, lastAccessedTime, maxInactiveInterval, creationTime);
+        this.previousOwner = previousOwner;
     }
 
     public SessionData(String sessionId, int maxInactiveInterval, boolean isNew) {
@@ -41,8 +70,7 @@ public class SessionData {
     }
 
     public SessionData(String sessionId, int maxInactiveInterval) {
-        this.id = sessionId;
-        this.maxInactiveInterval = maxInactiveInterval;
+        this(sessionId, 0L, maxInactiveInterval);
     }
 
     public long getLastAccessedTime() {
@@ -61,6 +89,23 @@ public class SessionData {
         this.maxInactiveInterval = maxInactiveInterval;
     }
 
+    /**
+     * Returns <code>true</code> if session was not accessed within its maximum
+     * inactive interval at the given instant. Sessions with non-positive
+     * maximum inactive interval never expire.
+     *
+     * @param instant
+     *            timestamp to check against
+     * @return <code>true</code> if session has expired
+     */
+    public boolean isExpired(long instant) {
+        if (maxInactiveInterval <= 0) {
+            return false;
+        }
+
+        return (lastAccessedTime + TimeUnit.SECONDS.toMillis(maxInactiveInterval)) < instant;
+    }
+
     public boolean isNew() {
         return isNew;
     }
@@ -77,6 +122,10 @@ public class SessionData {
         return id;
     }
 
+    public String getPreviousOwner() {
+        return previousOwner;
+    }
+
     public Map<String, SessionAttribute> getSessionAttributes() {
         return sessionAttributes;
     }
@@ -97,6 +146,25 @@ public class SessionData {
         sessionAttributes.remove(attributeName);
     }
 
+    /**
+     * Returns content hash of the attribute as it is stored in repository.
+     *
+     * @param attributeName
+     *            name of the attribute
+     * @return hash or <code>null</code> if it is not known
+     */
+    public Long getAttributeHash(String attributeName) {
+        return attributeHashes.get(attributeName);
+    }
+
+    public void setAttributeHash(String attributeName, long hash) {
+        attributeHashes.put(attributeName, hash);
+    }
+
+    public void removeAttributeHash(String attributeName) {
+        attributeHashes.remove(attributeName);
+    }
+
     @Override
     public String toString() {
         return String.format(
@@ -0,0 +1,50 @@
+package com.test.session.repository;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Orders sessions from least to most recently used. Used by
+ * {@link InMemoryRepository} to select sessions to evict when repository
+ * exceeds its limits. All operations are guarded by the queue monitor and run
+ * in constant time.
+ */
+final class EvictionQueue {
+    private final LinkedHashMap<String, Boolean> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Marks session as most recently used, adding it to the queue if needed.
+     *
+     * @param id
+     *            session id
+     */
+    synchronized void touch(String id) {
+        sessions.put(id, Boolean.TRUE);
+    }
+
+    synchronized void remove(String id) {
+        sessions.remove(id);
+    }
+
+    /**
+     * Removes and returns least recently used session.
+     *
+     * @return session id or <code>null</code> if queue is empty
+     */
+    synchronized String poll() {
+        Iterator<String> it = sessions.keySet().iterator();
+
+        if (!it.hasNext()) {
+            return null;
+        }
+
+        String id = it.next();
+        it.remove();
+
+        return id;
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+}
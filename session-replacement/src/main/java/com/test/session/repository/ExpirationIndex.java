@@ -0,0 +1,148 @@
+package com.test.session.repository;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index of sessions by their expiry instant. Sessions are kept in buckets of
+ * {@link #BUCKET_RESOLUTION} milliseconds sorted by expiry, so retrieving
+ * sessions that are due only visits buckets in the past, and doesn't depend on
+ * total number of sessions. Buckets are concurrent sets in a concurrent skip
+ * list, so sessions of different buckets are indexed without contention.
+ * <p>
+ * The index doesn't remember in which bucket a session is. Caller keeps the
+ * bucket returned by {@link #update(String, long, long)} and passes it back
+ * when session is moved or removed.
+ * <p>
+ * The index is a hint: as session data may be modified without being indexed
+ * again, and concurrent updates of same session may leave it in more than one
+ * bucket, callers must verify that sessions returned by
+ * {@link #pollDue(long, int)} are really expired, and re-index them otherwise.
+ */
+final class ExpirationIndex {
+    // Resolution of the index, all sessions expiring in same second share bucket
+    static final long BUCKET_RESOLUTION = 1000L;
+    // Bucket of a session that is not in the index
+    static final long NOT_INDEXED = Long.MIN_VALUE;
+
+    private final ConcurrentNavigableMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adds or moves session in the index.
+     *
+     * @param id
+     *            session id
+     * @param bucket
+     *            bucket session is currently in or {@link #NOT_INDEXED}
+     * @param expiresAt
+     *            instant when session expires
+     * @return bucket session is in now
+     */
+    long update(String id, long bucket, long expiresAt) {
+        long newBucket = bucketOf(expiresAt);
+
+        if (newBucket == bucket) {
+            return bucket;
+        }
+
+        remove(id, bucket);
+
+        Long key = newBucket;
+
+        while (true) {
+            Set<String> ids = buckets.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+
+            ids.add(id);
+
+            // Bucket may have been removed as empty while session was added
+            if (buckets.get(key) == ids) {
+                return newBucket;
+            }
+        }
+    }
+
+    /**
+     * Removes session from the index.
+     *
+     * @param id
+     *            session id
+     * @param bucket
+     *            bucket session is in or {@link #NOT_INDEXED}
+     */
+    void remove(String id, long bucket) {
+        if (bucket == NOT_INDEXED) {
+            return;
+        }
+
+        Set<String> ids = buckets.get(bucket);
+
+        if (ids != null && ids.remove(id) && ids.isEmpty()) {
+            buckets.remove(bucket, ids);
+        }
+    }
+
+    /**
+     * Removes from index and returns sessions that expire before given
+     * instant.
+     *
+     * @param instant
+     *            current time
+     * @param maxCount
+     *            maximum number of sessions to return
+     * @return ids of sessions that are due, at most <code>maxCount</code>
+     */
+    List<String> pollDue(long instant, int maxCount) {
+        List<String> due = new ArrayList<>();
+        // Buckets strictly before the one holding instant are due
+        long current = bucketOf(instant);
+
+        while (due.size() < maxCount) {
+            Map.Entry<Long, Set<String>> first = buckets.firstEntry();
+
+            if (first == null || first.getKey() >= current) {
+                break;
+            }
+
+            Set<String> ids = first.getValue();
+            Iterator<String> it = ids.iterator();
+
+            while (it.hasNext() && due.size() < maxCount) {
+                String id = it.next();
+
+                if (ids.remove(id)) {
+                    due.add(id);
+                }
+            }
+
+            if (ids.isEmpty()) {
+                buckets.remove(first.getKey(), ids);
+            }
+        }
+
+        return due;
+    }
+
+    /**
+     * Returns number of indexed sessions. Visits all buckets, so it should
+     * only be used for monitoring.
+     */
+    int size() {
+        int size = 0;
+
+        for (Set<String> ids : buckets.values()) {
+            size += ids.size();
+        }
+
+        return size;
+    }
+
+    static long bucketOf(long expiresAt) {
+        return expiresAt / BUCKET_RESOLUTION;
+    }
+}
@@ -1,17 +1,27 @@
 package com.test.session.repository;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpSession;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
@@ -20,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.test.session.TaskExecutorProcess;
+import com.test.session.api.OSGiDependencyService;
 import com.test.session.api.SessionConfigurationService;
 import com.test.session.api.SessionManager;
 import com.test.session.api.SessionRepository;
@@ -33,17 +44,40 @@ import com.test.session.models.SessionData;
  * be used for the web apps marked as non-distributable when distribution of
  * sessions is not enforced.
  * <p>
- * We are storing session in memory in {@link ConcurrentHashMap}. For each
- * session we store {@link SessionData} and session attributes. Multiple threads
- * can access both separate session and same session id, and while repository is
- * thread safe, functional concurrency when using same session id from different
- * threads must be assured in application code (as is general case for
- * {@link HttpSession}.
+ * We are storing session in memory in {@link ConcurrentHashMap}, one map per
+ * session namespace keyed by session id. For each session we store single
+ * {@link SessionEntry} holding {@link SessionData} and session attributes in
+ * compact arrays. Multiple threads can access both separate session and same
+ * session id, and while repository is thread safe, functional concurrency when
+ * using same session id from different threads must be assured in application
+ * code (as is general case for {@link HttpSession}.
  * </p>
  * <p>
  * Sessions are cleaned-up by a special task running in separate thread every 60
  * seconds. Only one task is running at the given time and this is assured by
- * {@link SessionManager#schedule(String, Runnable, long)} method.
+ * {@link SessionManager#schedule(String, Runnable, long)} method. The task
+ * retrieves sessions that are due from {@link ExpirationIndex}, which is
+ * updated each time session is stored or committed, and expires them in
+ * batches of {@value #EXPIRATION_BATCH_SIZE}.
+ * </p>
+ * <p>
+ * When persistence directory is configured, changes are also appended to
+ * {@link SessionJournal} each time session is stored or committed, including
+ * attributes that were set directly since. The journal is compacted
+ * periodically, and sessions are recovered from it when repository is
+ * activated. Recovered attributes are kept in serialized form until they are
+ * first accessed, and sessions that expired while node was down are
+ * discarded.
+ * </p>
+ * <p>
+ * Each namespace can be bounded by number of sessions and by their estimated
+ * weight. When a limit is exceeded, least recently used sessions of the
+ * namespace are evicted, so a busy namespace never evicts sessions of other
+ * ones. Evicted sessions are either expired, or, if spill directory is
+ * configured, moved to {@link SpillStore} and brought back to memory when
+ * they are accessed again. Spilled sessions have their own expiration index,
+ * and when they expire, they are brought back and deleted like other
+ * sessions, so listeners are notified.
  * </p>
  */
 @Component(immediate = true, name = SessionConstants.IN_MEMORY_REPOSITORY_VALUE)
@@ -51,8 +85,9 @@ import com.test.session.models.SessionData;
 public class InMemoryRepository implements SessionRepository {
     private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryRepository.class);
 
-    private final Map<String, SessionData> sessionDataCache = new ConcurrentHashMap<>();
-    private final Map<String, Map<String, Object>> sessionAttributeCache = new ConcurrentHashMap<>();
+    private static final int EXPIRATION_BATCH_SIZE = 1000;
+
+    private final Map<String, Namespace> namespaces = new ConcurrentHashMap<>();
 
     @Reference
     private SessionManager sessionManager;
@@ -60,20 +95,73 @@ public class InMemoryRepository implements SessionRepository {
     @Reference(bind = "bindSessionConfigurationService")
     private SessionConfigurationService sessionConfiguration;
 
+    @Reference
+    private OSGiDependencyService dependencyService;
+
     private ScheduledFuture<?> cleanupFuture;
 
+    private volatile SessionJournal journal;
+
+    private ScheduledFuture<?> compactionFuture;
+
+    private volatile SpillStore spillStore;
+
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong spilledSessions = new AtomicLong();
+    private final AtomicLong promotedSessions = new AtomicLong();
+
     protected void bindSessionConfigurationService(final SessionConfigurationService service, Map<String, ?> properties) {
         LOGGER.debug("Binding session configuration service.");
         this.sessionConfiguration = service;
         long interval = RedisConstants.ONE_MINUTE;
 
-        // We are scheduling task here to cleanup expired sessions
-        // Note that this will go through all the sessions, so the performance
-        // may suffer when there is a large number of sessions to go through.
+        // We are scheduling task here to cleanup expired sessions. Only
+        // sessions that are due according to expiration index are visited.
         LOGGER.debug("Schedule the cleanup task to run every minute.");
         cleanupFuture = (ScheduledFuture<?>) TaskExecutorProcess.getInstance(sessionConfiguration).submit(createCleanupTask(), true, interval, interval, TimeUnit.SECONDS);
     }
 
+    @Activate
+    protected void activate(Map<String, ?> properties) {
+        String spillDirectory = sessionConfiguration.getInMemorySpillDirectory();
+
+        if (StringUtils.isNotBlank(spillDirectory)) {
+            try {
+                SpillStore store = new SpillStore(Paths.get(spillDirectory));
+
+                // Sessions spilled before restart
+                store.forEach((namespace, sd) -> namespace(namespace).indexSpilled(sd));
+                spillStore = store;
+            } catch (IOException e) {
+                LOGGER.error("Unable to use spill directory {}, evicted sessions will be expired.", spillDirectory, e);
+            }
+        }
+
+        String directory = sessionConfiguration.getPersistenceDirectory();
+
+        if (StringUtils.isBlank(directory)) {
+            return;
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            SessionJournal sessionJournal = new SessionJournal(Paths.get(directory));
+            int records = sessionJournal.recover(new Recovery());
+            int sessions = discardExpired(System.currentTimeMillis());
+
+            LOGGER.info("Recovered {} sessions from {} records in {} ms", sessions, records, System.currentTimeMillis() - start);
+            journal = sessionJournal;
+        } catch (IOException e) {
+            LOGGER.error("Unable to recover sessions from {}, sessions will not be persisted.", directory, e);
+            return;
+        }
+
+        long interval = sessionConfiguration.getPersistenceCompactionInterval();
+
+        LOGGER.debug("Schedule the compaction task to run every {} seconds.", interval);
+        compactionFuture = (ScheduledFuture<?>) TaskExecutorProcess.getInstance(sessionConfiguration).submit(createCompactionTask(), true, interval, interval, TimeUnit.SECONDS);
+    }
+
     @Deactivate
     protected void close(Map<String, ?> properties) {
         LOGGER.debug("Closing the bundle. Stopping the scheduled task.");
@@ -82,49 +170,97 @@ public class InMemoryRepository implements SessionRepository {
             cleanupFuture.cancel(true);
             cleanupFuture = null;
         }
+
+        if (compactionFuture != null) {
+            compactionFuture.cancel(false);
+            compactionFuture = null;
+        }
+
+        SessionJournal sessionJournal = journal;
+        journal = null;
+
+        if (sessionJournal != null) {
+            try {
+                sessionJournal.close();
+            } catch (IOException e) {
+                LOGGER.error("Unable to close session journal.", e);
+            }
+        }
     }
 
     @Override
     public SessionData getSessionData(String id) {
         LOGGER.debug("Getting the session data associated with the session ID {}", id);
-        return sessionDataCache.get(id(id));
+        Namespace namespace = namespace();
+        SessionEntry entry = namespace.sessions.get(id);
+
+        if (entry == null) {
+            entry = promote(namespace, id);
+        } else if (isBounded()) {
+            namespace.evictionQueue.touch(id);
+        }
+
+        return entry == null ? null : entry.sessionData;
     }
 
     @Override
     public void storeSessionData(SessionData sessionData) {
         LOGGER.debug("Getting the session data {} in repository.", sessionData);
-        String id = id(sessionData.getId());
+        Namespace namespace = namespace();
+
+        SessionEntry entry = entry(namespace, sessionData.getId());
 
-        sessionDataCache.put(id, sessionData);
-        sessionAttributeCache.putIfAbsent(id, new ConcurrentHashMap<String, Object>());
+        entry.sessionData = sessionData;
+        namespace.index(entry, sessionData);
+        persist(namespace, entry, sessionData, Collections.emptyMap(), Collections.emptySet());
+        enforceLimits(namespace, sessionData.getId());
     }
 
     @Override
     public Set<String> getAllKeys(SessionData session) {
         LOGGER.debug("Getting all keys associated with the session {}", session);
-        return Optional.ofNullable(sessionAttributeCache.get(id(session.getId())))
-                .map(attributes -> attributes.keySet())
-                .orElse(Collections.emptySet());
+        SessionEntry entry = namespace().sessions.get(session.getId());
+
+        return entry == null ? Collections.emptySet() : entry.keys();
     }
 
     @Override
     public Object getSessionAttribute(SessionData session, String attribute) {
         LOGGER.debug("Getting the session attribute with key {} for sesison {}", attribute, session);
-        return Optional.ofNullable(sessionAttributeCache.get(id(session.getId())))
-                .map(attributes -> attributes.get(attribute))
-                .orElse(null);
+        SessionEntry entry = namespace().sessions.get(session.getId());
+        Object value = entry == null ? null : entry.get(attribute);
+
+        if (value instanceof PersistedValue) {
+            Object deserialized = dependencyService.getSerializer().deserialize(((PersistedValue) value).bytes);
+
+            entry.resolve(attribute, value, deserialized, isWeighed());
+            return deserialized;
+        }
+
+        return value;
     }
 
     @Override
     public void remove(SessionData session) {
         LOGGER.debug("Remove the session data from repository {}", session);
-        remove(session.getId());
+        Namespace namespace = namespace();
+
+        namespace.remove(session.getId());
+        persistRemove(namespace, session.getId());
     }
 
     @Override
     public boolean prepareRemove(SessionData session) {
         LOGGER.debug("Remove the session data from repository {}", session);
-        sessionDataCache.remove(id(session.getId()));
+        Namespace namespace = namespace();
+        SessionEntry entry = namespace.sessions.get(session.getId());
+
+        if (entry != null) {
+            entry.sessionData = null;
+            namespace.unindex(entry, session.getId());
+        }
+
+        persistRemove(namespace, session.getId());
         return true;
     }
 
@@ -140,18 +276,34 @@ public class InMemoryRepository implements SessionRepository {
 
     @Override
     public void setSessionAttribute(SessionData session, String name, Object value) {
-        getAttributeMap(session.getId()).put(name, value);
+        SessionEntry entry = entry(namespace(), session.getId());
+
+        entry.put(name, value, isWeighed());
+
+        if (journal != null) {
+            entry.markUnjournaled(name);
+        }
     }
 
     @Override
     public void removeSessionAttribute(SessionData session, String name) {
-        getAttributeMap(session.getId()).remove(name);
+        SessionEntry entry = namespace().sessions.get(session.getId());
+
+        if (entry != null) {
+            entry.remove(name);
+
+            if (journal != null) {
+                entry.markUnjournaled(name);
+            }
+        }
     }
 
     @Override
     public Collection<String> getOwnedSessionIds() {
         LOGGER.debug("Getting all session IDs.");
-        return Collections.unmodifiableCollection(sessionDataCache.values().stream()
+        return Collections.unmodifiableCollection(namespace().sessions.values().stream()
+                                                    .map(entry -> entry.sessionData)
+                                                    .filter(sd -> sd != null)
                                                     .map(sd -> sd.getId())
                                                     .collect(Collectors.toList()));
     }
@@ -161,62 +313,822 @@ public class InMemoryRepository implements SessionRepository {
         LOGGER.debug("This functionality is for Servlet 3.1 container and not yet implemented.");
     }
 
-    private Map<String, Object> getAttributeMap(String sessionId) {
-        String id = id(sessionId);
-        Map<String, Object> attrs = sessionAttributeCache.get(id);
+    /**
+     * Returns number of sessions evicted because repository exceeded its
+     * limits.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns number of evicted sessions that were moved to spill directory.
+     */
+    public long getSpilledSessions() {
+        return spilledSessions.get();
+    }
+
+    /**
+     * Returns number of sessions brought back from spill directory.
+     */
+    public long getPromotedSessions() {
+        return promotedSessions.get();
+    }
+
+    public int getSessionCount() {
+        int count = 0;
+
+        for (Namespace namespace : namespaces.values()) {
+            count += namespace.sessions.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns estimated weight in bytes of all sessions in repository.
+     */
+    public long getWeight() {
+        long weight = 0;
+
+        for (Namespace namespace : namespaces.values()) {
+            weight += namespace.weight.get();
+        }
+
+        return weight;
+    }
+
+    /**
+     * Returns storage of the configured namespace.
+     */
+    private Namespace namespace() {
+        return namespace(sessionConfiguration.getNamespace());
+    }
+
+    private Namespace namespace(String name) {
+        Namespace namespace = namespaces.get(name);
+
+        if (namespace == null) {
+            namespace = namespaces.computeIfAbsent(name, Namespace::new);
+        }
+
+        return namespace;
+    }
+
+    private boolean isBounded() {
+        return sessionConfiguration.getInMemoryMaxSessions() > 0 || sessionConfiguration.getInMemoryMaxWeight() > 0;
+    }
+
+    /**
+     * Returns <code>true</code> if attributes are weighed, which is needed
+     * only when weight of namespace is limited. Weighing iterates collections
+     * and maps held by the application, so it is skipped otherwise.
+     */
+    private boolean isWeighed() {
+        return sessionConfiguration.getInMemoryMaxWeight() > 0;
+    }
+
+    private boolean isOverLimit(Namespace namespace) {
+        int maxSessions = sessionConfiguration.getInMemoryMaxSessions();
+        long maxWeight = sessionConfiguration.getInMemoryMaxWeight();
+
+        return (maxSessions > 0 && namespace.sessions.size() > maxSessions) || (maxWeight > 0 && namespace.weight.get() > maxWeight);
+    }
+
+    /**
+     * Marks session as recently used and evicts least recently used sessions
+     * of the namespace while the namespace exceeds its limits. The session
+     * itself is never evicted. Deleting evicted session stores it again, so
+     * only one thread evicts sessions of a namespace at a time, and nested
+     * calls from that thread only mark the session as used.
+     */
+    private void enforceLimits(Namespace namespace, String id) {
+        if (!isBounded()) {
+            return;
+        }
+
+        namespace.evictionQueue.touch(id);
+
+        // Limits are checked again after eviction ends, as other threads may have added sessions meanwhile
+        while (isOverLimit(namespace) && namespace.evicting.compareAndSet(false, true)) {
+            try {
+                while (isOverLimit(namespace)) {
+                    String eldest = namespace.evictionQueue.poll();
+
+                    if (eldest == null) {
+                        return;
+                    }
+
+                    if (eldest.equals(id)) {
+                        namespace.evictionQueue.touch(id);
+                        return;
+                    }
+
+                    evict(namespace, eldest);
+                }
+            } finally {
+                namespace.evicting.set(false);
+            }
+        }
+    }
+
+    private void evict(Namespace namespace, String id) {
+        SessionEntry entry = namespace.sessions.get(id);
+        SessionData sd = entry == null ? null : entry.sessionData;
+
+        if (sd == null) {
+            // Session is being removed
+            return;
+        }
+
+        evictions.incrementAndGet();
+        SpillStore store = spillStore;
+
+        if (store != null && spill(store, namespace, entry, sd)) {
+            return;
+        }
+
+        try {
+            LOGGER.debug("Evicting session {}", sd);
+            sessionManager.delete(sd, true);
+        } catch (Exception e) {
+            LOGGER.error("An error occured while trying to evict session {}", sd, e);
+        }
+
+        namespace.remove(id);
+        persistRemove(namespace, id);
+    }
+
+    /**
+     * Moves session to spill directory.
+     *
+     * @return <code>false</code> if session couldn't be spilled and must be
+     *         expired instead
+     */
+    private boolean spill(SpillStore store, Namespace namespace, SessionEntry entry, SessionData sd) {
+        try {
+            List<String> failed = new ArrayList<>();
+            Map<String, byte[]> attributes = serialize(sd.getId(), entry.attributes(), failed);
+
+            if (!failed.isEmpty()) {
+                LOGGER.warn("Unable to spill session {} with attributes {}, it will be expired.", sd, failed);
+                return false;
+            }
+
+            store.write(namespace.name, sd, attributes);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Unable to spill session {}, it will be expired.", sd, e);
+            return false;
+        }
+
+        // Session is marked as spilled before it leaves memory, so it can be found meanwhile
+        namespace.indexSpilled(sd);
+        namespace.remove(sd.getId());
+        persistRemove(namespace, sd.getId());
+        spilledSessions.incrementAndGet();
+        LOGGER.debug("Spilled session {}", sd);
+        return true;
+    }
+
+    /**
+     * Returns entry of the session, creating it if session is not present.
+     * Session that was spilled meanwhile, e.g. while its request was running,
+     * is brought back first, so its spilled copy doesn't outlive it.
+     */
+    private SessionEntry entry(Namespace namespace, String id) {
+        SessionEntry entry = namespace.sessions.get(id);
+
+        if (entry == null) {
+            entry = promote(namespace, id);
+        }
+
+        return entry == null ? namespace.entry(id) : entry;
+    }
+
+    /**
+     * Brings session back from spill directory.
+     *
+     * @return entry of the session or <code>null</code> if session was not
+     *         spilled
+     */
+    private SessionEntry promote(Namespace namespace, String id) {
+        SpillStore store = spillStore;
+
+        // Unknown sessions are not looked up in spill directory
+        if (store == null || !namespace.spilled.contains(id)) {
+            return null;
+        }
+
+        try {
+            SpillStore.SpilledSession spilled = store.take(namespace.name, id);
+
+            if (spilled == null) {
+                namespace.spilled.remove(id);
+                // Session may have been promoted by another thread
+                return namespace.sessions.get(id);
+            }
+
+            namespace.unindexSpilled(spilled.sessionData);
+
+            SessionEntry entry = namespace.entry(id);
+
+            entry.update(persisted(spilled.attributes), Collections.emptySet(), isWeighed());
+            entry.sessionData = spilled.sessionData;
+            namespace.index(entry, spilled.sessionData);
+            persist(namespace, id, spilled.sessionData, persisted(spilled.attributes), Collections.emptySet());
+            promotedSessions.incrementAndGet();
+            enforceLimits(namespace, id);
+
+            return entry;
+        } catch (IOException e) {
+            LOGGER.error("Unable to read spilled session {}", id, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Expires spilled sessions of the namespace that are due according to
+     * spill index.
+     */
+    private int expireSpilled(Namespace namespace, long instant) {
+        SpillStore store = spillStore;
+        int expired = 0;
+
+        if (store == null) {
+            return expired;
+        }
+
+        List<String> due;
+
+        do {
+            due = namespace.spillIndex.pollDue(instant, EXPIRATION_BATCH_SIZE);
+
+            for (String id : due) {
+                if (expireSpilled(store, namespace, id, instant)) {
+                    expired++;
+                }
+            }
+        } while (due.size() == EXPIRATION_BATCH_SIZE);
+
+        return expired;
+    }
+
+    /**
+     * Expires spilled session through {@link SessionManager#delete}, which
+     * brings the session back to memory, so listeners are notified as for
+     * any other session. Only meta data is read to check if session is due.
+     */
+    private boolean expireSpilled(SpillStore store, Namespace namespace, String id, long instant) {
+        try {
+            SessionData sd = store.peek(namespace.name, id);
+
+            if (sd == null) {
+                // Session was promoted
+                return false;
+            }
+
+            if (namespace.sessions.containsKey(id)) {
+                // Session is in memory again, so spilled copy is stale
+                namespace.unindexSpilled(sd);
+                store.remove(namespace.name, id);
+                return false;
+            }
+
+            if (!sd.isExpired(instant)) {
+                namespace.indexSpilled(sd);
+                return false;
+            }
+
+            LOGGER.debug("Expiring spilled session {}", sd);
+            sessionManager.delete(sd, true);
+            // Session is gone even if it couldn't be brought back
+            namespace.remove(id);
+            namespace.unindexSpilled(sd);
+            store.remove(namespace.name, id);
+            persistRemove(namespace, id);
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("Unable to expire spilled session {}", id, e);
+        }
+
+        namespace.spillIndex.update(id, ExpirationIndex.NOT_INDEXED, instant + ExpirationIndex.BUCKET_RESOLUTION);
+        return false;
+    }
+
+    private static Map<String, Object> persisted(Map<String, byte[]> attributes) {
+        Map<String, Object> values = new HashMap<>();
+
+        for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+            values.put(attribute.getKey(), new PersistedValue(attribute.getValue()));
+        }
+
+        return values;
+    }
+
+    private static int weigh(String name, Object value) {
+        return WeightEstimator.estimate(name, value instanceof PersistedValue ? ((PersistedValue) value).bytes : value);
+    }
+
+    /**
+     * Appends change of the session to the journal if persistence is enabled.
+     */
+    private void persist(Namespace namespace, String id, SessionData sessionData, Map<String, ?> changed, Collection<String> removed) {
+        SessionJournal sessionJournal = journal;
+
+        if (sessionJournal == null) {
+            return;
+        }
+
+        try {
+            Collection<String> allRemoved = new HashSet<>(removed);
+            // Attribute that can't be serialized is journaled as removed, so its old value is not recovered
+            Map<String, byte[]> serialized = serialize(id, changed, allRemoved);
 
-        if (attrs == null) {
-            attrs = new ConcurrentHashMap<>();
-            Map<String, Object> attrPrev = sessionAttributeCache.putIfAbsent(id, attrs);
+            sessionJournal.appendUpdate(namespace.name, id, sessionData, serialized, allRemoved);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Unable to persist changes of session {}", id, e);
+        }
+    }
 
-            if (attrPrev != null) {
-                attrs = attrPrev;
+    /**
+     * Appends change of the session to the journal together with attributes
+     * that were set or removed directly since the session was last journaled.
+     * Such attributes are journaled with their current values.
+     */
+    private void persist(Namespace namespace, SessionEntry entry, SessionData sessionData, Map<String, ?> changed, Collection<String> removed) {
+        if (journal == null) {
+            return;
+        }
+
+        Map<String, Object> allChanged = new HashMap<>(changed);
+        Set<String> allRemoved = new HashSet<>(removed);
+
+        entry.drainUnjournaled(allChanged, allRemoved);
+        persist(namespace, sessionData.getId(), sessionData, allChanged, allRemoved);
+    }
+
+    private void persistRemove(Namespace namespace, String id) {
+        SessionJournal sessionJournal = journal;
+
+        if (sessionJournal == null) {
+            return;
+        }
+
+        try {
+            sessionJournal.appendRemove(namespace.name, id);
+        } catch (IOException e) {
+            LOGGER.error("Unable to persist removal of session {}", id, e);
+        }
+    }
+
+    /**
+     * Serializes attributes of the session. Values recovered from journal are
+     * kept in their serialized form. Attributes that can't be serialized are
+     * left out, and their names are added to <code>failed</code>.
+     */
+    private Map<String, byte[]> serialize(String id, Map<String, ?> attributes, Collection<String> failed) {
+        Map<String, byte[]> serialized = new HashMap<>();
+
+        for (Map.Entry<String, ?> attribute : attributes.entrySet()) {
+            Object value = attribute.getValue();
+            byte[] bytes = value instanceof PersistedValue ? ((PersistedValue) value).bytes : dependencyService.getSerializer().serialize(value);
+
+            if (bytes == null) {
+                LOGGER.warn("Attribute {} of session {} can't be serialized, it will not be persisted.", attribute.getKey(), id);
+                failed.add(attribute.getKey());
+            } else {
+                serialized.put(attribute.getKey(), bytes);
             }
         }
 
-        return attrs;
+        return serialized;
     }
 
-    private void remove(String sessionId) {
-        String id = id(sessionId);
+    /**
+     * Removes recovered sessions that expired while node was down, or whose
+     * data was never stored, and indexes remaining ones.
+     *
+     * @return number of remaining sessions
+     */
+    private int discardExpired(long instant) {
+        int remaining = 0;
+
+        for (Namespace namespace : namespaces.values()) {
+            for (Map.Entry<String, SessionEntry> session : namespace.sessions.entrySet()) {
+                SessionData sd = session.getValue().sessionData;
+
+                if (sd == null || sd.isExpired(instant)) {
+                    namespace.remove(session.getKey());
+                } else {
+                    namespace.index(session.getValue(), sd);
+                    remaining++;
+
+                    if (isBounded()) {
+                        namespace.evictionQueue.touch(session.getKey());
+                    }
+                }
+            }
+        }
 
-        sessionDataCache.remove(id);
-        sessionAttributeCache.remove(id);
+        return remaining;
     }
 
-    private String id(String id) {
-        return new StringBuffer()
-                .append(sessionConfiguration.getNamespace())
-                .append(':')
-                .append(id)
-                .toString();
+    /**
+     * Compaction task writes snapshot of all sessions, so older journals can
+     * be deleted.
+     */
+    private Runnable createCompactionTask() {
+        return () -> {
+            SessionJournal sessionJournal = journal;
+
+            if (sessionJournal == null) {
+                return;
+            }
+
+            try (SessionJournal.Snapshot snapshot = sessionJournal.startSnapshot()) {
+                for (Namespace namespace : namespaces.values()) {
+                    for (SessionEntry entry : namespace.sessions.values()) {
+                        SessionData sd = entry.sessionData;
+
+                        if (sd != null) {
+                            snapshot.write(namespace.name, sd, serialize(sd.getId(), entry.attributes(), new ArrayList<>()));
+                        }
+                    }
+                }
+
+                snapshot.commit();
+            } catch (IOException e) {
+                LOGGER.error("Unable to write snapshot of sessions.", e);
+            }
+        };
     }
 
     /**
-     * Cleanup task removes expired sessions from memory store.
+     * Cleanup task removes expired sessions from memory store. Sessions that
+     * are due are taken from expiration index in batches. As session may have
+     * been accessed after it was indexed, each session is checked again, and
+     * those still valid are put back into the index. Sessions that fail to
+     * expire are retried by the next run.
      */
     private Runnable createCleanupTask() {
         return () -> {
             long instant = System.currentTimeMillis();
             LOGGER.debug("Cleanup task started at {}", instant);
 
-            try {
-                // Find all session which are already expired.
-                sessionDataCache.values().stream()
-                    .filter(sd -> sd != null)
-                    .filter(sd -> (instant - sd.getLastAccessedTime()) > TimeUnit.SECONDS.toMillis(sd.getMaxInactiveInterval()))
-                    .forEach(sd -> {
-                        LOGGER.debug("Expiring session {}", sd);
-
-                        sessionManager.delete(sd, true);
-                        remove(sd.getId());
-                    });
-            } catch (Exception e) {
-                LOGGER.error("An error occured while trying to exipre sessions", e);
+            for (Namespace namespace : namespaces.values()) {
+                int expired = 0;
+                List<String> due;
+
+                do {
+                    due = namespace.expirationIndex.pollDue(instant, EXPIRATION_BATCH_SIZE);
+
+                    for (String id : due) {
+                        if (expire(namespace, id, instant)) {
+                            expired++;
+                        }
+                    }
+                } while (due.size() == EXPIRATION_BATCH_SIZE);
+
+                expired += expireSpilled(namespace, instant);
+                LOGGER.debug("Cleanup task expired {} sessions, {} sessions remain indexed.", expired, namespace.expirationIndex.size());
             }
         };
     }
 
+    private boolean expire(Namespace namespace, String id, long instant) {
+        SessionEntry entry = namespace.sessions.get(id);
+        SessionData sd = entry == null ? null : entry.sessionData;
+
+        if (sd == null) {
+            return false;
+        }
+
+        if (!sd.isExpired(instant)) {
+            // Session was accessed since it was indexed
+            namespace.index(entry, sd);
+            return false;
+        }
+
+        try {
+            LOGGER.debug("Expiring session {}", sd);
+
+            sessionManager.delete(sd, true);
+            namespace.remove(id);
+            persistRemove(namespace, id);
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("An error occured while trying to exipre session {}", sd, e);
+        }
+
+        // Indexing with past expiry would make session due again in the same run
+        namespace.index(entry, id, instant + ExpirationIndex.BUCKET_RESOLUTION);
+        return false;
+    }
+
+    /**
+     * Sessions of one namespace, their expiration index, eviction order and
+     * total weight, whether sessions are being evicted, and ids and expiration
+     * index of sessions spilled from the namespace.
+     */
+    private static final class Namespace {
+        private final String name;
+        private final Map<String, SessionEntry> sessions = new ConcurrentHashMap<>();
+        private final ExpirationIndex expirationIndex = new ExpirationIndex();
+        private final EvictionQueue evictionQueue = new EvictionQueue();
+        private final AtomicBoolean evicting = new AtomicBoolean();
+        private final AtomicLong weight = new AtomicLong();
+        private final ExpirationIndex spillIndex = new ExpirationIndex();
+        private final Set<String> spilled = ConcurrentHashMap.newKeySet();
+
+        private Namespace(String name) {
+            this.name = name;
+        }
+
+        private SessionEntry entry(String id) {
+            SessionEntry entry = sessions.get(id);
+
+            if (entry == null) {
+                entry = sessions.computeIfAbsent(id, key -> new SessionEntry(weight));
+            }
+
+            return entry;
+        }
+
+        private void remove(String id) {
+            SessionEntry entry = sessions.remove(id);
+
+            if (entry != null) {
+                entry.detach();
+                unindex(entry, id);
+            }
+
+            evictionQueue.remove(id);
+        }
+
+        /**
+         * Adds session to expiration index, or removes it from the index if
+         * session never expires.
+         */
+        private void index(SessionEntry entry, SessionData sessionData) {
+            if (sessionData.getMaxInactiveInterval() <= 0) {
+                unindex(entry, sessionData.getId());
+            } else {
+                index(entry, sessionData.getId(), expiresAt(sessionData));
+            }
+        }
+
+        private void index(SessionEntry entry, String id, long expiresAt) {
+            synchronized (entry) {
+                entry.expiryBucket = expirationIndex.update(id, entry.expiryBucket, expiresAt);
+            }
+        }
+
+        private void unindex(SessionEntry entry, String id) {
+            synchronized (entry) {
+                expirationIndex.remove(id, entry.expiryBucket);
+                entry.expiryBucket = ExpirationIndex.NOT_INDEXED;
+            }
+        }
+
+        /**
+         * Marks session as spilled and adds it to spill index. Spilled
+         * sessions have no entry, so their bucket is derived from their expiry
+         * when they are removed.
+         */
+        private void indexSpilled(SessionData sessionData) {
+            spilled.add(sessionData.getId());
+
+            if (sessionData.getMaxInactiveInterval() > 0) {
+                spillIndex.update(sessionData.getId(), ExpirationIndex.NOT_INDEXED, expiresAt(sessionData));
+            }
+        }
+
+        private void unindexSpilled(SessionData sessionData) {
+            spilled.remove(sessionData.getId());
+
+            if (sessionData.getMaxInactiveInterval() > 0) {
+                spillIndex.remove(sessionData.getId(), ExpirationIndex.bucketOf(expiresAt(sessionData)));
+            }
+        }
+
+        private static long expiresAt(SessionData sessionData) {
+            return sessionData.getLastAccessedTime() + TimeUnit.SECONDS.toMillis(sessionData.getMaxInactiveInterval());
+        }
+    }
+
+    /**
+     * Session stored in repository. Attribute names and values are kept in
+     * two parallel arrays which are searched linearly, as sessions usually
+     * have few attributes. Attribute access is guarded by the entry monitor.
+     * Estimated weight of each attribute is kept in third array, and changes
+     * of weight are added to the weight of namespace until entry is removed.
+     * Attributes stored while weight is not limited weigh nothing.
+     * Entry also keeps its bucket in namespace expiration index.
+     */
+    private static final class SessionEntry {
+        private static final String[] NO_NAMES = new String[0];
+        private static final Object[] NO_VALUES = new Object[0];
+        private static final int[] NO_WEIGHTS = new int[0];
+
+        private volatile SessionData sessionData;
+        private String[] names = NO_NAMES;
+        private Object[] values = NO_VALUES;
+        private int[] weights = NO_WEIGHTS;
+        private int size;
+        private final AtomicLong namespaceWeight;
+        private long weight;
+        private boolean detached;
+        private long expiryBucket = ExpirationIndex.NOT_INDEXED;
+        // Attributes set or removed outside of commit, not yet journaled
+        private Set<String> unjournaled;
+
+        private SessionEntry(AtomicLong namespaceWeight) {
+            this.namespaceWeight = namespaceWeight;
+            adjustWeight(WeightEstimator.ENTRY_WEIGHT);
+        }
+
+        synchronized Object get(String name) {
+            int i = indexOf(name);
+
+            return i < 0 ? null : values[i];
+        }
+
+        synchronized void put(String name, Object value, boolean weighed) {
+            int i = indexOf(name);
+            int valueWeight = weighed ? weigh(name, value) : 0;
+
+            if (i >= 0) {
+                values[i] = value;
+                adjustWeight(valueWeight - weights[i]);
+                weights[i] = valueWeight;
+                return;
+            }
+
+            if (size == names.length) {
+                int capacity = Math.max(4, size + (size >> 1));
+                names = Arrays.copyOf(names, capacity);
+                values = Arrays.copyOf(values, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+            }
+
+            names[size] = name;
+            values[size] = value;
+            weights[size] = valueWeight;
+            size++;
+            adjustWeight(valueWeight);
+        }
+
+        synchronized void remove(String name) {
+            int i = indexOf(name);
+
+            if (i >= 0) {
+                adjustWeight(-weights[i]);
+                size--;
+                // Move last attribute into the freed slot
+                names[i] = names[size];
+                values[i] = values[size];
+                weights[i] = weights[size];
+                names[size] = null;
+                values[size] = null;
+            }
+        }
+
+        synchronized void update(Map<String, Object> changed, Collection<String> removed, boolean weighed) {
+            for (Map.Entry<String, Object> attribute : changed.entrySet()) {
+                put(attribute.getKey(), attribute.getValue(), weighed);
+            }
+
+            for (String name : removed) {
+                remove(name);
+            }
+        }
+
+        /**
+         * Replaces value with its deserialized form, unless attribute was
+         * changed in the meantime.
+         */
+        synchronized void resolve(String name, Object previous, Object value, boolean weighed) {
+            int i = indexOf(name);
+
+            if (i >= 0 && values[i] == previous) {
+                int valueWeight = weighed ? weigh(name, value) : 0;
+
+                values[i] = value;
+                adjustWeight(valueWeight - weights[i]);
+                weights[i] = valueWeight;
+            }
+        }
+
+        /**
+         * Removes weight of the entry from namespace, as entry is no longer
+         * part of it.
+         */
+        synchronized void detach() {
+            if (!detached) {
+                detached = true;
+                namespaceWeight.addAndGet(-weight);
+            }
+        }
+
+        synchronized void markUnjournaled(String name) {
+            if (unjournaled == null) {
+                unjournaled = new HashSet<>();
+            }
+
+            unjournaled.add(name);
+        }
+
+        /**
+         * Adds current values of attributes that were not journaled yet to
+         * changed attributes, and names of those that no longer exist to
+         * removed ones.
+         */
+        synchronized void drainUnjournaled(Map<String, Object> changed, Set<String> removed) {
+            if (unjournaled == null) {
+                return;
+            }
+
+            for (String name : unjournaled) {
+                int i = indexOf(name);
+
+                if (i < 0) {
+                    changed.remove(name);
+                    removed.add(name);
+                } else {
+                    changed.put(name, values[i]);
+                    removed.remove(name);
+                }
+            }
+
+            unjournaled = null;
+        }
+
+        synchronized Set<String> keys() {
+            return new HashSet<>(Arrays.asList(names).subList(0, size));
+        }
+
+        synchronized Map<String, Object> attributes() {
+            Map<String, Object> attributes = new HashMap<>();
+
+            for (int i = 0; i < size; i++) {
+                attributes.put(names[i], values[i]);
+            }
+
+            return attributes;
+        }
+
+        private void adjustWeight(long delta) {
+            weight += delta;
+
+            if (!detached) {
+                namespaceWeight.addAndGet(delta);
+            }
+        }
+
+        private int indexOf(String name) {
+            for (int i = 0; i < size; i++) {
+                if (name.equals(names[i])) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    /**
+     * Attribute value recovered from journal that was not accessed yet.
+     */
+    private static final class PersistedValue {
+        private final byte[] bytes;
+
+        private PersistedValue(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Rebuilds sessions from records read from the journal.
+     */
+    private final class Recovery implements SessionJournal.Replay {
+        @Override
+        public void update(String namespace, String id, SessionData sessionData, Map<String, byte[]> changed, Collection<String> removed) {
+            SessionEntry entry = namespace(namespace).entry(id);
+
+            if (sessionData != null) {
+                entry.sessionData = sessionData;
+            }
+
+            entry.update(persisted(changed), removed, isWeighed());
+        }
+
+        @Override
+        public void remove(String namespace, String id) {
+            namespace(namespace).remove(id);
+        }
+    }
+
     /**
      * The {@link SessionRepository.CommitTransaction} implementation that
      * stores all changed and removes all removed attributes into the
@@ -233,8 +1145,9 @@ public class InMemoryRepository implements SessionRepository {
 
         @Override
         public void commit() {
-            String id = id(session.getId());
-            SessionData sessionData = sessionDataCache.get(id);
+            Namespace namespace = namespace();
+            SessionEntry entry = entry(namespace, session.getId());
+            SessionData sessionData = entry.sessionData;
 
             if (sessionData == null) {
                 sessionData = new SessionData(session.getId(), session.getLastAccessedTime(), session.getMaxInactiveInterval(), session.getCreationTime());
@@ -243,14 +1156,11 @@ public class InMemoryRepository implements SessionRepository {
             sessionData.setLastAccessedTime(session.getLastAccessedTime());
             sessionData.setMaxInactiveInterval(session.getMaxInactiveInterval());
 
-            sessionDataCache.put(id, sessionData);
-
-            Map<String, Object> attrs = getAttributeMap(session.getId());
-            attrs.putAll(attributes);
-
-            for (String key : toRemove.keySet()) {
-                attrs.remove(key);
-            }
+            entry.sessionData = sessionData;
+            namespace.index(entry, sessionData);
+            entry.update(attributes, toRemove.keySet(), isWeighed());
+            persist(namespace, entry, sessionData, attributes, toRemove.keySet());
+            enforceLimits(namespace, session.getId());
         }
 
         @Override
@@ -262,4 +1172,4 @@ public class InMemoryRepository implements SessionRepository {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,284 @@
+package com.test.session.repository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.test.session.TaskExecutorProcess;
+import com.test.session.api.OSGiDependencyService;
+import com.test.session.api.SessionConfigurationService;
+import com.test.session.api.SessionManager;
+import com.test.session.api.SessionRepository;
+import com.test.session.models.RedisConstants;
+import com.test.session.models.SessionConstants;
+import com.test.session.models.SessionData;
+
+/**
+ * Session Repository implementation that stores sessions in local memory, but
+ * outside of java heap. Like {@link InMemoryRepository} it is meant for single
+ * node deployments, but it can hold large number of sessions without
+ * increasing heap size and garbage collection pauses.
+ * <p>
+ * Attributes are serialized using configured serializer when they are stored,
+ * and kept together with session meta data in {@link OffHeapSessionStore},
+ * one store per session namespace. Attributes are deserialized only when they
+ * are requested, so each access to attribute returns new copy of the value.
+ * </p>
+ * <p>
+ * Sessions are cleaned-up by a task running every 60 seconds which retrieves
+ * sessions that are due from expiration index of each store.
+ * </p>
+ */
+@Component(immediate = true, name = SessionConstants.OFF_HEAP_REPOSITORY_VALUE)
+@Service
+public class OffHeapRepository implements SessionRepository {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapRepository.class);
+    // Number of due sessions retrieved from expiration index at once
+    private static final int EXPIRATION_BATCH_SIZE = 1000;
+
+    private final Map<String, OffHeapSessionStore> stores = new ConcurrentHashMap<>();
+
+    @Reference
+    private SessionManager sessionManager;
+
+    @Reference
+    private OSGiDependencyService dependencyService;
+
+    @Reference(bind = "bindSessionConfigurationService")
+    private SessionConfigurationService sessionConfiguration;
+
+    private ScheduledFuture<?> cleanupFuture;
+
+    protected void bindSessionConfigurationService(final SessionConfigurationService service, Map<String, ?> properties) {
+        LOGGER.debug("Binding session configuration service.");
+        this.sessionConfiguration = service;
+        long interval = RedisConstants.ONE_MINUTE;
+
+        LOGGER.debug("Schedule the cleanup task to run every minute.");
+        cleanupFuture = (ScheduledFuture<?>) TaskExecutorProcess.getInstance(sessionConfiguration).submit(createCleanupTask(), true, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @Deactivate
+    protected void close(Map<String, ?> properties) {
+        LOGGER.debug("Closing the bundle. Stopping the scheduled task.");
+
+        if (cleanupFuture != null) {
+            cleanupFuture.cancel(true);
+            cleanupFuture = null;
+        }
+    }
+
+    @Override
+    public SessionData getSessionData(String id) {
+        LOGGER.debug("Getting the session data associated with the session ID {}", id);
+        return store().get(id);
+    }
+
+    @Override
+    public void storeSessionData(SessionData sessionData) {
+        LOGGER.debug("Storing the session data {} in repository.", sessionData);
+        store().store(sessionData);
+    }
+
+    @Override
+    public Set<String> getAllKeys(SessionData session) {
+        LOGGER.debug("Getting all keys associated with the session {}", session);
+        return store().getAttributeNames(session.getId());
+    }
+
+    @Override
+    public Object getSessionAttribute(SessionData session, String attribute) {
+        LOGGER.debug("Getting the session attribute with key {} for sesison {}", attribute, session);
+        byte[] value = store().getAttribute(session.getId(), attribute);
+
+        return value == null ? null : dependencyService.getSerializer().deserialize(value);
+    }
+
+    @Override
+    public void remove(SessionData session) {
+        LOGGER.debug("Remove the session data from repository {}", session);
+        store().remove(session.getId());
+    }
+
+    @Override
+    public boolean prepareRemove(SessionData session) {
+        LOGGER.debug("Remove the session data from repository {}", session);
+        // Attributes are kept until session is removed
+        store().removeData(session.getId());
+        return true;
+    }
+
+    @Override
+    public CommitTransaction startCommit(SessionData session) {
+        return new OffHeapTransaction(session);
+    }
+
+    @Override
+    public void requestFinished() {
+        LOGGER.debug("No cleanup is necessary.");
+    }
+
+    @Override
+    public void setSessionAttribute(SessionData session, String name, Object value) {
+        byte[] serialized = serialize(session.getId(), name, value);
+
+        if (serialized == null) {
+            store().update(session.getId(), null, Collections.emptyMap(), Collections.singleton(name));
+        } else {
+            store().update(session.getId(), null, Collections.singletonMap(name, serialized), Collections.emptySet());
+        }
+    }
+
+    @Override
+    public void removeSessionAttribute(SessionData session, String name) {
+        store().update(session.getId(), null, Collections.emptyMap(), Collections.singleton(name));
+    }
+
+    @Override
+    public Collection<String> getOwnedSessionIds() {
+        LOGGER.debug("Getting all session IDs.");
+        return Collections.unmodifiableCollection(store().ids());
+    }
+
+    @Override
+    public void sessionIdChange(SessionData sessionData) {
+        LOGGER.debug("This functionality is for Servlet 3.1 container and not yet implemented.");
+    }
+
+    /**
+     * Serializes attribute value. Only serialized values can be stored off
+     * heap, so attribute that can't be serialized is removed from the
+     * session instead of keeping its previous value.
+     *
+     * @return serialized value or <code>null</code> if value can't be
+     *         serialized
+     */
+    private byte[] serialize(String id, String name, Object value) {
+        byte[] serialized = dependencyService.getSerializer().serialize(value);
+
+        if (serialized == null) {
+            LOGGER.warn("Attribute {} of session {} can't be serialized, it will be removed.", name, id);
+        }
+
+        return serialized;
+    }
+
+    /**
+     * Returns store of the configured namespace.
+     */
+    private OffHeapSessionStore store() {
+        String name = sessionConfiguration.getNamespace();
+        OffHeapSessionStore store = stores.get(name);
+
+        if (store == null) {
+            store = stores.computeIfAbsent(name, key -> new OffHeapSessionStore());
+        }
+
+        return store;
+    }
+
+    /**
+     * Cleanup task removes expired sessions from off-heap stores. Sessions
+     * that are due are taken from expiration index of the store in batches.
+     * Sessions whose data was already removed, but were never completely
+     * removed from the store, are discarded as well. Sessions that fail to
+     * expire are retried by the next run.
+     */
+    private Runnable createCleanupTask() {
+        return () -> {
+            long instant = System.currentTimeMillis();
+            LOGGER.debug("Cleanup task started at {}", instant);
+
+            for (OffHeapSessionStore store : stores.values()) {
+                int expired = 0;
+                List<String> due;
+
+                do {
+                    due = store.pollExpired(instant, EXPIRATION_BATCH_SIZE);
+
+                    for (String id : due) {
+                        if (expire(store, id, instant)) {
+                            expired++;
+                        }
+                    }
+                } while (due.size() == EXPIRATION_BATCH_SIZE);
+
+                LOGGER.debug("Cleanup task expired {} sessions, store state is {}", expired, store);
+            }
+        };
+    }
+
+    private boolean expire(OffHeapSessionStore store, String id, long instant) {
+        SessionData sd = store.get(id);
+
+        if (sd == null) {
+            store.remove(id);
+            return false;
+        }
+
+        if (!sd.isExpired(instant)) {
+            // Session was accessed since it was indexed
+            store.index(id, OffHeapSessionStore.expiryOf(sd));
+            return false;
+        }
+
+        try {
+            LOGGER.debug("Expiring session {}", sd);
+
+            sessionManager.delete(sd, true);
+            store.remove(id);
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("An error occured while trying to exipre session {}", sd, e);
+        }
+
+        // Indexing with past expiry would make session due again in the same run
+        store.index(id, instant + ExpirationIndex.BUCKET_RESOLUTION);
+        return false;
+    }
+
+    /**
+     * The {@link SessionRepository.CommitTransaction} implementation that
+     * serializes changed attributes and applies all changes to the store as
+     * single update of the session record.
+     */
+    private final class OffHeapTransaction implements CommitTransaction {
+        private final Map<String, byte[]> attributes = new ConcurrentHashMap<>();
+        private final Set<String> toRemove = ConcurrentHashMap.newKeySet();
+        private final SessionData session;
+
+        private OffHeapTransaction(SessionData session) {
+            this.session = session;
+        }
+
+        @Override
+        public void commit() {
+            store().update(session.getId(), session, attributes, toRemove);
+        }
+
+        @Override
+        public void changeAttribute(String key, Object value) {
+            byte[] serialized = value == null ? null : serialize(session.getId(), key, value);
+
+            if (serialized == null) {
+                attributes.remove(key);
+                toRemove.add(key);
+            } else {
+                toRemove.remove(key);
+                attributes.put(key, serialized);
+            }
+        }
+    }
+}
@@ -0,0 +1,758 @@
+package com.test.session.repository;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.test.session.models.SessionData;
+import com.test.session.serializer.XxHash64;
+
+/**
+ * Stores sessions and their serialized attributes outside of java heap. Each
+ * session is a single record in a direct {@link ByteBuffer} slab. The record
+ * contains session meta data, session id and all attributes:
+ *
+ * <pre>
+ * int    length of the record
+ * long   last accessed time
+ * long   creation time
+ * int    max inactive interval
+ * byte   flags
+ * short  length of session id, followed by UTF-8 encoded session id
+ * int    number of attributes, followed by attributes, each one as
+ *        short length of name, UTF-8 encoded name, int length of value, value
+ * </pre>
+ *
+ * Records are located using open addressing index with linear probing. The
+ * index consists of primitive arrays holding address, hash of session id and
+ * expiry instant of each session, so heap usage doesn't depend on size of
+ * attributes. Sessions that expire are also kept in an {@link ExpirationIndex}
+ * shared by all segments, so finding expired sessions visits only those that
+ * are due.
+ * <p>
+ * Records are allocated in power of two sized chunks carved from slabs of
+ * {@value #SLAB_SIZE} bytes, and freed chunks are reused for records of same
+ * size class. Slabs are never returned to operating system. Records larger than
+ * a slab get their own buffer.
+ * <p>
+ * The store is split into segments, each guarded by its own monitor. Meta data
+ * has fixed size and is updated in place, while change of attributes writes
+ * new record, copying kept attributes from the old one, and frees the old
+ * record.
+ */
+final class OffHeapSessionStore {
+    static final int SLAB_SIZE = 1 << 20;
+
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private static final int LAST_ACCESSED_OFFSET = 4;
+    private static final int CREATION_TIME_OFFSET = 12;
+    private static final int MAX_INACTIVE_OFFSET = 20;
+    private static final int FLAGS_OFFSET = 24;
+    private static final int ID_OFFSET = 25;
+
+    // Record has attributes, but session data is not (or no longer) present
+    private static final byte FLAG_NO_DATA = 1;
+
+    private final ExpirationIndex expirationIndex = new ExpirationIndex();
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    OffHeapSessionStore() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(expirationIndex);
+        }
+    }
+
+    /**
+     * Returns session data, or <code>null</code> if session is not present.
+     */
+    SessionData get(String id) {
+        Key key = new Key(id);
+
+        return segment(key).get(key);
+    }
+
+    /**
+     * Stores session meta data. Attributes of the session are not changed.
+     */
+    void store(SessionData sessionData) {
+        Key key = new Key(sessionData.getId());
+
+        segment(key).update(key, sessionData, Collections.emptyMap(), Collections.emptySet());
+    }
+
+    /**
+     * Returns serialized value of the attribute, or <code>null</code> if
+     * session or attribute is not present.
+     */
+    byte[] getAttribute(String id, String name) {
+        Key key = new Key(id);
+
+        return segment(key).getAttribute(key, name.getBytes(UTF_8));
+    }
+
+    Set<String> getAttributeNames(String id) {
+        Key key = new Key(id);
+
+        return segment(key).getAttributeNames(key);
+    }
+
+    /**
+     * Changes attributes and, if provided, session meta data. The session is
+     * created if it is not present.
+     *
+     * @param id
+     *            session id
+     * @param sessionData
+     *            new meta data, or <code>null</code> to keep existing
+     * @param changed
+     *            serialized values of changed attributes, must not be
+     *            <code>null</code>
+     * @param removed
+     *            names of removed attributes
+     */
+    void update(String id, SessionData sessionData, Map<String, byte[]> changed, Collection<String> removed) {
+        Key key = new Key(id);
+
+        segment(key).update(key, sessionData, changed, removed);
+    }
+
+    /**
+     * Marks session data as removed, while keeping its attributes.
+     */
+    void removeData(String id) {
+        Key key = new Key(id);
+
+        segment(key).removeData(key);
+    }
+
+    void remove(String id) {
+        Key key = new Key(id);
+
+        segment(key).remove(key);
+    }
+
+    List<String> ids() {
+        List<String> ids = new ArrayList<>();
+
+        for (Segment segment : segments) {
+            segment.collectAll(ids);
+        }
+
+        return ids;
+    }
+
+    /**
+     * Removes from expiration index and returns ids of sessions expiring
+     * before given instant, including those whose data was removed. Sessions
+     * that are not removed from the store must be indexed again using
+     * {@link #index(String, long)}.
+     *
+     * @param instant
+     *            current time
+     * @param maxCount
+     *            maximum number of ids to return
+     * @return ids of sessions that are due
+     */
+    List<String> pollExpired(long instant, int maxCount) {
+        return expirationIndex.pollDue(instant, maxCount);
+    }
+
+    /**
+     * Puts session back into expiration index, to be returned by
+     * {@link #pollExpired(long, int)} after given instant.
+     */
+    void index(String id, long expiresAt) {
+        Key key = new Key(id);
+
+        segment(key).index(key, expiresAt);
+    }
+
+    long getAllocatedBytes() {
+        long total = 0;
+
+        for (Segment segment : segments) {
+            total += segment.allocator.getAllocatedBytes();
+        }
+
+        return total;
+    }
+
+    long getUsedBytes() {
+        long total = 0;
+
+        for (Segment segment : segments) {
+            total += segment.allocator.getUsedBytes();
+        }
+
+        return total;
+    }
+
+    int size() {
+        int total = 0;
+
+        for (Segment segment : segments) {
+            total += segment.getSize();
+        }
+
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("OffHeapSessionStore [sessions=%s, allocatedBytes=%s, usedBytes=%s]", size(), getAllocatedBytes(), getUsedBytes());
+    }
+
+    private Segment segment(Key key) {
+        return segments[(key.hash >>> 28) & (SEGMENTS - 1)];
+    }
+
+    static long expiryOf(SessionData sessionData) {
+        if (sessionData.getMaxInactiveInterval() <= 0) {
+            return Long.MAX_VALUE;
+        }
+
+        return sessionData.getLastAccessedTime() + TimeUnit.SECONDS.toMillis(sessionData.getMaxInactiveInterval());
+    }
+
+    /**
+     * Encoded session id with its hash.
+     */
+    private static final class Key {
+        private final String id;
+        private final byte[] bytes;
+        private final int hash;
+
+        private Key(String id) {
+            this.id = id;
+            this.bytes = id.getBytes(UTF_8);
+
+            long h = XxHash64.hash(bytes);
+            this.hash = (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * Part of the store with its own index and memory.
+     */
+    private static final class Segment {
+        private final SlabAllocator allocator = new SlabAllocator();
+        private final ExpirationIndex expirationIndex;
+        // Address 0 marks empty slot
+        private long[] addresses = new long[INITIAL_CAPACITY];
+        private int[] hashes = new int[INITIAL_CAPACITY];
+        private long[] expiries = new long[INITIAL_CAPACITY];
+        private int size;
+
+        private Segment(ExpirationIndex expirationIndex) {
+            this.expirationIndex = expirationIndex;
+        }
+
+        synchronized int getSize() {
+            return size;
+        }
+
+        synchronized SessionData get(Key key) {
+            int slot = find(key);
+
+            if (slot < 0) {
+                return null;
+            }
+
+            ByteBuffer slab = allocator.slab(addresses[slot]);
+            int offset = allocator.offset(addresses[slot]);
+
+            if (slab.get(offset + FLAGS_OFFSET) == FLAG_NO_DATA) {
+                return null;
+            }
+
+            return new SessionData(key.id, slab.getLong(offset + LAST_ACCESSED_OFFSET), slab.getInt(offset + MAX_INACTIVE_OFFSET),
+                    slab.getLong(offset + CREATION_TIME_OFFSET));
+        }
+
+        synchronized byte[] getAttribute(Key key, byte[] name) {
+            int slot = find(key);
+
+            if (slot < 0) {
+                return null;
+            }
+
+            ByteBuffer slab = allocator.slab(addresses[slot]);
+            int position = attributesOffset(slab, allocator.offset(addresses[slot]));
+            int count = slab.getInt(position);
+
+            position += 4;
+
+            for (int i = 0; i < count; i++) {
+                int nameLength = slab.getShort(position);
+                int valueOffset = position + 2 + nameLength;
+                int valueLength = slab.getInt(valueOffset);
+
+                if (nameLength == name.length && equalBytes(slab, position + 2, name)) {
+                    return read(slab, valueOffset + 4, valueLength);
+                }
+
+                position = valueOffset + 4 + valueLength;
+            }
+
+            return null;
+        }
+
+        synchronized Set<String> getAttributeNames(Key key) {
+            int slot = find(key);
+
+            if (slot < 0) {
+                return Collections.emptySet();
+            }
+
+            ByteBuffer slab = allocator.slab(addresses[slot]);
+            int position = attributesOffset(slab, allocator.offset(addresses[slot]));
+            int count = slab.getInt(position);
+            Set<String> names = new HashSet<>();
+
+            position += 4;
+
+            for (int i = 0; i < count; i++) {
+                int nameLength = slab.getShort(position);
+                names.add(new String(read(slab, position + 2, nameLength), UTF_8));
+
+                int valueOffset = position + 2 + nameLength;
+                position = valueOffset + 4 + slab.getInt(valueOffset);
+            }
+
+            return names;
+        }
+
+        synchronized void update(Key key, SessionData sessionData, Map<String, byte[]> changed, Collection<String> removed) {
+            int slot = find(key);
+
+            if (slot >= 0 && changed.isEmpty() && removed.isEmpty()) {
+                if (sessionData != null) {
+                    patchMetaData(key, slot, sessionData);
+                }
+                return;
+            }
+
+            long expiry = sessionData != null ? expiryOf(sessionData) : slot < 0 ? Long.MAX_VALUE : expiries[slot];
+
+            writeRecord(key, slot, sessionData, changed, removed, expiry);
+        }
+
+        synchronized void removeData(Key key) {
+            int slot = find(key);
+
+            if (slot >= 0) {
+                ByteBuffer slab = allocator.slab(addresses[slot]);
+
+                slab.put(allocator.offset(addresses[slot]) + FLAGS_OFFSET, FLAG_NO_DATA);
+            }
+        }
+
+        synchronized void remove(Key key) {
+            int slot = find(key);
+
+            if (slot >= 0) {
+                expirationIndex.remove(key.id, bucketOf(expiries[slot]));
+                allocator.free(addresses[slot], recordLength(addresses[slot]));
+                deleteSlot(slot);
+            }
+        }
+
+        synchronized void index(Key key, long expiresAt) {
+            int slot = find(key);
+
+            if (slot >= 0) {
+                // Session may have been polled from its bucket, so it is added even if bucket didn't change
+                expirationIndex.remove(key.id, bucketOf(expiries[slot]));
+                index(key.id, Long.MAX_VALUE, expiresAt);
+                expiries[slot] = expiresAt;
+            }
+        }
+
+        /**
+         * Adds to the list ids of all sessions whose data was not removed,
+         * regardless of their expiry.
+         */
+        synchronized void collectAll(List<String> ids) {
+            for (int slot = 0; slot < addresses.length; slot++) {
+                if (addresses[slot] != 0) {
+                    ByteBuffer slab = allocator.slab(addresses[slot]);
+
+                    if (slab.get(allocator.offset(addresses[slot]) + FLAGS_OFFSET) != FLAG_NO_DATA) {
+                        ids.add(idAt(slot));
+                    }
+                }
+            }
+        }
+
+        private String idAt(int slot) {
+            ByteBuffer slab = allocator.slab(addresses[slot]);
+            int offset = allocator.offset(addresses[slot]);
+
+            return new String(read(slab, offset + ID_OFFSET + 2, slab.getShort(offset + ID_OFFSET)), UTF_8);
+        }
+
+        /**
+         * Moves session in expiration index from bucket of previous expiry to
+         * bucket of the new one. Sessions that never expire are not indexed.
+         */
+        private void index(String id, long previous, long expiry) {
+            if (expiry == Long.MAX_VALUE) {
+                expirationIndex.remove(id, bucketOf(previous));
+            } else {
+                expirationIndex.update(id, bucketOf(previous), expiry);
+            }
+        }
+
+        private static long bucketOf(long expiry) {
+            return expiry == Long.MAX_VALUE ? ExpirationIndex.NOT_INDEXED : ExpirationIndex.bucketOf(expiry);
+        }
+
+        /**
+         * Overwrites meta data in the record, as it has fixed size.
+         */
+        private void patchMetaData(Key key, int slot, SessionData sessionData) {
+            ByteBuffer slab = allocator.slab(addresses[slot]);
+            int offset = allocator.offset(addresses[slot]);
+
+            slab.putLong(offset + LAST_ACCESSED_OFFSET, sessionData.getLastAccessedTime());
+            slab.putLong(offset + CREATION_TIME_OFFSET, sessionData.getCreationTime());
+            slab.putInt(offset + MAX_INACTIVE_OFFSET, sessionData.getMaxInactiveInterval());
+            slab.put(offset + FLAGS_OFFSET, (byte) 0);
+
+            long expiry = expiryOf(sessionData);
+
+            index(key.id, expiries[slot], expiry);
+            expiries[slot] = expiry;
+        }
+
+        /**
+         * Writes new record built from existing record, new meta data and
+         * changes of attributes, and points the slot of the session to it.
+         * Kept attributes are copied directly from the existing record.
+         */
+        private void writeRecord(Key key, int slot, SessionData sessionData, Map<String, byte[]> changed, Collection<String> removed, long expiry) {
+            ByteBuffer old = slot < 0 ? null : allocator.slab(addresses[slot]);
+            int oldOffset = slot < 0 ? 0 : allocator.offset(addresses[slot]);
+            // Offset and length of each kept attribute in the old record
+            List<int[]> kept = new ArrayList<>();
+            Set<String> replaced = changed.keySet();
+            int length = ID_OFFSET + 2 + key.bytes.length + 4;
+
+            if (old != null) {
+                int position = attributesOffset(old, oldOffset);
+                int count = old.getInt(position);
+
+                position += 4;
+
+                for (int i = 0; i < count; i++) {
+                    int nameLength = old.getShort(position);
+                    int valueOffset = position + 2 + nameLength;
+                    int attributeLength = 2 + nameLength + 4 + old.getInt(valueOffset);
+                    String name = new String(read(old, position + 2, nameLength), UTF_8);
+
+                    if (!replaced.contains(name) && !removed.contains(name)) {
+                        kept.add(new int[] { position, attributeLength });
+                        length += attributeLength;
+                    }
+
+                    position += attributeLength;
+                }
+            }
+
+            List<byte[]> changedNames = new ArrayList<>(changed.size());
+
+            for (Map.Entry<String, byte[]> attribute : changed.entrySet()) {
+                byte[] name = attribute.getKey().getBytes(UTF_8);
+
+                changedNames.add(name);
+                length += 2 + name.length + 4 + attribute.getValue().length;
+            }
+
+            long address = allocator.allocate(length);
+            ByteBuffer record = allocator.slab(address).duplicate();
+
+            record.position(allocator.offset(address));
+            record.putInt(length);
+
+            if (sessionData != null) {
+                record.putLong(sessionData.getLastAccessedTime());
+                record.putLong(sessionData.getCreationTime());
+                record.putInt(sessionData.getMaxInactiveInterval());
+                record.put((byte) 0);
+            } else if (old != null) {
+                record.put(slice(old, oldOffset + LAST_ACCESSED_OFFSET, ID_OFFSET - LAST_ACCESSED_OFFSET));
+            } else {
+                record.putLong(0L).putLong(0L).putInt(0).put(FLAG_NO_DATA);
+            }
+
+            record.putShort((short) key.bytes.length);
+            record.put(key.bytes);
+            record.putInt(kept.size() + changed.size());
+
+            for (int[] attribute : kept) {
+                record.put(slice(old, attribute[0], attribute[1]));
+            }
+
+            int i = 0;
+
+            for (byte[] value : changed.values()) {
+                byte[] name = changedNames.get(i++);
+
+                record.putShort((short) name.length);
+                record.put(name);
+                record.putInt(value.length);
+                record.put(value);
+            }
+
+            if (slot >= 0) {
+                allocator.free(addresses[slot], recordLength(addresses[slot]));
+                index(key.id, expiries[slot], expiry);
+                addresses[slot] = address;
+                expiries[slot] = expiry;
+                return;
+            }
+
+            if (size + 1 > addresses.length * LOAD_FACTOR) {
+                resize();
+            }
+
+            int free = probe(key.hash);
+
+            index(key.id, Long.MAX_VALUE, expiry);
+            addresses[free] = address;
+            hashes[free] = key.hash;
+            expiries[free] = expiry;
+            size++;
+        }
+
+        private int find(Key key) {
+            int mask = addresses.length - 1;
+
+            for (int slot = key.hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == key.hash && idEquals(addresses[slot], key.bytes)) {
+                    return slot;
+                }
+            }
+
+            return -1;
+        }
+
+        private int probe(int hash) {
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+
+            while (addresses[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+        /**
+         * Removes slot using backward shift, so no tombstones are needed.
+         */
+        private void deleteSlot(int slot) {
+            int mask = addresses.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+
+            while (addresses[next] != 0) {
+                int home = hashes[next] & mask;
+
+                // Move entry into the hole if the hole is between its home and its slot
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    addresses[hole] = addresses[next];
+                    hashes[hole] = hashes[next];
+                    expiries[hole] = expiries[next];
+                    hole = next;
+                }
+
+                next = (next + 1) & mask;
+            }
+
+            addresses[hole] = 0;
+            size--;
+        }
+
+        private void resize() {
+            long[] oldAddresses = addresses;
+            int[] oldHashes = hashes;
+            long[] oldExpiries = expiries;
+            int capacity = oldAddresses.length << 1;
+
+            addresses = new long[capacity];
+            hashes = new int[capacity];
+            expiries = new long[capacity];
+
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] != 0) {
+                    int slot = probe(oldHashes[i]);
+
+                    addresses[slot] = oldAddresses[i];
+                    hashes[slot] = oldHashes[i];
+                    expiries[slot] = oldExpiries[i];
+                }
+            }
+        }
+
+        private boolean idEquals(long address, byte[] id) {
+            ByteBuffer slab = allocator.slab(address);
+            int offset = allocator.offset(address) + ID_OFFSET;
+
+            return slab.getShort(offset) == id.length && equalBytes(slab, offset + 2, id);
+        }
+
+        private int recordLength(long address) {
+            return allocator.slab(address).getInt(allocator.offset(address));
+        }
+
+        private static int attributesOffset(ByteBuffer record, int offset) {
+            return offset + ID_OFFSET + 2 + record.getShort(offset + ID_OFFSET);
+        }
+
+        private static boolean equalBytes(ByteBuffer buffer, int offset, byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (buffer.get(offset + i) != bytes[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+            ByteBuffer source = buffer.duplicate();
+
+            source.limit(offset + length).position(offset);
+
+            return source;
+        }
+
+        private static byte[] read(ByteBuffer buffer, int offset, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+
+            source.position(offset);
+            source.get(bytes);
+
+            return bytes;
+        }
+    }
+
+    /**
+     * Allocates power of two sized chunks from direct buffers. Address of a
+     * chunk holds index of its slab (starting with 1) in upper 32 bits and
+     * offset in the slab in lower 32 bits.
+     */
+    private static final class SlabAllocator {
+        private static final int MIN_CHUNK_SHIFT = 5;
+
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private final long[][] freeChunks = new long[32][];
+        private final int[] freeCounts = new int[32];
+        private ByteBuffer current;
+        private int currentSlab;
+        private int position;
+        private long allocatedBytes;
+        private long usedBytes;
+
+        long allocate(int length) {
+            int shift = shiftOf(length);
+            int chunkSize = 1 << shift;
+
+            usedBytes += chunkSize;
+
+            if (freeCounts[shift] > 0) {
+                return freeChunks[shift][--freeCounts[shift]];
+            }
+
+            if (chunkSize > SLAB_SIZE) {
+                return addressOf(newSlab(chunkSize), 0);
+            }
+
+            if (current == null || position + chunkSize > SLAB_SIZE) {
+                if (current != null) {
+                    // Keep the tail of the full slab as smaller chunks
+                    while (SLAB_SIZE - position >= 1 << MIN_CHUNK_SHIFT) {
+                        int tailShift = 31 - Integer.numberOfLeadingZeros(SLAB_SIZE - position);
+
+                        pushFree(tailShift, addressOf(currentSlab, position));
+                        position += 1 << tailShift;
+                    }
+                }
+
+                currentSlab = newSlab(SLAB_SIZE);
+                current = slabs.get(currentSlab - 1);
+                position = 0;
+            }
+
+            long address = addressOf(currentSlab, position);
+            position += chunkSize;
+
+            return address;
+        }
+
+        void free(long address, int length) {
+            int shift = shiftOf(length);
+
+            usedBytes -= 1 << shift;
+            pushFree(shift, address);
+        }
+
+        ByteBuffer slab(long address) {
+            return slabs.get((int) (address >>> 32) - 1);
+        }
+
+        int offset(long address) {
+            return (int) address;
+        }
+
+        long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        long getUsedBytes() {
+            return usedBytes;
+        }
+
+        private int newSlab(int size) {
+            slabs.add(ByteBuffer.allocateDirect(size));
+            allocatedBytes += size;
+
+            return slabs.size();
+        }
+
+        private void pushFree(int shift, long address) {
+            long[] chunks = freeChunks[shift];
+
+            if (chunks == null) {
+                chunks = new long[16];
+            } else if (freeCounts[shift] == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length << 1);
+            }
+
+            freeChunks[shift] = chunks;
+            chunks[freeCounts[shift]++] = address;
+        }
+
+        private static long addressOf(int slab, int offset) {
+            return ((long) slab << 32) | offset;
+        }
+
+        private static int shiftOf(int length) {
+            return Math.max(MIN_CHUNK_SHIFT, 32 - Integer.numberOfLeadingZeros(length - 1));
+        }
+    }
+}
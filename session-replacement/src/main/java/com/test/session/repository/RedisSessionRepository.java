@@ -6,6 +6,7 @@ import static redis.clients.util.SafeEncoder.encode;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -13,15 +14,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.test.session.TaskExecutorProcess;
 import com.test.session.api.OSGiDependencyService;
 import com.test.session.api.RedisConfigurationService;
 import com.test.session.api.RedisExpirationStrategy;
@@ -29,7 +36,9 @@ import com.test.session.api.SerializerDeserializerService;
 import com.test.session.api.SessionConfigurationService;
 import com.test.session.api.SessionRepository;
 import com.test.session.connection.api.RedisConnector;
-import com.test.session.connection.api.RedisConnector.TransactionRunner;
+import com.test.session.connection.api.RedisConnector.PipelineRunner;
+import com.test.session.connection.api.RedisConnector.ResponseFacade;
+import com.test.session.connection.api.RedisScript;
 import com.test.session.models.RedisConstants;
 import com.test.session.models.SessionConstants;
 import com.test.session.models.SessionData;
@@ -48,9 +57,47 @@ public class RedisSessionRepository implements SessionRepository {
     private static final int CREATION_TIME_INDEX = 2;
     private static final int INVALID_SESSION_INDEX = 3;
     private static final int OWNER_NODE_INDEX = 4;
+    private static final int VERSION_INDEX = 5;
 
-    @Reference
-    private SerializerDeserializerService serializer;
+    /**
+     * Retrieves meta attributes of the session and, if session is valid and
+     * not expired, updates its last accessed time, owner and expiry in the same
+     * round trip. Returns meta attributes as they were before the update,
+     * followed by the session version.
+     * <p>
+     * KEYS[1] is the session key, optional KEYS[2] is the expiry index (sorted
+     * set). ARGV[1] is the new last accessed time encoded as in repository,
+     * ARGV[2] is the same instant as decimal string, ARGV[3] is the owner node
+     * (empty if not sticky), ARGV[4] is the persistence safety margin in
+     * seconds and ARGV[5] is the member of expiry index.
+     */
+    private static final RedisScript FETCH_AND_TOUCH_SCRIPT = new RedisScript(
+            "local meta = redis.call('HMGET', KEYS[1], '#:lastAccessed', '#:maxInactiveInterval', '#:creationTime', '#:invalidSession', '#:owner', '#:version')\n"
+            + "if not meta[1] or not meta[2] or meta[4] then\n"
+            + "  return meta\n"
+            + "end\n"
+            + "local lastAccessed = struct.unpack('>i8', meta[1])\n"
+            + "local maxInactive = struct.unpack('>i4', meta[2])\n"
+            + "local now = tonumber(ARGV[2])\n"
+            + "if maxInactive > 0 and lastAccessed + maxInactive * 1000 < now then\n"
+            + "  return meta\n"
+            + "end\n"
+            + "redis.call('HSET', KEYS[1], '#:lastAccessed', ARGV[1])\n"
+            + "if ARGV[3] ~= '' then\n"
+            + "  redis.call('HSET', KEYS[1], '#:owner', ARGV[3])\n"
+            + "end\n"
+            + "if maxInactive > 0 then\n"
+            + "  redis.call('EXPIRE', KEYS[1], maxInactive + tonumber(ARGV[4]))\n"
+            + "  if KEYS[2] then\n"
+            + "    redis.call('ZADD', KEYS[2], now + maxInactive * 1000, ARGV[5])\n"
+            + "  end\n"
+            + "else\n"
+            + "  redis.call('PERSIST', KEYS[1])\n"
+            + "  if KEYS[2] then\n"
+            + "    redis.call('ZADD', KEYS[2], '1.7976931348623157e308', ARGV[5])\n"
+            + "  end\n"
+            + "end\n"
+            + "return meta\n");
 
     @Reference
     private SessionConfigurationService sessionConfiguration;
@@ -63,6 +110,12 @@ public class RedisSessionRepository implements SessionRepository {
 
     private RedisConnector redis;
 
+    private volatile SessionNearCache nearCache;
+
+    // Number of attribute writes and bytes skipped by delta commits
+    private final AtomicLong skippedWrites = new AtomicLong();
+    private final AtomicLong skippedBytes = new AtomicLong();
+
     private Map<String, RedisExpirationStrategy> redisExpirationStrategies = new HashMap<>();
 
     protected final void bindRedisExpirationStrategy(final RedisExpirationStrategy service, final Map<Object, Object> props) {
@@ -78,6 +131,17 @@ public class RedisSessionRepository implements SessionRepository {
         redis = dependencyService.getRedisConnector();
     }
 
+    @Deactivate
+    protected void close(Map<String, ?> properties) {
+        SessionNearCache cache = nearCache;
+        nearCache = null;
+
+        if (cache != null) {
+            cache.close(redis);
+            LOGGER.info("Closed near cache {}", cache);
+        }
+    }
+
     @Override
     public CommitTransaction startCommit(SessionData session) {
         return new RedisSessionTransaction(session);
@@ -85,18 +149,34 @@ public class RedisSessionRepository implements SessionRepository {
 
     @Override
     public void remove(SessionData session) {
-        redis.del(sessionKey(session.getId()));
+        invalidateNearCache(session.getId());
+        CompletableFuture<Long> deleted = redis.delAsync(sessionKey(session.getId()));
         getExpiryManager().sessionDeleted(session);
+        RedisConnector.await(deleted);
     }
 
     @Override
     public Object getSessionAttribute(SessionData session, String attribute) {
+        SessionNearCache cache = getNearCache();
+        SessionNearCache.Entry entry = cache == null ? null : cache.get(session.getId());
+
+        if (entry != null && entry.hasAttribute(attribute)) {
+            return entry.getAttribute(attribute, bytes -> getSerializer().deserialize(bytes, attributeHash(session, attribute)));
+        }
+
         List<byte[]> values = redis.hmget(sessionKey(session), encode(attribute));
-        return serializer.deserialize(values.get(0));
+        Object value = getSerializer().deserialize(values.get(0), attributeHash(session, attribute));
+
+        if (entry != null) {
+            entry.putAttribute(attribute, value, values.get(0));
+        }
+
+        return value;
     }
 
     @Override
     public boolean prepareRemove(SessionData session) {
+        invalidateNearCache(session.getId());
         Long result = redis.hsetnx(sessionKey(session.getId()), RedisConstants.INVALID_SESSION, RedisConstants.BYTES_TRUE);
         return result.intValue() == 1;
     }
@@ -121,8 +201,26 @@ public class RedisSessionRepository implements SessionRepository {
             attributes.put(RedisConstants.OWNER_NODE, encode(sessionConfiguration.getNode()));
         }
 
-        redis.hmset(sessionKey(sessionData.getId()), attributes);
-        getExpiryManager().sessionTouched(sessionData);
+        byte[] key = sessionKey(sessionData.getId());
+        RedisExpirationStrategy expiryManager = getExpiryManager();
+
+        redis.pipeline(key, pipeline -> {
+            pipeline.hmset(key, attributes);
+            expiryManager.sessionTouched(sessionData, pipeline);
+            return () -> null;
+        });
+
+        SessionNearCache cache = getNearCache();
+
+        if (cache != null) {
+            SessionNearCache.Entry entry = cache.get(sessionData.getId());
+
+            if (entry != null) {
+                entry.update(sessionData, entry.getVersion());
+            } else if (sessionData.isNew()) {
+                cache.put(sessionData, sessionConfiguration.getNode(), 0);
+            }
+        }
     }
 
     @Override
@@ -132,12 +230,41 @@ public class RedisSessionRepository implements SessionRepository {
 
     @Override
     public void setSessionAttribute(SessionData session, String name, Object value) {
-        redis.hset(sessionKey(session), encode(name), serializer.serialize(value));
+        byte[] serialized = getSerializer().serialize(value);
+        SessionNearCache cache = getNearCache();
+
+        if (cache == null) {
+            redis.hset(sessionKey(session), encode(name), serialized);
+            return;
+        }
+
+        // Version must change so other nodes don't use their cached copy
+        byte[] key = sessionKey(session);
+        Map<byte[], byte[]> hash = Collections.singletonMap(encode(name), serialized);
+        Long version = redis.<Long>transaction(key, transaction -> {
+            transaction.hmset(key, hash);
+            return transaction.hincrBy(key, RedisConstants.VERSION, 1);
+        }).get();
+
+        updateNearCache(cache, session, version, entry -> entry.putAttribute(name, value, serialized));
     }
 
     @Override
     public void removeSessionAttribute(SessionData session, String name) {
-        redis.hdel(sessionKey(session), encode(name));
+        SessionNearCache cache = getNearCache();
+
+        if (cache == null) {
+            redis.hdel(sessionKey(session), encode(name));
+            return;
+        }
+
+        byte[] key = sessionKey(session);
+        Long version = redis.<Long>transaction(key, transaction -> {
+            transaction.hdel(key, encode(name));
+            return transaction.hincrBy(key, RedisConstants.VERSION, 1);
+        }).get();
+
+        updateNearCache(cache, session, version, entry -> entry.putAttribute(name, null, null));
     }
 
     @Override
@@ -151,21 +278,328 @@ public class RedisSessionRepository implements SessionRepository {
         String newId = sessionData.getId();
         String oldId = sessionData.getOldSessionId();
         
-        redis.rename(sessionKey(oldId), sessionKey(newId));
-        redis.publish(getRedirectionChannel(), encode(oldId + ':' + newId));
+        invalidateNearCache(oldId);
+        // Other nodes act on redirection message, so it must follow the rename
+        redis.pinned(() -> {
+            redis.rename(sessionKey(oldId), sessionKey(newId));
+            redis.publish(getRedirectionChannel(), encode(oldId + ':' + newId));
 
-        getExpiryManager().sessionIdChange(sessionData);
+            getExpiryManager().sessionIdChange(sessionData);
+            return null;
+        });
     }
 
     @Override
     public SessionData getSessionData(String id) {
+        SessionNearCache cache = getNearCache();
+
+        if (cache != null) {
+            SessionData cached = getCachedSessionData(cache, id);
+
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         byte[] key = sessionKey(id);
 
-        // If sticky session, retrieve last owner also
+        // If sticky session, retrieve last owner and version also
         List<byte[]> values = sessionConfiguration.isSticky()
-                ? redis.hmget(key, RedisConstants.LAST_ACCESSED, RedisConstants.MAX_INACTIVE_INTERVAL, RedisConstants.CREATION_TIME, RedisConstants.INVALID_SESSION, RedisConstants.OWNER_NODE)
+                ? redis.hmget(key, RedisConstants.LAST_ACCESSED, RedisConstants.MAX_INACTIVE_INTERVAL, RedisConstants.CREATION_TIME, RedisConstants.INVALID_SESSION, RedisConstants.OWNER_NODE, RedisConstants.VERSION)
                 : redis.hmget(key, RedisConstants.LAST_ACCESSED, RedisConstants.MAX_INACTIVE_INTERVAL, RedisConstants.CREATION_TIME, RedisConstants.INVALID_SESSION);
 
+        SessionData sessionData = sessionDataFrom(id, values);
+        putInNearCache(cache, sessionData, values, System.currentTimeMillis());
+
+        return sessionData;
+    }
+
+    /**
+     * Retrieves meta attributes of all sessions without waiting for each
+     * reply, so the lookups are pipelined when connector supports it. Near
+     * cache is bypassed as sessions are usually looked up in batch when they
+     * expire.
+     */
+    @Override
+    public List<SessionData> getSessionData(Collection<String> ids) {
+        Map<String, CompletableFuture<List<byte[]>>> replies = new HashMap<>();
+
+        for (String id : ids) {
+            replies.computeIfAbsent(id, key -> sessionConfiguration.isSticky()
+                    ? redis.hmgetAsync(sessionKey(key), RedisConstants.LAST_ACCESSED, RedisConstants.MAX_INACTIVE_INTERVAL, RedisConstants.CREATION_TIME, RedisConstants.INVALID_SESSION, RedisConstants.OWNER_NODE, RedisConstants.VERSION)
+                    : redis.hmgetAsync(sessionKey(key), RedisConstants.LAST_ACCESSED, RedisConstants.MAX_INACTIVE_INTERVAL, RedisConstants.CREATION_TIME, RedisConstants.INVALID_SESSION));
+        }
+
+        List<SessionData> sessions = new ArrayList<>(replies.size());
+
+        for (Map.Entry<String, CompletableFuture<List<byte[]>>> reply : replies.entrySet()) {
+            SessionData sessionData = sessionDataFrom(reply.getKey(), RedisConnector.await(reply.getValue()));
+
+            if (sessionData != null) {
+                sessions.add(sessionData);
+            }
+        }
+
+        return sessions;
+    }
+
+    /**
+     * Retrieves session meta attributes and touches the session using single
+     * server side script (EVALSHA). In cluster mode, the expiry index may be
+     * located in different slot than session key, so it is updated
+     * separately by expiration strategy.
+     */
+    @Override
+    public SessionData fetchAndTouch(String id, long lastAccessedTime) {
+        SessionNearCache cache = getNearCache();
+
+        if (cache != null) {
+            // Session from near cache is stored in repository on commit
+            SessionData cached = getCachedSessionData(cache, id);
+
+            if (cached != null) {
+                if (!cached.isExpired(lastAccessedTime)) {
+                    cached.setNew(false);
+                    cached.setLastAccessedTime(lastAccessedTime);
+                }
+
+                return cached;
+            }
+        }
+
+        if (!redisConfigurationService.isFetchAndTouch()) {
+            return SessionRepository.super.fetchAndTouch(id, lastAccessedTime);
+        }
+
+        RedisExpirationStrategy expiryManager = getExpiryManager();
+        byte[] indexKey = RedisConstants.REDIS_MODE_CLUSTER.equals(redisConfigurationService.getClusterMode())
+                ? null
+                : expiryManager.getExpiryIndexKey(id);
+        byte[] indexMember = indexKey == null ? RedisConstants.EMPTY_STRING : expiryManager.getExpiryIndexMember(id);
+        List<byte[]> keys = indexKey == null ? Collections.singletonList(sessionKey(id)) : Arrays.asList(sessionKey(id), indexKey);
+        byte[] owner = sessionConfiguration.isSticky() ? encode(sessionConfiguration.getNode()) : RedisConstants.EMPTY_STRING;
+
+        @SuppressWarnings("unchecked")
+        List<byte[]> values = (List<byte[]>) redis.eval(FETCH_AND_TOUCH_SCRIPT, keys,
+                Arrays.asList(longToBytes(lastAccessedTime), encode(String.valueOf(lastAccessedTime)), owner,
+                        encode(String.valueOf(RedisConstants.SESSION_PERSISTENCE_SAFETY_MARGIN)), indexMember));
+
+        SessionData sessionData = sessionDataFrom(id, values);
+
+        if (sessionData != null && !sessionData.isExpired(lastAccessedTime)) {
+            sessionData.setNew(false);
+            sessionData.setLastAccessedTime(lastAccessedTime);
+            expiryManager.sessionFetchedAndTouched(sessionData, indexKey != null);
+        }
+
+        putInNearCache(cache, sessionData, values, lastAccessedTime);
+
+        return sessionData;
+    }
+
+    /**
+     * Returns number of attribute writes that were skipped by delta commits
+     * since the repository was started.
+     *
+     * @return number of skipped attribute writes
+     */
+    public long getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    /**
+     * Returns number of serialized attribute bytes that were not sent to redis
+     * due to delta commits since the repository was started.
+     *
+     * @return number of skipped bytes
+     */
+    public long getSkippedBytes() {
+        return skippedBytes.get();
+    }
+
+    /**
+     * Returns number of sessions served from near cache, including those
+     * whose version was checked in redis first.
+     *
+     * @return number of near cache hits
+     */
+    public long getNearCacheHits() {
+        SessionNearCache cache = nearCache;
+
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /**
+     * Returns number of stale near cache entries that were still valid after
+     * checking their version in redis.
+     *
+     * @return number of validated near cache hits
+     */
+    public long getNearCacheValidatedHits() {
+        SessionNearCache cache = nearCache;
+
+        return cache == null ? 0 : cache.getValidatedHits();
+    }
+
+    /**
+     * Returns number of sessions that were loaded from redis and added to near
+     * cache.
+     *
+     * @return number of near cache misses
+     */
+    public long getNearCacheMisses() {
+        SessionNearCache cache = nearCache;
+
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    /**
+     * Returns number of sessions removed from near cache because they changed
+     * in redis, moved to another node or expired.
+     *
+     * @return number of near cache invalidations
+     */
+    public long getNearCacheInvalidations() {
+        SessionNearCache cache = nearCache;
+
+        return cache == null ? 0 : cache.getInvalidations();
+    }
+
+    /**
+     * When delta commits are enabled, returns consumer that records content
+     * hash of the attribute as it is loaded from redis.
+     */
+    private LongConsumer attributeHash(SessionData session, String attribute) {
+        return sessionConfiguration.isDeltaCommit() ? hash -> session.setAttributeHash(attribute, hash) : null;
+    }
+
+    /**
+     * Returns session from near cache. If cache entry is stale, session
+     * version and owner are checked in repository, and if any of them has
+     * changed, the entry is removed from cache. Expired session is removed
+     * from cache, but still returned so it can be invalidated.
+     */
+    private SessionData getCachedSessionData(SessionNearCache cache, String id) {
+        SessionNearCache.Entry entry = cache.get(id);
+
+        if (entry == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (!cache.isStale(entry, now)) {
+            cache.hit(false);
+            return checkExpired(cache, entry.toSessionData(), now);
+        }
+
+        List<byte[]> values = redis.hmget(sessionKey(id), RedisConstants.VERSION, RedisConstants.OWNER_NODE, RedisConstants.INVALID_SESSION);
+
+        if (values.get(2) == null && Arrays.equals(values.get(1), encode(sessionConfiguration.getNode()))
+                && versionFrom(values.get(0)) == entry.getVersion()) {
+            entry.validated(now);
+            cache.hit(true);
+            return checkExpired(cache, entry.toSessionData(), now);
+        }
+
+        cache.invalidate(id);
+        return null;
+    }
+
+    private static SessionData checkExpired(SessionNearCache cache, SessionData sessionData, long now) {
+        if (sessionData.isExpired(now)) {
+            cache.invalidate(sessionData.getId());
+        }
+
+        return sessionData;
+    }
+
+    /**
+     * Adds session loaded from repository to near cache, unless it has
+     * already expired.
+     */
+    private void putInNearCache(SessionNearCache cache, SessionData sessionData, List<byte[]> values, long now) {
+        if (cache == null || sessionData == null || values.size() <= VERSION_INDEX || sessionData.isExpired(now)) {
+            return;
+        }
+
+        cache.miss();
+        cache.put(sessionData, sessionConfiguration.getNode(), versionFrom(values.get(VERSION_INDEX)));
+    }
+
+    /**
+     * Updates near cache entry after session was modified in repository. If
+     * the new version doesn't follow the cached one, the session was modified
+     * by someone else and it is removed from cache.
+     */
+    private void updateNearCache(SessionNearCache cache, SessionData session, long version, Consumer<SessionNearCache.Entry> update) {
+        SessionNearCache.Entry entry = cache.get(session.getId());
+
+        if (entry == null) {
+            return;
+        }
+
+        if (entry.getVersion() + 1 == version) {
+            update.accept(entry);
+            entry.update(session, version);
+        } else {
+            cache.invalidate(session.getId());
+        }
+    }
+
+    private void invalidateNearCache(String id) {
+        SessionNearCache cache = nearCache;
+
+        if (cache != null) {
+            cache.invalidate(id);
+        }
+    }
+
+    /**
+     * Returns near cache if it is enabled. Near cache is used only with sticky
+     * sessions. Cache is created on first use, and it starts listening to
+     * redirection channel.
+     */
+    private SessionNearCache getNearCache() {
+        if (!redisConfigurationService.isNearCache() || !sessionConfiguration.isSticky()) {
+            return null;
+        }
+
+        SessionNearCache cache = nearCache;
+
+        if (cache == null) {
+            synchronized (this) {
+                if (nearCache == null) {
+                    nearCache = startNearCache();
+                }
+
+                cache = nearCache;
+            }
+        }
+
+        return cache;
+    }
+
+    private SessionNearCache startNearCache() {
+        SessionNearCache cache = new SessionNearCache(redisConfigurationService.getNearCacheSize(),
+                redisConfigurationService.getNearCacheStaleness(), getRedirectionChannel());
+
+        Runnable listener = () -> {
+            try {
+                cache.listen(redis);
+            } catch (Exception e) { // NOSONAR
+                LOGGER.error("Stopped listening to session redirection events.", e);
+            }
+        };
+
+        TaskExecutorProcess.getInstance(sessionConfiguration).submit(listener, false, 0, 0, null);
+        LOGGER.info("Started near cache with size {} and staleness {} ms", redisConfigurationService.getNearCacheSize(),
+                redisConfigurationService.getNearCacheStaleness());
+
+        return cache;
+    }
+
+    private SessionData sessionDataFrom(String id, List<byte[]> values) {
         if (!checkConsistent(id, values)) {
             return null;
         }
@@ -187,6 +621,10 @@ public class RedisSessionRepository implements SessionRepository {
         return new SessionData(id, lastAccessed, intFrom(values.get(1)), creationTime, previousOwner);
     }
 
+    private SerializerDeserializerService getSerializer() {
+        return dependencyService.getSerializer();
+    }
+
     private RedisExpirationStrategy getExpiryManager() {
         return Optional.ofNullable(redisExpirationStrategies.get(redisConfigurationService.getStrategy()))
                 .orElseThrow(() -> new IllegalArgumentException("No Redis Expiration Policy with name " + redisConfigurationService.getStrategy() + " is configured."));
@@ -239,11 +677,20 @@ public class RedisSessionRepository implements SessionRepository {
         return ByteBuffer.wrap(b).getLong();
     }
 
+    private static long versionFrom(byte[] b) {
+        // Version is stored as decimal string by HINCRBY
+        return b == null ? 0 : Long.parseLong(encode(b));
+    }
+
     private static void addLong(Map<byte[], byte[]> attributes, byte[] attr, long value) {
+        attributes.put(attr, longToBytes(value));
+    }
+
+    private static byte[] longToBytes(long value) {
         ByteBuffer b = ByteBuffer.allocate(Long.BYTES);
         b.putLong(value);
 
-        attributes.put(attr, b.array());
+        return b.array();
     }
 
     private static void addInt(Map<byte[], byte[]> attributes, byte[] attr, int value) {
@@ -254,19 +701,15 @@ public class RedisSessionRepository implements SessionRepository {
     }
 
     private byte[] sessionKey(String sessionId) {
-        return encode(new StringBuffer()
-                        .append(getKeyPrefix())
-                        .append(sessionId)
-                        .append('}')
-                        .toString());
+        return keys().sessionKey(sessionId);
     }
 
-    private String getKeyPrefix() {
-        return RedisConstants.DEFAULT_SESSION_PREFIX + ":" + sessionConfiguration.getNamespace() + ":" + "{";
+    private byte[] getRedirectionChannel() {
+        return keys().getRedirectionChannel();
     }
 
-    private byte[] getRedirectionChannel() {
-        return encode(RedisConstants.DEFAULT_SESSION_PREFIX + ":" + sessionConfiguration.getNamespace() + ":" + "redirection");
+    private SessionKeyspace keys() {
+        return SessionKeyspace.of(sessionConfiguration, redisConfigurationService);
     }
 
     /**
@@ -276,13 +719,20 @@ public class RedisSessionRepository implements SessionRepository {
      * using HDEL command. It uses underlying {@link RedisConnector} support for
      * transactions on the session key (redis MULTI command), and executes those
      * those commands in atomic way. The meta-attribute for transactions are also
-     * updated.
+     * updated. The transaction and expiry management commands are sent to redis
+     * using single pipeline.
      */
     private final class RedisSessionTransaction implements CommitTransaction {
         private final byte[] key;
         private final SessionData session;
         private final Map<byte[], byte[]> attributes = new HashMap<>();
         private final List<byte[]> toRemove = new ArrayList<>();
+        private final List<Consumer<SessionNearCache.Entry>> cacheUpdates = new ArrayList<>();
+        // Content hashes of written attributes, recorded in session once commit succeeds
+        private final Map<String, Long> writtenHashes = new HashMap<>();
+        private final List<String> removedHashes = new ArrayList<>();
+        private int skipped;
+        private long contentHash;
 
         private RedisSessionTransaction(SessionData session) {
             key = sessionKey(session.getId());
@@ -292,12 +742,62 @@ public class RedisSessionRepository implements SessionRepository {
         @Override
         public void changeAttribute(String attribute, Object value) {
             if (value == null) {
-                toRemove.add(encode(attribute));
+                remove(attribute);
             } else {
-                attributes.put(encode(attribute), serializer.serialize(value));
+                boolean deltaCommit = sessionConfiguration.isDeltaCommit();
+                byte[] serialized = getSerializer().serialize(value, deltaCommit ? hash -> contentHash = hash : null);
+
+                if (serialized == null) {
+                    // Attribute that can't be serialized is removed, so an older value is not read back
+                    LOGGER.warn("Attribute {} of session {} can't be serialized, it will be removed from repository.", attribute,
+                            session.getId());
+                    remove(attribute);
+                    return;
+                }
+
+                if (deltaCommit && unchanged(attribute)) {
+                    skipped++;
+                    skippedWrites.incrementAndGet();
+                    skippedBytes.addAndGet(serialized.length);
+                    return;
+                }
+
+                attributes.put(encode(attribute), serialized);
+                cacheUpdates.add(entry -> entry.putAttribute(attribute, value, serialized));
             }
         }
 
+        private void remove(String attribute) {
+            toRemove.add(encode(attribute));
+            writtenHashes.remove(attribute);
+            removedHashes.add(attribute);
+            cacheUpdates.add(entry -> entry.putAttribute(attribute, null, null));
+        }
+
+        @Override
+        public int getSkippedWrites() {
+            return skipped;
+        }
+
+        /**
+         * Compares content hash reported when the attribute was serialized with
+         * the one recorded when attribute was loaded or last committed. If
+         * content has changed, the new hash is kept until commit succeeds, so
+         * attribute is written again if this commit fails.
+         */
+        private boolean unchanged(String attribute) {
+            long hash = contentHash;
+            Long loadedHash = session.getAttributeHash(attribute);
+
+            if (loadedHash != null && loadedHash.longValue() == hash) {
+                return true;
+            }
+
+            removedHashes.remove(attribute);
+            writtenHashes.put(attribute, hash);
+            return false;
+        }
+
         /**
          * During commit, we add meta/attributes. See
          * {@link RedisSessionRepository#getSessionData(String)}. for list of meta
@@ -316,22 +816,41 @@ public class RedisSessionRepository implements SessionRepository {
                 attributes.put(RedisConstants.OWNER_NODE, encode(sessionConfiguration.getNode()));
             }
 
-            redis.transaction(key, getTransactionRunner());
-            getExpiryManager().sessionTouched(session);
+            ResponseFacade<Long> version = redis.pipeline(key, getPipelineRunner(getExpiryManager()));
+            // Fails if transaction failed
+            Long newVersion = version.get();
+
+            if (newVersion != null) {
+                removedHashes.forEach(session::removeAttributeHash);
+                writtenHashes.forEach(session::setAttributeHash);
+            }
+
+            SessionNearCache cache = getNearCache();
+
+            if (cache != null && newVersion == null) {
+                cache.invalidate(session.getId());
+            } else if (cache != null) {
+                updateNearCache(cache, session, newVersion, entry -> cacheUpdates.forEach(update -> update.accept(entry)));
+            }
         }
 
-        private TransactionRunner<String> getTransactionRunner() {
-            return (transaction) -> {
-                if (!toRemove.isEmpty()) {
-                    byte[][] arr = toRemove.toArray(new byte[0][]);
-                    transaction.hdel(key, arr);
-                }
+        private PipelineRunner<Long> getPipelineRunner(RedisExpirationStrategy expiryManager) {
+            return (pipeline) -> {
+                ResponseFacade<Long> version = pipeline.transaction(transaction -> {
+                    if (!toRemove.isEmpty()) {
+                        byte[][] arr = toRemove.toArray(new byte[0][]);
+                        transaction.hdel(key, arr);
+                    }
 
-                if (!attributes.isEmpty()) {
-                    transaction.hmset(key, attributes);
-                }
+                    if (!attributes.isEmpty()) {
+                        transaction.hmset(key, attributes);
+                    }
+
+                    return transaction.hincrBy(key, RedisConstants.VERSION, 1);
+                });
+                expiryManager.sessionTouched(session, pipeline);
 
-                return () -> "OK";
+                return version;
             };
         }
     }
@@ -0,0 +1,535 @@
+package com.test.session.repository;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.test.session.models.SessionData;
+
+/**
+ * Persists changes of in-memory sessions, so they can be recovered after
+ * restart of the node. Each change is appended as a record to a journal file
+ * which is mapped into memory. Journal is periodically compacted by writing a
+ * snapshot of all live sessions, after which older journals are deleted.
+ * <p>
+ * Each record describes absolute values of session meta data and changed
+ * attributes, so replaying a record more than once gives the same result. This
+ * allows taking snapshot while sessions are being modified: the journal is
+ * rotated before snapshot is started, and all records of new journal are
+ * replayed on top of the snapshot during recovery.
+ * <p>
+ * Files in the directory are <code>snapshot.dat</code> and
+ * <code>journal-&lt;generation&gt;.dat</code>. Snapshot contains generation of
+ * the first journal that must be replayed after it. Records are framed as
+ * length, CRC32 of the body and the body. Recovery stops at first record that
+ * is incomplete or damaged.
+ * <p>
+ * Files are mapped in windows of at most {@value #MAX_MAPPED_SIZE} bytes, so
+ * snapshots of any size can be recovered. When a journal reaches that size, it
+ * is continued in the journal of next generation.
+ */
+final class SessionJournal implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionJournal.class);
+
+    private static final int MAGIC = 0x534A524E;
+    private static final int HEADER_SIZE = 12;
+    private static final int FRAME_SIZE = 8;
+    private static final int INITIAL_JOURNAL_SIZE = 16 << 20;
+    private static final int MAX_MAPPED_SIZE = 1 << 30;
+
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".dat";
+
+    private static final byte UPDATE = 1;
+    private static final byte REMOVE = 2;
+
+    /**
+     * Receives sessions and changes read during recovery.
+     */
+    interface Replay {
+        /**
+         * Applies changes to a session.
+         *
+         * @param sessionData
+         *            meta data of the session, or <code>null</code> if only
+         *            attributes were changed
+         */
+        void update(String namespace, String id, SessionData sessionData, Map<String, byte[]> changed, Collection<String> removed);
+
+        void remove(String namespace, String id);
+    }
+
+    private final Path directory;
+    private final int maxMappedSize;
+    private FileChannel channel;
+    private MappedByteBuffer journal;
+    private long generation;
+
+    SessionJournal(Path directory) throws IOException {
+        this(directory, MAX_MAPPED_SIZE);
+    }
+
+    /**
+     * @param maxMappedSize
+     *            maximum size of a journal, and of a window in which files
+     *            are mapped during recovery
+     */
+    SessionJournal(Path directory, int maxMappedSize) throws IOException {
+        this.directory = directory;
+        this.maxMappedSize = maxMappedSize;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Replays snapshot and all journals, and opens new journal for appending.
+     *
+     * @return number of replayed records
+     */
+    synchronized int recover(Replay replay) throws IOException {
+        int records = 0;
+        long firstGeneration = 0;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+
+        if (Files.exists(snapshot)) {
+            try (FileChannel fileChannel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                long snapshotGeneration = readHeader(fileChannel);
+
+                if (snapshotGeneration >= 0) {
+                    firstGeneration = snapshotGeneration;
+                    records += replay(fileChannel, replay);
+                } else {
+                    LOGGER.warn("Ignoring invalid session snapshot {}", snapshot);
+                }
+            }
+        }
+
+        List<Long> generations = journalGenerations();
+
+        for (Long journalGeneration : generations) {
+            if (journalGeneration >= firstGeneration) {
+                try (FileChannel fileChannel = FileChannel.open(journalFile(journalGeneration), StandardOpenOption.READ)) {
+                    if (readHeader(fileChannel) >= 0) {
+                        records += replay(fileChannel, replay);
+                    }
+                }
+            }
+            generation = Math.max(generation, journalGeneration);
+        }
+
+        generation = Math.max(generation, firstGeneration);
+        openJournal(generation + 1);
+
+        return records;
+    }
+
+    synchronized void appendUpdate(String namespace, String id, SessionData sessionData, Map<String, byte[]> changed, Collection<String> removed)
+            throws IOException {
+        append(encodeUpdate(namespace, id, sessionData, changed, removed));
+    }
+
+    synchronized void appendRemove(String namespace, String id) throws IOException {
+        byte[] namespaceBytes = namespace.getBytes(UTF_8);
+        byte[] idBytes = id.getBytes(UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 2 + namespaceBytes.length + 2 + idBytes.length);
+
+        body.put(REMOVE);
+        putBytes(body, namespaceBytes);
+        putBytes(body, idBytes);
+        body.flip();
+
+        append(body);
+    }
+
+    /**
+     * Rotates journal and starts writing snapshot. All changes made after this
+     * call will be replayed on top of the snapshot.
+     */
+    synchronized Snapshot startSnapshot() throws IOException {
+        openJournal(generation + 1);
+
+        return new Snapshot(generation);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.force();
+            journal = null;
+        }
+
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void append(ByteBuffer body) throws IOException {
+        if (journal == null) {
+            throw new IOException("Session journal is closed.");
+        }
+
+        int length = body.remaining();
+
+        if (journal.remaining() < FRAME_SIZE + length + 4) {
+            grow(FRAME_SIZE + length + 4);
+        }
+
+        int position = journal.position();
+        CRC32 crc = new CRC32();
+
+        crc.update(body.duplicate());
+        journal.position(position + FRAME_SIZE);
+        journal.put(body);
+        journal.putInt(position + 4, (int) crc.getValue());
+        // Length is written last, so incomplete record has zero length
+        journal.putInt(position, length);
+    }
+
+    /**
+     * Makes room for a record. Journal that would exceed its maximum size is
+     * continued in next generation, which recovery replays after it.
+     */
+    private void grow(int required) throws IOException {
+        if ((long) journal.position() + required > maxMappedSize) {
+            if ((long) HEADER_SIZE + required > maxMappedSize) {
+                throw new IOException("Session journal record of " + required + " bytes exceeds maximum journal size.");
+            }
+
+            LOGGER.info("Session journal {} is full, continuing in next journal.", generation);
+            openJournal(generation + 1);
+
+            if (journal.remaining() >= required) {
+                return;
+            }
+        }
+
+        int position = journal.position();
+        long size = journal.capacity();
+
+        while (size - position < required) {
+            size <<= 1;
+        }
+
+        journal.force();
+        journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(size, maxMappedSize));
+        journal.position(position);
+    }
+
+    private void openJournal(long newGeneration) throws IOException {
+        close();
+
+        Path file = journalFile(newGeneration);
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(INITIAL_JOURNAL_SIZE, maxMappedSize));
+        journal.putInt(MAGIC);
+        journal.putLong(newGeneration);
+        generation = newGeneration;
+        LOGGER.debug("Opened session journal {}", file);
+    }
+
+    private Path journalFile(long journalGeneration) {
+        return directory.resolve(JOURNAL_PREFIX + journalGeneration + JOURNAL_SUFFIX);
+    }
+
+    private List<Long> journalGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                try {
+                    generations.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Ignoring unexpected file {} in session journal directory", file);
+                }
+            }
+        }
+
+        Collections.sort(generations);
+
+        return generations;
+    }
+
+    private void deleteJournalsBefore(long journalGeneration) throws IOException {
+        for (Long oldGeneration : journalGenerations()) {
+            if (oldGeneration < journalGeneration) {
+                Files.deleteIfExists(journalFile(oldGeneration));
+            }
+        }
+    }
+
+    /**
+     * Reads header of snapshot or journal file.
+     *
+     * @return generation stored in the header, or <code>-1</code> if file is
+     *         not valid
+     */
+    private static long readHeader(FileChannel fileChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        while (header.hasRemaining() && fileChannel.read(header, header.position()) > 0) {
+            // Read until header is complete or file ends
+        }
+
+        if (header.hasRemaining()) {
+            return -1;
+        }
+
+        header.flip();
+
+        return header.getInt() == MAGIC ? header.getLong() : -1;
+    }
+
+    /**
+     * Replays records that follow the header. File is mapped in windows, each
+     * starting at the first record that didn't fit into previous window.
+     */
+    private int replay(FileChannel fileChannel, Replay replay) throws IOException {
+        int records = 0;
+        long size = fileChannel.size();
+        long position = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+
+        while (size - position >= FRAME_SIZE) {
+            ByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(maxMappedSize, size - position));
+            int length = window.getInt(0);
+
+            if (length <= 0 || length > size - position - FRAME_SIZE || length > Integer.MAX_VALUE - FRAME_SIZE) {
+                break;
+            }
+
+            if (length > window.capacity() - FRAME_SIZE) {
+                // Record is larger than a window
+                window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, FRAME_SIZE + length);
+            }
+
+            while (window.remaining() >= FRAME_SIZE) {
+                int start = window.position();
+                int recordLength = window.getInt(start);
+
+                if (recordLength <= 0 || recordLength > window.remaining() - FRAME_SIZE) {
+                    break;
+                }
+
+                ByteBuffer body = window.duplicate();
+
+                body.limit(start + FRAME_SIZE + recordLength);
+                body.position(start + FRAME_SIZE);
+                body = body.slice();
+                crc.reset();
+                crc.update(body.duplicate());
+
+                if ((int) crc.getValue() != window.getInt(start + 4)) {
+                    LOGGER.warn("Damaged record found in session journal, recovery stopped after {} records", records);
+                    return records;
+                }
+
+                decode(body, replay);
+                records++;
+                window.position(start + FRAME_SIZE + recordLength);
+            }
+
+            position += window.position();
+        }
+
+        return records;
+    }
+
+    private static void decode(ByteBuffer body, Replay replay) {
+        byte type = body.get();
+        String namespace = getString(body);
+        String id = getString(body);
+
+        if (type == REMOVE) {
+            replay.remove(namespace, id);
+            return;
+        }
+
+        SessionData sessionData = null;
+
+        if (body.get() != 0) {
+            long lastAccessed = body.getLong();
+            int maxInactive = body.getInt();
+            long creationTime = body.getLong();
+
+            sessionData = new SessionData(id, lastAccessed, maxInactive, creationTime);
+        }
+
+        int changedCount = body.getInt();
+        Map<String, byte[]> changed = new HashMap<>();
+
+        for (int i = 0; i < changedCount; i++) {
+            String name = getString(body);
+            byte[] value = new byte[body.getInt()];
+
+            body.get(value);
+            changed.put(name, value);
+        }
+
+        int removedCount = body.getInt();
+        List<String> removed = new ArrayList<>(removedCount);
+
+        for (int i = 0; i < removedCount; i++) {
+            removed.add(getString(body));
+        }
+
+        replay.update(namespace, id, sessionData, changed, removed);
+    }
+
+    private static ByteBuffer encodeUpdate(String namespace, String id, SessionData sessionData, Map<String, byte[]> changed,
+            Collection<String> removed) {
+        byte[] namespaceBytes = namespace.getBytes(UTF_8);
+        byte[] idBytes = id.getBytes(UTF_8);
+        List<byte[]> changedNames = new ArrayList<>(changed.size());
+        List<byte[]> removedNames = new ArrayList<>(removed.size());
+        int length = 1 + 2 + namespaceBytes.length + 2 + idBytes.length + 1 + (sessionData == null ? 0 : 20) + 4 + 4;
+
+        for (Map.Entry<String, byte[]> attribute : changed.entrySet()) {
+            byte[] name = attribute.getKey().getBytes(UTF_8);
+
+            changedNames.add(name);
+            length += 2 + name.length + 4 + attribute.getValue().length;
+        }
+
+        for (String name : removed) {
+            byte[] bytes = name.getBytes(UTF_8);
+
+            removedNames.add(bytes);
+            length += 2 + bytes.length;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+
+        body.put(UPDATE);
+        putBytes(body, namespaceBytes);
+        putBytes(body, idBytes);
+
+        if (sessionData == null) {
+            body.put((byte) 0);
+        } else {
+            body.put((byte) 1);
+            body.putLong(sessionData.getLastAccessedTime());
+            body.putInt(sessionData.getMaxInactiveInterval());
+            body.putLong(sessionData.getCreationTime());
+        }
+
+        body.putInt(changed.size());
+
+        int i = 0;
+
+        for (byte[] value : changed.values()) {
+            putBytes(body, changedNames.get(i++));
+            body.putInt(value.length);
+            body.put(value);
+        }
+
+        body.putInt(removedNames.size());
+
+        for (byte[] name : removedNames) {
+            putBytes(body, name);
+        }
+
+        body.flip();
+
+        return body;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+
+        buffer.get(bytes);
+
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Snapshot being written. The snapshot replaces the previous one only when
+     * {@link #commit()} is called.
+     */
+    final class Snapshot implements Closeable {
+        private final long firstGeneration;
+        private final Path file = directory.resolve(SNAPSHOT_TEMP_FILE);
+        private final DataOutputStream out;
+        private final CRC32 crc = new CRC32();
+        private int sessions;
+        private boolean committed;
+
+        private Snapshot(long firstGeneration) throws IOException {
+            this.firstGeneration = firstGeneration;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeLong(firstGeneration);
+        }
+
+        /**
+         * Writes session with all its attributes.
+         */
+        void write(String namespace, SessionData sessionData, Map<String, byte[]> attributes) throws IOException {
+            ByteBuffer body = encodeUpdate(namespace, sessionData.getId(), sessionData, attributes, Collections.emptyList());
+
+            crc.reset();
+            crc.update(body.array(), 0, body.limit());
+            out.writeInt(body.limit());
+            out.writeInt((int) crc.getValue());
+            out.write(body.array(), 0, body.limit());
+            sessions++;
+        }
+
+        /**
+         * Replaces previous snapshot with this one, and deletes journals that
+         * are no longer needed.
+         */
+        void commit() throws IOException {
+            out.flush();
+            out.close();
+
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                fileChannel.force(true);
+            }
+
+            Files.move(file, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            deleteJournalsBefore(firstGeneration);
+            LOGGER.debug("Written snapshot of {} sessions, replay starts with journal {}", sessions, firstGeneration);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.test.session.repository;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.test.session.api.RedisConfigurationService;
+import com.test.session.api.SessionConfigurationService;
+import com.test.session.models.RedisConstants;
+
+/**
+ * Redis keys of a session namespace, shared by {@link RedisSessionRepository}
+ * and expiration strategies. Key prefixes and suffixes are encoded once for a
+ * namespace and node, and each key is written directly into a byte array of
+ * its exact size, without intermediate strings. Instances are cached per
+ * namespace and node, as several applications with different namespaces may
+ * share the classes. The instance is immutable; when configuration of a
+ * namespace changes, a new one is built and replaces the cached one.
+ */
+public final class SessionKeyspace {
+    private static final long ONE_MINUTE_MILLIS = 60_000L;
+    private static final byte[] NO_BYTES = new byte[0];
+    private static final byte[] CLOSING_BRACE = { '}' };
+    private static final byte[] EXPIRE_PREFIX = (RedisConstants.DEFAULT_SESSION_EXPIRE_PREFIX + ":").getBytes(UTF_8);
+    // Keyspaces by namespace and node
+    private static final Map<String, Map<String, SessionKeyspace>> CACHE = new ConcurrentHashMap<>();
+
+    private final boolean sticky;
+    private final int buckets;
+
+    private final byte[] sessionPrefix;
+    private final byte[] expirePrefix;
+    private final byte[] ownerExpireSuffix;
+    private final byte[] expirationsPrefix;
+    private final byte[] forcedExpirationsPrefix;
+    private final byte[] redirectionChannel;
+    private final byte[] allSessionsKey;
+    private final byte[] allSessionsShardPrefix;
+    private final byte[] shardCountsKey;
+    private final byte[] memberSuffix;
+
+    private SessionKeyspace(String namespace, String node, boolean sticky, int buckets) {
+        this.sticky = sticky;
+        this.buckets = buckets;
+
+        String keyPrefix = RedisConstants.DEFAULT_SESSION_PREFIX + ":" + namespace + ":";
+        String keyExpirePrefix = sticky
+                ? RedisConstants.DEFAULT_SESSION_EXPIRE_PREFIX + ":" + node + ":" + node + ":"
+                : RedisConstants.DEFAULT_SESSION_EXPIRE_PREFIX + ":" + namespace + ":";
+
+        this.sessionPrefix = (keyPrefix + "{").getBytes(UTF_8);
+        this.expirePrefix = (keyExpirePrefix + "{").getBytes(UTF_8);
+        this.ownerExpireSuffix = (":" + node + ":{").getBytes(UTF_8);
+        this.expirationsPrefix = (keyPrefix + "expirations:").getBytes(UTF_8);
+        this.forcedExpirationsPrefix = (keyPrefix + "forced-expirations:").getBytes(UTF_8);
+        this.redirectionChannel = (keyPrefix + "redirection").getBytes(UTF_8);
+        this.allSessionsKey = (RedisConstants.ALLSESSIONS_KEY + namespace).getBytes(UTF_8);
+        this.allSessionsShardPrefix = (RedisConstants.ALLSESSIONS_KEY + "{" + namespace + ":").getBytes(UTF_8);
+        this.shardCountsKey = (RedisConstants.ALLSESSIONS_KEY + "{" + namespace + "}:shard-counts").getBytes(UTF_8);
+        this.memberSuffix = sticky ? (":" + node).getBytes(UTF_8) : NO_BYTES;
+    }
+
+    /**
+     * Returns keyspace for current configuration. The keyspace of namespace
+     * and node is rebuilt only when stickiness or number of expiration
+     * buckets change.
+     *
+     * @param sessionConfiguration
+     *            the session configuration
+     * @param redisConfiguration
+     *            the redis configuration, or <code>null</code> if not yet
+     *            available
+     * @return keyspace of the configured namespace
+     */
+    public static SessionKeyspace of(SessionConfigurationService sessionConfiguration, RedisConfigurationService redisConfiguration) {
+        String namespace = sessionConfiguration.getNamespace();
+        String node = sessionConfiguration.getNode();
+        boolean sticky = sessionConfiguration.isSticky();
+        int buckets = redisConfiguration == null ? RedisConstants.DEFAULT_EXPIRATION_BUCKETS : redisConfiguration.getExpirationBuckets();
+        Map<String, SessionKeyspace> nodes = CACHE.computeIfAbsent(String.valueOf(namespace), key -> new ConcurrentHashMap<>());
+        SessionKeyspace current = nodes.get(String.valueOf(node));
+
+        if (current == null || current.sticky != sticky || current.buckets != buckets) {
+            current = new SessionKeyspace(namespace, node, sticky, buckets);
+            nodes.put(String.valueOf(node), current);
+        }
+
+        return current;
+    }
+
+    /**
+     * Returns start of the minute containing the instant. Instants are in
+     * epoch milliseconds, and minutes are aligned on UTC.
+     */
+    public static long roundDownMinute(long timeInMs) {
+        return timeInMs - Math.floorMod(timeInMs, ONE_MINUTE_MILLIS);
+    }
+
+    /**
+     * Returns start of the minute following the minute containing the
+     * instant.
+     */
+    public static long roundUpToNextMinute(long timeInMs) {
+        return roundDownMinute(timeInMs) + ONE_MINUTE_MILLIS;
+    }
+
+    /**
+     * Returns expiration bucket, or sorted set shard, of the session.
+     */
+    public int bucket(String id) {
+        return Math.floorMod(id.hashCode(), buckets);
+    }
+
+    /**
+     * Returns key of session data: <code>prefix:namespace:{id}</code>.
+     */
+    public byte[] sessionKey(String id) {
+        return wrap(sessionPrefix, id, CLOSING_BRACE);
+    }
+
+    /**
+     * Returns key of session data for session id given as bytes.
+     */
+    public byte[] sessionKey(byte[] id) {
+        return wrap(sessionPrefix, id, CLOSING_BRACE);
+    }
+
+    /**
+     * Returns session id of the session data key, or <code>null</code> if the
+     * key is not a session key of this keyspace.
+     */
+    public String sessionId(byte[] sessionKey) {
+        int end = sessionKey.length - CLOSING_BRACE.length;
+
+        if (end < sessionPrefix.length || sessionKey[end] != CLOSING_BRACE[0]) {
+            return null;
+        }
+        for (int i = 0; i < sessionPrefix.length; i++) {
+            if (sessionKey[i] != sessionPrefix[i]) {
+                return null;
+            }
+        }
+
+        return new String(sessionKey, sessionPrefix.length, end - sessionPrefix.length, UTF_8);
+    }
+
+    /**
+     * Returns key whose expiration notifies session expiry.
+     */
+    public byte[] sessionExpireKey(String id) {
+        return wrap(expirePrefix, id, CLOSING_BRACE);
+    }
+
+    /**
+     * Returns expire key of sticky session owned by another node:
+     * <code>expire-prefix:owner:node:{id}</code>.
+     */
+    public byte[] sessionExpireKey(String owner, String id) {
+        return wrap(wrap(EXPIRE_PREFIX, owner, ownerExpireSuffix), id, CLOSING_BRACE);
+    }
+
+    /**
+     * Returns part of expire keys preceding hash tag with session id.
+     */
+    public byte[] getExpireKeyPrefix() {
+        return Arrays.copyOf(expirePrefix, expirePrefix.length - 1);
+    }
+
+    public byte[] expirationsKey(long instant, int bucket) {
+        return bucketKey(expirationsPrefix, instant, bucket);
+    }
+
+    public byte[] forcedExpirationsKey(long instant, int bucket) {
+        return bucketKey(forcedExpirationsPrefix, instant, bucket);
+    }
+
+    /**
+     * Returns channel on which session id changes are published. The array
+     * is shared and must not be modified.
+     */
+    public byte[] getRedirectionChannel() {
+        return redirectionChannel;
+    }
+
+    /**
+     * Returns key of sorted set shard. With single shard, the key is the
+     * legacy all sessions key of the namespace. Otherwise namespace and shard
+     * index form hash tag of the key, so shards are spread over slots.
+     */
+    public byte[] allSessionsKey(int shard) {
+        return allSessionsKey(shard, buckets);
+    }
+
+    /**
+     * Returns key of sorted set shard when sessions are split into given
+     * number of shards. Used to find sessions indexed before number of shards
+     * was changed.
+     */
+    public byte[] allSessionsKey(int shard, int shards) {
+        if (shards == 1) {
+            return allSessionsKey.clone();
+        }
+
+        int shardLength = digits(shard);
+        byte[] key = new byte[allSessionsShardPrefix.length + shardLength + 1];
+
+        System.arraycopy(allSessionsShardPrefix, 0, key, 0, allSessionsShardPrefix.length);
+        writeDigits(key, allSessionsShardPrefix.length + shardLength, shard);
+        key[key.length - 1] = '}';
+
+        return key;
+    }
+
+    /**
+     * Returns key of the set of shard counts with which sessions of the
+     * namespace were indexed in sorted sets. The array is shared and must not
+     * be modified.
+     */
+    public byte[] getShardCountsKey() {
+        return shardCountsKey;
+    }
+
+    /**
+     * Returns member of the session in sorted set. For sticky sessions, the
+     * member is suffixed with the node.
+     */
+    public byte[] sortedSetMember(String id) {
+        return wrap(NO_BYTES, id, memberSuffix);
+    }
+
+    /**
+     * Returns key of the bucket for the given minute. With single bucket, the
+     * key is prefix followed by the minute. Otherwise minute and bucket index
+     * form hash tag of the key, so buckets are spread over slots.
+     */
+    private byte[] bucketKey(byte[] prefix, long instant, int bucket) {
+        int instantLength = digits(instant);
+
+        if (buckets == 1) {
+            byte[] key = new byte[prefix.length + instantLength];
+
+            System.arraycopy(prefix, 0, key, 0, prefix.length);
+            writeDigits(key, prefix.length + instantLength, instant);
+
+            return key;
+        }
+
+        int bucketLength = digits(bucket);
+        byte[] key = new byte[prefix.length + instantLength + bucketLength + 3];
+        int pos = prefix.length;
+
+        System.arraycopy(prefix, 0, key, 0, pos);
+        key[pos++] = '{';
+        writeDigits(key, pos + instantLength, instant);
+        pos += instantLength;
+        key[pos++] = ':';
+        writeDigits(key, pos + bucketLength, bucket);
+        key[key.length - 1] = '}';
+
+        return key;
+    }
+
+    /**
+     * Returns id between prefix and suffix. Ids are usually ASCII and are then
+     * copied char by char, other ids are encoded as UTF-8.
+     */
+    private static byte[] wrap(byte[] prefix, String id, byte[] suffix) {
+        int length = id.length();
+
+        for (int i = 0; i < length; i++) {
+            if (id.charAt(i) >= 0x80) {
+                return wrap(prefix, id.getBytes(UTF_8), suffix);
+            }
+        }
+
+        byte[] key = new byte[prefix.length + length + suffix.length];
+
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+
+        for (int i = 0; i < length; i++) {
+            key[prefix.length + i] = (byte) id.charAt(i);
+        }
+
+        System.arraycopy(suffix, 0, key, prefix.length + length, suffix.length);
+
+        return key;
+    }
+
+    private static byte[] wrap(byte[] prefix, byte[] id, byte[] suffix) {
+        byte[] key = new byte[prefix.length + id.length + suffix.length];
+
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        System.arraycopy(id, 0, key, prefix.length, id.length);
+        System.arraycopy(suffix, 0, key, prefix.length + id.length, suffix.length);
+
+        return key;
+    }
+
+    private static int digits(long value) {
+        int count = 1;
+
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes decimal representation of non-negative value so that it ends
+     * just before position <code>end</code>.
+     */
+    private static void writeDigits(byte[] key, int end, long value) {
+        long remaining = value;
+        int pos = end;
+
+        do {
+            key[--pos] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining > 0);
+    }
+}
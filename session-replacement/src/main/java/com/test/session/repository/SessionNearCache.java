@@ -0,0 +1,350 @@
+package com.test.session.repository;
+
+import static redis.clients.util.SafeEncoder.encode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.test.session.connection.api.RedisConnector;
+import com.test.session.connection.api.RedisConnector.RedisPubSub;
+import com.test.session.models.SessionData;
+
+import redis.clients.jedis.BinaryJedisPubSub;
+
+/**
+ * Bounded, per-node cache of sessions stored in redis. It is used when sessions
+ * are sticky, i.e. when the same node serves almost all requests of the
+ * session. The cache keeps session meta data and attributes, and each entry is
+ * stamped with the version of the session hash in redis (see
+ * {@link com.test.session.models.RedisConstants#VERSION}). Entry is valid as
+ * long as the version and owner of the session in redis didn't change.
+ * <p>
+ * Immutable attribute values are cached as objects, other values are cached in
+ * serialized form and deserialized on each retrieval, so that changes of the
+ * object made by one request are not visible to other requests before commit.
+ * <p>
+ * The cache also listens to the redirection channel of the repository, and
+ * drops sessions whose id has changed. Sessions now served by another node are
+ * detected using owner meta attribute when entry is validated.
+ */
+final class SessionNearCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionNearCache.class);
+
+    // Marker for attributes that are known to be absent from repository
+    private static final Object ABSENT = new Object();
+
+    private final Map<String, Entry> entries;
+    private final long staleness;
+    private final RedirectionListener listener;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong validatedHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates cache.
+     *
+     * @param maxSize
+     *            maximum number of sessions in cache. When the limit is
+     *            reached, least recently used session is removed.
+     * @param staleness
+     *            time in milliseconds during which an entry is used without
+     *            checking its version in redis
+     * @param redirectionChannel
+     *            channel on which session id changes are published
+     */
+    SessionNearCache(final int maxSize, long staleness, byte[] redirectionChannel) {
+        this.staleness = staleness;
+        this.listener = new RedirectionListener(redirectionChannel);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns cache entry for the session without checking if it is stale.
+     *
+     * @param id
+     *            session id
+     * @return cache entry or <code>null</code> if session is not in cache
+     */
+    Entry get(String id) {
+        synchronized (entries) {
+            return entries.get(id);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the entry needs to be validated against
+     * repository before being used.
+     *
+     * @param entry
+     *            the cache entry
+     * @param now
+     *            current timestamp
+     * @return <code>true</code> if entry is stale
+     */
+    boolean isStale(Entry entry, long now) {
+        return entry.validatedAt + staleness <= now;
+    }
+
+    /**
+     * Adds session to cache.
+     *
+     * @param sessionData
+     *            the session
+     * @param owner
+     *            node owning the session
+     * @param version
+     *            version of the session in repository
+     * @return the new cache entry
+     */
+    Entry put(SessionData sessionData, String owner, long version) {
+        Entry entry = new Entry(sessionData, owner, version);
+
+        synchronized (entries) {
+            entries.put(sessionData.getId(), entry);
+        }
+
+        return entry;
+    }
+
+    void invalidate(String id) {
+        Entry removed;
+
+        synchronized (entries) {
+            removed = entries.remove(id);
+        }
+
+        if (removed != null) {
+            invalidations.incrementAndGet();
+            LOGGER.debug("Removed session {} from near cache.", id);
+        }
+    }
+
+    void hit(boolean validated) {
+        hits.incrementAndGet();
+
+        if (validated) {
+            validatedHits.incrementAndGet();
+        }
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Starts listening to redirection channel. This is a blocking operation.
+     *
+     * @param redis
+     *            facade to redis library
+     */
+    void listen(RedisConnector redis) {
+        listener.start(redis);
+    }
+
+    void close(RedisConnector redis) {
+        listener.close(redis);
+
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getValidatedHits() {
+        return validatedHits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SessionNearCache [size=%s, hits=%s, validatedHits=%s, misses=%s, invalidations=%s]",
+                entries.size(), hits, validatedHits, misses, invalidations);
+    }
+
+    /**
+     * Cached session. Meta data of the session is updated on touch and commit,
+     * while attributes are added as they are retrieved or committed.
+     */
+    static final class Entry {
+        private final String id;
+        private final long creationTime;
+        private final String owner;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private volatile long lastAccessedTime;
+        private volatile int maxInactiveInterval;
+        private volatile long version;
+        private volatile long validatedAt;
+
+        private Entry(SessionData sessionData, String owner, long version) {
+            this.id = sessionData.getId();
+            this.creationTime = sessionData.getCreationTime();
+            this.owner = owner;
+            this.lastAccessedTime = sessionData.getLastAccessedTime();
+            this.maxInactiveInterval = sessionData.getMaxInactiveInterval();
+            this.version = version;
+            this.validatedAt = System.currentTimeMillis();
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        void validated(long now) {
+            validatedAt = now;
+        }
+
+        /**
+         * Updates meta data and version of the entry after session has been
+         * stored in repository.
+         */
+        void update(SessionData sessionData, long newVersion) {
+            lastAccessedTime = sessionData.getLastAccessedTime();
+            maxInactiveInterval = sessionData.getMaxInactiveInterval();
+            version = newVersion;
+            validatedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns new instance of session data built from cached meta data.
+         */
+        SessionData toSessionData() {
+            return new SessionData(id, lastAccessedTime, maxInactiveInterval, creationTime, owner);
+        }
+
+        boolean hasAttribute(String name) {
+            return attributes.containsKey(name);
+        }
+
+        /**
+         * Returns cached attribute value. Values cached in serialized form
+         * are deserialized using provided function.
+         */
+        Object getAttribute(String name, Function<byte[], Object> deserializer) {
+            Object value = attributes.get(name);
+
+            if (value == ABSENT) {
+                return null;
+            }
+
+            if (value instanceof Serialized) {
+                return deserializer.apply(((Serialized) value).bytes);
+            }
+
+            return value;
+        }
+
+        /**
+         * Stores attribute in cache.
+         *
+         * @param name
+         *            attribute name
+         * @param value
+         *            attribute value, or <code>null</code> if attribute was
+         *            removed
+         * @param serialized
+         *            serialized form of value as stored in repository
+         */
+        void putAttribute(String name, Object value, byte[] serialized) {
+            if (value == null) {
+                attributes.put(name, ABSENT);
+            } else if (isImmutableType(value)) {
+                attributes.put(name, value);
+            } else {
+                attributes.put(name, new Serialized(serialized));
+            }
+        }
+
+        void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        private static boolean isImmutableType(Object obj) {
+            return obj instanceof Number || obj instanceof Character || obj instanceof String || obj instanceof Boolean || obj instanceof Enum;
+        }
+    }
+
+    private static final class Serialized {
+        private final byte[] bytes;
+
+        private Serialized(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Listens to messages on redirection channel. Each message has form
+     * <code>oldId:newId</code>, and session with old id is removed from cache.
+     */
+    private final class RedirectionListener implements RedisPubSub {
+        private final byte[] channel;
+        private BinaryJedisPubSub linkedImplementation;
+        private volatile boolean subscribed;
+
+        private RedirectionListener(byte[] channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void onPMessage(byte[] pattern, byte[] channelBuf, byte[] message) {
+            if (message == null) {
+                return;
+            }
+
+            String body = encode(message);
+            int separator = body.indexOf(':');
+
+            invalidate(separator < 0 ? body : body.substring(0, separator));
+        }
+
+        @Override
+        public void link(BinaryJedisPubSub actual) {
+            this.linkedImplementation = actual;
+        }
+
+        @Override
+        public BinaryJedisPubSub getLinked() {
+            return linkedImplementation;
+        }
+
+        @Override
+        public void start(RedisConnector redis) {
+            if (!subscribed) {
+                subscribed = true;
+                redis.psubscribe(this, encode(channel));
+            }
+        }
+
+        @Override
+        public void close(RedisConnector redis) {
+            if (subscribed && linkedImplementation != null) {
+                redis.punsubscribe(this, channel);
+                subscribed = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.test.session.repository;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import com.test.session.models.SessionData;
+
+/**
+ * Local disk tier for sessions evicted from {@link InMemoryRepository}. Each
+ * session is stored in its own file, named after hex encoded session id, in a
+ * directory of its namespace. The file holds session meta data followed by
+ * serialized attributes. Sessions are read back and their files deleted when
+ * they are accessed again. The store doesn't track expiry of sessions, the
+ * repository keeps its own index of spilled sessions.
+ */
+final class SpillStore {
+    private static final String SUFFIX = ".session";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+
+    /**
+     * Session read from the store.
+     */
+    static final class SpilledSession {
+        final SessionData sessionData;
+        final Map<String, byte[]> attributes;
+
+        private SpilledSession(SessionData sessionData, Map<String, byte[]> attributes) {
+            this.sessionData = sessionData;
+            this.attributes = attributes;
+        }
+    }
+
+    SpillStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    void write(String namespace, SessionData sessionData, Map<String, byte[]> attributes) throws IOException {
+        Path file = file(namespace, sessionData.getId());
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+
+        Files.createDirectories(file.getParent());
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeLong(sessionData.getLastAccessedTime());
+            out.writeInt(sessionData.getMaxInactiveInterval());
+            out.writeLong(sessionData.getCreationTime());
+            out.writeInt(attributes.size());
+
+            for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+                out.writeUTF(attribute.getKey());
+                out.writeInt(attribute.getValue().length);
+                out.write(attribute.getValue());
+            }
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads session and removes it from the store.
+     *
+     * @return the session or <code>null</code> if session was not spilled
+     */
+    SpilledSession take(String namespace, String id) throws IOException {
+        Path file = file(namespace, id);
+        SpilledSession session;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            long lastAccessed = in.readLong();
+            int maxInactive = in.readInt();
+            long creationTime = in.readLong();
+            int count = in.readInt();
+            Map<String, byte[]> attributes = new HashMap<>();
+
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] value = new byte[in.readInt()];
+
+                in.readFully(value);
+                attributes.put(name, value);
+            }
+
+            session = new SpilledSession(new SessionData(id, lastAccessed, maxInactive, creationTime), attributes);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        Files.deleteIfExists(file);
+
+        return session;
+    }
+
+    /**
+     * Reads meta data of spilled session without removing it from the store.
+     *
+     * @return session data or <code>null</code> if session was not spilled
+     */
+    SessionData peek(String namespace, String id) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file(namespace, id)))) {
+            return new SessionData(id, in.readLong(), in.readInt(), in.readLong());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    void remove(String namespace, String id) throws IOException {
+        Files.deleteIfExists(file(namespace, id));
+    }
+
+    /**
+     * Reads meta data of all sessions in the store, e.g. those spilled before
+     * restart. Reads whole directory, so it should be used only when
+     * repository starts.
+     *
+     * @param consumer
+     *            receives namespace and meta data of each session
+     */
+    void forEach(BiConsumer<String, SessionData> consumer) throws IOException {
+        try (DirectoryStream<Path> namespaceDirectories = Files.newDirectoryStream(directory)) {
+            for (Path namespaceDirectory : namespaceDirectories) {
+                if (!Files.isDirectory(namespaceDirectory)) {
+                    continue;
+                }
+
+                String namespace = unhex(namespaceDirectory.getFileName().toString());
+
+                for (String id : ids(namespaceDirectory)) {
+                    SessionData sessionData = peek(namespace, id);
+
+                    if (sessionData != null) {
+                        consumer.accept(namespace, sessionData);
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<String> ids(Path namespaceDirectory) throws IOException {
+        List<String> ids = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(namespaceDirectory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                ids.add(unhex(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+
+        return ids;
+    }
+
+    private Path file(String namespace, String id) {
+        return directory.resolve(hex(namespace)).resolve(hex(id) + SUFFIX);
+    }
+
+    private static String hex(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    private static String unhex(String value) {
+        byte[] bytes = new byte[value.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,119 @@
+package com.test.session.repository;
+
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+
+/**
+ * Estimates heap size of session attributes. The estimate is cheap and
+ * approximate: strings, arrays, boxed primitives and collections of them are
+ * measured, while other objects are counted with a fixed weight. Nested
+ * collections are followed up to {@value #MAX_DEPTH} levels, and only first
+ * {@value #MAX_ELEMENTS} elements are measured, the rest are assumed to be of
+ * same average size. Collections are not locked while they are measured, so a
+ * collection modified by application meanwhile is measured by its size only.
+ */
+final class WeightEstimator {
+    // Weight of session entry without attributes
+    static final int ENTRY_WEIGHT = 128;
+
+    private static final int OBJECT_WEIGHT = 16;
+    private static final int REFERENCE_WEIGHT = 8;
+    private static final int UNKNOWN_WEIGHT = 256;
+    private static final int MAX_DEPTH = 2;
+    private static final int MAX_ELEMENTS = 64;
+
+    private WeightEstimator() {
+    }
+
+    /**
+     * Returns estimated weight of the attribute including its name.
+     */
+    static int estimate(String name, Object value) {
+        return REFERENCE_WEIGHT * 2 + estimate(name, 0) + estimate(value, 0);
+    }
+
+    private static int estimate(Object value, int depth) {
+        if (value == null) {
+            return 0;
+        }
+
+        if (value instanceof String) {
+            return OBJECT_WEIGHT * 2 + ((String) value).length() * 2;
+        }
+
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return OBJECT_WEIGHT;
+        }
+
+        if (value instanceof byte[]) {
+            return OBJECT_WEIGHT + ((byte[]) value).length;
+        }
+
+        if (value instanceof char[]) {
+            return OBJECT_WEIGHT + ((char[]) value).length * 2;
+        }
+
+        if (value instanceof int[]) {
+            return OBJECT_WEIGHT + ((int[]) value).length * 4;
+        }
+
+        if (value instanceof long[]) {
+            return OBJECT_WEIGHT + ((long[]) value).length * 8;
+        }
+
+        if (depth >= MAX_DEPTH) {
+            return UNKNOWN_WEIGHT;
+        }
+
+        if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+
+            return OBJECT_WEIGHT * 2 + estimateElements(collection, collection.size(), depth);
+        }
+
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+
+            return OBJECT_WEIGHT * 3 + estimateElements(map.keySet(), map.size(), depth) + estimateElements(map.values(), map.size(), depth);
+        }
+
+        if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            int measured = Math.min(array.length, MAX_ELEMENTS);
+            long total = 0;
+
+            for (int i = 0; i < measured; i++) {
+                total += estimate(array[i], depth + 1);
+            }
+
+            return (int) Math.min(Integer.MAX_VALUE, OBJECT_WEIGHT + (long) array.length * REFERENCE_WEIGHT + extrapolate(total, measured, array.length));
+        }
+
+        return UNKNOWN_WEIGHT;
+    }
+
+    private static int estimateElements(Collection<?> elements, int size, int depth) {
+        long total = 0;
+        int measured = 0;
+
+        try {
+            for (Object element : elements) {
+                if (measured == MAX_ELEMENTS) {
+                    break;
+                }
+
+                total += estimate(element, depth + 1) + REFERENCE_WEIGHT * 2;
+                measured++;
+            }
+        } catch (ConcurrentModificationException e) { // NOSONAR
+            return (int) Math.min(Integer.MAX_VALUE, (long) size * (OBJECT_WEIGHT + REFERENCE_WEIGHT * 2));
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE, extrapolate(total, measured, size));
+    }
+
+    private static long extrapolate(long total, int measured, int size) {
+        return measured == 0 ? 0 : total * size / measured;
+    }
+}
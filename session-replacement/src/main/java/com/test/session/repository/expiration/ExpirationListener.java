@@ -1,15 +1,29 @@
 package com.test.session.repository.expiration;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static redis.clients.util.SafeEncoder.encode;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.test.session.api.SessionManager;
+import com.test.session.api.SessionRepository;
 import com.test.session.connection.api.RedisConnector;
 import com.test.session.connection.api.RedisConnector.RedisPubSub;
 import com.test.session.models.RedisConstants;
+import com.test.session.models.SessionData;
 import com.test.session.repository.RedisSessionRepository;
+import com.test.session.servlet.SessionRepositoryTracker;
 
 import redis.clients.jedis.BinaryJedisPubSub;
 
@@ -17,45 +31,91 @@ import redis.clients.jedis.BinaryJedisPubSub;
  * This class listens to expiration events coming from Redis, and when the event
  * specifies a key starting with
  * {@link RedisSessionRepository#DEFAULT_SESSION_EXPIRE_PREFIX}, it tries to
- * expire corresponding session
+ * expire corresponding session.
+ * <p>
+ * Subscriber thread only matches key prefix on received bytes and puts
+ * the message in a bounded queue, so it never waits on repository. A
+ * dispatcher thread drains the queue, skips sessions whose expiration was
+ * already processed recently, and hands batches of session ids to workers
+ * which retrieve the sessions in one call and invalidate them without
+ * retrieving them again. When the queue is full, events are
+ * dropped and the sessions are removed by periodic cleanup.
  */
 public class ExpirationListener implements RedisPubSub {
     private static final Logger LOGGER = LoggerFactory.getLogger(ExpirationListener.class);
 
+    private static final long DISPATCHER_PARK_MILLIS = 100;
+
     private final SessionManager sessionManager;
+    private final String repositoryFactory;
     private final byte[] keyPrefix;
-    private boolean subsrcibed;
+    // Set while start() runs, so only one subscription and one dispatcher exist at a time
+    private final AtomicBoolean subsrcibed = new AtomicBoolean();
     private BinaryJedisPubSub linkedImplementation;
 
-    public ExpirationListener(SessionManager sessionManager, String keyPrefix) {
+    private final ExpiryEventQueue queue = new ExpiryEventQueue(RedisConstants.EXPIRY_EVENT_QUEUE_SIZE);
+    // Accessed only by dispatcher thread, a new dispatcher starts after previous one ended
+    private final Map<String, Long> recentlyExpired = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > RedisConstants.EXPIRY_EVENT_DEDUPLICATION_SIZE;
+        }
+    };
+    private volatile boolean running;
+    private Thread dispatcher;
+    private ThreadPoolExecutor workers;
+
+    // Pipeline metrics
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder renewed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public ExpirationListener(SessionManager sessionManager, byte[] keyPrefix, String repositoryFactory) {
         this.sessionManager = sessionManager;
-        this.keyPrefix = encode(keyPrefix);
+        this.keyPrefix = keyPrefix;
+        this.repositoryFactory = repositoryFactory;
     }
 
     /**
      * Starts subscription to redis notifications. This is a blocking operation
      * and the thread which called this method will block on opened socket.
+     * Calls made while listener is subscribed return immediately. Listener
+     * can be started again once the method returns, as dispatcher has then
+     * processed remaining events and ended.
      *
      * @param redis
      *            facade to redis library
      */
     @Override
     public void start(RedisConnector redis) {
-        if (!subsrcibed) {
-            subsrcibed = true;
-            redis.psubscribe(this, RedisConstants.EXPIRY_SUBSCRIPTION_PATTERN);
+        if (!subsrcibed.compareAndSet(false, true)) {
+            LOGGER.debug("Expiration listener is already subscribed.");
+            return;
+        }
+
+        try {
+            startDispatcher();
+            redis.subscribe(this, RedisConstants.EXPIRY_SUBSCRIPTION_CHANNEL);
+        } finally {
+            stopDispatcher();
+            subsrcibed.set(false);
         }
     }
 
     @Override
     public void onPMessage(byte[] pattern, byte[] channelBuf, byte[] message) {
-        // Only accept messages expiration notification channel
-        // and only those that match our key prefix.
-        if (channelBuf == null || message == null) {
-            return;
-        }
+        onMessage(channelBuf, message);
+    }
 
-        if (!isExpiredChannel(channelBuf)) {
+    @Override
+    public void onMessage(byte[] channelBuf, byte[] message) {
+        // Subscription is on expired channel of our database,
+        // so only accept messages that match our key prefix.
+        if (channelBuf == null || message == null) {
             return;
         }
 
@@ -63,32 +123,98 @@ public class ExpirationListener implements RedisPubSub {
             return;
         }
 
-        String body = encode(message);
-        LOGGER.debug("Got notification for channel: '{}', body: '{}'", encode(channelBuf), body);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Got notification for channel: '{}', body: '{}'", encode(channelBuf), encode(message));
+        }
 
-        String sessionId = extractSessionId(body);
-        LOGGER.info("Session expired event for sessionId: '{}'", sessionId);
+        received.increment();
 
-        // We run session delete in another thread, otherwise we would block listener.
-        // TODO: Find the session data and send
-        // sessionManager.deleteAsync(sessionId, true);
+        // Sessions are deleted by workers, otherwise we would block listener.
+        if (!queue.offer(message)) {
+            LOGGER.warn("Expiry event queue is full, dropped expiration event. Session will be removed by cleanup task.");
+        }
     }
 
     /**
      * Stops subscription to redis notifications. Call to this method will
-     * unblock thread waiting on PSUBSCRIBE.
+     * unblock thread waiting on SUBSCRIBE.
      *
      * @param redis
      *            facade to redis library
      */
     @Override
     public void close(RedisConnector redis) {
-        if (subsrcibed) {
-            redis.punsubscribe(this, encode(RedisConstants.EXPIRY_SUBSCRIPTION_PATTERN));
-            subsrcibed = false;
+        if (subsrcibed.get()) {
+            redis.unsubscribe(this, encode(RedisConstants.EXPIRY_SUBSCRIPTION_CHANNEL));
         }
     }
 
+    /**
+     * Returns number of expiration events of this application received.
+     */
+    public long getReceivedEvents() {
+        return received.sum();
+    }
+
+    /**
+     * Returns number of expiration events dropped because queue was full.
+     */
+    public long getDroppedEvents() {
+        return queue.getDropped();
+    }
+
+    /**
+     * Returns number of expiration events ignored because session expiration
+     * was already processed.
+     */
+    public long getDuplicateEvents() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Returns number of sessions deleted following expiration events.
+     */
+    public long getDeletedSessions() {
+        return deleted.sum();
+    }
+
+    /**
+     * Returns number of sessions that were not deleted as they were accessed
+     * after the expire key was set, so they are not expired.
+     */
+    public long getRenewedSessions() {
+        return renewed.sum();
+    }
+
+    /**
+     * Returns number of sessions which could not be resolved or deleted.
+     */
+    public long getFailedSessions() {
+        return failed.sum();
+    }
+
+    /**
+     * Returns number of events waiting in the queue.
+     */
+    public int getPendingEvents() {
+        return queue.size();
+    }
+
+    /**
+     * Returns time in milliseconds that the last dispatched event spent in
+     * the queue.
+     */
+    public long getLag() {
+        return queue.getLastLag();
+    }
+
+    /**
+     * Returns longest time in milliseconds that an event spent in the queue.
+     */
+    public long getMaxLag() {
+        return queue.getMaxLag();
+    }
+
     @Override
     public BinaryJedisPubSub getLinked() {
         return linkedImplementation;
@@ -99,24 +225,15 @@ public class ExpirationListener implements RedisPubSub {
         this.linkedImplementation = linkedImplementation;
     }
 
-    /**
-     * Checks if channel identifies expired notification channel.
-     *
-     * @param channelBuf
-     *            array containing channel information
-     * @return <code>true</code> if channel identifies expired notifications
-     *         channel
-     */
-    private boolean isExpiredChannel(byte[] channelBuf) {
-        int suffixLength = RedisConstants.EXPIRED_SUFFIX.length;
-        int channelPos = channelBuf.length - suffixLength;
+    private boolean isExpireKey(byte[] message) {
+        int prefixLength = keyPrefix.length;
 
-        if (channelPos <= 0) {
+        if (message.length < prefixLength) {
             return false;
         }
 
-        for (int i = 0; i < suffixLength; i++, channelPos++) {
-            if (channelBuf[channelPos] != RedisConstants.EXPIRED_SUFFIX[i]) {
+        for (int i = 0; i < prefixLength; i++) {
+            if (message[i] != keyPrefix[i]) {
                 return false;
             }
         }
@@ -124,43 +241,189 @@ public class ExpirationListener implements RedisPubSub {
         return true;
     }
 
-    private boolean isExpireKey(byte[] message) {
-        int prefixLength = keyPrefix.length;
+    private void startDispatcher() {
+        running = true;
+        workers = new ThreadPoolExecutor(RedisConstants.EXPIRY_EVENT_WORKERS, RedisConstants.EXPIRY_EVENT_WORKERS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(RedisConstants.EXPIRY_EVENT_WORKERS * 2), runnable -> {
+                    Thread thread = new Thread(runnable, "redis-expiry-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (task, executor) -> {
+                    // Dispatcher waits for workers, and the queue absorbs or drops incoming events
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+        dispatcher = new Thread(this::dispatch, "redis-expiry-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
 
-        if (message.length < prefixLength) {
-            return false;
+    /**
+     * Stops dispatcher and waits until it dispatches remaining events.
+     */
+    private void stopDispatcher() {
+        running = false;
+        queue.wakeUp();
+
+        if (dispatcher == null) {
+            return;
         }
 
-        for (int i = 0; i < prefixLength; i++) {
-            if (message[i] != keyPrefix[i]) {
-                return false;
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drains the queue and submits batches of distinct session ids to
+     * workers. Events remaining in queue when subscription stops are still
+     * dispatched.
+     */
+    private void dispatch() {
+        List<byte[]> messages = new ArrayList<>(RedisConstants.EXPIRY_EVENT_BATCH_SIZE);
+
+        try {
+            while (running || queue.size() > 0) {
+                if (queue.drain(messages, RedisConstants.EXPIRY_EVENT_BATCH_SIZE) == 0) {
+                    if (running) {
+                        queue.await(DISPATCHER_PARK_MILLIS, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                    // Producer has claimed a slot but not yet published message
+                    Thread.yield();
+                    continue;
+                }
+
+                List<String> ids = distinctIds(messages);
+                messages.clear();
+
+                if (!ids.isEmpty()) {
+                    workers.execute(() -> deleteExpired(ids));
+                }
             }
+        } finally {
+            workers.shutdown();
         }
+    }
 
-        return true;
+    private List<String> distinctIds(List<byte[]> messages) {
+        long now = System.currentTimeMillis();
+        List<String> ids = new ArrayList<>(messages.size());
+
+        for (byte[] message : messages) {
+            String sessionId = extractSessionId(message);
+            Long previous = recentlyExpired.put(sessionId, now);
+
+            if (previous != null && now - previous < RedisConstants.EXPIRY_EVENT_DEDUPLICATION_WINDOW) {
+                duplicates.increment();
+            } else {
+                LOGGER.debug("Session expired event for sessionId: '{}'", sessionId);
+                ids.add(sessionId);
+            }
+        }
+
+        return ids;
+    }
+
+    private void deleteExpired(List<String> ids) {
+        SessionRepository repository = SessionRepositoryTracker.getRepository(repositoryFactory);
+
+        if (repository == null) {
+            LOGGER.warn("Session repository {} is not available, {} expired sessions left to cleanup task.", repositoryFactory, ids.size());
+            failed.add(ids.size());
+            return;
+        }
+
+        List<SessionData> sessions;
+
+        try {
+            sessions = repository.getSessionData(ids);
+        } catch (Exception e) { // NOSONAR
+            LOGGER.error("Unable to retrieve {} expired sessions.", ids.size(), e);
+            failed.add(ids.size());
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (SessionData sessionData : sessions) {
+            // Expire key may lag behind session that was accessed meanwhile
+            if (isRenewed(sessionData, now)) {
+                LOGGER.debug("Session {} is not expired, skipping delete.", sessionData.getId());
+                renewed.increment();
+                continue;
+            }
+
+            try {
+                sessionManager.invalidate(sessionData, true);
+                deleted.increment();
+            } catch (Exception e) { // NOSONAR
+                LOGGER.error("Unable to delete expired session {}.", sessionData.getId(), e);
+                failed.increment();
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if session was accessed after its expire key
+     * was set. Expire key is expired by redis clock and session by clock of
+     * the node that accessed it last, so a session that expires within the
+     * skew margin is considered expired, as its expire key won't fire again.
+     * Renewed session has nearly whole inactive interval left, so margin is
+     * capped to half the interval for sessions with short interval.
+     */
+    private static boolean isRenewed(SessionData sessionData, long now) {
+        long margin = Math.min(RedisConstants.SESSION_PERSISTENCE_SAFETY_MARGIN_MILLIS,
+                TimeUnit.SECONDS.toMillis(sessionData.getMaxInactiveInterval()) / 2);
+
+        return !sessionData.isExpired(now + margin);
     }
 
-    private static String extractSessionId(String body) {
-        int beginIndex = body.lastIndexOf(':') + 1;
-        String sessionId = body.substring(beginIndex);
-        int braceOpening = sessionId.indexOf('{');
+    /**
+     * Extracts session id from key, without converting the whole key to
+     * string. Session id is the part after last colon, with hash tag braces
+     * removed.
+     */
+    private static String extractSessionId(byte[] key) {
+        int begin = key.length;
+
+        while (begin > 0 && key[begin - 1] != ':') {
+            begin--;
+        }
+
+        int braceOpening = indexOf(key, '{', begin);
 
         if (braceOpening >= 0) {
-            int braceClosing = sessionId.indexOf('}', braceOpening + 1);
+            int braceClosing = indexOf(key, '}', braceOpening + 1);
 
             if (braceClosing > braceOpening) {
-                int idLen = sessionId.length();
-                StringBuffer sb = new StringBuffer();
-
-                if (braceOpening > 0) {
-                    sb.append(sessionId, 0, braceOpening);
+                if (braceOpening == begin && braceClosing == key.length - 1) {
+                    return new String(key, braceOpening + 1, braceClosing - braceOpening - 1, UTF_8);
                 }
 
-                sb.append(sessionId, braceOpening + 1, braceClosing).append(sessionId, braceClosing + 1, idLen);
-                sessionId = sb.toString();
+                return new StringBuilder(key.length - begin)
+                        .append(new String(key, begin, braceOpening - begin, UTF_8))
+                        .append(new String(key, braceOpening + 1, braceClosing - braceOpening - 1, UTF_8))
+                        .append(new String(key, braceClosing + 1, key.length - braceClosing - 1, UTF_8))
+                        .toString();
+            }
+        }
+
+        return new String(key, begin, key.length - begin, UTF_8);
+    }
+
+    private static int indexOf(byte[] key, char c, int from) {
+        for (int i = from; i < key.length; i++) {
+            if (key[i] == c) {
+                return i;
             }
         }
 
-        return sessionId;
+        return -1;
     }
 }
@@ -0,0 +1,146 @@
+package com.test.session.repository.expiration;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring buffer between subscriber threads receiving expiration events
+ * and the single thread dispatching them. Producers claim slots with
+ * compare-and-set and never block: when the buffer is full, the event is
+ * dropped and counted. Messages are stored as received from redis, without
+ * copy.
+ */
+final class ExpiryEventQueue {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<byte[]> messages;
+    private final long[] enqueuedAt;
+    private final AtomicLong tail = new AtomicLong();
+    // Written only by consumer
+    private volatile long head;
+    private volatile Thread waiting;
+
+    private final LongAdder dropped = new LongAdder();
+    private volatile long lastLag;
+    private volatile long maxLag;
+
+    ExpiryEventQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity of expiry event queue must be power of 2, was " + capacity);
+        }
+
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.messages = new AtomicReferenceArray<>(capacity);
+        this.enqueuedAt = new long[capacity];
+    }
+
+    /**
+     * Adds message to the queue. Can be called from any thread.
+     *
+     * @return <code>false</code> if queue was full and message was dropped
+     */
+    boolean offer(byte[] message) {
+        long slot;
+
+        do {
+            slot = tail.get();
+
+            if (slot - head >= capacity) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+
+        int index = (int) slot & mask;
+        enqueuedAt[index] = System.currentTimeMillis();
+        messages.set(index, message);
+
+        Thread consumer = waiting;
+
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves up to <code>max</code> messages into the batch. Must be called
+     * from the consumer thread only.
+     *
+     * @return number of messages moved
+     */
+    int drain(List<byte[]> batch, int max) {
+        long slot = head;
+        long now = System.currentTimeMillis();
+        int count = 0;
+
+        while (count < max) {
+            int index = (int) slot & mask;
+            byte[] message = messages.get(index);
+
+            // Either queue is empty or producer has claimed slot and not yet published it
+            if (message == null) {
+                break;
+            }
+
+            long lag = now - enqueuedAt[index];
+            messages.lazySet(index, null);
+            batch.add(message);
+            slot++;
+            count++;
+
+            lastLag = lag;
+
+            if (lag > maxLag) {
+                maxLag = lag;
+            }
+        }
+
+        head = slot;
+
+        return count;
+    }
+
+    /**
+     * Parks consumer thread until a message is offered or timeout elapses.
+     */
+    void await(long timeout, TimeUnit unit) {
+        waiting = Thread.currentThread();
+
+        if (messages.get((int) head & mask) == null) {
+            LockSupport.parkNanos(this, unit.toNanos(timeout));
+        }
+
+        waiting = null;
+    }
+
+    void wakeUp() {
+        Thread consumer = waiting;
+
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    long getLastLag() {
+        return lastLag;
+    }
+
+    long getMaxLag() {
+        return maxLag;
+    }
+}
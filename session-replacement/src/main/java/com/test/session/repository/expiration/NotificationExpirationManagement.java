@@ -3,12 +3,15 @@ package com.test.session.repository.expiration;
 import static com.test.session.models.RedisConstants.NOTIFICATION_STRATEGY_VALUE;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static com.test.session.repository.SessionKeyspace.roundDownMinute;
+import static com.test.session.repository.SessionKeyspace.roundUpToNextMinute;
 import static redis.clients.util.SafeEncoder.encode;
 
-import java.util.Arrays;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -22,14 +25,19 @@ import org.slf4j.LoggerFactory;
 
 import com.test.session.TaskExecutorProcess;
 import com.test.session.api.OSGiDependencyService;
+import com.test.session.api.RedisConfigurationService;
 import com.test.session.api.RedisExpirationStrategy;
 import com.test.session.api.SessionConfigurationService;
 import com.test.session.api.SessionManager;
+import com.test.session.api.SessionRepository;
 import com.test.session.connection.api.RedisConnector;
+import com.test.session.connection.api.RedisConnector.PipelineFacade;
 import com.test.session.connection.api.RedisConnector.ResponseFacade;
 import com.test.session.connection.api.RedisConnector.TransactionRunner;
 import com.test.session.models.RedisConstants;
 import com.test.session.models.SessionData;
+import com.test.session.repository.SessionKeyspace;
+import com.test.session.servlet.SessionRepositoryTracker;
 
 /**
  * A strategy for expiring session instances. This performs several operations:
@@ -68,6 +76,13 @@ import com.test.session.models.SessionData;
  * is set one minute after the `expirations` key. It has almost same semantics
  * and logic, with the only difference being that the key is different and it is
  * set to expire one minute later.
+ *
+ * All keys of a session (session key and expire keys) share the session id
+ * as hash tag, so in cluster mode they are stored in the same slot. Sessions
+ * expiring in the same minute can be distributed among several sets
+ * (expiration buckets) so that a single set doesn't become a hot key. Each
+ * bucket has its own hash tag and the cleanup tasks process all buckets of a
+ * minute.
  */
 @Component(immediate = true, name = NOTIFICATION_STRATEGY_VALUE)
 @Service
@@ -83,9 +98,13 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
     @Reference
     private SessionManager sessionManager;
 
+    @Reference
+    private RedisConfigurationService redisConfigurationService;
+
     private ExpirationListener expirationListener;
     private ScheduledFuture<?> cleanupFuture;
     private ScheduledFuture<?> forceCleanupFuture;
+    private SweepLeases sweepLeases;
 
     protected void bindSessionConfigurationService(final SessionConfigurationService service, Map<String, ?> properties) {
         this.sessionConfigurationService = service;
@@ -108,22 +127,41 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
             forceCleanupFuture.cancel(true);
             forceCleanupFuture = null;
         }
+
+        synchronized (this) {
+            if (sweepLeases != null) {
+                sweepLeases.close();
+                sweepLeases = null;
+            }
+        }
     }
 
     @Override
     public void sessionDeleted(SessionData session) {
         RedisConnector redis = dependencyService.getRedisConnector();
 
-        byte[] expireKey = getExpirationsKey(roundUpToNextMinute(session.expiresAt()));
-        redis.srem(expireKey, sessionKey(session.getId()));
+        byte[] expireKey = getExpirationsKey(roundUpToNextMinute(session.expiresAt()), session.getId());
+        CompletableFuture<Void> removed = redis.sremAsync(expireKey, sessionKey(session.getId()));
 
         byte[] sessionExpireKey = getSessionExpireKey(session.getId());
-        redis.del(sessionExpireKey);
+        CompletableFuture<Long> deleted = redis.delAsync(sessionExpireKey);
+
+        // Both commands are in flight at the same time when connector is asynchronous
+        RedisConnector.await(removed);
+        RedisConnector.await(deleted);
     }
 
     @Override
     public void sessionTouched(SessionData session) {
-        new ExpirationManagement().manageExpiration(session);
+        dependencyService.getRedisConnector().pipeline(sessionKey(session.getId()), pipeline -> {
+            sessionTouched(session, pipeline);
+            return () -> null;
+        });
+    }
+
+    @Override
+    public void sessionTouched(SessionData session, PipelineFacade pipeline) {
+        new ExpirationManagement(pipeline).manageExpiration(session);
     }
 
     @Override
@@ -134,27 +172,22 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
 
         // Update clean-up sets
         long expireCleanupInstant = roundUpToNextMinute(session.expiresAt());
-        byte[] expirationsKey = getExpirationsKey(expireCleanupInstant);
         byte[] sessionKey = sessionKey(session.getId());
         byte[] oldSessionKey = sessionKey(session.getOldSessionId());
 
-        redis.srem(expirationsKey, oldSessionKey);
-        redis.sadd(expirationsKey, sessionKey);
+        // Old and new session id may belong to different buckets
+        redis.srem(getExpirationsKey(expireCleanupInstant, session.getOldSessionId()), oldSessionKey);
+        redis.sadd(getExpirationsKey(expireCleanupInstant, session.getId()), sessionKey);
 
         if (sessionConfigurationService.isSticky()) {
             long forceCleanupInstant = roundUpToNextMinute(expireCleanupInstant);
-            byte[] forceExpirationsKey = getForcedExpirationsKey(forceCleanupInstant);
 
-            redis.srem(forceExpirationsKey, oldSessionKey);
-            redis.sadd(forceExpirationsKey, sessionKey);
+            redis.srem(getForcedExpirationsKey(forceCleanupInstant, session.getOldSessionId()), oldSessionKey);
+            redis.sadd(getForcedExpirationsKey(forceCleanupInstant, session.getId()), sessionKey);
         }
 
     }
 
-    private String constructKeyExpirePrefix(String sessionOwner) {
-        return RedisConstants.DEFAULT_SESSION_EXPIRE_PREFIX + ":" + sessionOwner + ":" + sessionConfigurationService.getNode() + ":";
-    }
-
     private Set<byte[]> getKeysToExpire(byte[] key) {
         RedisConnector redis = dependencyService.getRedisConnector();
 
@@ -171,50 +204,52 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
         }
     }
 
-    private String getKeyPrefix() {
-        return RedisConstants.DEFAULT_SESSION_PREFIX + ":" + sessionConfigurationService.getNamespace() + ":";
-    }
-
     private byte[] getSessionExpireKey(String id) {
-        String keyExpirePrefix = sessionConfigurationService.isSticky() ? constructKeyExpirePrefix(sessionConfigurationService.getNode()) : getKeyPrefix();
-
-        return encode(new StringBuffer()
-                        .append(keyExpirePrefix)
-                        .append('{')
-                        .append(id)
-                        .append('}')
-                        .toString());
+        return keys().sessionExpireKey(id);
     }
 
     private byte[] getSessionExpireKey(String owner, String id) {
-        String ownerBasedPrefix = constructKeyExpirePrefix(owner);
-
-        return encode(new StringBuffer()
-                        .append(ownerBasedPrefix)
-                        .append('{')
-                        .append(id)
-                        .append('}')
-                        .toString());
+        return keys().sessionExpireKey(owner, id);
+    }
+
+    private byte[] getExpirationsKey(long instant, String id) {
+        SessionKeyspace current = keys();
+
+        return current.expirationsKey(instant, current.bucket(id));
+    }
+
+    private byte[] getExpirationsKey(long instant, int bucket) {
+        return keys().expirationsKey(instant, bucket);
+    }
+
+    private byte[] getForcedExpirationsKey(long instant, String id) {
+        SessionKeyspace current = keys();
+
+        return current.forcedExpirationsKey(instant, current.bucket(id));
     }
 
-    private byte[] getExpirationsKey(long instant) {
-        String exp = Long.toString(instant);
-        String expirationsPrefix = getKeyPrefix().concat("expirations:");
+    private byte[] getForcedExpirationsKey(long instant, int bucket) {
+        return keys().forcedExpirationsKey(instant, bucket);
+    }
 
-        return encode(new StringBuffer()
-                        .append(expirationsPrefix)
-                        .append(exp)
-                        .toString());
+    private SessionKeyspace keys() {
+        return SessionKeyspace.of(sessionConfigurationService, redisConfigurationService);
     }
 
-    private byte[] getForcedExpirationsKey(long instant) {
-        String forcedExpirationsPrefix = sessionConfigurationService.isSticky() ? getKeyPrefix().concat("forced-expirations:") : null;
-        String exp = Long.toString(instant);
+    /**
+     * Returns leases of bucket sweeps. Leases are created on first sweep, when
+     * all references of the component are bound.
+     */
+    private synchronized SweepLeases getSweepLeases() {
+        if (sweepLeases == null) {
+            sweepLeases = new SweepLeases(sessionConfigurationService, redisConfigurationService, dependencyService::getRedisConnector);
+        }
+
+        return sweepLeases;
+    }
 
-        return encode(new StringBuffer()
-                        .append(forcedExpirationsPrefix)
-                        .append(exp)
-                        .toString());
+    private int getExpirationBuckets() {
+        return redisConfigurationService == null ? RedisConstants.DEFAULT_EXPIRATION_BUCKETS : redisConfigurationService.getExpirationBuckets();
     }
 
     private void startExpiredSessionsTask() {
@@ -237,27 +272,6 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
         }
     }
 
-    private static long roundUpToNextMinute(long timeInMs) {
-        Calendar date = Calendar.getInstance();
-
-        date.setTimeInMillis(timeInMs);
-        date.add(Calendar.MINUTE, 1);
-        date.clear(Calendar.SECOND);
-        date.clear(Calendar.MILLISECOND);
-
-        return date.getTimeInMillis();
-    }
-
-    private static long roundDownMinute(long timeInMs) {
-        Calendar date = Calendar.getInstance();
-
-        date.setTimeInMillis(timeInMs);
-        date.clear(Calendar.SECOND);
-        date.clear(Calendar.MILLISECOND);
-
-        return date.getTimeInMillis();
-    }
-
     private static TransactionRunner<Set<byte[]>> smembersAndDel(final byte[] key) {
         return (transaction) -> {
                 ResponseFacade<Set<byte[]>> result = transaction.smembers(key);
@@ -275,25 +289,73 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
             long prevMin = roundDownMinute(System.currentTimeMillis());
             LOGGER.debug("Cleaning up sessions expiring at {}", prevMin);
 
-            byte[] key = getForcedExpirationsKey(prevMin);
-            Set<byte[]> sessionsToExpire = getKeysToExpire(key);
+            for (int bucket = 0; bucket < getExpirationBuckets(); bucket++) {
+                if (getSweepLeases().acquire("forced-expirations", bucket)) {
+                    cleanHangingSessions(getForcedExpirationsKey(prevMin, bucket));
+                }
+            }
+        };
+    }
 
-            if (CollectionUtils.isEmpty(sessionsToExpire)) {
-                return;
+    /**
+     * Invalidates sessions of the forced expirations set that are still
+     * expired. Those are sticky sessions whose owner node didn't process their
+     * expiration, e.g. because it was stopped. Session data of the whole set is
+     * retrieved at once.
+     */
+    private void cleanHangingSessions(byte[] key) {
+        Set<byte[]> sessionsToExpire = getKeysToExpire(key);
+
+        if (CollectionUtils.isEmpty(sessionsToExpire)) {
+            return;
+        }
+
+        SessionKeyspace keyspace = keys();
+        List<String> ids = new ArrayList<>(sessionsToExpire.size());
+
+        for (byte[] session : sessionsToExpire) {
+            String id = keyspace.sessionId(session);
+
+            if (id == null) {
+                LOGGER.warn("Unable to retrieve session id from session key {}", encode(session));
+            } else {
+                ids.add(id);
             }
+        }
 
-            sessionsToExpire.forEach(session -> {
-                LOGGER.debug("Cleaning-up session {}", new String(session));
+        SessionRepository repository = SessionRepositoryTracker.getRepository(sessionConfigurationService.getRepositoryFactory());
 
-                // check if session is active
-                if (dependencyService.getRedisConnector().exists(getSessionKey(session))) {
-                    // We run session delete in another thread, otherwise we
-                    // would block this thread listener.
-                    // TODO: Find the session data and pass
-                    // sessionManager.deleteAsync(encode(session), true);
-                }
-            });
-        };
+        if (repository == null) {
+            LOGGER.warn("Session repository {} is not available, {} hanging sessions not cleaned-up.",
+                    sessionConfigurationService.getRepositoryFactory(), ids.size());
+            return;
+        }
+
+        List<SessionData> sessions;
+
+        try {
+            sessions = repository.getSessionData(ids);
+        } catch (Exception e) { // NOSONAR
+            LOGGER.error("Unable to retrieve {} hanging sessions.", ids.size(), e);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (SessionData sessionData : sessions) {
+            // Session accessed since it was added to the set is still active
+            if (!sessionData.isExpired(now)) {
+                continue;
+            }
+
+            LOGGER.debug("Cleaning-up session {}", sessionData.getId());
+
+            try {
+                sessionManager.invalidate(sessionData, true);
+            } catch (Exception e) { // NOSONAR
+                LOGGER.error("Unable to clean-up hanging session {}.", sessionData.getId(), e);
+            }
+        }
     }
 
     private Runnable createTriggerExpirationTask() {
@@ -305,52 +367,39 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
             long prevMin = roundDownMinute(System.currentTimeMillis());
             LOGGER.debug("Triggering up sessions expiring at {}", prevMin);
 
-            byte[] key = getExpirationsKey(prevMin);
-            Set<byte[]> sessionsToExpire = getKeysToExpire(key);
-
-            if (CollectionUtils.isEmpty(sessionsToExpire)) {
-                return;
+            for (int bucket = 0; bucket < getExpirationBuckets(); bucket++) {
+                if (getSweepLeases().acquire("expirations", bucket)) {
+                    triggerExpiration(getExpirationsKey(prevMin, bucket));
+                }
             }
-
-            sessionsToExpire.forEach(session -> {
-                LOGGER.debug("Expiring session {}", new String(session));
-
-                byte[] sessionExpireKey = getSessionExpireKey(encode(session));
-                dependencyService.getRedisConnector().exists(sessionExpireKey);
-            });
         };
     }
 
-    private byte[] sessionKey(String sessionId) {
-        return encode(new StringBuffer()
-                        .append(RedisConstants.DEFAULT_SESSION_PREFIX)
-                        .append(":")
-                        .append(sessionConfigurationService.getNamespace())
-                        .append(":")
-                        .append("{")
-                        .append(sessionId)
-                        .append('}')
-                        .toString());
-    }
-
-    private byte[] getSessionKey(byte[] session) {
-        byte[] keyPrefixByteArray = encode(getKeyPrefix());
-        int prefixLength = keyPrefixByteArray.length;
-        byte[] copy = Arrays.copyOf(keyPrefixByteArray, prefixLength + session.length + 1);
+    private void triggerExpiration(byte[] key) {
+        Set<byte[]> sessionsToExpire = getKeysToExpire(key);
 
-        for (int i = 0; i < session.length; i++) {
-            copy[prefixLength + i] = session[i];
+        if (CollectionUtils.isEmpty(sessionsToExpire)) {
+            return;
         }
 
-        copy[prefixLength + session.length] = '}';
-        return copy;
+        sessionsToExpire.forEach(session -> {
+            LOGGER.debug("Expiring session {}", new String(session));
+
+            byte[] sessionExpireKey = getSessionExpireKey(encode(session));
+            dependencyService.getRedisConnector().exists(sessionExpireKey);
+        });
+    }
+
+    private byte[] sessionKey(String sessionId) {
+        return keys().sessionKey(sessionId);
     }
 
     /**
-     * Helper class that implements expiration logic
+     * Helper class that implements expiration logic. All commands are queued
+     * into the pipeline used to commit the session.
      */
     final class ExpirationManagement {
-        RedisConnector redis = dependencyService.getRedisConnector();
+        private final PipelineFacade redis;
         private long expireCleanupInstant;
         private byte[] sessionKey;
         private int sessionExpireInSeconds;
@@ -358,6 +407,10 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
         long forceCleanupInstant;
         byte[] forceExpirationsKey;
 
+        ExpirationManagement(PipelineFacade redis) {
+            this.redis = redis;
+        }
+
         void manageExpiration(SessionData session) {
             prepareKeys(session);
             manageCleanupKeys(session);
@@ -405,10 +458,10 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
             sessionKey = sessionKey(session.getId());
             sessionExpireInSeconds = session.getMaxInactiveInterval();
             expireCleanupInstant = roundUpToNextMinute(session.expiresAt());
-            expirationsKey = getExpirationsKey(expireCleanupInstant);
+            expirationsKey = getExpirationsKey(expireCleanupInstant, session.getId());
             if (sessionConfigurationService.isSticky()) {
                 forceCleanupInstant = roundUpToNextMinute(expireCleanupInstant);
-                forceExpirationsKey = getForcedExpirationsKey(forceCleanupInstant);
+                forceExpirationsKey = getForcedExpirationsKey(forceCleanupInstant, session.getId());
             } else {
                 forceCleanupInstant = 0;
                 forceExpirationsKey = null;
@@ -419,11 +472,11 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
             if (!session.isNew()) {
                 long originalCleanupInstant = roundUpToNextMinute(session.getOriginalLastAccessed());
                 if (expireCleanupInstant != originalCleanupInstant) {
-                    byte[] originalExpirationsKey = getExpirationsKey(originalCleanupInstant);
+                    byte[] originalExpirationsKey = getExpirationsKey(originalCleanupInstant, session.getId());
                     redis.srem(originalExpirationsKey, sessionKey);
                     if (sessionConfigurationService.isSticky()) {
                         long originalForceCleanupInstant = roundUpToNextMinute(expireCleanupInstant);
-                        byte[] originalForcedExpirationsKey = getForcedExpirationsKey(originalForceCleanupInstant);
+                        byte[] originalForcedExpirationsKey = getForcedExpirationsKey(originalForceCleanupInstant, session.getId());
                         redis.srem(originalForcedExpirationsKey, sessionKey);
                     }
                 } else if (sessionExpireInSeconds <= 0) {
@@ -448,7 +501,8 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
         RedisConnector redis = dependencyService.getRedisConnector();
         int attempt;
         long lastConnect;
-        String keyExpirePrefix = sessionConfigurationService.isSticky() ? constructKeyExpirePrefix(sessionConfigurationService.getNode()) : getKeyPrefix();
+        // Prefix of expire keys differs from prefix of session keys, as both use session id as hash tag
+        byte[] keyExpirePrefix = keys().getExpireKeyPrefix();
 
         @Override
         public void run() {
@@ -457,8 +511,8 @@ public class NotificationExpirationManagement implements RedisExpirationStrategy
             attempt = 0;
             while (true) {
                 try {
-                    // Currently listening to all databases __keyevent@*:expire
-                    expirationListener = new ExpirationListener(sessionManager, keyExpirePrefix);
+                    // Listening to expired events of our database, on each master in cluster mode
+                    expirationListener = new ExpirationListener(sessionManager, keyExpirePrefix, sessionConfigurationService.getRepositoryFactory());
                     expirationListener.start(redis);
                     LOGGER.info("Stopped subscribing for expiration events.");
                     return;
@@ -1,14 +1,26 @@
 package com.test.session.repository.expiration;
 
 import static com.test.session.models.RedisConstants.SORTED_SET_STRATEGY_VALUE;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static redis.clients.util.SafeEncoder.encode;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
@@ -18,12 +30,19 @@ import org.slf4j.LoggerFactory;
 
 import com.test.session.TaskExecutorProcess;
 import com.test.session.api.OSGiDependencyService;
+import com.test.session.api.RedisConfigurationService;
 import com.test.session.api.RedisExpirationStrategy;
 import com.test.session.api.SessionConfigurationService;
 import com.test.session.api.SessionManager;
+import com.test.session.api.SessionRepository;
+import com.test.session.connection.api.RedisConnector;
+import com.test.session.connection.api.RedisConnector.PipelineFacade;
+import com.test.session.connection.api.RedisScript;
 import com.test.session.models.RedisConstants;
 import com.test.session.models.SessionData;
 import com.test.session.repository.RedisSessionRepository;
+import com.test.session.repository.SessionKeyspace;
+import com.test.session.servlet.SessionRepositoryTracker;
 
 /**
  * A strategy for expiring session instances based on Redis Sorted Set (ZRANGE).
@@ -31,10 +50,18 @@ import com.test.session.repository.RedisSessionRepository;
  * In this strategy, two keys are used for each session. Main key contains
  * session data and is managed by {@link RedisSessionRepository}. The second key
  * is the sorted set key where all sessions are stored using expiration
- * expiration time as the score.
+ * expiration time as the score. The sorted set can be split into several
+ * shards, and session is stored in the shard selected by hash of its id. Each
+ * shard has its own hash tag, so in cluster mode shards are spread over
+ * nodes. Each node records its number of shards in redis, and when the number
+ * is changed, sorted sets of previous numbers are swept until they are empty.
  * <p>
- * A task is run periodically (every second) and retrieves all sessions that
- * have expired up to the moment.
+ * A task is run periodically (every second) and claims sessions that have
+ * expired up to the moment, and deletes them through {@link SessionManager},
+ * so session listeners are notified. Sessions are claimed in pages, and the
+ * task stops claiming when its time budget is used, so that a large number of
+ * sessions expiring at once (e.g. after an outage) is spread over several
+ * runs.
  * <p>
  * Following risks are possible:
  * <ul>
@@ -51,7 +78,32 @@ import com.test.session.repository.RedisSessionRepository;
 @Service
 public class SortedSetSessionExpirationManagement implements RedisExpirationStrategy {
     private static Logger LOGGER = LoggerFactory.getLogger(SortedSetSessionExpirationManagement.class.getName());
-    private static final Long ONE = 1L;
+    private static final byte[] FORCE_EXPIRE = new byte[0];
+
+    /**
+     * Claims page of sessions that are due for expiry by removing them from
+     * the sorted set. Sessions are examined in order of their score starting
+     * at offset ARGV[3], and at most ARGV[4] are examined. If ARGV[5] is not
+     * empty, only sessions whose member ends with it are claimed. Returns
+     * number of examined sessions followed by claimed ones.
+     * <p>
+     * KEYS[1] is the sorted set, ARGV[1] and ARGV[2] are minimum and maximum
+     * score.
+     */
+    private static final RedisScript CLAIM_DUE_SCRIPT = new RedisScript(
+            "local members = redis.call('ZRANGEBYSCORE', KEYS[1], ARGV[1], ARGV[2], 'LIMIT', ARGV[3], ARGV[4])\n"
+            + "local claimed = {}\n"
+            + "local suffix = ARGV[5]\n"
+            + "for _, member in ipairs(members) do\n"
+            + "  if suffix == '' or (string.len(member) > string.len(suffix) and string.sub(member, -string.len(suffix)) == suffix) then\n"
+            + "    claimed[#claimed + 1] = member\n"
+            + "  end\n"
+            + "end\n"
+            + "if #claimed > 0 then\n"
+            + "  redis.call('ZREM', KEYS[1], unpack(claimed))\n"
+            + "end\n"
+            + "table.insert(claimed, 1, #members)\n"
+            + "return claimed");
 
     @Reference
     private OSGiDependencyService dependencyService;
@@ -62,7 +114,17 @@ public class SortedSetSessionExpirationManagement implements RedisExpirationStra
     @Reference
     private SessionManager sessionManager;
 
+    @Reference
+    private RedisConfigurationService redisConfigurationService;
+
     private ScheduledFuture<?> cleanupFuture;
+    // Pages are not expired on shared task executor, as sweep waits for them
+    private final ExecutorService pageExecutor = pageExecutor();
+    private SweepLeases sweepLeases;
+    // Time in milliseconds that a sweep may take
+    private volatile long sweepBudget;
+    // Shard with which next sweep starts, nodes start with different shards
+    private final AtomicInteger nextShard = new AtomicInteger(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
 
     protected void bindSessionConfigurationService(final SessionConfigurationService service, Map<String, ?> properties) {
         this.sessionConfigurationService = service;
@@ -75,14 +137,21 @@ public class SortedSetSessionExpirationManagement implements RedisExpirationStra
             cleanupFuture.cancel(true);
             cleanupFuture = null;
         }
+
+        pageExecutor.shutdown();
+
+        synchronized (this) {
+            if (sweepLeases != null) {
+                sweepLeases.close();
+                sweepLeases = null;
+            }
+        }
     }
 
     @Override
     public void sessionIdChange(SessionData sessionData) {
-        byte[] sessionToExpireKey = getSessionToExpiryKey();
-
-        dependencyService.getRedisConnector().zrem(sessionToExpireKey, sortedSetElem(sessionData.getOldSessionId()));
-        dependencyService.getRedisConnector().zadd(sessionToExpireKey, sessionData.expiresAt(), sortedSetElem(sessionData.getId()));
+        dependencyService.getRedisConnector().zrem(getSessionToExpiryKey(sessionData.getOldSessionId()), sortedSetElem(sessionData.getOldSessionId()));
+        dependencyService.getRedisConnector().zadd(getSessionToExpiryKey(sessionData.getId()), sessionData.expiresAt(), sortedSetElem(sessionData.getId()));
     }
 
     @Override
@@ -93,78 +162,236 @@ public class SortedSetSessionExpirationManagement implements RedisExpirationStra
             sessionId = sessionId.concat(":").concat(session.getPreviousOwner());
         }
 
-        dependencyService.getRedisConnector().zrem(getSessionToExpiryKey(), sortedSetElem(sessionId));
+        dependencyService.getRedisConnector().zrem(getSessionToExpiryKey(session.getId()), sortedSetElem(sessionId));
     }
 
     @Override
     public void sessionTouched(SessionData session) {
-        byte[] sessionToExpireKey = getSessionToExpiryKey();
+        dependencyService.getRedisConnector().pipeline(sessionKey(session.getId()), pipeline -> {
+            sessionTouched(session, pipeline);
+            return () -> null;
+        });
+    }
+
+    @Override
+    public void sessionTouched(SessionData session, PipelineFacade pipeline) {
+        byte[] sessionToExpireKey = getSessionToExpiryKey(session.getId());
         byte[] sessionKey = sessionKey(session.getId());
         int sessionExpireInSeconds = session.getMaxInactiveInterval();
 
         // If session doesn't expire, then remove expire key and persist session
         if (sessionExpireInSeconds <= 0) {
-            dependencyService.getRedisConnector().persist(sessionKey);
-            dependencyService.getRedisConnector().zadd(sessionToExpireKey, Double.MAX_VALUE, sortedSetElem(session.getId()));
+            pipeline.persist(sessionKey);
+            pipeline.zadd(sessionToExpireKey, Double.MAX_VALUE, sortedSetElem(session.getId()));
         } else {
             // If session expires, then add session key to expirations cleanup instant, 
             // set expire on session and set expire on session expiration key
-            dependencyService.getRedisConnector().zadd(sessionToExpireKey, session.expiresAt(), sortedSetElem(session.getId()));
-            dependencyService.getRedisConnector().expire(sessionKey, sessionExpireInSeconds + RedisConstants.SESSION_PERSISTENCE_SAFETY_MARGIN);
+            pipeline.zadd(sessionToExpireKey, session.expiresAt(), sortedSetElem(session.getId()));
+            pipeline.expire(sessionKey, sessionExpireInSeconds + RedisConstants.SESSION_PERSISTENCE_SAFETY_MARGIN);
         }
     }
 
+    @Override
+    public void sessionFetchedAndTouched(SessionData session, boolean indexUpdated) {
+        // Session key expiry and sorted set score were updated by the repository
+        if (!indexUpdated) {
+            sessionTouched(session);
+        }
+    }
+
+    @Override
+    public byte[] getExpiryIndexKey(String sessionId) {
+        return getSessionToExpiryKey(sessionId);
+    }
+
+    @Override
+    public byte[] getExpiryIndexMember(String sessionId) {
+        return sortedSetElem(sessionId);
+    }
+
     private byte[] sortedSetElem(String id) {
-        if (sessionConfigurationService.isSticky()) {
-            id = id.concat(":").concat(sessionConfigurationService.getNode());
+        return keys().sortedSetMember(id);
+    }
+
+    /**
+     * Claims sessions expiring between start and end in pages and expires
+     * them. Each page is claimed atomically by a script, so a session is
+     * expired only by the node that claimed it. Claimed pages are processed in
+     * parallel by page workers while next page is claimed, or by the sweep
+     * itself when no worker is free. Sweep stops
+     * when deadline is reached, and remaining sessions are left for the next
+     * sweep.
+     *
+     * @param forceExpire
+     *            if <code>true</code> all sessions are claimed, otherwise
+     *            only sessions owned by this node
+     * @return <code>true</code> if all due sessions were examined before
+     *         deadline
+     */
+    @SuppressWarnings("unchecked")
+    private boolean expireSessions(byte[] shardKey, long start, long end, boolean forceExpire, SessionManager sessionManager, long deadline) {
+        if (sessionManager == null) {
+            return true;
+        }
+
+        RedisConnector redis = dependencyService.getRedisConnector();
+        List<byte[]> keys = Collections.singletonList(shardKey);
+        byte[] owner = forceExpire ? FORCE_EXPIRE : encode(":" + sessionConfigurationService.getNode());
+        List<Future<?>> pages = new ArrayList<>();
+        int offset = 0;
+        boolean completed = false;
+
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                List<Object> reply = (List<Object>) redis.eval(CLAIM_DUE_SCRIPT, keys, Arrays.asList(encode(Long.toString(start)),
+                        encode(Long.toString(end)), encode(Integer.toString(offset)), encode(Integer.toString(RedisConstants.SWEEP_PAGE_SIZE)), owner));
+                int examined = ((Long) reply.get(0)).intValue();
+                List<byte[]> claimed = new ArrayList<>(reply.size() - 1);
+
+                for (int i = 1; i < reply.size(); i++) {
+                    claimed.add((byte[]) reply.get(i));
+                }
+
+                if (!claimed.isEmpty()) {
+                    pages.add(pageExecutor.submit(() -> expire(keys.get(0), claimed, sessionManager)));
+                }
+
+                // Sessions that were not claimed stay in the set, skip them
+                offset += examined - claimed.size();
+
+                if (examined < RedisConstants.SWEEP_PAGE_SIZE) {
+                    completed = true;
+                    break;
+                }
+            }
+        } finally {
+            awaitPages(pages);
+        }
+
+        if (!completed) {
+            LOGGER.info("Sweep of expired sessions didn't complete in time, {} pages were processed.", pages.size());
         }
 
-        return encode(id);
+        return completed;
     }
 
-    private boolean sessionOwned(byte[] session) {
-        byte[] ownerAsBytes = encode(sessionConfigurationService.getNode());
+    /**
+     * Deletes claimed page of sessions. Session data of the whole page is
+     * retrieved at once. Session that is not expired, e.g. because it was
+     * accessed after its score was read, is added back with its current
+     * expiry. Sessions that couldn't be deleted are added back as due now, so
+     * they are retried by next sweep.
+     */
+    private void expire(byte[] key, List<byte[]> members, SessionManager sessionManager) {
+        Map<String, byte[]> claimed = new LinkedHashMap<>();
+
+        for (byte[] member : members) {
+            String sessionId = extractSessionId(member);
+
+            LOGGER.debug("Starting cleanup of session '{}'", sessionId);
+            claimed.put(sessionId, member);
+        }
+
+        SessionRepository repository = SessionRepositoryTracker.getRepository(sessionConfigurationService.getRepositoryFactory());
 
-        if (!sessionConfigurationService.isSticky()) {
-            return false;
+        if (repository == null) {
+            LOGGER.warn("Session repository {} is not available, {} expired sessions left to next sweep.",
+                    sessionConfigurationService.getRepositoryFactory(), claimed.size());
+            release(key, claimed.values());
+            return;
         }
 
-        if (session.length < ownerAsBytes.length + 1) {
-            return false;
+        List<SessionData> sessions;
+
+        try {
+            sessions = repository.getSessionData(claimed.keySet());
+        } catch (Exception e) { // NOSONAR
+            LOGGER.error("Unable to retrieve {} expired sessions.", claimed.size(), e);
+            release(key, claimed.values());
+            return;
         }
 
-        for (int i = ownerAsBytes.length - 1, j = session.length - 1; i >= 0; i--, j--) {
-            if (session[j] != ownerAsBytes[i]) {
-                return false;
+        long now = System.currentTimeMillis();
+        Map<byte[], Double> released = new LinkedHashMap<>();
+
+        for (SessionData sessionData : sessions) {
+            if (!sessionData.isExpired(now)) {
+                LOGGER.debug("Session {} is not expired, skipping delete.", sessionData.getId());
+                released.put(claimed.get(sessionData.getId()), score(sessionData));
+                continue;
+            }
+
+            try {
+                sessionManager.delete(sessionData, true);
+            } catch (Exception e) { // NOSONAR
+                LOGGER.error("Unable to delete expired session {}.", sessionData.getId(), e);
+                released.put(claimed.get(sessionData.getId()), (double) now);
             }
         }
 
-        if (session[session.length - ownerAsBytes.length - 1] != ':') {
-            return false;
+        release(key, released);
+    }
+
+    /**
+     * Returns score of the session in the sorted set, as set when the session
+     * is touched.
+     */
+    private static double score(SessionData session) {
+        return session.getMaxInactiveInterval() <= 0 ? Double.MAX_VALUE : session.expiresAt();
+    }
+
+    /**
+     * Adds claimed sessions back to the sorted set as due now.
+     */
+    private void release(byte[] key, Collection<byte[]> members) {
+        Map<byte[], Double> released = new LinkedHashMap<>();
+        double now = System.currentTimeMillis();
+
+        for (byte[] member : members) {
+            released.put(member, now);
         }
 
-        return true;
+        release(key, released);
     }
 
-    private void expireSessions(long start, long end, boolean forceExpire, SessionManager sessionManager) {
-        if (sessionManager == null) {
+    /**
+     * Adds claimed sessions back to the sorted set with the given scores using
+     * single ZADD.
+     */
+    private void release(byte[] key, Map<byte[], Double> members) {
+        if (members.isEmpty()) {
             return;
         }
 
-        byte[] sessionToExpireKey = getSessionToExpiryKey();
-        Set<byte[]> sessionsToExpire = dependencyService.getRedisConnector().zrangeByScore(sessionToExpireKey, start, end);
+        try {
+            dependencyService.getRedisConnector().zadd(key, members);
+        } catch (Exception e) { // NOSONAR
+            LOGGER.error("Unable to return {} claimed sessions to the sorted set.", members.size(), e);
+        }
+    }
+
+    private static ExecutorService pageExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(RedisConstants.SWEEP_PAGE_WORKERS, RedisConstants.SWEEP_PAGE_WORKERS,
+                RedisConstants.ONE_MINUTE, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "redis-sweep-page");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (task, pool) -> task.run());
+        executor.allowCoreThreadTimeOut(true);
 
-        if (CollectionUtils.isNotEmpty(sessionsToExpire)) {
-            sessionsToExpire
-                .stream()
-                .filter(session -> (forceExpire || sessionOwned(session)) && ONE.equals(dependencyService.getRedisConnector().zrem(sessionToExpireKey, session)))
-                .forEach(session -> {
-                    String sessionId = extractSessionId(session);
+        return executor;
+    }
 
-                    LOGGER.debug("Starting cleanup of session '{}'", sessionId);
-                    // Find the session data and pass
-                    // sessionManager.delete(sessionId, true);
-            });
+    private static void awaitPages(List<Future<?>> pages) {
+        for (Future<?> page : pages) {
+            try {
+                page.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                LOGGER.error("Error while expiring sessions.", e.getCause());
+            }
         }
     }
 
@@ -172,7 +399,7 @@ public class SortedSetSessionExpirationManagement implements RedisExpirationStra
         if (sessionConfigurationService.isSticky()) {
             for (int i = 0; i < session.length; i++) {
                 if (session[i] == ':') {
-                    return null; //encode(session, 0, i);
+                    return new String(session, 0, i, UTF_8);
                 }
             }
 
@@ -185,20 +412,94 @@ public class SortedSetSessionExpirationManagement implements RedisExpirationStra
         return encode(session);
     }
 
-    private byte[] getSessionToExpiryKey() {
-        return encode(RedisConstants.ALLSESSIONS_KEY + sessionConfigurationService.getNamespace());
+    private byte[] getSessionToExpiryKey(String sessionId) {
+        SessionKeyspace keyspace = keys();
+
+        return keyspace.allSessionsKey(keyspace.bucket(sessionId));
+    }
+
+    private byte[] getShardKey(int shard) {
+        return keys().allSessionsKey(shard);
+    }
+
+    /**
+     * Records number of shards used by this node, so that sorted sets of
+     * other shard counts are swept once the count is changed.
+     */
+    private void registerShards(int shards) {
+        dependencyService.getRedisConnector().sadd(keys().getShardCountsKey(), encode(Integer.toString(shards)));
+    }
+
+    /**
+     * Sweeps sorted sets of shard counts other than the current one. Members
+     * of such sets are claimed when due and expired like others, and those
+     * whose session was touched since are skipped, as they are in current
+     * shards. Shard count is forgotten once all its sets are empty, but it is
+     * recorded again by any node still using it.
+     *
+     * @return <code>true</code> if all due sessions were examined before
+     *         deadline
+     */
+    private boolean sweepOtherShardCounts(int shards, long end, long deadline) {
+        RedisConnector redis = dependencyService.getRedisConnector();
+        SessionKeyspace keyspace = keys();
+
+        for (byte[] value : redis.smembers(keyspace.getShardCountsKey())) {
+            int count;
+
+            try {
+                count = Integer.parseInt(encode(value));
+            } catch (NumberFormatException e) {
+                count = 0;
+            }
+
+            if (count == shards) {
+                continue;
+            }
+
+            boolean empty = true;
+
+            for (int shard = 0; shard < count; shard++) {
+                byte[] key = keyspace.allSessionsKey(shard, count);
+
+                if (getSweepLeases().acquire("sorted-set-" + count, shard) && !expireSessions(key, 0, end, true, sessionManager, deadline)) {
+                    return false;
+                }
+
+                empty &= redis.zrange(key, 0, 0).isEmpty();
+            }
+
+            if (empty) {
+                LOGGER.info("Sorted sets of {} shards are empty, they will no longer be swept.", encode(value));
+                redis.srem(keyspace.getShardCountsKey(), value);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns leases of shard sweeps. Leases are created on first sweep, when
+     * all references of the component are bound.
+     */
+    private synchronized SweepLeases getSweepLeases() {
+        if (sweepLeases == null) {
+            sweepLeases = new SweepLeases(sessionConfigurationService, redisConfigurationService, dependencyService::getRedisConnector);
+        }
+
+        return sweepLeases;
+    }
+
+    private int getShards() {
+        return redisConfigurationService == null ? RedisConstants.DEFAULT_EXPIRATION_BUCKETS : redisConfigurationService.getExpirationBuckets();
     }
 
     private byte[] sessionKey(String sessionId) {
-        return encode(new StringBuffer()
-                        .append(RedisConstants.DEFAULT_SESSION_PREFIX)
-                        .append(":")
-                        .append(sessionConfigurationService.getNamespace())
-                        .append(":")
-                        .append("{")
-                        .append(sessionId)
-                        .append('}')
-                        .toString());
+        return keys().sessionKey(sessionId);
+    }
+
+    private SessionKeyspace keys() {
+        return SessionKeyspace.of(sessionConfigurationService, redisConfigurationService);
     }
 
     private void startExpiredSessionsTask() {
@@ -213,13 +514,41 @@ public class SortedSetSessionExpirationManagement implements RedisExpirationStra
 
             long now = System.currentTimeMillis();
             long start = sticky ? now - RedisConstants.SESSION_PERSISTENCE_SAFETY_MARGIN_MILLIS : 0;
+            long deadline = now + sweepBudget;
+            int shards = getShards();
+            int first = Math.floorMod(nextShard.get(), shards);
 
             LOGGER.debug("Cleaning up sessions expiring at {}", now);
-            expireSessions(start, now, !sticky, sessionManager);
+            registerShards(shards);
+
+            // Shards are swept round-robin, and a sweep that runs out of time
+            // resumes from the unfinished shard on next run
+            for (int i = 0; i < shards; i++) {
+                int shard = (first + i) % shards;
+                boolean completed = true;
+
+                // In sticky mode, each node expires its own recent sessions, and
+                // only sessions left beyond safety margin are swept by lease holder
+                if (sticky) {
+                    completed = expireSessions(getShardKey(shard), start, now, false, sessionManager, deadline);
+                }
 
-            if (sticky) {
-                expireSessions(0, start, true, sessionManager);
+                if (completed && getSweepLeases().acquire("sorted-set", shard)) {
+                    completed = sticky
+                            ? expireSessions(getShardKey(shard), 0, start, true, sessionManager, deadline)
+                            : expireSessions(getShardKey(shard), start, now, true, sessionManager, deadline);
+                }
+
+                if (!completed) {
+                    nextShard.set(shard);
+                    return;
+                }
             }
+
+            nextShard.set(first + 1);
+
+            // Sessions indexed before number of shards changed are swept once current shards are
+            sweepOtherShardCounts(shards, sticky ? start : now, deadline);
         };
 
         // Interval of polling is either 1/10th of the maximum inactive interval, or
@@ -230,6 +559,8 @@ public class SortedSetSessionExpirationManagement implements RedisExpirationStra
             interval = RedisConstants.REGULAR_CLEANUP_INTERVAL;
         }
 
+        sweepBudget = TimeUnit.SECONDS.toMillis(interval) * RedisConstants.SWEEP_TIME_BUDGET_PERCENT / 100;
+
         LOGGER.debug("Cleanup interval for sessions is {}", interval);
         cleanupFuture = (ScheduledFuture<?>) TaskExecutorProcess.getInstance(sessionConfigurationService).submit(cleanupTask, true, interval, interval, TimeUnit.SECONDS);
     }
@@ -0,0 +1,158 @@
+package com.test.session.repository.expiration;
+
+import static redis.clients.util.SafeEncoder.encode;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.test.session.TaskExecutorProcess;
+import com.test.session.api.RedisConfigurationService;
+import com.test.session.api.SessionConfigurationService;
+import com.test.session.connection.api.RedisConnector;
+import com.test.session.connection.api.RedisScript;
+import com.test.session.models.RedisConstants;
+
+/**
+ * Assigns sweep of each expiration bucket to one node at a time. A node may
+ * sweep a bucket only while it holds the lease of the bucket, which is a redis
+ * key set with NX and PX options to the id of the node. Held leases are
+ * renewed by a heartbeat, so a node keeps sweeping its buckets, and when the
+ * node stops, its leases expire and other nodes take over the buckets. When
+ * leases are not enabled, every node sweeps every bucket.
+ */
+final class SweepLeases {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SweepLeases.class);
+
+    /**
+     * Acquires or renews lease KEYS[1] for owner ARGV[1] for ARGV[2]
+     * milliseconds. Returns 1 if owner holds the lease.
+     */
+    private static final RedisScript ACQUIRE_SCRIPT = new RedisScript(
+            "local owner = redis.call('GET', KEYS[1])\n"
+            + "if owner == ARGV[1] then\n"
+            + "  redis.call('PEXPIRE', KEYS[1], ARGV[2])\n"
+            + "  return 1\n"
+            + "end\n"
+            + "if not owner and redis.call('SET', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then\n"
+            + "  return 1\n"
+            + "end\n"
+            + "return 0");
+
+    /**
+     * Deletes lease KEYS[1] if it is held by owner ARGV[1]. ARGV[2] is not
+     * used.
+     */
+    private static final RedisScript RELEASE_SCRIPT = new RedisScript(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n"
+            + "  return redis.call('DEL', KEYS[1])\n"
+            + "end\n"
+            + "return 0");
+
+    private static final Long ONE = Long.valueOf(1L);
+
+    private final Supplier<RedisConnector> redis;
+    private final boolean enabled;
+    private final String keyPrefix;
+    private final byte[] owner;
+    private final byte[] period;
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+    private ScheduledFuture<?> heartbeat;
+
+    SweepLeases(SessionConfigurationService sessionConfiguration, RedisConfigurationService redisConfiguration, Supplier<RedisConnector> redis) {
+        this.redis = redis;
+        this.enabled = redisConfiguration != null && redisConfiguration.isSweepLeases();
+        this.keyPrefix = RedisConstants.DEFAULT_SESSION_PREFIX + ":" + sessionConfiguration.getNamespace() + ":sweep-lease:";
+        // Several instances may run with the same node name, e.g. after restart
+        this.owner = encode(sessionConfiguration.getNode() + ":" + UUID.randomUUID());
+
+        long leasePeriod = enabled ? Math.max(3, redisConfiguration.getSweepLeasePeriod()) : RedisConstants.DEFAULT_SWEEP_LEASE_PERIOD;
+        this.period = encode(String.valueOf(leasePeriod));
+
+        if (enabled) {
+            long interval = leasePeriod / 3;
+            heartbeat = (ScheduledFuture<?>) TaskExecutorProcess.getInstance(sessionConfiguration).submit(this::renew, true, interval, interval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if this node may sweep the bucket. Lease is
+     * acquired if it is free, or renewed if this node already holds it.
+     *
+     * @param sweep
+     *            name of the sweep
+     * @param bucket
+     *            index of the bucket
+     * @return <code>true</code> if this node holds the lease or if leases are
+     *         not enabled
+     */
+    boolean acquire(String sweep, int bucket) {
+        if (!enabled) {
+            return true;
+        }
+
+        String key = keyPrefix + sweep + ":" + bucket;
+
+        try {
+            if (ONE.equals(eval(ACQUIRE_SCRIPT, key))) {
+                if (held.add(key)) {
+                    LOGGER.info("Acquired sweep lease {}", key);
+                }
+                return true;
+            }
+        } catch (Exception e) { // NOSONAR
+            LOGGER.warn("Unable to acquire sweep lease {}", key, e);
+        }
+
+        held.remove(key);
+        return false;
+    }
+
+    /**
+     * Stops heartbeat and releases held leases, so other nodes can take over
+     * without waiting for leases to expire.
+     */
+    void close() {
+        if (heartbeat != null) {
+            heartbeat.cancel(true);
+            heartbeat = null;
+        }
+
+        for (String key : held) {
+            try {
+                eval(RELEASE_SCRIPT, key);
+            } catch (Exception e) { // NOSONAR
+                LOGGER.warn("Unable to release sweep lease {}", key, e);
+            }
+        }
+
+        held.clear();
+    }
+
+    private void renew() {
+        for (String key : held) {
+            try {
+                if (!ONE.equals(eval(ACQUIRE_SCRIPT, key))) {
+                    LOGGER.info("Lost sweep lease {}", key);
+                    held.remove(key);
+                }
+            } catch (Exception e) { // NOSONAR
+                // Lease is kept until next sweep or heartbeat confirms it is lost
+                LOGGER.warn("Unable to renew sweep lease {}", key, e);
+            }
+        }
+    }
+
+    private Object eval(RedisScript script, String key) {
+        return redis.get().eval(script, Collections.singletonList(encode(key)), Arrays.asList(owner, period));
+    }
+}
@@ -0,0 +1,657 @@
+package com.test.session.serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Compact binary format for session attributes. Serialized value starts with
+ * {@link #FORMAT_TAG}, which allows distinguishing it from JDK serialization
+ * streams that start with <code>0xAC</code>.
+ * <p>
+ * Strings, boxed primitives, booleans, enums, dates, byte arrays and the
+ * common collection and map implementations (when the exact class is
+ * {@link ArrayList}, {@link LinkedList}, {@link HashSet},
+ * {@link LinkedHashSet}, {@link HashMap} or {@link LinkedHashMap}) are written
+ * using dedicated encodings. Other types are written using JDK serialization.
+ * Classes that need to be named in the stream (enums) are registered on first
+ * use, and later occurrences refer to them by index. The type of each class is
+ * resolved once and cached using {@link ClassValue}.
+ * <p>
+ * Unlike JDK serialization, the format doesn't preserve identity of objects
+ * referenced several times from collections. Values nested deeper than
+ * {@value #MAX_DEPTH} levels (e.g. self referencing collections) are written
+ * completely using JDK serialization.
+ * <p>
+ * Output buffers are pooled by the format instance until it is closed. The
+ * pool holds at most as many buffers as there were concurrent writes.
+ */
+final class BinaryFormat {
+    /**
+     * The first byte of values written by this format.
+     */
+    static final byte FORMAT_TAG = 0x01;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte SHORT = 6;
+    private static final byte BYTE = 7;
+    private static final byte TRUE = 8;
+    private static final byte FALSE = 9;
+    private static final byte CHARACTER = 10;
+    private static final byte BYTES = 11;
+    private static final byte ENUM = 12;
+    private static final byte DATE = 13;
+    private static final byte ARRAY_LIST = 14;
+    private static final byte LINKED_LIST = 15;
+    private static final byte HASH_SET = 16;
+    private static final byte LINKED_HASH_SET = 17;
+    private static final byte HASH_MAP = 18;
+    private static final byte LINKED_HASH_MAP = 19;
+    private static final byte JDK = 20;
+
+    private static final int MAX_DEPTH = 32;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    // Larger buffers are not kept in pool
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<Class<?>, Byte> KNOWN_TYPES = new HashMap<>();
+
+    static {
+        KNOWN_TYPES.put(String.class, STRING);
+        KNOWN_TYPES.put(Integer.class, INTEGER);
+        KNOWN_TYPES.put(Long.class, LONG);
+        KNOWN_TYPES.put(Double.class, DOUBLE);
+        KNOWN_TYPES.put(Float.class, FLOAT);
+        KNOWN_TYPES.put(Short.class, SHORT);
+        KNOWN_TYPES.put(Byte.class, BYTE);
+        KNOWN_TYPES.put(Boolean.class, TRUE);
+        KNOWN_TYPES.put(Character.class, CHARACTER);
+        KNOWN_TYPES.put(byte[].class, BYTES);
+        KNOWN_TYPES.put(Date.class, DATE);
+        KNOWN_TYPES.put(ArrayList.class, ARRAY_LIST);
+        KNOWN_TYPES.put(LinkedList.class, LINKED_LIST);
+        KNOWN_TYPES.put(HashSet.class, HASH_SET);
+        KNOWN_TYPES.put(LinkedHashSet.class, LINKED_HASH_SET);
+        KNOWN_TYPES.put(HashMap.class, HASH_MAP);
+        KNOWN_TYPES.put(LinkedHashMap.class, LINKED_HASH_MAP);
+    }
+
+    // Per class descriptor, i.e. type used to write instances of the class
+    private static final ClassValue<Byte> DESCRIPTORS = new ClassValue<Byte>() {
+        @Override
+        protected Byte computeValue(Class<?> type) {
+            Byte known = KNOWN_TYPES.get(type);
+
+            if (known != null) {
+                return known;
+            }
+
+            return Enum.class.isAssignableFrom(type) ? ENUM : JDK;
+        }
+    };
+
+    private final ClassLoader classLoader;
+    private final Map<String, Class<?>> resolvedClasses = new ConcurrentHashMap<>();
+    private final Queue<Output> buffers = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates format instance.
+     *
+     * @param classLoader
+     *            class loader used to resolve classes when reading values
+     */
+    BinaryFormat(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Serializes value.
+     *
+     * @param value
+     *            the value to serialize, may be <code>null</code>
+     * @return serialized value starting with {@link #FORMAT_TAG}
+     * @throws IOException
+     *             if value, or one of its elements, can't be serialized
+     */
+    byte[] write(Object value) throws IOException {
+        Output pooled = buffers.poll();
+        Output out = pooled == null ? new Output() : pooled;
+
+        out.start();
+
+        try {
+            try {
+                writeValue(out, value, 0);
+            } catch (DepthExceededException e) { // NOSONAR fall back to JDK
+                out.start();
+                writeJdk(out, value);
+            }
+
+            return out.toByteArray();
+        } finally {
+            out.finish();
+
+            if (!closed) {
+                buffers.offer(out);
+            }
+        }
+    }
+
+    /**
+     * Empties the pool of output buffers. Buffers used after this call are
+     * not pooled.
+     */
+    void close() {
+        closed = true;
+        buffers.clear();
+    }
+
+    /**
+     * Deserializes value.
+     *
+     * @param data
+     *            serialized value starting with {@link #FORMAT_TAG}
+     * @return the value
+     * @throws IOException
+     *             if data is corrupted or class of one of the elements is not
+     *             available
+     */
+    Object read(byte[] data) throws IOException {
+        Input in = new Input(data);
+
+        if (in.readByte() != FORMAT_TAG) {
+            throw new IOException("Data is not in binary format.");
+        }
+
+        try {
+            return readValue(in);
+        } catch (IndexOutOfBoundsException | ClassCastException | IllegalArgumentException e) {
+            throw new IOException("Corrupted binary data.", e);
+        }
+    }
+
+    private void writeValue(Output out, Object value, int depth) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+
+        byte type = DESCRIPTORS.get(value.getClass());
+
+        switch (type) {
+            case STRING:
+                out.write(STRING);
+                out.writeString((String) value);
+                break;
+            case INTEGER:
+                out.write(INTEGER);
+                out.writeVarLong(zigZag((Integer) value));
+                break;
+            case LONG:
+                out.write(LONG);
+                out.writeVarLong(zigZag((Long) value));
+                break;
+            case DOUBLE:
+                out.write(DOUBLE);
+                out.writeLong(Double.doubleToLongBits((Double) value));
+                break;
+            case FLOAT:
+                out.write(FLOAT);
+                out.writeInt(Float.floatToIntBits((Float) value));
+                break;
+            case SHORT:
+                out.write(SHORT);
+                out.writeVarLong(zigZag((Short) value));
+                break;
+            case BYTE:
+                out.write(BYTE);
+                out.write((Byte) value);
+                break;
+            case TRUE:
+                out.write((Boolean) value ? TRUE : FALSE);
+                break;
+            case CHARACTER:
+                out.write(CHARACTER);
+                out.writeVarLong((Character) value);
+                break;
+            case BYTES:
+                byte[] bytes = (byte[]) value;
+                out.write(BYTES);
+                out.writeVarLong(bytes.length);
+                out.write(bytes, 0, bytes.length);
+                break;
+            case ENUM:
+                Enum<?> constant = (Enum<?>) value;
+                out.write(ENUM);
+                out.writeClass(constant.getDeclaringClass());
+                out.writeString(constant.name());
+                break;
+            case DATE:
+                out.write(DATE);
+                out.writeLong(((Date) value).getTime());
+                break;
+            case ARRAY_LIST:
+            case LINKED_LIST:
+            case HASH_SET:
+            case LINKED_HASH_SET:
+                checkDepth(depth);
+                Collection<?> collection = (Collection<?>) value;
+                out.write(type);
+                out.writeVarLong(collection.size());
+
+                for (Object element : collection) {
+                    writeValue(out, element, depth + 1);
+                }
+                break;
+            case HASH_MAP:
+            case LINKED_HASH_MAP:
+                checkDepth(depth);
+                Map<?, ?> map = (Map<?, ?>) value;
+                out.write(type);
+                out.writeVarLong(map.size());
+
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(out, entry.getKey(), depth + 1);
+                    writeValue(out, entry.getValue(), depth + 1);
+                }
+                break;
+            default:
+                writeJdk(out, value);
+        }
+    }
+
+    private static void writeJdk(Output out, Object value) throws IOException {
+        out.write(JDK);
+        int lengthPosition = out.reserveInt();
+
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(value);
+        }
+
+        out.putInt(lengthPosition, out.size - lengthPosition - 4);
+    }
+
+    private Object readValue(Input in) throws IOException {
+        byte type = in.readByte();
+        int size;
+
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readString();
+            case INTEGER:
+                return (int) unZigZag(in.readVarLong());
+            case LONG:
+                return unZigZag(in.readVarLong());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case SHORT:
+                return (short) unZigZag(in.readVarLong());
+            case BYTE:
+                return in.readByte();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case CHARACTER:
+                return (char) in.readVarLong();
+            case BYTES:
+                return in.readBytes(in.readLength());
+            case ENUM:
+                return readEnum(in);
+            case DATE:
+                return new Date(in.readLong());
+            case ARRAY_LIST:
+                size = in.readLength();
+                return readElements(in, new ArrayList<>(size), size);
+            case LINKED_LIST:
+                return readElements(in, new LinkedList<>(), in.readLength());
+            case HASH_SET:
+                size = in.readLength();
+                return readElements(in, new HashSet<>(size), size);
+            case LINKED_HASH_SET:
+                size = in.readLength();
+                return readElements(in, new LinkedHashSet<>(size), size);
+            case HASH_MAP:
+                size = in.readLength();
+                return readEntries(in, new HashMap<>(size), size);
+            case LINKED_HASH_MAP:
+                size = in.readLength();
+                return readEntries(in, new LinkedHashMap<>(size), size);
+            case JDK:
+                return readJdk(in);
+            default:
+                throw new IOException("Unknown type " + type + " in binary data.");
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Object readEnum(Input in) throws IOException {
+        Class<?> type = readClass(in);
+
+        if (!type.isEnum()) {
+            throw new IOException("Class " + type.getName() + " is not an enum.");
+        }
+
+        return Enum.valueOf((Class) type, in.readString());
+    }
+
+    private Collection<Object> readElements(Input in, Collection<Object> collection, int size) throws IOException {
+        for (int i = 0; i < size; i++) {
+            collection.add(readValue(in));
+        }
+
+        return collection;
+    }
+
+    private Map<Object, Object> readEntries(Input in, Map<Object, Object> map, int size) throws IOException {
+        for (int i = 0; i < size; i++) {
+            Object key = readValue(in);
+            map.put(key, readValue(in));
+        }
+
+        return map;
+    }
+
+    private Object readJdk(Input in) throws IOException {
+        int length = in.readInt();
+
+        try (ObjectInputStream is = new ClassLoaderObjectInputStream(classLoader, new ByteArrayInputStream(in.data, in.position, length))) {
+            in.position += length;
+
+            return is.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to read object.", e);
+        }
+    }
+
+    private Class<?> readClass(Input in) throws IOException {
+        int reference = (int) in.readVarLong();
+
+        if (reference > 0) {
+            return in.classes.get(reference - 1);
+        }
+
+        String name = in.readString();
+        Class<?> type = resolvedClasses.get(name);
+
+        if (type == null) {
+            try {
+                type = Class.forName(name, false, classLoader);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unable to load class " + name, e);
+            }
+
+            resolvedClasses.put(name, type);
+        }
+
+        in.classes.add(type);
+
+        return type;
+    }
+
+    private static void checkDepth(int depth) {
+        if (depth >= MAX_DEPTH) {
+            throw new DepthExceededException();
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Growable byte buffer used to write values.
+     */
+    private static final class Output extends OutputStream {
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int size;
+        private final Map<Class<?>, Integer> classes = new HashMap<>();
+
+        void start() {
+            size = 0;
+            classes.clear();
+            buffer[size++] = FORMAT_TAG;
+        }
+
+        void finish() {
+            classes.clear();
+
+            if (buffer.length > MAX_POOLED_BUFFER_SIZE) {
+                buffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[size];
+            System.arraycopy(buffer, 0, result, 0, size);
+
+            return result;
+        }
+
+        private void ensureCapacity(int additional) {
+            int required = size + additional;
+
+            if (required > buffer.length) {
+                byte[] grown = new byte[Math.max(required, buffer.length << 1)];
+                System.arraycopy(buffer, 0, grown, 0, size);
+                buffer = grown;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(b, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            long remaining = value;
+
+            while ((remaining & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((remaining & 0x7F) | 0x80);
+                remaining >>>= 7;
+            }
+
+            buffer[size++] = (byte) remaining;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            putInt(size, value);
+            size += 4;
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        int reserveInt() {
+            ensureCapacity(4);
+            int position = size;
+            size += 4;
+
+            return position;
+        }
+
+        void putInt(int position, int value) {
+            buffer[position] = (byte) (value >>> 24);
+            buffer[position + 1] = (byte) (value >>> 16);
+            buffer[position + 2] = (byte) (value >>> 8);
+            buffer[position + 3] = (byte) value;
+        }
+
+        /**
+         * Writes number of chars followed by chars in modified UTF-8 encoding.
+         */
+        void writeString(String value) {
+            int length = value.length();
+
+            writeVarLong(length);
+            ensureCapacity(length * 3);
+
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+
+                if (c < 0x80 && c != 0) {
+                    buffer[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[size++] = (byte) (0xC0 | (c >> 6));
+                    buffer[size++] = (byte) (0x80 | (c & 0x3F));
+                } else {
+                    buffer[size++] = (byte) (0xE0 | (c >> 12));
+                    buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[size++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        void writeClass(Class<?> type) {
+            Integer reference = classes.get(type);
+
+            if (reference != null) {
+                writeVarLong(reference + 1L);
+            } else {
+                writeVarLong(0);
+                writeString(type.getName());
+                classes.put(type, classes.size());
+            }
+        }
+
+        @Override
+        public void close() {
+            // Buffer is reused, nothing to close
+        }
+    }
+
+    /**
+     * Cursor over serialized value.
+     */
+    private static final class Input {
+        private final byte[] data;
+        private int position;
+        private final List<Class<?>> classes = new ArrayList<>();
+
+        Input(byte[] data) {
+            this.data = data;
+        }
+
+        byte readByte() {
+            return data[position++];
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed variable length number.");
+        }
+
+        int readLength() throws IOException {
+            long length = readVarLong();
+
+            if (length < 0 || length > data.length - position) {
+                throw new IOException("Invalid length " + length + " in binary data.");
+            }
+
+            return (int) length;
+        }
+
+        int readInt() {
+            int value = (data[position] & 0xFF) << 24
+                    | (data[position + 1] & 0xFF) << 16
+                    | (data[position + 2] & 0xFF) << 8
+                    | (data[position + 3] & 0xFF);
+            position += 4;
+
+            return value;
+        }
+
+        long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        byte[] readBytes(int length) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(data, position, bytes, 0, length);
+            position += length;
+
+            return bytes;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            char[] chars = new char[length];
+
+            for (int i = 0; i < length; i++) {
+                int b = data[position++] & 0xFF;
+
+                if (b < 0x80) {
+                    chars[i] = (char) b;
+                } else if (b < 0xE0) {
+                    chars[i] = (char) (((b & 0x1F) << 6) | (data[position++] & 0x3F));
+                } else {
+                    chars[i] = (char) (((b & 0x0F) << 12) | ((data[position++] & 0x3F) << 6) | (data[position++] & 0x3F));
+                }
+            }
+
+            return new String(chars);
+        }
+    }
+
+    /**
+     * Thrown when value is nested too deep to be written in binary format.
+     */
+    private static final class DepthExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DepthExceededException() {
+            super(null, null, false, false);
+        }
+    }
+}
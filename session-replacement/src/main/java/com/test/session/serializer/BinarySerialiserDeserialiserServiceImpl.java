@@ -0,0 +1,23 @@
+package com.test.session.serializer;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Service;
+
+import com.test.session.api.SerializerDeserializerService;
+import com.test.session.models.SessionConstants;
+
+/**
+ * Serializes session attributes using compact binary format described in
+ * {@link BinaryFormat}. Types not supported by the format are serialized using
+ * JDK serialization. Encryption and deserialization are inherited from
+ * {@link SerialiserDeserialiserServiceImpl}, so data written in JDK format
+ * remains readable, e.g. while switching from one format to another.
+ */
+@Component(immediate = true, name = SessionConstants.BINARY_SERIALIZER_VALUE)
+@Service(SerializerDeserializerService.class)
+public class BinarySerialiserDeserialiserServiceImpl extends SerialiserDeserialiserServiceImpl {
+    @Override
+    protected byte[] encode(Object value) {
+        return binarySerialise(value);
+    }
+}
@@ -7,15 +7,28 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.slf4j.Logger;
@@ -23,49 +36,140 @@ import org.slf4j.LoggerFactory;
 
 import com.test.session.api.SerializerDeserializerService;
 import com.test.session.api.SessionConfigurationService;
+import com.test.session.models.SessionConstants;
 
 /**
- * Encrypts and decrypts session data before storing it in session repository.
- * Session is encrypted using AES/CBC/PKCS5Padding transformation. The
- * implementation delegates serializing and deserializing to a wrapped
- * {@link SerializerDeserializerService}.
+ * Serializes session attributes using JDK serialization, and encrypts and
+ * decrypts session data before storing it in session repository. Session is
+ * encrypted using AES/CBC/PKCS5Padding or, when
+ * {@link SessionConstants#ENCRYPTION_MODE_GCM} is configured, using
+ * AES/GCM/NoPadding transformation.
+ * <p>
+ * CBC encrypted data starts with the initialization vector. GCM encrypted data
+ * starts with a 4 byte header (2 magic bytes, format version and flags),
+ * followed by the initialization vector. The header is authenticated together
+ * with encrypted content. Data in either mode is decrypted regardless of the
+ * configured mode, and data with GCM header that fails authentication is
+ * rejected.
+ * <p>
+ * The key derived from configuration is cached until configured key changes.
+ * {@link Cipher}, {@link Deflater} and {@link Inflater} instances are pooled by
+ * the service and released when it is deactivated.
+ * <p>
+ * Deserialization recognizes format of the data by its first byte, so values
+ * written by {@link BinarySerialiserDeserialiserServiceImpl} can be read as
+ * well. Subclasses change the format used for writing by overriding
+ * {@link #encode(Object)}.
+ * <p>
+ * When compression threshold is configured, serialized values of that size or
+ * larger are compressed using deflate at its fastest level before being
+ * encrypted. Compressed value starts with {@link #COMPRESSED_TAG} followed by 4
+ * byte length of uncompressed value. Values that don't get smaller are stored
+ * uncompressed. The service counts bytes before and after compression and time
+ * spent compressing.
  * <p>
  * The key must be provided either by calling {@link #initKey(String)} or via
  * configuration property.
  */
-@Component(immediate = true)
-@Service
+@Component(immediate = true, name = SessionConstants.JDK_SERIALIZER_VALUE)
+@Service(SerializerDeserializerService.class)
 public class SerialiserDeserialiserServiceImpl implements SerializerDeserializerService {
     private static final Logger LOGGER = LoggerFactory.getLogger(SerialiserDeserialiserServiceImpl.class);
 
     // TODO: For now using JDK serialiser, need to switch back to JSON
     // private static final Gson GSON = new Gson();
 
+    private static final String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int CBC_IV_LENGTH = 16;
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH_BITS = 128;
+
+    private static final byte HEADER_MAGIC_1 = (byte) 0xE5;
+    private static final byte HEADER_MAGIC_2 = (byte) 0x5A;
+    private static final byte GCM_FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 4;
+
+    /**
+     * The first byte of compressed values. Uncompressed values start with
+     * {@link BinaryFormat#FORMAT_TAG} or with JDK serialization stream magic.
+     */
+    static final byte COMPRESSED_TAG = 0x02;
+    private static final int COMPRESSED_HEADER_LENGTH = 5;
+    /**
+     * Deflate doesn't compress better than about 1032:1, so a larger declared
+     * length means the data is corrupted.
+     */
+    private static final int MAX_COMPRESSION_RATIO = 1032;
+
     private SecureRandom random = new SecureRandom();
 
+    // Pools hold at most as many instances as there were concurrent calls
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Cipher> cbcCiphers = new ConcurrentLinkedQueue<>();
+    private final Queue<Cipher> gcmCiphers = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    // Compression metrics
+    private final AtomicLong compressionAttempts = new AtomicLong();
+    private final AtomicLong compressedValues = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong compressionTime = new AtomicLong();
+
+    private volatile DerivedKey derivedKey;
+
+    private final BinaryFormat binaryFormat = new BinaryFormat(SerialiserDeserialiserServiceImpl.class.getClassLoader());
+
     @Reference
     private SessionConfigurationService configurationService;
 
+    /**
+     * Releases native memory held by pooled compressors, and empties pools
+     * of ciphers and output buffers.
+     */
+    @Deactivate
+    protected void close(Map<String, ?> properties) {
+        closed = true;
+        binaryFormat.close();
+
+        for (Deflater deflater = deflaters.poll(); deflater != null; deflater = deflaters.poll()) {
+            deflater.end();
+        }
+
+        for (Inflater inflater = inflaters.poll(); inflater != null; inflater = inflaters.poll()) {
+            inflater.end();
+        }
+
+        cbcCiphers.clear();
+        gcmCiphers.clear();
+    }
+
     @Override
     public byte[] serialize(Object value) {
-        byte[] arrayToEncrypt = jdkSerialise(value);
+        return serialize(value, null);
+    }
 
-        if (!configurationService.isUsingEncryption()) {
-            return arrayToEncrypt;
+    @Override
+    public byte[] serialize(Object value, LongConsumer contentHash) {
+        byte[] arrayToEncrypt = compress(encode(value));
+
+        // Encrypted data uses random IV, so the hash is taken from the plain content
+        if (contentHash != null) {
+            contentHash.accept(arrayToEncrypt == null ? 0 : XxHash64.hash(arrayToEncrypt));
         }
 
-        byte[] iv = new byte[16];
-        random.nextBytes(iv);
+        if (!configurationService.isUsingEncryption() || arrayToEncrypt == null) {
+            return arrayToEncrypt;
+        }
 
         try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, initKey(configurationService.getEncryptionKey()), new IvParameterSpec(iv));
+            if (SessionConstants.ENCRYPTION_MODE_GCM.equals(configurationService.getEncryptionMode())) {
+                return encryptGcm(arrayToEncrypt);
+            }
 
-            ByteBuffer output = ByteBuffer.allocate(iv.length + cipher.getOutputSize(arrayToEncrypt.length));
-            output.put(iv);
-            cipher.doFinal(ByteBuffer.wrap(arrayToEncrypt), output);
-
-            return output.array();
+            return encryptCbc(arrayToEncrypt);
         } catch (Exception e) {
             LOGGER.error("Unable to encrypt data.", e);
             return arrayToEncrypt;
@@ -74,24 +178,342 @@ public class SerialiserDeserialiserServiceImpl implements SerializerDeserializer
 
     @Override
     public Object deserialize(byte[] data) {
-        if (!configurationService.isUsingEncryption()) {
-            return jdkDeserialize(data);
+        return deserialize(data, null);
+    }
+
+    @Override
+    public Object deserialize(byte[] data, LongConsumer contentHash) {
+        byte[] content = configurationService.isUsingEncryption() ? decrypt(data) : data;
+
+        if (contentHash != null && data != null) {
+            contentHash.accept(content == null ? 0 : XxHash64.hash(content));
+        }
+
+        return decode(content);
+    }
+
+    /**
+     * Serializes value without encrypting it. Default implementation uses JDK
+     * serialization.
+     *
+     * @param value
+     *            the object to serialize
+     * @return serialized object or <code>null</code> if object can't be
+     *         serialized
+     */
+    protected byte[] encode(Object value) {
+        return jdkSerialise(value);
+    }
+
+    /**
+     * Serializes value using {@link BinaryFormat}.
+     *
+     * @param value
+     *            the object to serialize
+     * @return serialized object or <code>null</code> if object can't be
+     *         serialized
+     */
+    protected final byte[] binarySerialise(Object value) {
+        try {
+            return binaryFormat.write(value);
+        } catch (IOException e) {
+            LOGGER.error("Unable to serialize object. See stacktrace for more information.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns number of values that were large enough to be compressed.
+     *
+     * @return number of compression attempts
+     */
+    public long getCompressionAttempts() {
+        return compressionAttempts.get();
+    }
+
+    /**
+     * Returns number of values stored in compressed form.
+     *
+     * @return number of compressed values
+     */
+    public long getCompressedValues() {
+        return compressedValues.get();
+    }
+
+    /**
+     * Returns ratio between size of stored and size of serialized values, for
+     * all values that were large enough to be compressed. Values that didn't
+     * get smaller are counted with their original size.
+     *
+     * @return compression ratio, or 1 if nothing was compressed
+     */
+    public double getCompressionRatio() {
+        long before = bytesBeforeCompression.get();
+
+        return before == 0 ? 1 : (double) bytesAfterCompression.get() / before;
+    }
+
+    /**
+     * Returns total time spent compressing values.
+     *
+     * @return time in milliseconds
+     */
+    public long getCompressionTime() {
+        return TimeUnit.NANOSECONDS.toMillis(compressionTime.get());
+    }
+
+    private byte[] compress(byte[] data) {
+        int threshold = configurationService.getCompressionThreshold();
+
+        if (data == null || threshold <= 0 || data.length < threshold) {
+            return data;
+        }
+
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+
+        // Compressed value is kept only if it is smaller than the original
+        byte[] output = new byte[data.length];
+        byte[] result = data;
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            int length = COMPRESSED_HEADER_LENGTH;
+
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+
+            if (deflater.finished() && length < output.length) {
+                ByteBuffer.wrap(output).put(COMPRESSED_TAG).putInt(data.length);
+                result = Arrays.copyOf(output, length);
+                compressedValues.incrementAndGet();
+            }
+        } finally {
+            deflater.reset();
+
+            if (closed) {
+                deflater.end();
+            } else {
+                deflaters.offer(deflater);
+            }
+        }
+
+        compressionAttempts.incrementAndGet();
+        bytesBeforeCompression.addAndGet(data.length);
+        bytesAfterCompression.addAndGet(result.length);
+        compressionTime.addAndGet(System.nanoTime() - start);
+
+        return result;
+    }
+
+    private byte[] decompress(byte[] data) {
+        int length = ByteBuffer.wrap(data, 1, 4).getInt();
+        long maxLength = (long) (data.length - COMPRESSED_HEADER_LENGTH) * MAX_COMPRESSION_RATIO;
+
+        if (length < 0 || length > maxLength) {
+            LOGGER.error("Invalid length {} of {} bytes of compressed data.", length, data.length);
+            return null;
+        }
+
+        Inflater inflater = inflaters.poll();
+
+        if (inflater == null) {
+            inflater = new Inflater();
         }
 
-        byte[] iv = new byte[16];
-        System.arraycopy(data, 0, iv, 0, iv.length);
-        byte[] decrypted = null;
+        byte[] output = new byte[length];
 
         try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, initKey(configurationService.getEncryptionKey()), new IvParameterSpec(iv));
+            inflater.setInput(data, COMPRESSED_HEADER_LENGTH, data.length - COMPRESSED_HEADER_LENGTH);
+
+            int inflated = 0;
+
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(output, inflated, length - inflated);
+
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
 
-            decrypted = cipher.doFinal(data, iv.length, data.length - iv.length);
+                inflated += count;
+            }
+
+            if (inflated != length) {
+                LOGGER.error("Compressed data is truncated, expected {} bytes, got {}.", length, inflated);
+                return null;
+            }
+
+            return output;
+        } catch (DataFormatException e) {
+            LOGGER.error("Unable to decompress data.", e);
+            return null;
+        } finally {
+            inflater.reset();
+
+            if (closed) {
+                inflater.end();
+            } else {
+                inflaters.offer(inflater);
+            }
+        }
+    }
+
+    private Object decode(byte[] serialized) {
+        byte[] data = serialized;
+
+        if (data != null && data.length >= COMPRESSED_HEADER_LENGTH && data[0] == COMPRESSED_TAG) {
+            data = decompress(data);
+        }
+
+        if (data != null && data.length > 0 && data[0] == BinaryFormat.FORMAT_TAG) {
+            try {
+                return binaryFormat.read(data);
+            } catch (IOException e) {
+                LOGGER.error("Unable to deserialize object. See stacktrace for more information.", e);
+                return null;
+            }
+        }
+
+        return jdkDeserialize(data);
+    }
+
+    private byte[] encryptCbc(byte[] plain) throws Exception {
+        byte[] iv = new byte[CBC_IV_LENGTH];
+
+        // CBC output has no header, so IV must not start like GCM header or data would be read as GCM
+        do {
+            random.nextBytes(iv);
+        } while (startsWithGcmHeader(iv));
+
+        Cipher cipher = cipher(cbcCiphers, CBC_TRANSFORMATION);
+
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey(), new IvParameterSpec(iv));
+
+            ByteBuffer output = ByteBuffer.allocate(iv.length + cipher.getOutputSize(plain.length));
+            output.put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plain), output);
+
+            return output.array();
+        } finally {
+            release(cbcCiphers, cipher);
+        }
+    }
+
+    private byte[] encryptGcm(byte[] plain) throws Exception {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        Cipher cipher = cipher(gcmCiphers, GCM_TRANSFORMATION);
+
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey(), new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
+
+            ByteBuffer output = ByteBuffer.allocate(HEADER_LENGTH + iv.length + cipher.getOutputSize(plain.length));
+            output.put(HEADER_MAGIC_1).put(HEADER_MAGIC_2).put(GCM_FORMAT_VERSION).put((byte) 0);
+            cipher.updateAAD(output.array(), 0, HEADER_LENGTH);
+            output.put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plain), output);
+
+            return output.array();
+        } finally {
+            release(gcmCiphers, cipher);
+        }
+    }
+
+    private byte[] decrypt(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+
+        try {
+            // Data that failed authentication must not be decrypted again in other mode
+            if (hasGcmHeader(data)) {
+                return decryptGcm(data);
+            }
+
+            return decryptCbc(data);
+        } catch (AEADBadTagException e) {
+            LOGGER.error("Unable to decrypt data, authentication failed.", e);
         } catch (Exception e) {
             LOGGER.error("Unable to decrypt data.", e);
         }
 
-        return jdkDeserialize(decrypted);
+        return null;
+    }
+
+    private static boolean hasGcmHeader(byte[] data) {
+        return data.length >= HEADER_LENGTH + GCM_IV_LENGTH + GCM_TAG_LENGTH_BITS / 8 && startsWithGcmHeader(data);
+    }
+
+    private static boolean startsWithGcmHeader(byte[] data) {
+        return data[0] == HEADER_MAGIC_1 && data[1] == HEADER_MAGIC_2 && data[2] == GCM_FORMAT_VERSION;
+    }
+
+    private byte[] decryptCbc(byte[] data) throws Exception {
+        Cipher cipher = cipher(cbcCiphers, CBC_TRANSFORMATION);
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey(), new IvParameterSpec(data, 0, CBC_IV_LENGTH));
+
+            return cipher.doFinal(data, CBC_IV_LENGTH, data.length - CBC_IV_LENGTH);
+        } finally {
+            release(cbcCiphers, cipher);
+        }
+    }
+
+    private byte[] decryptGcm(byte[] data) throws Exception {
+        Cipher cipher = cipher(gcmCiphers, GCM_TRANSFORMATION);
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey(), new GCMParameterSpec(GCM_TAG_LENGTH_BITS, data, HEADER_LENGTH, GCM_IV_LENGTH));
+            cipher.updateAAD(data, 0, HEADER_LENGTH);
+
+            int offset = HEADER_LENGTH + GCM_IV_LENGTH;
+
+            return cipher.doFinal(data, offset, data.length - offset);
+        } finally {
+            release(gcmCiphers, cipher);
+        }
+    }
+
+    /**
+     * Takes cipher from the pool, creating it if needed. Cipher must be
+     * initialized before each use and returned to the pool after it.
+     */
+    private static Cipher cipher(Queue<Cipher> ciphers, String transformation) throws GeneralSecurityException {
+        Cipher cipher = ciphers.poll();
+
+        return cipher == null ? Cipher.getInstance(transformation) : cipher;
+    }
+
+    private void release(Queue<Cipher> ciphers, Cipher cipher) {
+        if (!closed) {
+            ciphers.offer(cipher);
+        }
+    }
+
+    /**
+     * Returns key derived from configured encryption key. The derived key is
+     * recalculated only when configured key changes.
+     */
+    private SecretKeySpec secretKey() throws Exception {
+        String key = configurationService.getEncryptionKey();
+        DerivedKey current = derivedKey;
+
+        if (current == null || !current.source.equals(key)) {
+            current = new DerivedKey(key, initKey(key));
+            derivedKey = current;
+        }
+
+        return current.spec;
     }
 
     private static SecretKeySpec initKey(String key) throws Exception {
@@ -144,4 +566,17 @@ public class SerialiserDeserialiserServiceImpl implements SerializerDeserializer
             Thread.currentThread().setContextClassLoader(tccl);
         }
     }
+
+    /**
+     * AES key together with configured key it was derived from.
+     */
+    private static final class DerivedKey {
+        private final String source;
+        private final SecretKeySpec spec;
+
+        private DerivedKey(String source, SecretKeySpec spec) {
+            this.source = source;
+            this.spec = spec;
+        }
+    }
 }
@@ -0,0 +1,132 @@
+package com.test.session.serializer;
+
+/**
+ * Implementation of xxHash64 non-cryptographic hash function. It is used to
+ * compare serialized session attributes without keeping their copy. See
+ * <a href="https://github.com/Cyan4973/xxHash">https://github.com/Cyan4973/xxHash</a>
+ * for description of the algorithm.
+ */
+public final class XxHash64 {
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private XxHash64() {
+    }
+
+    /**
+     * Computes hash of the byte array using seed 0.
+     *
+     * @param data
+     *            the data to hash
+     * @return 64 bit hash
+     */
+    public static long hash(byte[] data) {
+        return hash(data, 0, data.length, 0);
+    }
+
+    /**
+     * Computes hash of the part of the byte array.
+     *
+     * @param data
+     *            the data to hash
+     * @param offset
+     *            start of the data
+     * @param length
+     *            length of the data
+     * @param seed
+     *            the seed
+     * @return 64 bit hash
+     */
+    public static long hash(byte[] data, int offset, int length, long seed) {
+        int end = offset + length;
+        int pos = offset;
+        long h64;
+
+        if (length >= 32) {
+            long v1 = seed + PRIME64_1 + PRIME64_2;
+            long v2 = seed + PRIME64_2;
+            long v3 = seed;
+            long v4 = seed - PRIME64_1;
+            int limit = end - 32;
+
+            do {
+                v1 = round(v1, getLong(data, pos));
+                v2 = round(v2, getLong(data, pos + 8));
+                v3 = round(v3, getLong(data, pos + 16));
+                v4 = round(v4, getLong(data, pos + 24));
+                pos += 32;
+            } while (pos <= limit);
+
+            h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h64 = mergeRound(h64, v1);
+            h64 = mergeRound(h64, v2);
+            h64 = mergeRound(h64, v3);
+            h64 = mergeRound(h64, v4);
+        } else {
+            h64 = seed + PRIME64_5;
+        }
+
+        h64 += length;
+
+        while (pos + 8 <= end) {
+            h64 ^= round(0, getLong(data, pos));
+            h64 = Long.rotateLeft(h64, 27) * PRIME64_1 + PRIME64_4;
+            pos += 8;
+        }
+
+        if (pos + 4 <= end) {
+            h64 ^= (getInt(data, pos) & 0xFFFFFFFFL) * PRIME64_1;
+            h64 = Long.rotateLeft(h64, 23) * PRIME64_2 + PRIME64_3;
+            pos += 4;
+        }
+
+        while (pos < end) {
+            h64 ^= (data[pos] & 0xFFL) * PRIME64_5;
+            h64 = Long.rotateLeft(h64, 11) * PRIME64_1;
+            pos++;
+        }
+
+        h64 ^= h64 >>> 33;
+        h64 *= PRIME64_2;
+        h64 ^= h64 >>> 29;
+        h64 *= PRIME64_3;
+        h64 ^= h64 >>> 32;
+
+        return h64;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    // xxHash reads input in little endian order
+    private static long getLong(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+                | (b[i + 1] & 0xFFL) << 8
+                | (b[i + 2] & 0xFFL) << 16
+                | (b[i + 3] & 0xFFL) << 24
+                | (b[i + 4] & 0xFFL) << 32
+                | (b[i + 5] & 0xFFL) << 40
+                | (b[i + 6] & 0xFFL) << 48
+                | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xFF)
+                | (b[i + 1] & 0xFF) << 8
+                | (b[i + 2] & 0xFF) << 16
+                | (b[i + 3] & 0xFF) << 24;
+    }
+}
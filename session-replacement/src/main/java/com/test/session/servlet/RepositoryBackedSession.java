@@ -3,16 +3,9 @@ package com.test.session.servlet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.osgi.framework.BundleContext;
-import org.osgi.framework.FrameworkUtil;
-import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,7 +52,7 @@ class RepositoryBackedSession {
         concurrentUses = new AtomicInteger();
         this.replicateOnGet = replicateOnGet; // setAndNonPrimitiveGet = true, Set = false
         this.configuredRepositoryFactory = configuredRepositoryFactory;
-        this.repository = getRepository();
+        this.repository = SessionRepositoryTracker.getRepository(configuredRepositoryFactory);
     }
 
     protected RepositoryBackedSession(RepositoryBackedSession linked) {
@@ -67,7 +60,7 @@ class RepositoryBackedSession {
         concurrentUses = linked.concurrentUses;
         replicateOnGet = linked.replicateOnGet;
         configuredRepositoryFactory = linked.configuredRepositoryFactory;
-        this.repository = getRepository();
+        repository = linked.repository;
     }
 
     public boolean isValid() {
@@ -75,13 +68,7 @@ class RepositoryBackedSession {
     }
 
     public boolean isExpired() {
-        int maxInactiveInterval = sessionData.getMaxInactiveInterval();
-
-        if (maxInactiveInterval <= 0) {
-            return false;
-        }
-
-        return (sessionData.getLastAccessedTime() + TimeUnit.SECONDS.toMillis(maxInactiveInterval)) < System.currentTimeMillis();
+        return sessionData.isExpired(System.currentTimeMillis());
     }
 
     public boolean isDirty() {
@@ -96,11 +83,6 @@ class RepositoryBackedSession {
         repository.sessionIdChange(sessionData);
     }
 
-    public SessionData getSessionDataById() {
-        String sessionId = sessionData.getId();
-        return StringUtils.isBlank(sessionId) ? null : repository.getSessionData(sessionId);
-    }
-
     public void requestFinished() {
         repository.requestFinished();
     }
@@ -254,24 +236,6 @@ class RepositoryBackedSession {
         }
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
-    private SessionRepository getRepository() {
-        String filterName = "(service.pid=" + configuredRepositoryFactory + ")";
-        BundleContext bundleContext = FrameworkUtil.getBundle(getClass()).getBundleContext();
-
-        try {
-            ServiceReference[] allServiceReferences = bundleContext.getServiceReferences(SessionRepository.class.getName(), filterName);
-
-            if (ArrayUtils.isNotEmpty(allServiceReferences)) {
-                return (SessionRepository) bundleContext.getService(allServiceReferences[0]);
-            }
-        } catch (InvalidSyntaxException e) {
-            LOGGER.debug("Error while getting session repository: {}", e);
-        }
-
-        return null;
-    }
-
     /**
     * This thread implements logic that commits session to
     * {@link SessionRepository}. The logic allows atomic commit if repository
@@ -327,6 +291,10 @@ class RepositoryBackedSession {
         }
 
         transaction.commit();
+
+        if (transaction.getSkippedWrites() > 0) {
+            LOGGER.debug("Skipped writing {} unchanged attributes of session: {}", transaction.getSkippedWrites(), sessionData.getId());
+        }
     }
 
     private void invalidationOnCommit() {
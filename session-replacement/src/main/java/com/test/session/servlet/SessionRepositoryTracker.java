@@ -0,0 +1,77 @@
+package com.test.session.servlet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.test.session.api.SessionRepository;
+
+/**
+ * Keeps track of {@link SessionRepository} services registered in OSGi. One
+ * {@link ServiceTracker} is opened per repository factory (i.e. per
+ * <code>service.pid</code>), and it is shared by all sessions. The tracker
+ * follows registration and unregistration of the repository service, so the
+ * lookup in OSGi service registry is done only once, and not each time a
+ * session object is created.
+ */
+public final class SessionRepositoryTracker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionRepositoryTracker.class);
+
+    private static final Map<String, ServiceTracker> TRACKERS = new ConcurrentHashMap<>();
+
+    private SessionRepositoryTracker() {
+    }
+
+    /**
+     * Returns repository service with the given pid.
+     *
+     * @param repositoryFactory
+     *            <code>service.pid</code> of the repository
+     * @return the repository or <code>null</code> if the repository service is
+     *         not available
+     */
+    public static SessionRepository getRepository(String repositoryFactory) {
+        ServiceTracker tracker = TRACKERS.computeIfAbsent(repositoryFactory, SessionRepositoryTracker::open);
+
+        return tracker == null ? null : (SessionRepository) tracker.getService();
+    }
+
+    /**
+     * Closes all trackers. Subsequent calls to
+     * {@link #getRepository(String)} will open new trackers.
+     */
+    public static void close() {
+        for (String repositoryFactory : TRACKERS.keySet()) {
+            ServiceTracker tracker = TRACKERS.remove(repositoryFactory);
+
+            if (tracker != null) {
+                tracker.close();
+            }
+        }
+    }
+
+    private static ServiceTracker open(String repositoryFactory) {
+        String filter = "(&(" + Constants.OBJECTCLASS + "=" + SessionRepository.class.getName() + ")(" + Constants.SERVICE_PID + "=" + repositoryFactory + "))";
+        BundleContext bundleContext = FrameworkUtil.getBundle(SessionRepositoryTracker.class).getBundleContext();
+
+        try {
+            ServiceTracker tracker = new ServiceTracker(bundleContext, bundleContext.createFilter(filter), null);
+
+            tracker.open();
+            LOGGER.debug("Tracking session repository {}", repositoryFactory);
+
+            return tracker;
+        } catch (InvalidSyntaxException e) {
+            LOGGER.error("Error while tracking session repository {}", repositoryFactory, e);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,282 @@
+package com.test.session.connection;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import junitx.util.PrivateAccessor;
+
+public class NioRedisClientTest {
+    private ServerSocket server;
+    private NioRedisClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        client = new NioRedisClient(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()), 1, 500);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    private static Object parse(String reply) {
+        return new NioRedisClient.ReplyParser().parse(ByteBuffer.wrap(reply.getBytes(UTF_8)));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    private static Object get(CompletableFuture<Object> future) throws Exception {
+        try {
+            return future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static void expect(DataInputStream in, String request) throws IOException {
+        byte[] received = new byte[request.length()];
+
+        in.readFully(received);
+        assertEquals(request, new String(received, UTF_8));
+    }
+
+    @Test
+    public void testParsesReplyTypes() {
+        assertEquals("OK", parse("+OK\r\n"));
+        assertEquals(-42L, parse(":-42\r\n"));
+        assertArrayEquals(bytes("a\r\nb"), (byte[]) parse("$4\r\na\r\nb\r\n"));
+        assertArrayEquals(new byte[0], (byte[]) parse("$0\r\n\r\n"));
+        assertNull(parse("$-1\r\n"));
+        assertNull(parse("*-1\r\n"));
+        assertEquals(Arrays.asList(), parse("*0\r\n"));
+    }
+
+    @Test
+    public void testParsesNestedArrays() {
+        List<?> reply = (List<?>) parse("*3\r\n:1\r\n*2\r\n$1\r\nx\r\n$-1\r\n+QUEUED\r\n");
+
+        assertEquals(3, reply.size());
+        assertEquals(1L, reply.get(0));
+        assertArrayEquals(bytes("x"), (byte[]) ((List<?>) reply.get(1)).get(0));
+        assertNull(((List<?>) reply.get(1)).get(1));
+        assertEquals("QUEUED", reply.get(2));
+    }
+
+    @Test
+    public void testParsesErrors() {
+        Object error = parse("-ERR wrong type\r\n");
+        Object noScript = parse("-NOSCRIPT No matching script\r\n");
+
+        assertSame(JedisDataException.class, error.getClass());
+        assertEquals("ERR wrong type", ((JedisDataException) error).getMessage());
+        assertTrue(noScript instanceof JedisNoScriptException);
+    }
+
+    @Test
+    public void testIncompleteReplies() {
+        String[] replies = { "+OK\r\n", ":12\r\n", "$5\r\nhello\r\n", "*2\r\n$1\r\na\r\n:1\r\n", "-ERR x\r\n" };
+
+        for (String reply : replies) {
+            for (int length = 0; length < reply.length(); length++) {
+                assertSame(reply + " cut at " + length, NioRedisClient.INCOMPLETE, parse(reply.substring(0, length)));
+            }
+        }
+    }
+
+    @Test
+    public void testConsumesOnlyOneReply() {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes("$1\r\na\r\n:2\r\n"));
+        NioRedisClient.ReplyParser parser = new NioRedisClient.ReplyParser();
+
+        assertArrayEquals(bytes("a"), (byte[]) parser.parse(buffer));
+        assertEquals(2L, parser.parse(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testResumesIncompleteReply() {
+        NioRedisClient.ReplyParser parser = new NioRedisClient.ReplyParser();
+        String[] reads = { "*3\r\n$3\r\nab", "c\r\n*2\r", "\n:1\r\n", "$2\r\nxy\r\n+OK\r\n" };
+        String unparsed = "";
+        Object reply = null;
+
+        // Like connection, only bytes left unparsed are kept for next read
+        for (String read : reads) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes(unparsed + read));
+
+            reply = parser.parse(buffer);
+            unparsed = new String(buffer.array(), buffer.position(), buffer.remaining(), UTF_8);
+            // Only an incomplete line is left unparsed
+            assertTrue(read + " left " + unparsed, unparsed.length() <= 3);
+        }
+
+        List<?> elements = (List<?>) reply;
+
+        assertArrayEquals(bytes("abc"), (byte[]) elements.get(0));
+        assertEquals(1L, ((List<?>) elements.get(1)).get(0));
+        assertArrayEquals(bytes("xy"), (byte[]) ((List<?>) elements.get(1)).get(1));
+        assertEquals("OK", elements.get(2));
+    }
+
+    @Test(expected = JedisConnectionException.class)
+    public void testRejectsUnknownType() {
+        parse("!5\r\n");
+    }
+
+    @Test
+    public void testPipelinedRepliesSplitAcrossReads() throws Exception {
+        CompletableFuture<Object> get = client.send(bytes("GET"), bytes("k"));
+        CompletableFuture<Object> incr = client.send(bytes("INCR"), bytes("n"));
+
+        try (Socket socket = server.accept()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            expect(in, "*2\r\n$3\r\nGET\r\n$1\r\nk\r\n*2\r\n$4\r\nINCR\r\n$1\r\nn\r\n");
+            out.write(bytes("$5\r\nva"));
+            out.flush();
+            Thread.sleep(50);
+            out.write(bytes("lue\r\n:7"));
+            out.flush();
+            Thread.sleep(50);
+            out.write(bytes("\r\n"));
+            out.flush();
+
+            assertArrayEquals(bytes("value"), (byte[]) get(get));
+            assertEquals(7L, get(incr));
+        }
+    }
+
+    @Test
+    public void testReplyLargerThanReadBuffer() throws Exception {
+        byte[] value = new byte[100_000];
+        Arrays.fill(value, (byte) 'v');
+        CompletableFuture<Object> future = client.send(bytes("GET"), bytes("k"));
+
+        try (Socket socket = server.accept()) {
+            OutputStream out = socket.getOutputStream();
+
+            out.write(bytes("$" + value.length + "\r\n"));
+            out.write(value);
+            out.write(bytes("\r\n"));
+            out.flush();
+
+            assertArrayEquals(value, (byte[]) get(future));
+        }
+    }
+
+    @Test
+    public void testReadBufferShrinksAfterLongLine() throws Exception {
+        char[] line = new char[100_000];
+        Arrays.fill(line, 'v');
+        CompletableFuture<Object> future = client.send(bytes("PING"));
+
+        try (Socket socket = server.accept()) {
+            OutputStream out = socket.getOutputStream();
+
+            out.write(bytes("+" + new String(line) + "\r\n"));
+            out.flush();
+
+            assertEquals(new String(line), get(future));
+        }
+
+        Object connection = ((Object[]) PrivateAccessor.getField(client, "connections"))[0];
+
+        assertEquals(16 * 1024, ((ByteBuffer) PrivateAccessor.getField(connection, "readBuffer")).capacity());
+    }
+
+    @Test
+    public void testErrorReplyFailsOnlyItsCommand() throws Exception {
+        List<CompletableFuture<Object>> futures = client.send(Arrays.asList(new byte[][] { bytes("EVALSHA") }, new byte[][] { bytes("PING") }));
+
+        try (Socket socket = server.accept()) {
+            socket.getOutputStream().write(bytes("-NOSCRIPT No matching script\r\n+PONG\r\n"));
+            socket.getOutputStream().flush();
+
+            try {
+                get(futures.get(0));
+                fail("Expected error reply");
+            } catch (JedisNoScriptException e) {
+                assertTrue(e.getMessage().startsWith("NOSCRIPT"));
+            }
+
+            assertEquals("PONG", get(futures.get(1)));
+        }
+    }
+
+    @Test
+    public void testTimeoutFailsWaitingCommands() throws Exception {
+        CompletableFuture<Object> first = client.send(bytes("PING"));
+        CompletableFuture<Object> second = client.send(bytes("PING"));
+
+        // Connection is accepted and held open, but never answered
+        Socket silent = server.accept();
+
+        try {
+            for (CompletableFuture<Object> future : Arrays.asList(first, second)) {
+                try {
+                    get(future);
+                    fail("Expected timeout");
+                } catch (JedisConnectionException e) {
+                    // Expected
+                }
+            }
+
+            // Connection is re-established by next command
+            CompletableFuture<Object> retry = client.send(bytes("PING"));
+
+            try (Socket reconnected = server.accept()) {
+                reconnected.getOutputStream().write(bytes("+PONG\r\n"));
+                reconnected.getOutputStream().flush();
+
+                assertEquals("PONG", get(retry));
+            }
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testClosedClientFailsCommands() throws Exception {
+        client.close();
+
+        try {
+            get(client.send(bytes("PING")));
+            fail("Expected failure");
+        } catch (JedisConnectionException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.test.session.connection;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.test.session.connection.api.RedisScript;
+
+import junitx.util.PrivateAccessor;
+
+public class NioRedisConnectorTest {
+    private static final RedisScript SCRIPT = new RedisScript("return 1");
+
+    private ServerSocket server;
+    private NioRedisClient client;
+    private NioRedisConnector connector;
+
+    @Before
+    public void setUp() throws IOException, NoSuchFieldException {
+        server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        client = new NioRedisClient(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()), 1, 2000);
+        connector = new NioRedisConnector();
+        PrivateAccessor.setField(connector, "client", client);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    private static String command(String... args) {
+        StringBuilder command = new StringBuilder("*").append(args.length).append("\r\n");
+
+        for (String arg : args) {
+            command.append('$').append(arg.getBytes(UTF_8).length).append("\r\n").append(arg).append("\r\n");
+        }
+
+        return command.toString();
+    }
+
+    private static void expect(DataInputStream in, String request) throws IOException {
+        byte[] received = new byte[request.getBytes(UTF_8).length];
+
+        in.readFully(received);
+        assertEquals(request, new String(received, UTF_8));
+    }
+
+    @Test
+    public void testEvalLoadsScriptAfterScriptCacheFlush() throws Exception {
+        String sha1 = new String(SCRIPT.getSha1(), UTF_8);
+        CompletableFuture<Object> result = connector.evalAsync(SCRIPT, Collections.emptyList(), Collections.emptyList());
+
+        try (Socket socket = server.accept()) {
+            socket.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            // Script cache was flushed, so script is not known to server
+            expect(in, command("EVALSHA", sha1, "0"));
+            out.write("-NOSCRIPT No matching script. Please use EVAL.\r\n".getBytes(UTF_8));
+            out.flush();
+
+            expect(in, command("SCRIPT", "load", "return 1"));
+            out.write(("$40\r\n" + sha1 + "\r\n").getBytes(UTF_8));
+            out.flush();
+
+            expect(in, command("EVALSHA", sha1, "0"));
+            out.write(":1\r\n".getBytes(UTF_8));
+            out.flush();
+
+            assertEquals(1L, result.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testZaddSendsAllMembersInSingleCommand() throws Exception {
+        Map<byte[], Double> members = new LinkedHashMap<>();
+
+        members.put("a".getBytes(UTF_8), 1.0);
+        members.put("b".getBytes(UTF_8), 2.5);
+
+        CompletableFuture<Long> result = CompletableFuture.supplyAsync(() -> connector.zadd("key".getBytes(UTF_8), members));
+
+        try (Socket socket = server.accept()) {
+            socket.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            expect(in, command("ZADD", "key", "1.0", "a", "2.5", "b"));
+            out.write(":2\r\n".getBytes(UTF_8));
+            out.flush();
+
+            assertEquals(Long.valueOf(2L), result.get(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.test.session.connection;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+
+import junitx.util.PrivateAccessor;
+
+public class TransactionalJedisClusterTest {
+    private static final byte[] KEY = bytes("session");
+    private static final byte[] FIELD = bytes("version");
+    private static final HostAndPort SOURCE = new HostAndPort("127.0.0.1", 7000);
+    private static final HostAndPort TARGET = new HostAndPort("127.0.0.1", 7001);
+    private static final Object OK = bytes("OK");
+    private static final Object QUEUED = bytes("QUEUED");
+    private static final Object EXECABORT = new JedisDataException("EXECABORT Transaction discarded because of previous errors.");
+
+    private JedisSlotBasedConnectionHandler handler;
+    private TransactionalJedisCluster cluster;
+
+    @Before
+    public void setUp() throws NoSuchFieldException {
+        // No node is reachable, so cluster starts with empty slot cache
+        cluster = new TransactionalJedisCluster(Collections.singleton(new HostAndPort("127.0.0.1", 1)), 100, new JedisPoolConfig());
+        handler = mock(JedisSlotBasedConnectionHandler.class);
+        PrivateAccessor.setField(cluster, "connectionHandler", handler);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cluster.close();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    /**
+     * Returns connection to the node which gives replies of one pipeline on
+     * each sync.
+     */
+    @SafeVarargs
+    private static Jedis connection(HostAndPort node, List<Object>... replies) {
+        Client client = mock(Client.class);
+        when(client.getHost()).thenReturn(node.getHost());
+        when(client.getPort()).thenReturn(node.getPort());
+
+        if (replies.length > 0) {
+            when(client.getAll()).thenReturn(replies[0], Arrays.copyOfRange(replies, 1, replies.length));
+        }
+
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.getClient()).thenReturn(client);
+
+        return jedis;
+    }
+
+    private Long increment() {
+        return cluster.transaction(KEY, t -> t.hincrBy(KEY, FIELD, 1)).get();
+    }
+
+    @Test
+    public void testCommandIsSentToNewOwnerAfterMoved() {
+        Jedis source = connection(SOURCE, Arrays.asList(new JedisMovedDataException("MOVED 1 127.0.0.1:7001", TARGET, 1)));
+        Jedis target = connection(TARGET, Arrays.asList(5L));
+        when(handler.getConnectionFromSlot(anyInt())).thenReturn(source, target);
+
+        assertEquals(Long.valueOf(5L), cluster.pipeline(null, p -> p.hincrBy(KEY, FIELD, 1)).get());
+        verify(handler).renewSlotCache();
+    }
+
+    @Test
+    public void testAbortedTransactionIsSentWithAskingAfterAsk() {
+        Jedis source = connection(SOURCE, Arrays.asList(OK, new JedisAskDataException("ASK 1 127.0.0.1:7001", TARGET, 1), EXECABORT));
+        Jedis target = connection(TARGET, Arrays.asList(OK, QUEUED, Arrays.<Object> asList(7L)));
+        when(handler.getConnectionFromSlot(anyInt())).thenReturn(source);
+        when(handler.getConnectionFromNode(TARGET)).thenReturn(target);
+
+        assertEquals(Long.valueOf(7L), increment());
+        verify(target).asking();
+        verify(handler, never()).renewSlotCache();
+    }
+
+    @Test
+    public void testAbortedTransactionIsSentToNewOwnerAfterMoved() {
+        Jedis source = connection(SOURCE, Arrays.asList(OK, new JedisMovedDataException("MOVED 1 127.0.0.1:7001", TARGET, 1), EXECABORT));
+        Jedis target = connection(TARGET, Arrays.asList(OK, QUEUED, Arrays.<Object> asList(3L)));
+        when(handler.getConnectionFromSlot(anyInt())).thenReturn(source, target);
+
+        assertEquals(Long.valueOf(3L), increment());
+        verify(handler).renewSlotCache();
+        verify(target, never()).asking();
+    }
+
+    @Test(expected = JedisDataException.class)
+    public void testOtherErrorIsThrown() {
+        Jedis source = connection(SOURCE, Arrays.asList(OK, QUEUED, new JedisDataException("ERR wrong type")));
+        when(handler.getConnectionFromSlot(anyInt())).thenReturn(source);
+
+        increment();
+    }
+}
@@ -0,0 +1,48 @@
+package com.test.session.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class EvictionQueueTest {
+    private final EvictionQueue queue = new EvictionQueue();
+
+    @Test
+    public void testPollsLeastRecentlyUsed() {
+        queue.touch("a");
+        queue.touch("b");
+        queue.touch("c");
+
+        assertEquals(3, queue.size());
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testTouchMovesToEnd() {
+        queue.touch("a");
+        queue.touch("b");
+        queue.touch("c");
+        queue.touch("a");
+
+        assertEquals(3, queue.size());
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertEquals("a", queue.poll());
+    }
+
+    @Test
+    public void testRemove() {
+        queue.touch("a");
+        queue.touch("b");
+        queue.remove("a");
+        queue.remove("unknown");
+
+        assertEquals(1, queue.size());
+        assertEquals("b", queue.poll());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,130 @@
+package com.test.session.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ExpirationIndexTest {
+    private static final long NOW = 1_000_000L;
+    private static final long RESOLUTION = ExpirationIndex.BUCKET_RESOLUTION;
+    private static final long NOT_INDEXED = ExpirationIndex.NOT_INDEXED;
+
+    private final ExpirationIndex index = new ExpirationIndex();
+
+    @Test
+    public void testPollsOnlyPastBuckets() {
+        index.update("past", NOT_INDEXED, NOW - 2 * RESOLUTION);
+        index.update("current", NOT_INDEXED, NOW);
+        index.update("future", NOT_INDEXED, NOW + 2 * RESOLUTION);
+
+        assertEquals(Arrays.asList("past"), index.pollDue(NOW, 10));
+        assertEquals(2, index.size());
+        assertTrue(index.pollDue(NOW, 10).isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("current", "future")), new HashSet<>(index.pollDue(NOW + 3 * RESOLUTION, 10)));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testPollsInOrderOfExpiry() {
+        index.update("c", NOT_INDEXED, NOW - RESOLUTION);
+        index.update("a", NOT_INDEXED, NOW - 3 * RESOLUTION);
+        index.update("b", NOT_INDEXED, NOW - 2 * RESOLUTION);
+
+        assertEquals(Arrays.asList("a", "b", "c"), index.pollDue(NOW, 10));
+    }
+
+    @Test
+    public void testUpdateMovesSession() {
+        long bucket = index.update("a", NOT_INDEXED, NOW - RESOLUTION);
+        bucket = index.update("a", bucket, NOW + RESOLUTION);
+
+        assertTrue(index.pollDue(NOW, 10).isEmpty());
+        assertEquals(1, index.size());
+
+        assertEquals(bucket, index.update("a", bucket, NOW + RESOLUTION));
+        assertEquals(1, index.size());
+
+        index.update("a", bucket, NOW - RESOLUTION);
+
+        assertEquals(Arrays.asList("a"), index.pollDue(NOW, 10));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testRemove() {
+        long bucket = index.update("a", NOT_INDEXED, NOW - RESOLUTION);
+        index.update("b", NOT_INDEXED, NOW - RESOLUTION);
+        index.remove("a", bucket);
+        index.remove("unknown", bucket);
+        index.remove("b", NOT_INDEXED);
+
+        assertEquals(Arrays.asList("b"), index.pollDue(NOW, 10));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testPollsInBatches() {
+        for (int i = 0; i < 25; i++) {
+            index.update("s" + i, NOT_INDEXED, NOW - (1 + i % 3) * RESOLUTION);
+        }
+
+        HashSet<String> polled = new HashSet<>();
+        List<String> due;
+
+        do {
+            due = index.pollDue(NOW, 10);
+            polled.addAll(due);
+        } while (due.size() == 10);
+
+        assertEquals(25, polled.size());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testSessionIndexedAfterInstantIsNotPolledAgain() {
+        index.update("failing", NOT_INDEXED, NOW - RESOLUTION);
+
+        assertEquals(Arrays.asList("failing"), index.pollDue(NOW, 10));
+
+        // Retry of a session that failed to expire must not be due in the same run
+        index.update("failing", NOT_INDEXED, NOW + RESOLUTION);
+
+        assertTrue(index.pollDue(NOW, 10).isEmpty());
+        assertEquals(Arrays.asList("failing"), index.pollDue(NOW + 2 * RESOLUTION, 10));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        int threads = 4;
+        int sessions = 1000;
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            int offset = t * sessions;
+
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < sessions; i++) {
+                    String id = "s" + (offset + i);
+                    long bucket = index.update(id, NOT_INDEXED, NOW - (1 + i % 5) * RESOLUTION);
+
+                    // Move every session once, so buckets are emptied and created concurrently
+                    index.update(id, bucket, NOW - (1 + (i + 1) % 5) * RESOLUTION);
+                }
+            });
+            workers[t].start();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * sessions, index.size());
+        assertEquals(threads * sessions, new HashSet<>(index.pollDue(NOW, Integer.MAX_VALUE)).size());
+        assertEquals(0, index.size());
+    }
+}
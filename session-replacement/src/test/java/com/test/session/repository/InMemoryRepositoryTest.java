@@ -0,0 +1,168 @@
+package com.test.session.repository;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.test.session.api.OSGiDependencyService;
+import com.test.session.api.SerializerDeserializerService;
+import com.test.session.api.SessionConfigurationService;
+import com.test.session.api.SessionManager;
+import com.test.session.api.SessionRepository.CommitTransaction;
+import com.test.session.models.SessionData;
+
+import junitx.util.PrivateAccessor;
+
+public class InMemoryRepositoryTest {
+    private static final int MAX_SESSIONS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SessionConfigurationService configuration;
+    private InMemoryRepository repository;
+
+    @Before
+    public void setUp() throws NoSuchFieldException {
+        configuration = mock(SessionConfigurationService.class);
+        when(configuration.getNamespace()).thenReturn("ns");
+        when(configuration.getInMemoryMaxSessions()).thenReturn(MAX_SESSIONS);
+
+        SessionManager sessionManager = mock(SessionManager.class);
+
+        // Like SessionManagerServiceImpl, deleting session stores it again before it is invalidated
+        doAnswer(invocation -> {
+            SessionData sd = repository.getSessionData(((SessionData) invocation.getArguments()[0]).getId());
+
+            if (sd != null) {
+                repository.storeSessionData(sd);
+                repository.remove(sd);
+            }
+
+            return null;
+        }).when(sessionManager).delete(any(SessionData.class), anyBoolean());
+
+        // Attributes of these tests are strings
+        SerializerDeserializerService serializer = mock(SerializerDeserializerService.class);
+        when(serializer.serialize(any())).thenAnswer(invocation -> ((String) invocation.getArguments()[0]).getBytes(UTF_8));
+        when(serializer.deserialize(any(byte[].class))).thenAnswer(invocation -> new String((byte[]) invocation.getArguments()[0], UTF_8));
+
+        OSGiDependencyService dependencyService = mock(OSGiDependencyService.class);
+        when(dependencyService.getSerializer()).thenReturn(serializer);
+
+        repository = new InMemoryRepository();
+        PrivateAccessor.setField(repository, "sessionConfiguration", configuration);
+        PrivateAccessor.setField(repository, "sessionManager", sessionManager);
+        PrivateAccessor.setField(repository, "dependencyService", dependencyService);
+    }
+
+    private SessionData store(String id) {
+        SessionData sd = new SessionData(id, System.currentTimeMillis(), 1800);
+
+        repository.storeSessionData(sd);
+        return sd;
+    }
+
+    private SpillStore enableSpilling() throws IOException, NoSuchFieldException {
+        SpillStore spillStore = new SpillStore(folder.getRoot().toPath());
+
+        PrivateAccessor.setField(repository, "spillStore", spillStore);
+        return spillStore;
+    }
+
+    @Test
+    public void testEvictsOnlyLeastRecentlyUsedSession() {
+        for (int i = 0; i <= MAX_SESSIONS; i++) {
+            store("s" + i);
+        }
+
+        assertEquals(1, repository.getEvictions());
+        assertEquals(MAX_SESSIONS, repository.getSessionCount());
+        assertNull(repository.getSessionData("s0"));
+
+        for (int i = 1; i <= MAX_SESSIONS; i++) {
+            assertNotNull(repository.getSessionData("s" + i));
+        }
+    }
+
+    @Test
+    public void testAccessedSessionIsNotEvicted() {
+        for (int i = 0; i < MAX_SESSIONS; i++) {
+            store("s" + i);
+        }
+
+        repository.getSessionData("s0");
+        store("new");
+
+        assertEquals(1, repository.getEvictions());
+        assertNotNull(repository.getSessionData("s0"));
+        assertNull(repository.getSessionData("s1"));
+    }
+
+    @Test
+    public void testCommitOfSpilledSessionBringsItBack() throws Exception {
+        SpillStore spillStore = enableSpilling();
+        SessionData s0 = store("s0");
+
+        repository.setSessionAttribute(s0, "a", "x");
+        // Request of s0 is still running when s0 is spilled
+        CommitTransaction transaction = repository.startCommit(s0);
+
+        for (int i = 1; i <= MAX_SESSIONS; i++) {
+            store("s" + i);
+        }
+
+        assertEquals(1, repository.getSpilledSessions());
+        assertNotNull(spillStore.peek("ns", "s0"));
+
+        transaction.changeAttribute("b", "y");
+        transaction.commit();
+
+        assertEquals(1, repository.getPromotedSessions());
+        assertNull(spillStore.peek("ns", "s0"));
+        assertEquals("x", repository.getSessionAttribute(s0, "a"));
+        assertEquals("y", repository.getSessionAttribute(s0, "b"));
+    }
+
+    @Test
+    public void testUnknownSessionIsNotLookedUpInSpillDirectory() throws Exception {
+        SpillStore spillStore = enableSpilling();
+
+        // Written directly, so repository doesn't know the session was spilled
+        spillStore.write("ns", new SessionData("unknown", System.currentTimeMillis(), 1800), Collections.emptyMap());
+
+        assertNull(repository.getSessionData("unknown"));
+        assertNotNull(spillStore.peek("ns", "unknown"));
+        assertEquals(0, repository.getPromotedSessions());
+    }
+
+    @Test
+    public void testAttributesAreWeighedOnlyWhenWeightIsLimited() {
+        SessionData sd = store("s0");
+        long weight = repository.getWeight();
+
+        repository.setSessionAttribute(sd, "a", "value");
+
+        assertEquals(weight, repository.getWeight());
+
+        when(configuration.getInMemoryMaxWeight()).thenReturn(1_000_000L);
+        repository.setSessionAttribute(sd, "b", "value");
+
+        assertTrue(repository.getWeight() > weight);
+    }
+}
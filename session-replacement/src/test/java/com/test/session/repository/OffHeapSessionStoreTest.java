@@ -0,0 +1,179 @@
+package com.test.session.repository;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.test.session.models.SessionData;
+
+public class OffHeapSessionStoreTest {
+    private final OffHeapSessionStore store = new OffHeapSessionStore();
+
+    private static Map<String, byte[]> attributes(String name, byte[] value) {
+        Map<String, byte[]> attributes = new HashMap<>();
+        attributes.put(name, value);
+        return attributes;
+    }
+
+    @Test
+    public void testStoreAndGet() {
+        store.store(new SessionData("a", 1000L, 30, 500L));
+
+        SessionData sessionData = store.get("a");
+
+        assertEquals("a", sessionData.getId());
+        assertEquals(1000L, sessionData.getLastAccessedTime());
+        assertEquals(30, sessionData.getMaxInactiveInterval());
+        assertEquals(500L, sessionData.getCreationTime());
+        assertNull(store.get("b"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testAttributes() {
+        store.store(new SessionData("a", 1000L, 30, 500L));
+        store.update("a", null, attributes("x", new byte[] { 1 }), Collections.emptySet());
+        store.update("a", null, attributes("y", new byte[] { 2, 3 }), Collections.emptySet());
+        store.update("a", null, attributes("x", new byte[] { 4 }), Collections.singleton("y"));
+
+        assertArrayEquals(new byte[] { 4 }, store.getAttribute("a", "x"));
+        assertNull(store.getAttribute("a", "y"));
+        assertNull(store.getAttribute("b", "x"));
+        assertEquals(Collections.singleton("x"), store.getAttributeNames("a"));
+        assertEquals(1000L, store.get("a").getLastAccessedTime());
+    }
+
+    @Test
+    public void testMetaDataUpdateIsInPlace() {
+        store.store(new SessionData("a", 1000L, 30, 500L));
+        store.update("a", null, attributes("x", new byte[100]), Collections.emptySet());
+        long allocated = store.getAllocatedBytes();
+        long used = store.getUsedBytes();
+
+        for (int i = 0; i < 1000; i++) {
+            store.store(new SessionData("a", 2000L + i, 60, 500L));
+        }
+
+        assertEquals(allocated, store.getAllocatedBytes());
+        assertEquals(used, store.getUsedBytes());
+        assertEquals(2999L, store.get("a").getLastAccessedTime());
+        assertEquals(60, store.get("a").getMaxInactiveInterval());
+        assertArrayEquals(new byte[100], store.getAttribute("a", "x"));
+    }
+
+    @Test
+    public void testFreedChunksAreReused() {
+        store.store(new SessionData("a", 1000L, 30, 500L));
+        long used = store.getUsedBytes();
+
+        store.remove("a");
+
+        assertEquals(0, store.getUsedBytes());
+        assertNull(store.get("a"));
+
+        long allocated = store.getAllocatedBytes();
+
+        // Same id is stored in same segment, which has its own slabs
+        for (int i = 0; i < 1000; i++) {
+            store.store(new SessionData("a", 1000L, 30, 500L));
+            store.remove("a");
+        }
+
+        store.store(new SessionData("a", 1000L, 30, 500L));
+
+        assertEquals(allocated, store.getAllocatedBytes());
+        assertEquals(used, store.getUsedBytes());
+    }
+
+    @Test
+    public void testRecordLargerThanSlab() {
+        byte[] large = new byte[OffHeapSessionStore.SLAB_SIZE + 1];
+        large[large.length - 1] = 42;
+
+        store.update("a", new SessionData("a", 1000L, 30, 500L), attributes("large", large), Collections.emptySet());
+
+        assertArrayEquals(large, store.getAttribute("a", "large"));
+        assertTrue(store.getAllocatedBytes() > OffHeapSessionStore.SLAB_SIZE);
+    }
+
+    @Test
+    public void testManySessions() {
+        for (int i = 0; i < 5000; i++) {
+            store.update("s" + i, new SessionData("s" + i, i, 30, 0L), attributes("i", new byte[] { (byte) i }), Collections.emptySet());
+        }
+
+        // Removing every other session shifts colliding entries back
+        for (int i = 0; i < 5000; i += 2) {
+            store.remove("s" + i);
+        }
+
+        assertEquals(2500, store.size());
+        assertEquals(2500, store.ids().size());
+
+        for (int i = 0; i < 5000; i++) {
+            if (i % 2 == 0) {
+                assertNull(store.get("s" + i));
+            } else {
+                assertEquals(i, store.get("s" + i).getLastAccessedTime());
+                assertArrayEquals(new byte[] { (byte) i }, store.getAttribute("s" + i, "i"));
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveDataKeepsAttributes() {
+        store.update("a", new SessionData("a", 1000L, 30, 500L), attributes("x", new byte[] { 1 }), Collections.emptySet());
+        store.removeData("a");
+
+        assertNull(store.get("a"));
+        assertArrayEquals(new byte[] { 1 }, store.getAttribute("a", "x"));
+        assertTrue(store.ids().isEmpty());
+
+        store.store(new SessionData("a", 2000L, 30, 500L));
+
+        assertNotNull(store.get("a"));
+    }
+
+    @Test
+    public void testPollExpired() {
+        store.store(new SessionData("expired", 1000L, 1, 500L));
+        store.store(new SessionData("valid", 1000L, 60, 500L));
+        store.store(new SessionData("eternal", 1000L, 0, 500L));
+
+        assertEquals(Arrays.asList("expired"), store.pollExpired(10_000L, 10));
+        // Polled session stays in the store, but is no longer indexed
+        assertTrue(store.pollExpired(10_000L, 10).isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("expired", "valid", "eternal")), new HashSet<>(store.ids()));
+
+        store.index("expired", 20_000L);
+
+        assertTrue(store.pollExpired(10_000L, 10).isEmpty());
+        assertEquals(Arrays.asList("expired"), store.pollExpired(30_000L, 10));
+    }
+
+    @Test
+    public void testExpirationIndexFollowsSession() {
+        store.store(new SessionData("touched", 1000L, 1, 500L));
+        store.update("changed", new SessionData("changed", 1000L, 1, 500L), attributes("x", new byte[] { 1 }), Collections.emptySet());
+        store.store(new SessionData("removed", 1000L, 1, 500L));
+        store.store(new SessionData("eternal", 1000L, 1, 500L));
+
+        store.store(new SessionData("touched", 50_000L, 1, 500L));
+        store.update("changed", new SessionData("changed", 50_000L, 1, 500L), attributes("x", new byte[] { 2 }), Collections.emptySet());
+        store.remove("removed");
+        store.store(new SessionData("eternal", 1000L, 0, 500L));
+
+        assertTrue(store.pollExpired(10_000L, 10).isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("touched", "changed")), new HashSet<>(store.pollExpired(60_000L, 10)));
+    }
+}
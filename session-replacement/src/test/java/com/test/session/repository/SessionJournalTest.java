@@ -0,0 +1,261 @@
+package com.test.session.repository;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.test.session.models.SessionData;
+
+public class SessionJournalTest {
+    private static final int HEADER_SIZE = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records replayed changes in order.
+     */
+    static final class Recorder implements SessionJournal.Replay {
+        final List<String> events = new ArrayList<>();
+        final Map<String, byte[]> attributes = new HashMap<>();
+        final Map<String, SessionData> sessions = new HashMap<>();
+
+        @Override
+        public void update(String namespace, String id, SessionData sessionData, Map<String, byte[]> changed, Collection<String> removed) {
+            events.add("update " + namespace + ":" + id);
+
+            if (sessionData != null) {
+                sessions.put(id, sessionData);
+            }
+
+            for (Map.Entry<String, byte[]> attribute : changed.entrySet()) {
+                attributes.put(id + "." + attribute.getKey(), attribute.getValue());
+            }
+
+            for (String name : removed) {
+                attributes.remove(id + "." + name);
+            }
+        }
+
+        @Override
+        public void remove(String namespace, String id) {
+            events.add("remove " + namespace + ":" + id);
+            sessions.remove(id);
+        }
+    }
+
+    private static Map<String, byte[]> attributes(String name, byte[] value) {
+        Map<String, byte[]> attributes = new HashMap<>();
+        attributes.put(name, value);
+        return attributes;
+    }
+
+    private Recorder recover(Path directory) throws IOException {
+        return recover(directory, 1 << 30);
+    }
+
+    private Recorder recover(Path directory, int maxMappedSize) throws IOException {
+        Recorder recorder = new Recorder();
+
+        try (SessionJournal journal = new SessionJournal(directory, maxMappedSize)) {
+            journal.recover(recorder);
+        }
+
+        return recorder;
+    }
+
+    /**
+     * Writes two records to the first journal and returns position of the
+     * second one.
+     */
+    private int writeTwoRecords(Path directory) throws IOException {
+        try (SessionJournal journal = new SessionJournal(directory)) {
+            journal.recover(new Recorder());
+            journal.appendUpdate("ns", "a", new SessionData("a", 1000L, 30, 500L), attributes("x", new byte[] { 1 }),
+                    Collections.emptyList());
+            journal.appendUpdate("ns", "b", new SessionData("b", 2000L, 30, 500L), Collections.emptyMap(), Collections.emptyList());
+        }
+
+        try (FileChannel channel = FileChannel.open(directory.resolve("journal-1.dat"), StandardOpenOption.READ)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+
+            channel.read(length, HEADER_SIZE);
+
+            return HEADER_SIZE + 8 + length.getInt(0);
+        }
+    }
+
+    private static void overwrite(Path file, long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    @Test
+    public void testReplaysJournal() throws IOException {
+        Path directory = folder.getRoot().toPath();
+
+        try (SessionJournal journal = new SessionJournal(directory)) {
+            assertEquals(0, journal.recover(new Recorder()));
+            journal.appendUpdate("ns", "a", new SessionData("a", 1000L, 30, 500L), attributes("x", new byte[] { 1, 2 }),
+                    Collections.emptyList());
+            journal.appendUpdate("ns", "a", null, attributes("y", new byte[] { 3 }), Collections.singleton("x"));
+            journal.appendUpdate("ns", "b", new SessionData("b", 2000L, 60, 500L), Collections.emptyMap(), Collections.emptyList());
+            journal.appendRemove("ns", "b");
+        }
+
+        Recorder recorder = recover(directory);
+
+        assertEquals(4, recorder.events.size());
+        assertEquals("remove ns:b", recorder.events.get(3));
+        assertEquals(1000L, recorder.sessions.get("a").getLastAccessedTime());
+        assertEquals(30, recorder.sessions.get("a").getMaxInactiveInterval());
+        assertEquals(500L, recorder.sessions.get("a").getCreationTime());
+        assertNull(recorder.sessions.get("b"));
+        assertNull(recorder.attributes.get("a.x"));
+        assertArrayEquals(new byte[] { 3 }, recorder.attributes.get("a.y"));
+    }
+
+    @Test
+    public void testRecoveryStopsAtIncompleteRecord() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        int second = writeTwoRecords(directory);
+
+        // Length is written last, so a torn append leaves zero length
+        overwrite(directory.resolve("journal-1.dat"), second, new byte[4]);
+
+        assertEquals(Collections.singletonList("update ns:a"), recover(directory).events);
+    }
+
+    @Test
+    public void testRecoveryStopsAtDamagedRecord() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        int second = writeTwoRecords(directory);
+
+        overwrite(directory.resolve("journal-1.dat"), second + 8 + 4, new byte[] { 'z' });
+
+        assertEquals(Collections.singletonList("update ns:a"), recover(directory).events);
+    }
+
+    @Test
+    public void testRecoveryStopsAtLengthBeyondEndOfFile() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        int second = writeTwoRecords(directory);
+
+        overwrite(directory.resolve("journal-1.dat"), second, new byte[] { 0x7F, 0, 0, 0 });
+
+        assertEquals(Collections.singletonList("update ns:a"), recover(directory).events);
+    }
+
+    @Test
+    public void testSnapshotReplacesOlderJournals() throws IOException {
+        Path directory = folder.getRoot().toPath();
+
+        try (SessionJournal journal = new SessionJournal(directory)) {
+            journal.recover(new Recorder());
+            journal.appendUpdate("ns", "old", new SessionData("old", 1000L, 30, 500L), Collections.emptyMap(), Collections.emptyList());
+
+            try (SessionJournal.Snapshot snapshot = journal.startSnapshot()) {
+                // Change made while snapshot is written is replayed after it
+                journal.appendUpdate("ns", "a", null, attributes("x", new byte[] { 2 }), Collections.emptyList());
+                snapshot.write("ns", new SessionData("a", 1000L, 30, 500L), attributes("x", new byte[] { 1 }));
+                snapshot.commit();
+            }
+        }
+
+        Recorder recorder = recover(directory);
+
+        assertEquals(2, recorder.events.size());
+        assertNull(recorder.sessions.get("old"));
+        assertArrayEquals(new byte[] { 2 }, recorder.attributes.get("a.x"));
+    }
+
+    @Test
+    public void testUncommittedSnapshotIsDiscarded() throws IOException {
+        Path directory = folder.getRoot().toPath();
+
+        try (SessionJournal journal = new SessionJournal(directory)) {
+            journal.recover(new Recorder());
+            journal.appendUpdate("ns", "a", new SessionData("a", 1000L, 30, 500L), Collections.emptyMap(), Collections.emptyList());
+
+            try (SessionJournal.Snapshot snapshot = journal.startSnapshot()) {
+                snapshot.write("ns", new SessionData("b", 1000L, 30, 500L), Collections.emptyMap());
+            }
+        }
+
+        assertEquals(Collections.singletonList("update ns:a"), recover(directory).events);
+    }
+
+    @Test
+    public void testReplaysSnapshotLargerThanMappedWindow() throws IOException {
+        Path directory = folder.getRoot().toPath();
+
+        try (SessionJournal journal = new SessionJournal(directory, 256)) {
+            journal.recover(new Recorder());
+
+            try (SessionJournal.Snapshot snapshot = journal.startSnapshot()) {
+                for (int i = 0; i < 50; i++) {
+                    snapshot.write("ns", new SessionData("s" + i, 1000L, 30, 500L), attributes("x", new byte[20]));
+                }
+
+                // Record that doesn't fit into a single window
+                snapshot.write("ns", new SessionData("large", 1000L, 30, 500L), attributes("x", new byte[1000]));
+                snapshot.write("ns", new SessionData("last", 1000L, 30, 500L), Collections.emptyMap());
+                snapshot.commit();
+            }
+        }
+
+        Recorder recorder = recover(directory, 256);
+
+        assertEquals(52, recorder.events.size());
+        assertEquals("update ns:last", recorder.events.get(51));
+        assertEquals(1000, recorder.attributes.get("large.x").length);
+    }
+
+    @Test
+    public void testFullJournalContinuesInNextGeneration() throws IOException {
+        Path directory = folder.getRoot().toPath();
+
+        try (SessionJournal journal = new SessionJournal(directory, 512)) {
+            journal.recover(new Recorder());
+
+            for (int i = 0; i < 100; i++) {
+                journal.appendUpdate("ns", "s" + i, new SessionData("s" + i, 1000L, 30, 500L), attributes("x", new byte[] { (byte) i }),
+                        Collections.emptyList());
+            }
+        }
+
+        Recorder recorder = recover(directory);
+
+        assertTrue(Files.exists(directory.resolve("journal-2.dat")));
+        assertEquals(100, recorder.events.size());
+        assertEquals("update ns:s99", recorder.events.get(99));
+        assertArrayEquals(new byte[] { 99 }, recorder.attributes.get("s99.x"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsRecordLargerThanJournal() throws IOException {
+        try (SessionJournal journal = new SessionJournal(folder.getRoot().toPath(), 512)) {
+            journal.recover(new Recorder());
+            journal.appendUpdate("ns", "a", new SessionData("a", 1000L, 30, 500L), attributes("x", new byte[1000]), Collections.emptyList());
+        }
+    }
+}
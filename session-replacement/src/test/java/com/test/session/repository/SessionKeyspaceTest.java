@@ -0,0 +1,198 @@
+package com.test.session.repository;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import com.test.session.api.RedisConfigurationService;
+import com.test.session.api.SessionConfigurationService;
+import com.test.session.models.RedisConstants;
+
+public class SessionKeyspaceTest {
+    private static final String ID = "4f2a-session";
+    private static final long MINUTE = 1_500_000_000_000L / 60_000L * 60_000L;
+
+    private static SessionConfigurationService sessionConfiguration(String namespace, String node, boolean sticky) {
+        SessionConfigurationService configuration = mock(SessionConfigurationService.class);
+        when(configuration.getNamespace()).thenReturn(namespace);
+        when(configuration.getNode()).thenReturn(node);
+        when(configuration.isSticky()).thenReturn(sticky);
+        return configuration;
+    }
+
+    private static RedisConfigurationService redisConfiguration(int buckets) {
+        RedisConfigurationService configuration = mock(RedisConfigurationService.class);
+        when(configuration.getExpirationBuckets()).thenReturn(buckets);
+        return configuration;
+    }
+
+    private static SessionKeyspace keyspace(boolean sticky, int buckets) {
+        return SessionKeyspace.of(sessionConfiguration("ns", "node", sticky), redisConfiguration(buckets));
+    }
+
+    // Key formats as they were built from strings before the keyspace
+
+    private static String keyPrefix(String namespace) {
+        return RedisConstants.DEFAULT_SESSION_PREFIX + ":" + namespace + ":";
+    }
+
+    private static String keyExpirePrefix(String owner, String node) {
+        return RedisConstants.DEFAULT_SESSION_EXPIRE_PREFIX + ":" + owner + ":" + node + ":";
+    }
+
+    private static String string(byte[] key) {
+        return new String(key, UTF_8);
+    }
+
+    @Test
+    public void testSessionKey() {
+        SessionKeyspace keyspace = keyspace(false, 1);
+
+        assertEquals("com.test.session:ns:{" + ID + "}", string(keyspace.sessionKey(ID)));
+        assertEquals(keyPrefix("ns") + "{" + ID + "}", string(keyspace.sessionKey(ID.getBytes(UTF_8))));
+        // Non-ASCII ids are encoded as UTF-8
+        assertEquals(keyPrefix("ns") + "{id-\u00e9\u4e2d}", string(keyspace.sessionKey("id-\u00e9\u4e2d")));
+    }
+
+    @Test
+    public void testSessionIdOfSessionKey() {
+        SessionKeyspace keyspace = keyspace(false, 1);
+
+        assertEquals(ID, keyspace.sessionId(keyspace.sessionKey(ID)));
+        assertEquals("id-\u00e9\u4e2d", keyspace.sessionId(keyspace.sessionKey("id-\u00e9\u4e2d")));
+        assertNull(keyspace.sessionId((keyPrefix("other") + "{" + ID + "}").getBytes(UTF_8)));
+        assertNull(keyspace.sessionId(ID.getBytes(UTF_8)));
+    }
+
+    @Test
+    public void testExpireKeys() {
+        SessionKeyspace sticky = keyspace(true, 1);
+
+        assertEquals("com.test.session:expire:node:node:{" + ID + "}", string(sticky.sessionExpireKey(ID)));
+        assertEquals(keyExpirePrefix("node", "node"), string(sticky.getExpireKeyPrefix()));
+        assertEquals("com.test.session:expire:owner:node:{" + ID + "}", string(sticky.sessionExpireKey("owner", ID)));
+        assertEquals(keyExpirePrefix("owner", "node") + "{" + ID + "}", string(sticky.sessionExpireKey("owner", ID)));
+
+        SessionKeyspace nonSticky = keyspace(false, 1);
+
+        // Expire key must differ from session key, as both use id as hash tag
+        assertEquals("com.test.session:expire:ns:{" + ID + "}", string(nonSticky.sessionExpireKey(ID)));
+        assertEquals("com.test.session:expire:ns:", string(nonSticky.getExpireKeyPrefix()));
+    }
+
+    @Test
+    public void testExpirationsKeysWithSingleBucket() {
+        SessionKeyspace keyspace = keyspace(true, 1);
+
+        assertEquals(keyPrefix("ns") + "expirations:" + MINUTE, string(keyspace.expirationsKey(MINUTE, 0)));
+        assertEquals(keyPrefix("ns") + "forced-expirations:" + MINUTE, string(keyspace.forcedExpirationsKey(MINUTE, 0)));
+        assertEquals(keyPrefix("ns") + "expirations:0", string(keyspace.expirationsKey(0, 0)));
+    }
+
+    @Test
+    public void testExpirationsKeysWithBuckets() {
+        SessionKeyspace keyspace = keyspace(true, 16);
+
+        assertEquals(keyPrefix("ns") + "expirations:{" + MINUTE + ":0}", string(keyspace.expirationsKey(MINUTE, 0)));
+        assertEquals(keyPrefix("ns") + "expirations:{" + MINUTE + ":15}", string(keyspace.expirationsKey(MINUTE, 15)));
+        assertEquals(keyPrefix("ns") + "forced-expirations:{" + MINUTE + ":7}", string(keyspace.forcedExpirationsKey(MINUTE, 7)));
+    }
+
+    @Test
+    public void testAllSessionsKeys() {
+        assertEquals(RedisConstants.ALLSESSIONS_KEY + "ns", string(keyspace(false, 1).allSessionsKey(0)));
+        assertEquals("com.test.session:all-sessions-set:{ns:0}", string(keyspace(false, 12).allSessionsKey(0)));
+        assertEquals("com.test.session:all-sessions-set:{ns:11}", string(keyspace(false, 12).allSessionsKey(11)));
+        // Keys of other shard counts don't depend on configured count
+        assertEquals(RedisConstants.ALLSESSIONS_KEY + "ns", string(keyspace(false, 12).allSessionsKey(0, 1)));
+        assertEquals("com.test.session:all-sessions-set:{ns:3}", string(keyspace(false, 1).allSessionsKey(3, 4)));
+        assertEquals("com.test.session:all-sessions-set:{ns}:shard-counts", string(keyspace(false, 12).getShardCountsKey()));
+    }
+
+    @Test
+    public void testAllSessionsKeyIsNotShared() {
+        SessionKeyspace keyspace = keyspace(false, 1);
+
+        keyspace.allSessionsKey(0)[0] = 'x';
+
+        assertEquals(RedisConstants.ALLSESSIONS_KEY + "ns", string(keyspace.allSessionsKey(0)));
+    }
+
+    @Test
+    public void testRedirectionChannel() {
+        assertEquals(keyPrefix("ns") + "redirection", string(keyspace(false, 1).getRedirectionChannel()));
+    }
+
+    @Test
+    public void testSortedSetMember() {
+        assertEquals(ID + ":node", string(keyspace(true, 1).sortedSetMember(ID)));
+        assertEquals(ID, string(keyspace(false, 1).sortedSetMember(ID)));
+    }
+
+    @Test
+    public void testBucket() {
+        SessionKeyspace keyspace = keyspace(false, 7);
+
+        for (int i = 0; i < 100; i++) {
+            int bucket = keyspace.bucket("session-" + i);
+
+            assertTrue(bucket >= 0 && bucket < 7);
+        }
+
+        assertEquals(0, keyspace(false, 1).bucket(ID));
+    }
+
+    @Test
+    public void testRoundsToMinutes() {
+        assertEquals(MINUTE, SessionKeyspace.roundDownMinute(MINUTE));
+        assertEquals(MINUTE, SessionKeyspace.roundDownMinute(MINUTE + 59_999L));
+        assertEquals(MINUTE + 60_000L, SessionKeyspace.roundUpToNextMinute(MINUTE));
+        assertEquals(-60_000L, SessionKeyspace.roundDownMinute(-1L));
+    }
+
+    @Test
+    public void testCachedPerNamespace() {
+        SessionConfigurationService first = sessionConfiguration("cache-first", "node", false);
+        SessionConfigurationService second = sessionConfiguration("cache-second", "node", false);
+        RedisConfigurationService redis = redisConfiguration(1);
+
+        SessionKeyspace firstKeyspace = SessionKeyspace.of(first, redis);
+        SessionKeyspace secondKeyspace = SessionKeyspace.of(second, redis);
+
+        assertNotSame(firstKeyspace, secondKeyspace);
+        // Other namespace doesn't replace cached keyspace
+        assertSame(firstKeyspace, SessionKeyspace.of(first, redis));
+        assertSame(secondKeyspace, SessionKeyspace.of(second, redis));
+        assertEquals(keyPrefix("cache-second") + "{" + ID + "}", string(secondKeyspace.sessionKey(ID)));
+    }
+
+    @Test
+    public void testRebuiltWhenConfigurationChanges() {
+        SessionConfigurationService configuration = sessionConfiguration("cache-change", "node", false);
+        SessionKeyspace keyspace = SessionKeyspace.of(configuration, redisConfiguration(1));
+
+        assertSame(keyspace, SessionKeyspace.of(configuration, null));
+
+        SessionKeyspace bucketed = SessionKeyspace.of(configuration, redisConfiguration(4));
+
+        assertNotSame(keyspace, bucketed);
+
+        when(configuration.isSticky()).thenReturn(true);
+        SessionKeyspace sticky = SessionKeyspace.of(configuration, redisConfiguration(4));
+
+        assertNotSame(bucketed, sticky);
+        assertEquals(keyExpirePrefix("node", "node") + "{" + ID + "}", string(sticky.sessionExpireKey(ID)));
+
+        when(configuration.getNode()).thenReturn("other-node");
+
+        assertEquals(keyExpirePrefix("other-node", "other-node") + "{" + ID + "}",
+                string(SessionKeyspace.of(configuration, redisConfiguration(4)).sessionExpireKey(ID)));
+    }
+}
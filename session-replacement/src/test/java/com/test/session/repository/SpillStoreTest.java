@@ -0,0 +1,110 @@
+package com.test.session.repository;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.test.session.models.SessionData;
+
+public class SpillStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private SpillStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.getRoot().toPath().resolve("spill");
+        store = new SpillStore(directory);
+    }
+
+    private static Map<String, byte[]> attributes() {
+        Map<String, byte[]> attributes = new HashMap<>();
+        attributes.put("x", new byte[] { 1, 2, 3 });
+        attributes.put("empty", new byte[0]);
+        return attributes;
+    }
+
+    @Test
+    public void testWriteAndTake() throws IOException {
+        store.write("ns", new SessionData("a", 1000L, 30, 500L), attributes());
+
+        SpillStore.SpilledSession session = store.take("ns", "a");
+
+        assertEquals("a", session.sessionData.getId());
+        assertEquals(1000L, session.sessionData.getLastAccessedTime());
+        assertEquals(30, session.sessionData.getMaxInactiveInterval());
+        assertEquals(500L, session.sessionData.getCreationTime());
+        assertEquals(attributes().keySet(), session.attributes.keySet());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, session.attributes.get("x"));
+        assertArrayEquals(new byte[0], session.attributes.get("empty"));
+        // Taken session is no longer in the store
+        assertNull(store.take("ns", "a"));
+    }
+
+    @Test
+    public void testPeekKeepsSession() throws IOException {
+        store.write("ns", new SessionData("a", 1000L, 30, 500L), attributes());
+
+        assertEquals(1000L, store.peek("ns", "a").getLastAccessedTime());
+        assertEquals(1000L, store.peek("ns", "a").getLastAccessedTime());
+        assertNull(store.peek("ns", "b"));
+        assertNull(store.peek("other", "a"));
+    }
+
+    @Test
+    public void testWriteReplacesSession() throws IOException {
+        store.write("ns", new SessionData("a", 1000L, 30, 500L), attributes());
+        store.write("ns", new SessionData("a", 2000L, 60, 500L), Collections.emptyMap());
+
+        SpillStore.SpilledSession session = store.take("ns", "a");
+
+        assertEquals(2000L, session.sessionData.getLastAccessedTime());
+        assertTrue(session.attributes.isEmpty());
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        store.write("ns", new SessionData("a", 1000L, 30, 500L), attributes());
+        store.remove("ns", "a");
+        store.remove("ns", "unknown");
+
+        assertNull(store.peek("ns", "a"));
+    }
+
+    @Test
+    public void testForEachReadsAllNamespaces() throws IOException {
+        // Ids and namespaces are hex encoded, so any characters are allowed
+        store.write("ns", new SessionData("a/b", 1000L, 30, 500L), attributes());
+        store.write("ns", new SessionData("c", 2000L, 30, 500L), attributes());
+        store.write("other:\u00e9", new SessionData("a/b", 3000L, 30, 500L), attributes());
+        // Leftover of interrupted write is ignored
+        Files.createFile(directory.resolve("6e73").resolve("64.session.tmp"));
+
+        Map<String, Long> sessions = new HashMap<>();
+
+        new SpillStore(directory).forEach((namespace, sessionData) -> sessions.put(namespace + "|" + sessionData.getId(),
+                sessionData.getLastAccessedTime()));
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("ns|a/b", 1000L);
+        expected.put("ns|c", 2000L);
+        expected.put("other:\u00e9|a/b", 3000L);
+
+        assertEquals(expected, sessions);
+    }
+}
@@ -0,0 +1,54 @@
+package com.test.session.repository.expiration;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.test.session.api.SessionManager;
+import com.test.session.connection.api.RedisConnector;
+import com.test.session.connection.api.RedisConnector.RedisPubSub;
+
+public class ExpirationListenerTest {
+
+    @Test
+    public void testStartIsIgnoredWhileSubscribed() throws InterruptedException {
+        ExpirationListener listener = new ExpirationListener(mock(SessionManager.class), "prefix:".getBytes(UTF_8), "factory");
+        RedisConnector redis = mock(RedisConnector.class);
+        CountDownLatch subscribed = new CountDownLatch(1);
+        CountDownLatch unsubscribed = new CountDownLatch(1);
+
+        // Subscription blocks until it is closed
+        doAnswer(invocation -> {
+            subscribed.countDown();
+            unsubscribed.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(redis).subscribe(any(RedisPubSub.class), anyString());
+
+        Thread subscriber = new Thread(() -> listener.start(redis));
+        subscriber.start();
+        assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+        // Returns immediately, without second subscription or dispatcher
+        listener.start(redis);
+        verify(redis, times(1)).subscribe(any(RedisPubSub.class), anyString());
+
+        unsubscribed.countDown();
+        subscriber.join(5000);
+        assertFalse(subscriber.isAlive());
+
+        // Once the first subscription ended, listener can be started again
+        listener.start(redis);
+        verify(redis, times(2)).subscribe(any(RedisPubSub.class), anyString());
+    }
+}
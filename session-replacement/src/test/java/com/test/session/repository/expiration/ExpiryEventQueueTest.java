@@ -0,0 +1,194 @@
+package com.test.session.repository.expiration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ExpiryEventQueueTest {
+
+    private static byte[] message(int i) {
+        return new byte[] { (byte) (i >> 8), (byte) i };
+    }
+
+    private static int value(byte[] message) {
+        return (message[0] & 0xFF) << 8 | message[1] & 0xFF;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCapacityThatIsNotPowerOfTwo() {
+        new ExpiryEventQueue(100);
+    }
+
+    @Test
+    public void testDrainsInOrder() {
+        ExpiryEventQueue queue = new ExpiryEventQueue(8);
+        byte[] first = message(1);
+
+        queue.offer(first);
+        queue.offer(message(2));
+        queue.offer(message(3));
+
+        assertEquals(3, queue.size());
+
+        List<byte[]> batch = new ArrayList<>();
+
+        assertEquals(2, queue.drain(batch, 2));
+        // Messages are passed on without copy
+        assertSame(first, batch.get(0));
+        assertEquals(2, value(batch.get(1)));
+        assertEquals(1, queue.size());
+        assertEquals(1, queue.drain(batch, 10));
+        assertEquals(3, value(batch.get(2)));
+        assertEquals(0, queue.drain(batch, 10));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDropsWhenFull() {
+        ExpiryEventQueue queue = new ExpiryEventQueue(4);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(message(i)));
+        }
+
+        assertFalse(queue.offer(message(4)));
+        assertFalse(queue.offer(message(5)));
+        assertEquals(2, queue.getDropped());
+        assertEquals(4, queue.size());
+
+        List<byte[]> batch = new ArrayList<>();
+
+        assertEquals(1, queue.drain(batch, 1));
+        // Drained slot can be reused
+        assertTrue(queue.offer(message(6)));
+        assertEquals(4, queue.drain(batch, 10));
+
+        List<Integer> values = new ArrayList<>();
+
+        for (byte[] message : batch) {
+            values.add(value(message));
+        }
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 6), values);
+        assertEquals(2, queue.getDropped());
+    }
+
+    @Test
+    public void testWrapsAroundManyTimes() {
+        ExpiryEventQueue queue = new ExpiryEventQueue(4);
+        List<byte[]> batch = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(message(i));
+            queue.offer(message(i));
+            batch.clear();
+
+            assertEquals(2, queue.drain(batch, 10));
+            assertEquals(i, value(batch.get(1)));
+        }
+
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void testMeasuresLag() throws InterruptedException {
+        ExpiryEventQueue queue = new ExpiryEventQueue(4);
+
+        queue.offer(message(1));
+        Thread.sleep(50);
+        queue.drain(new ArrayList<>(), 10);
+
+        assertTrue(queue.getLastLag() >= 40);
+        assertTrue(queue.getMaxLag() >= queue.getLastLag());
+
+        queue.offer(message(2));
+        queue.drain(new ArrayList<>(), 10);
+
+        assertTrue(queue.getLastLag() < 40);
+        assertTrue(queue.getMaxLag() >= 40);
+    }
+
+    @Test
+    public void testAwaitReturnsWhenMessageIsOffered() throws InterruptedException {
+        ExpiryEventQueue queue = new ExpiryEventQueue(4);
+        CountDownLatch started = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            started.countDown();
+
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            queue.offer(message(1));
+        });
+
+        producer.start();
+        started.await();
+
+        long start = System.nanoTime();
+
+        queue.await(10, TimeUnit.SECONDS);
+
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+        producer.join();
+        assertEquals(1, queue.drain(new ArrayList<>(), 10));
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        ExpiryEventQueue queue = new ExpiryEventQueue(1024);
+        int producers = 4;
+        int perProducer = 5000;
+        Thread[] threads = new Thread[producers];
+        Set<Integer> received = new HashSet<>();
+        List<byte[]> batch = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            int offset = p * perProducer;
+
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    // Retries dropped messages so all must arrive
+                    while (!queue.offer(message(offset + i))) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+
+        while (received.size() < producers * perProducer && System.currentTimeMillis() < deadline) {
+            batch.clear();
+            queue.drain(batch, 100);
+
+            for (byte[] message : batch) {
+                received.add(value(message));
+            }
+
+            if (batch.isEmpty()) {
+                queue.await(1, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(producers * perProducer, received.size());
+    }
+}
@@ -0,0 +1,188 @@
+package com.test.session.serializer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class BinaryFormatTest {
+    private final BinaryFormat format = new BinaryFormat(BinaryFormatTest.class.getClassLoader());
+
+    enum Color {
+        RED, GREEN {
+            @Override
+            public String toString() {
+                return "green";
+            }
+        }
+    }
+
+    static final class Point implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int x;
+        final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Point && ((Point) obj).x == x && ((Point) obj).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+
+    private Object roundTrip(Object value) throws IOException {
+        byte[] data = format.write(value);
+
+        assertEquals(BinaryFormat.FORMAT_TAG, data[0]);
+
+        return format.read(data);
+    }
+
+    @Test
+    public void testScalars() throws IOException {
+        assertNull(roundTrip(null));
+        assertEquals("text \u00e9\u4e2d\ud83d\ude00", roundTrip("text \u00e9\u4e2d\ud83d\ude00"));
+        assertEquals("", roundTrip(""));
+        assertEquals(Integer.MIN_VALUE, roundTrip(Integer.MIN_VALUE));
+        assertEquals(-1, roundTrip(-1));
+        assertEquals(Long.MAX_VALUE, roundTrip(Long.MAX_VALUE));
+        assertEquals(Math.PI, roundTrip(Math.PI));
+        assertEquals(Float.NaN, roundTrip(Float.NaN));
+        assertEquals((short) -300, roundTrip((short) -300));
+        assertEquals((byte) 0x80, roundTrip((byte) 0x80));
+        assertEquals(Boolean.TRUE, roundTrip(Boolean.TRUE));
+        assertEquals(Boolean.FALSE, roundTrip(Boolean.FALSE));
+        assertEquals('\uffff', roundTrip('\uffff'));
+        assertEquals(new Date(1234567890123L), roundTrip(new Date(1234567890123L)));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) roundTrip(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void testEnums() throws IOException {
+        assertSame(Color.RED, roundTrip(Color.RED));
+        // Constant with body is instance of anonymous subclass
+        assertSame(Color.GREEN, roundTrip(Color.GREEN));
+        assertEquals(Arrays.asList(Color.RED, Color.GREEN, Color.RED), roundTrip(new ArrayList<>(Arrays.asList(Color.RED, Color.GREEN, Color.RED))));
+    }
+
+    @Test
+    public void testCollectionsKeepTheirType() throws IOException {
+        List<Object> list = new ArrayList<>(Arrays.asList("a", 1, null, 2L));
+        LinkedList<Object> linkedList = new LinkedList<>(list);
+        HashSet<Object> set = new HashSet<>(Arrays.asList("a", "b"));
+        LinkedHashSet<Object> linkedSet = new LinkedHashSet<>(Arrays.asList("z", "a", "m"));
+        Map<Object, Object> map = new HashMap<>();
+        map.put("key", list);
+        map.put(7, null);
+        LinkedHashMap<Object, Object> linkedMap = new LinkedHashMap<>();
+        linkedMap.put("z", 1);
+        linkedMap.put("a", 2);
+
+        assertSame(ArrayList.class, roundTrip(list).getClass());
+        assertEquals(list, roundTrip(list));
+        assertSame(LinkedList.class, roundTrip(linkedList).getClass());
+        assertEquals(linkedList, roundTrip(linkedList));
+        assertSame(HashSet.class, roundTrip(set).getClass());
+        assertEquals(set, roundTrip(set));
+        assertEquals(new ArrayList<>(linkedSet), new ArrayList<>((LinkedHashSet<?>) roundTrip(linkedSet)));
+        assertEquals(map, roundTrip(map));
+        assertEquals(new ArrayList<>(linkedMap.keySet()), new ArrayList<>(((LinkedHashMap<?, ?>) roundTrip(linkedMap)).keySet()));
+    }
+
+    @Test
+    public void testOtherTypesUseJdkSerialization() throws IOException {
+        TreeMap<String, Point> tree = new TreeMap<>();
+        tree.put("p", new Point(1, 2));
+        List<Object> list = new ArrayList<>(Arrays.asList(new Point(3, 4), tree));
+
+        assertEquals(new Point(1, 2), roundTrip(new Point(1, 2)));
+        assertEquals(tree, roundTrip(tree));
+        assertEquals(list, roundTrip(list));
+    }
+
+    @Test
+    public void testIdentityIsNotPreserved() throws IOException {
+        Point point = new Point(1, 1);
+        List<?> result = (List<?>) roundTrip(new ArrayList<>(Arrays.asList(point, point)));
+
+        assertEquals(result.get(0), result.get(1));
+        assertNotSame(result.get(0), result.get(1));
+    }
+
+    @Test
+    public void testDeepNestingFallsBackToJdk() throws IOException {
+        List<Object> root = new ArrayList<>();
+        List<Object> current = root;
+
+        for (int i = 0; i < 100; i++) {
+            List<Object> child = new ArrayList<>();
+            current.add(child);
+            current = child;
+        }
+
+        current.add("leaf");
+
+        assertEquals(root, roundTrip(root));
+    }
+
+    @Test
+    public void testLargeValueGrowsBuffer() throws IOException {
+        byte[] large = new byte[200 * 1024];
+        Arrays.fill(large, (byte) 7);
+
+        assertArrayEquals(large, (byte[]) roundTrip(large));
+        // Buffer is reused by next write
+        assertEquals("small", roundTrip("small"));
+    }
+
+    @Test
+    public void testWritesAfterClose() throws IOException {
+        roundTrip("pooled");
+        format.close();
+
+        assertEquals("not pooled", roundTrip("not pooled"));
+        assertEquals(Arrays.asList("a", "b"), roundTrip(new ArrayList<>(Arrays.asList("a", "b"))));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFormat() throws IOException {
+        format.read(new byte[] { (byte) 0xAC, (byte) 0xED, 0, 5 });
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsTruncatedData() throws IOException {
+        byte[] data = format.write(new ArrayList<>(Arrays.asList("one", "two", "three")));
+
+        format.read(Arrays.copyOf(data, data.length - 3));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsUnknownType() throws IOException {
+        format.read(new byte[] { BinaryFormat.FORMAT_TAG, 100 });
+    }
+}
@@ -0,0 +1,237 @@
+package com.test.session.serializer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.test.session.api.SessionConfigurationService;
+import com.test.session.models.SessionConstants;
+
+import junitx.util.PrivateAccessor;
+
+public class SerialiserDeserialiserServiceImplTest {
+    private SessionConfigurationService configuration;
+    private SerialiserDeserialiserServiceImpl serializer;
+
+    @Before
+    public void setUp() throws NoSuchFieldException {
+        configuration = mock(SessionConfigurationService.class);
+        when(configuration.isUsingEncryption()).thenReturn(true);
+        when(configuration.getEncryptionKey()).thenReturn("test-key");
+        when(configuration.getEncryptionMode()).thenReturn(SessionConstants.ENCRYPTION_MODE_GCM);
+
+        serializer = new SerialiserDeserialiserServiceImpl();
+        PrivateAccessor.setField(serializer, "configurationService", configuration);
+    }
+
+    private static Map<String, Object> value() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("user", "john");
+        value.put("roles", new ArrayList<>(Arrays.asList("admin", "editor")));
+        return value;
+    }
+
+    private static String largeValue() {
+        return String.join("", Collections.nCopies(1000, "repeated text "));
+    }
+
+    @Test
+    public void testGcmRoundTrip() {
+        byte[] data = serializer.serialize(value());
+
+        assertEquals((byte) 0xE5, data[0]);
+        assertEquals((byte) 0x5A, data[1]);
+        assertEquals(value(), serializer.deserialize(data));
+    }
+
+    @Test
+    public void testCbcRoundTrip() {
+        when(configuration.getEncryptionMode()).thenReturn(SessionConstants.ENCRYPTION_MODE_CBC);
+
+        assertEquals(value(), serializer.deserialize(serializer.serialize(value())));
+    }
+
+    @Test
+    public void testCbcIvNeverStartsWithGcmHeader() throws NoSuchFieldException {
+        when(configuration.getEncryptionMode()).thenReturn(SessionConstants.ENCRYPTION_MODE_CBC);
+        PrivateAccessor.setField(serializer, "random", new SecureRandom() {
+            private static final long serialVersionUID = 1L;
+            private boolean first = true;
+
+            @Override
+            public void nextBytes(byte[] bytes) {
+                super.nextBytes(bytes);
+
+                if (first) {
+                    // First IV starts with the same bytes as GCM header
+                    bytes[0] = (byte) 0xE5;
+                    bytes[1] = (byte) 0x5A;
+                    bytes[2] = 1;
+                    first = false;
+                }
+            }
+        });
+
+        byte[] data = serializer.serialize(value());
+
+        assertFalse(data[0] == (byte) 0xE5 && data[1] == (byte) 0x5A && data[2] == 1);
+        assertEquals(value(), serializer.deserialize(data));
+    }
+
+    @Test
+    public void testReadsDataWrittenInOtherMode() {
+        byte[] gcm = serializer.serialize(value());
+
+        when(configuration.getEncryptionMode()).thenReturn(SessionConstants.ENCRYPTION_MODE_CBC);
+        byte[] cbc = serializer.serialize(value());
+
+        assertEquals(value(), serializer.deserialize(gcm));
+
+        when(configuration.getEncryptionMode()).thenReturn(SessionConstants.ENCRYPTION_MODE_GCM);
+
+        assertEquals(value(), serializer.deserialize(cbc));
+    }
+
+    @Test
+    public void testRejectsTamperedCiphertext() {
+        byte[] data = serializer.serialize(value());
+
+        data[data.length / 2] ^= 1;
+
+        assertNull(serializer.deserialize(data));
+    }
+
+    @Test
+    public void testRejectsTamperedTag() {
+        byte[] data = serializer.serialize(value());
+
+        data[data.length - 1] ^= 1;
+
+        assertNull(serializer.deserialize(data));
+    }
+
+    @Test
+    public void testRejectsTamperedHeader() {
+        byte[] data = serializer.serialize(value());
+
+        // Header is authenticated, but not encrypted
+        data[3] = 1;
+
+        assertNull(serializer.deserialize(data));
+    }
+
+    @Test
+    public void testRejectsDifferentKey() {
+        byte[] data = serializer.serialize(value());
+
+        when(configuration.getEncryptionKey()).thenReturn("other-key");
+
+        assertNull(serializer.deserialize(data));
+    }
+
+    @Test
+    public void testContentHashDoesNotDependOnIv() {
+        long[] hashes = new long[3];
+        byte[] first = serializer.serialize(value(), hash -> hashes[0] = hash);
+        byte[] second = serializer.serialize(value(), hash -> hashes[1] = hash);
+
+        assertFalse(Arrays.equals(first, second));
+        assertEquals(hashes[0], hashes[1]);
+
+        serializer.deserialize(second, hash -> hashes[2] = hash);
+
+        assertEquals(hashes[0], hashes[2]);
+    }
+
+    @Test
+    public void testCompressesLargeValues() {
+        when(configuration.getCompressionThreshold()).thenReturn(1024);
+        String large = largeValue();
+
+        byte[] data = serializer.serialize(large);
+
+        assertTrue(data.length < large.length() / 10);
+        assertEquals(large, serializer.deserialize(data));
+        assertEquals(1, serializer.getCompressionAttempts());
+        assertEquals(1, serializer.getCompressedValues());
+        assertTrue(serializer.getCompressionRatio() < 0.1);
+    }
+
+    @Test
+    public void testDoesNotCompressSmallValues() {
+        when(configuration.getCompressionThreshold()).thenReturn(1024);
+
+        assertEquals("small", serializer.deserialize(serializer.serialize("small")));
+        assertEquals(0, serializer.getCompressionAttempts());
+    }
+
+    @Test
+    public void testKeepsIncompressibleValuesUncompressed() {
+        when(configuration.isUsingEncryption()).thenReturn(false);
+        when(configuration.getCompressionThreshold()).thenReturn(1024);
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+
+        byte[] data = serializer.serialize(random);
+
+        assertFalse(data[0] == SerialiserDeserialiserServiceImpl.COMPRESSED_TAG);
+        assertTrue(Arrays.equals(random, (byte[]) serializer.deserialize(data)));
+        assertEquals(1, serializer.getCompressionAttempts());
+        assertEquals(0, serializer.getCompressedValues());
+    }
+
+    @Test
+    public void testRejectsTruncatedCompressedValue() {
+        when(configuration.isUsingEncryption()).thenReturn(false);
+        when(configuration.getCompressionThreshold()).thenReturn(1024);
+        String large = largeValue();
+        byte[] data = serializer.serialize(large);
+
+        assertEquals(SerialiserDeserialiserServiceImpl.COMPRESSED_TAG, data[0]);
+        assertNull(serializer.deserialize(Arrays.copyOf(data, data.length - 10)));
+    }
+
+    @Test
+    public void testRejectsImplausibleUncompressedLength() {
+        when(configuration.isUsingEncryption()).thenReturn(false);
+        byte[] data = ByteBuffer.allocate(15).put(SerialiserDeserialiserServiceImpl.COMPRESSED_TAG).putInt(Integer.MAX_VALUE).array();
+
+        assertNull(serializer.deserialize(data));
+    }
+
+    @Test
+    public void testCompressorsAreReleasedOnDeactivation() {
+        when(configuration.getCompressionThreshold()).thenReturn(1024);
+        String large = largeValue();
+        byte[] data = serializer.serialize(large);
+
+        serializer.close(null);
+
+        assertEquals(large, serializer.deserialize(data));
+        assertEquals(large, serializer.deserialize(serializer.serialize(large)));
+    }
+
+    @Test
+    public void testCiphersAreReleasedOnDeactivation() {
+        byte[] data = serializer.serialize(value());
+
+        serializer.close(null);
+
+        assertEquals(value(), serializer.deserialize(data));
+    }
+}
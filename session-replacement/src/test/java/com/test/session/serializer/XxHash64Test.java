@@ -0,0 +1,60 @@
+package com.test.session.serializer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class XxHash64Test {
+
+    @Test
+    public void testKnownValues() {
+        assertEquals(0xEF46DB3751D8E999L, XxHash64.hash(new byte[0]));
+        assertEquals(0xD24EC4F1A98C6E5BL, XxHash64.hash("a".getBytes(UTF_8)));
+        assertEquals(0x44BC2CF5AD770999L, XxHash64.hash("abc".getBytes(UTF_8)));
+        assertEquals(0xFBCEA83C8A378BF1L, XxHash64.hash("Nobody inspects the spammish repetition".getBytes(UTF_8)));
+    }
+
+    @Test
+    public void testLongInput() {
+        byte[] data = new byte[100];
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        assertEquals(0x6AC1E58032166597L, XxHash64.hash(data));
+    }
+
+    @Test
+    public void testPartOfArray() {
+        byte[] data = "xxabcxx".getBytes(UTF_8);
+
+        assertEquals(XxHash64.hash("abc".getBytes(UTF_8)), XxHash64.hash(data, 2, 3, 0));
+    }
+
+    @Test
+    public void testSeedChangesHash() {
+        byte[] data = "abc".getBytes(UTF_8);
+
+        assertNotEquals(XxHash64.hash(data, 0, data.length, 0), XxHash64.hash(data, 0, data.length, 1));
+    }
+
+    @Test
+    public void testEveryLengthDiffers() {
+        byte[] data = new byte[64];
+        Arrays.fill(data, (byte) 'x');
+        long previous = XxHash64.hash(data, 0, 0, 0);
+
+        // Covers tail of 1 to 7 bytes, 4 byte and 8 byte steps and 32 byte stripes
+        for (int length = 1; length <= data.length; length++) {
+            long hash = XxHash64.hash(data, 0, length, 0);
+
+            assertNotEquals("length " + length, previous, hash);
+            previous = hash;
+        }
+    }
+}